@@ -1,21 +1,34 @@
 package client;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Inflater;
 
+import executor.ExecutionPolicies;
+import executor.ExecutionPolicy;
 import gui.ClientGUI;
 import logger.ProgLogger;
+import protocol.FragmentReassembler;
+import protocol.HistoryCompression;
+import protocol.MessageChannel;
+import protocol.MessageChannels;
+import protocol.MulticastBatch;
 import server.ChatroomServer;
+import server.MulticastGroupAllocator;
 
 /**
  * Client class that handles all logic for a user in this multi-chatroom application. A client
@@ -25,6 +38,23 @@ import server.ChatroomServer;
  */
 public class Client {
 
+  public static final String WIRE_PROTOCOL_PROPERTY = "client.wireProtocol";
+  // number of chatrooms asked for in every page of the number of users in each chatroom
+  public static final int NUM_USERS_PAGE_ROOMS = 1000;
+  // number of messages asked for in every page of chatroom history
+  public static final int HISTORY_PAGE_MESSAGES = 500;
+  // how long to wait before reporting missing chat messages again, doubled after every report up to
+  // MAX_NACK_BACKOFF_SHIFT times, how many times to report them before giving up on them, and how
+  // many later messages to hold back while waiting for them
+  public static final long NACK_INTERVAL_MILLIS = 50;
+  public static final int MAX_NACK_BACKOFF_SHIFT = 4;
+  public static final int MAX_NACK_ATTEMPTS = 8;
+  public static final int MAX_HELD_MESSAGES = 4096;
+  // how long a multicast receive waits before checking whether missing messages should be reported,
+  // and the receive buffer asked for so bursts of messages are not dropped by the socket
+  public static final int MULTICAST_RECEIVE_TIMEOUT_MILLIS = 50;
+  public static final int MULTICAST_RECEIVE_BUFFER_BYTES = 1 << 20;
+
   long clientID;
   ProgLogger logger;
   String proposerLookUphostname;
@@ -32,26 +62,30 @@ public class Client {
   int[] proposerLookUpPorts;
   int unusedLookUpPort;
   Socket socket;
-  BufferedReader reader;
-  BufferedWriter writer;
+  MessageChannel lookUpChannel;
+  boolean useBinaryProtocol;
+  // preset dictionary of the last compressed chatroom history received, kept by its checksum so it
+  // does not need to be sent again
+  byte[] historyDictionary = new byte[0];
+  long historyDictionaryChecksum = -1;
   public String username;
 
   ChatroomServer hostedChatroomServer;
-  InetAddress groupIP;
+  InetSocketAddress group;
+  int chatroomID;
   int chatroomServerPort;
   Socket socketConnectedToChatroomServer;
   InetAddress chatRoomServerAddress;
-  BufferedReader chatRoomServerReader;
-  BufferedWriter chatRoomServerWriter;
+  MessageChannel chatRoomServerChannel;
   String mostRecentChatroomName;
-  Thread multicastMessageReceiverThread;
   MulticastMessageReceiver currentMulticastMessageReceiver;
+  ExecutionPolicy executionPolicy = ExecutionPolicies.getDefault();
 
   /**
    * Constructor for the Client class. This initializes several pieces of information kept in state,
    * like the client ID, the host address and ports of proposer LookUp servers that the client can try
-   * to connect to, the socket and BufferedReader and BufferedWriter for a successful LookUp server
-   * connection, etc.
+   * to connect to, the socket and message channel for a successful LookUp server connection, etc.
+   * The binary wire protocol is used unless the "client.wireProtocol" system property is "text".
    * @param clientID
    */
   public Client(long clientID, ProgLogger logger) {
@@ -62,22 +96,17 @@ public class Client {
     // THe ports for the proposer LookUp servers' sockets that are waiting to accept a connection.
     this.proposerLookUpPorts = new int[]{ 10000, 53333 };
     this.mostRecentChatroomName = null;
-    this.multicastMessageReceiverThread = null;
+    this.useBinaryProtocol = !System.getProperty(WIRE_PROTOCOL_PROPERTY, "binary").equalsIgnoreCase("text");
     // set up socket to LookUp server by trying to connect to a proposer LookUp socket until one
     // successfully connects.
     for (int i = 0; i < this.proposerLookUpPorts.length; i++) {
       try {
         Socket socket = new Socket(this.proposerLookUphostname, this.proposerLookUpPorts[i]);
         this.logger.logger.info("Connected to LookUp server socket");
-        BufferedWriter writer = new BufferedWriter(
-                new OutputStreamWriter(socket.getOutputStream()));
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(socket.getInputStream()));
-        // keep the reader and writer in state so that they may be used by threads in this class to
+        // keep the message channel in state so that it may be used by threads in this class to
         // either listen to the LookUp server socket or send messages to it.
         this.socket = socket;
-        this.reader = reader;
-        this.writer = writer;
+        this.lookUpChannel = MessageChannels.connect(socket, this.useBinaryProtocol);
         // set the unusedLookUpPort to the other port in case this one fails
         this.unusedLookUpPort = proposerLookUpPorts[Math.abs(i-1)];
         break;
@@ -107,10 +136,8 @@ public class Client {
   public String attemptLogin(String username, String password) {
     try {
       this.username = username;
-      this.writer.write("login@#@" + username + "@#@" + password);
-      this.writer.newLine();
-      this.writer.flush();
-      return this.reader.readLine();
+      this.lookUpChannel.writeMessage("login", username, password);
+      return this.lookUpChannel.readResponse("login")[0];
     } catch (IOException e) {
       // use another server
       useAnotherServer();
@@ -120,8 +147,8 @@ public class Client {
 
   /**
    * In the case that the current socket connected to a LookUp server has failed, then this method
-   * attempts to connect to another LookUp server and set its buffered reader and writer attributes
-   * to the new ones.
+   * attempts to connect to another LookUp server and set its message channel attribute to the new
+   * one.
    */
   public void useAnotherServer() {
     // attempt to connect to another proposer
@@ -129,13 +156,8 @@ public class Client {
     try {
       logger.logger.info("Attempting to use another LookUp server");
       socket = new Socket(proposerLookUphostname, this.unusedLookUpPort);
-      BufferedWriter writer = new BufferedWriter(
-              new OutputStreamWriter(socket.getOutputStream()));
-      BufferedReader reader = new BufferedReader(
-              new InputStreamReader(socket.getInputStream()));
       this.socket = socket;
-      this.reader = reader;
-      this.writer = writer;
+      this.lookUpChannel = MessageChannels.connect(socket, this.useBinaryProtocol);
     } catch (IOException e) {
       logger.logger.severe("Unable to use another LookUp server");
     }
@@ -153,10 +175,8 @@ public class Client {
   public String attemptRegister(String username, String password) {
     try {
       this.username = username;
-      this.writer.write("register@#@" + username + "@#@" + password);
-      this.writer.newLine();
-      this.writer.flush();
-      return this.reader.readLine();
+      this.lookUpChannel.writeMessage("register", username, password);
+      return this.lookUpChannel.readResponse("register")[0];
     } catch (IOException e) {
       // use another server
       useAnotherServer();
@@ -172,10 +192,8 @@ public class Client {
    */
   public String attemptChatSelectionLogout() {
     try {
-      this.writer.write("chatSelectionLogout@#@" + this.username);
-      this.writer.newLine();
-      this.writer.flush();
-      return this.reader.readLine();
+      this.lookUpChannel.writeMessage("chatSelectionLogout", this.username);
+      return this.lookUpChannel.readResponse("chatSelectionLogout")[0];
     } catch (IOException e) {
       // use another server
       useAnotherServer();
@@ -191,9 +209,7 @@ public class Client {
    */
   public String attemptChatroomLogout() {
     try {
-      this.chatRoomServerWriter.write("chatroomLogout@#@" + this.username);
-      this.chatRoomServerWriter.newLine();
-      this.chatRoomServerWriter.flush();
+      this.chatRoomServerChannel.writeMessage("chatroomLogout", this.username);
       return "success";
     } catch (IOException e) {
       return "unsuccessful";
@@ -208,9 +224,7 @@ public class Client {
    */
   public String attemptBackToChatSelection() {
     try {
-      this.chatRoomServerWriter.write("backToChatSelection@#@" + this.username);
-      this.chatRoomServerWriter.newLine();
-      this.chatRoomServerWriter.flush();
+      this.chatRoomServerChannel.writeMessage("backToChatSelection", this.username);
       return "success";
     } catch (IOException e) {
       return "unsuccessful";
@@ -224,11 +238,8 @@ public class Client {
    * @return a string response corresponding to if the message was sent successfully
    */
   public String sendNewChatroomMessage(String message) {
-    message = "message" + "@#@" + this.username + "@#@" + message;
     try {
-      this.chatRoomServerWriter.write(message);
-      this.chatRoomServerWriter.newLine();
-      this.chatRoomServerWriter.flush();
+      this.chatRoomServerChannel.writeMessage("message", this.username, message);
     } catch (IOException e) {
       logger.logger.warning("Unable to send new chatroom message");
     }
@@ -240,88 +251,405 @@ public class Client {
    * messages are multicast out by the Chatroom server, and the messages are received by any user in
    * the chatroom. This receivers is usually used for receiving chatroom messages, but it is also used to
    * receive info from the LookUp server in the case that a host client leaves their chatroom and the
-   * LookUp server must decide on who is the next host.
+   * LookUp server must decide on who is the next host. In chatrooms that deliver messages over TCP it
+   * joins no group, and only puts in order the chat messages handed to it by the chatroom socket
+   * receiver and handles the notices handed to it by a chatroom notice receiver.
    */
   private class MulticastMessageReceiver implements Runnable {
-    private final byte[] buffer = new byte[256];
+    private final byte[] buffer = new byte[FragmentReassembler.MAX_DATAGRAM_BYTES];
+    // messages too long for one datagram arrive as fragments that are put back together here
+    private final FragmentReassembler fragmentReassembler = new FragmentReassembler();
+    // group and chatroom of the chatroom this receiver was started for. Other chatrooms may share
+    // the group and port, so messages carrying another chatroom ID are dropped.
+    private final InetSocketAddress group = Client.this.group;
+    private final int chatroomID = Client.this.chatroomID;
+    private final String chatroomName = mostRecentChatroomName;
+    private final boolean isTcpDelivery = ChatroomServer.deliveryModeOf(mostRecentChatroomName)
+            .equalsIgnoreCase(ChatroomServer.TCP_DELIVERY);
     private MulticastSocket multicastSocket;
+    private ChatroomNoticeReceiver chatroomNoticeReceiver;
     boolean isAlive;
+    // chat messages are displayed in the order of their sequence numbers. Messages after a gap are
+    // held back while the missing ones are reported to the chatroom server, until they arrive again
+    // or are given up on. Every range of missing messages maps its first sequence number to the
+    // sequence number after it, the number of times it was reported, and when to report it again.
+    private final TreeMap<Long,String[]> heldMessages = new TreeMap<>();
+    private final TreeMap<Long,long[]> missingRanges = new TreeMap<>();
+    // ranges of messages given up on after messages that are still missing, by first sequence number
+    private final TreeMap<Long,Long> skippedRanges = new TreeMap<>();
+    private long nextDisplaySequence = -1;
+    private long highestKnownSequence = -1;
+    private long receivedMessages = 0;
+    private long duplicateMessages = 0;
+    private long recoveredMessages = 0;
+    private long lostMessages = 0;
+    private long nacksSent = 0;
+    // only written by the receiver thread
+    private long otherChatroomMessages = 0;
 
     /**
      * Run the multicast message receiver. This has a multicast socket join a certain group IP and
-     * listen for messages and handle them as necessary.
+     * listen for messages and handle them as necessary, reassembling the ones sent as fragments and
+     * unpacking the ones sent in batches. The socket stops waiting every
+     * MULTICAST_RECEIVE_TIMEOUT_MILLIS to report missing chat messages again if they are overdue.
+     * In chatrooms that deliver messages over TCP, subscribe to the chatroom's notices instead and
+     * only report missing chat messages every MULTICAST_RECEIVE_TIMEOUT_MILLIS.
      */
     public void run() {
+      if (this.isTcpDelivery) {
+        this.isAlive = true;
+        this.chatroomNoticeReceiver = new ChatroomNoticeReceiver(this);
+        executionPolicy.executeService("client-notice-receiver", this.chatroomNoticeReceiver);
+        logger.logger.info("Receiving messages of chatroom " + chatroomName + " over chatroom server socket");
+        while (isAlive) {
+          try {
+            Thread.sleep(MULTICAST_RECEIVE_TIMEOUT_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          checkMissingMessages();
+        }
+        return;
+      }
       try {
-        MulticastSocket multicastSocket = new MulticastSocket(4446);
+        MulticastSocket multicastSocket = new MulticastSocket(group.getPort());
         logger.logger.info("Connected to multicast socket.");
         this.multicastSocket = multicastSocket;
-        multicastSocket.joinGroup(groupIP);
-        logger.logger.info("Joined multicast group " + groupIP);
+        multicastSocket.joinGroup(group.getAddress());
+        multicastSocket.setSoTimeout(MULTICAST_RECEIVE_TIMEOUT_MILLIS);
+        multicastSocket.setReceiveBufferSize(MULTICAST_RECEIVE_BUFFER_BYTES);
+        logger.logger.info("Joined multicast group " + group + " for chatroom " + chatroomID);
         this.isAlive = true;
         // continuously listen to this multicast
         while (isAlive) {
           DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
           try {
             multicastSocket.receive(packet);
+          } catch (SocketTimeoutException e) {
+            expirePartialMessages();
+            checkMissingMessages();
+            continue;
           } catch (IOException ioe) {
             continue;
           }
-          String receivedMessage = new String(packet.getData(), 0, packet.getLength());
-          if (receivedMessage.equalsIgnoreCase("stopMulticast")) {
-            break;
-          // in the case that another process publishes messages to the same group IP, we give a key
-          // at the beginning of every message that corresponds to this application.
-          } else if (receivedMessage.substring(0, 10).equalsIgnoreCase("chatkey125")) {
-            receivedMessage = receivedMessage.substring(10);
-            String[] fullMessage = receivedMessage.split("@#@");
-            // this is the case that the LookUp server is notifying everyone in the meeting that a new
-            // host has been chosen.
-            if (fullMessage[0].equalsIgnoreCase("$@newHost@$")) {
-              String newHost = fullMessage[1];
-              logger.logger.info("Received notification that new host " + newHost + " was chosen");
-              if (username.equalsIgnoreCase(newHost)) {
-                attemptReCreateChat(mostRecentChatroomName);
-              }
-            // this is case that LookUp server is notifying clients in a chatroom of the new address
-            // and port of host chatroom server to connect to.
-            } else if (fullMessage[0].equalsIgnoreCase("$@notifyRecreation@$")) {
-              String newServerHost = fullMessage[1];
-              String newServerAddress = fullMessage[2];
-              logger.logger.info("Received notification that chatroom is being recreated");
-              if (!username.equalsIgnoreCase(newServerHost)) {
-                // Documented bug in JDK that InetAddress.getByName() does not function properly
-                // with 127.0.0.1 since it does not recognize it as localhost without modifying local
-                // environ files.
-                if (newServerAddress.contains("127.0.0.1")) {
-                  newServerAddress = "localhost";
-                }
-                chatRoomServerAddress = InetAddress.getByName(newServerAddress);
-                chatroomServerPort = Integer.parseInt(fullMessage[3]);
-                // set up socket to connect to chatroom server to be able to send messages and logout notifications
-                connectSocketToChatroomServer();
-              }
-            // this is the case of receiving a text message from the chatroom server that was sent by
-            // a user in the chatroom.
-            } else {
-              String sender = fullMessage[0];
-              String actualMessage = fullMessage[1];
-              clientGUI.displayNewMessage(sender, actualMessage);
+          boolean isStopped = false;
+          // a batch carries several messages packed into one datagram by the chatroom server
+          if (MulticastBatch.isBatch(packet.getData(), packet.getLength())) {
+            for (String message : MulticastBatch.unpack(packet.getData(), packet.getLength())) {
+              isStopped = isStopped || !handleMulticastMessage(message);
             }
+          } else if (FragmentReassembler.isFragment(packet.getData(), packet.getLength())) {
+            String receivedMessage = fragmentReassembler.accept(packet.getData(), packet.getLength());
+            expirePartialMessages();
+            isStopped = receivedMessage != null && !handleMulticastMessage(receivedMessage);
+          } else {
+            isStopped = !handleMulticastMessage(
+                    new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+          }
+          if (isStopped) {
+            break;
           }
+          checkMissingMessages();
         }
       } catch (IOException e) {
         logger.logger.severe("Multicast socket connection failed");
       }
     }
 
+    /**
+     * Handle a message received on the multicast socket, on its own or unpacked from a batch.
+     * @param receivedMessage
+     * @return false if the message asks to stop listening to the multicast
+     * @throws IOException
+     */
+    private boolean handleMulticastMessage(String receivedMessage) throws IOException {
+      if (receivedMessage.equalsIgnoreCase("stopMulticast")) {
+        return false;
+      // in the case that another process publishes messages to the same group IP, we give a key
+      // at the beginning of every message that corresponds to this application.
+      } else if (receivedMessage.regionMatches(true, 0, "chatkey125", 0, 10)) {
+        // the chatroom ID follows the key, since chatrooms may share a group and port
+        int roomEnd = receivedMessage.indexOf("@#@", 10);
+        if (roomEnd < 0 || !receivedMessage.substring(10, roomEnd).equals(String.valueOf(this.chatroomID))) {
+          this.otherChatroomMessages++;
+          return true;
+        }
+        receivedMessage = receivedMessage.substring(roomEnd + 3);
+        try {
+          handleChatroomMessage(receivedMessage);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+          logger.logger.warning("Dropped malformed multicast message: " + receivedMessage);
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Handle a multicast message of this client's chatroom, without the chat key and chatroom ID.
+     * Chat messages are "sequence@#@sender@#@text", and are split into at most three fields so text
+     * containing "@#@" stays whole.
+     * @param receivedMessage
+     * @throws IOException
+     */
+    private void handleChatroomMessage(String receivedMessage) throws IOException {
+      String[] fullMessage = receivedMessage.split("@#@");
+      // this is the case that the LookUp server is notifying everyone in the meeting that a new
+      // host has been chosen.
+      if (fullMessage[0].equalsIgnoreCase("$@newHost@$")) {
+        String newHost = fullMessage[1];
+        logger.logger.info("Received notification that new host " + newHost + " was chosen");
+        if (username.equalsIgnoreCase(newHost)) {
+          attemptReCreateChat(mostRecentChatroomName);
+        }
+      // this is case that LookUp server is notifying clients in a chatroom of the new address
+      // and port of host chatroom server to connect to.
+      } else if (fullMessage[0].equalsIgnoreCase("$@notifyRecreation@$")) {
+        String newServerHost = fullMessage[1];
+        String newServerAddress = fullMessage[2];
+        logger.logger.info("Received notification that chatroom is being recreated");
+        if (!username.equalsIgnoreCase(newServerHost)) {
+          // Documented bug in JDK that InetAddress.getByName() does not function properly
+          // with 127.0.0.1 since it does not recognize it as localhost without modifying local
+          // environ files.
+          if (newServerAddress.contains("127.0.0.1")) {
+            newServerAddress = "localhost";
+          }
+          chatRoomServerAddress = InetAddress.getByName(newServerAddress);
+          chatroomServerPort = Integer.parseInt(fullMessage[3]);
+          // set up socket to connect to chatroom server to be able to send messages and logout notifications
+          connectSocketToChatroomServer();
+        }
+      // this is the case of the chatroom server announcing its last message while it is quiet.
+      } else if (fullMessage[0].equalsIgnoreCase("$@lastSequence@$")) {
+        receiveLastSequence(Long.parseLong(fullMessage[1]));
+      // this is the case of receiving a text message from the chatroom server that was sent by
+      // a user in the chatroom.
+      } else {
+        String[] chatMessage = receivedMessage.split("@#@", 3);
+        receiveChatMessage(chatMessage[1], chatMessage[2], Long.parseLong(chatMessage[0]));
+      }
+    }
+
+    /**
+     * Display a chat message if it is the next one in order, along with the held back messages that
+     * follow it, or hold it back until the messages missing before it arrive. Messages that were
+     * already displayed or held are duplicates and are ignored. The first message received sets
+     * where the order starts, since older messages come with the chatroom history.
+     * @param sender
+     * @param actualMessage
+     * @param messageSequence
+     */
+    synchronized void receiveChatMessage(String sender, String actualMessage, long messageSequence) {
+      this.receivedMessages++;
+      if (this.nextDisplaySequence < 0) {
+        this.nextDisplaySequence = messageSequence;
+        this.highestKnownSequence = messageSequence - 1;
+      }
+      if (messageSequence < this.nextDisplaySequence || this.heldMessages.containsKey(messageSequence)
+              || (messageSequence <= this.highestKnownSequence && !isMissing(messageSequence))) {
+        this.duplicateMessages++;
+        return;
+      }
+      if (messageSequence <= this.highestKnownSequence) {
+        this.recoveredMessages++;
+        markReceived(messageSequence);
+      } else {
+        noteKnownSequence(messageSequence - 1);
+        this.highestKnownSequence = messageSequence;
+      }
+      this.heldMessages.put(messageSequence, new String[]{ sender, actualMessage });
+      displayHeldMessages();
+    }
+
+    /**
+     * Note that the chatroom server has sent every message up to the announced sequence number, so
+     * any of them not received yet are missing.
+     * @param lastSequence
+     */
+    synchronized void receiveLastSequence(long lastSequence) {
+      if (this.nextDisplaySequence < 0) {
+        this.nextDisplaySequence = lastSequence + 1;
+        this.highestKnownSequence = lastSequence;
+      } else {
+        noteKnownSequence(lastSequence);
+      }
+    }
+
+    /**
+     * Raise the highest sequence number known to be sent, and report the messages after the
+     * previous highest one as missing right away.
+     * @param sequence
+     */
+    private void noteKnownSequence(long sequence) {
+      if (sequence <= this.highestKnownSequence) {
+        return;
+      }
+      long fromSequence = this.highestKnownSequence + 1;
+      this.missingRanges.put(fromSequence, new long[]{ sequence + 1, 0, System.nanoTime() });
+      this.highestKnownSequence = sequence;
+      checkMissingMessages();
+    }
+
+    /**
+     * Check whether a message is in a range of missing messages.
+     * @param messageSequence
+     * @return true if the message is missing
+     */
+    private boolean isMissing(long messageSequence) {
+      Map.Entry<Long,long[]> range = this.missingRanges.floorEntry(messageSequence);
+      return range != null && messageSequence < range.getValue()[0];
+    }
+
+    /**
+     * Take a message that arrived again out of its range of missing messages, splitting the range.
+     * @param messageSequence
+     */
+    private void markReceived(long messageSequence) {
+      Map.Entry<Long,long[]> range = this.missingRanges.floorEntry(messageSequence);
+      long[] state = this.missingRanges.remove(range.getKey());
+      if (range.getKey() < messageSequence) {
+        this.missingRanges.put(range.getKey(), new long[]{ messageSequence, state[1], state[2] });
+      }
+      if (messageSequence + 1 < state[0]) {
+        this.missingRanges.put(messageSequence + 1, new long[]{ state[0], state[1], state[2] });
+      }
+    }
+
+    /**
+     * Display the held back messages that are next in order, skipping the ones given up on.
+     */
+    private void displayHeldMessages() {
+      while (true) {
+        if (!this.heldMessages.isEmpty() && this.heldMessages.firstKey() == this.nextDisplaySequence) {
+          String[] message = this.heldMessages.pollFirstEntry().getValue();
+          clientGUI.displayNewMessage(message[0], message[1]);
+          this.nextDisplaySequence++;
+        } else if (this.skippedRanges.containsKey(this.nextDisplaySequence)) {
+          this.nextDisplaySequence = this.skippedRanges.remove(this.nextDisplaySequence);
+        } else {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Report every range of missing messages that is due to the chatroom server in one request over
+     * its socket, and wait up to twice as long before reporting each of them again. Ranges reported
+     * MAX_NACK_ATTEMPTS times are given up on, as is the first range once too many messages are
+     * held back, and the messages after them are displayed.
+     */
+    synchronized void checkMissingMessages() {
+      if (this.missingRanges.isEmpty()) {
+        return;
+      }
+      long now = System.nanoTime();
+      ArrayList<String> nackFields = new ArrayList<>();
+      Iterator<Map.Entry<Long,long[]>> iterator = this.missingRanges.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Long,long[]> range = iterator.next();
+        long[] state = range.getValue();
+        boolean isOverflowing = this.heldMessages.size() >= MAX_HELD_MESSAGES && range.getKey() == this.nextDisplaySequence;
+        if (isOverflowing || (now - state[2] >= 0 && state[1] >= MAX_NACK_ATTEMPTS)) {
+          iterator.remove();
+          giveUp(range.getKey(), state[0]);
+        } else if (now - state[2] >= 0) {
+          nackFields.add(String.valueOf(range.getKey()));
+          nackFields.add(String.valueOf(state[0]));
+          state[2] = now + (NACK_INTERVAL_MILLIS * 1_000_000 << Math.min(state[1], MAX_NACK_BACKOFF_SHIFT));
+          state[1]++;
+        }
+      }
+      if (!nackFields.isEmpty() && chatRoomServerChannel != null) {
+        try {
+          nackFields.add(0, "nack");
+          chatRoomServerChannel.writeMessage(nackFields.toArray(new String[0]));
+          this.nacksSent++;
+          logger.logger.info("Reported " + (nackFields.size() / 2) + " ranges of missing messages");
+        } catch (IOException e) {
+          logger.logger.warning("Unable to report missing messages to chatroom server");
+        }
+      }
+    }
+
+    /**
+     * Skip a range of messages that the chatroom server dropped instead of sending them over this
+     * client's socket because the client fell behind. Every message before the range was already
+     * sent, so the messages held back after it are displayed.
+     * @param fromSequence
+     * @param toSequence
+     */
+    synchronized void skipMessages(long fromSequence, long toSequence) {
+      if (this.nextDisplaySequence < 0 || toSequence <= this.nextDisplaySequence) {
+        this.nextDisplaySequence = Math.max(this.nextDisplaySequence, toSequence);
+        this.highestKnownSequence = Math.max(this.highestKnownSequence, toSequence - 1);
+        return;
+      }
+      this.lostMessages += toSequence - Math.max(fromSequence, this.nextDisplaySequence);
+      logger.logger.warning("Skipped messages " + fromSequence + " to " + (toSequence - 1)
+              + " after falling behind, " + describeMetrics());
+      Map.Entry<Long,long[]> overlapping = this.missingRanges.lowerEntry(toSequence);
+      this.missingRanges.headMap(toSequence).clear();
+      if (overlapping != null && overlapping.getValue()[0] > toSequence) {
+        this.missingRanges.put(toSequence, overlapping.getValue());
+      }
+      this.skippedRanges.headMap(toSequence).clear();
+      this.heldMessages.headMap(toSequence).clear();
+      this.nextDisplaySequence = toSequence;
+      this.highestKnownSequence = Math.max(this.highestKnownSequence, toSequence - 1);
+      displayHeldMessages();
+    }
+
+    /**
+     * Stop waiting for a range of missing messages and display the messages held back after it.
+     * @param fromSequence
+     * @param toSequence
+     */
+    private void giveUp(long fromSequence, long toSequence) {
+      this.lostMessages += toSequence - fromSequence;
+      logger.logger.warning("Gave up on messages " + fromSequence + " to " + (toSequence - 1) + ", " + describeMetrics());
+      this.skippedRanges.put(fromSequence, toSequence);
+      displayHeldMessages();
+    }
+
+    /**
+     * Drop the messages whose fragments stopped arriving. A chat message dropped this way is missing
+     * and is reported once a later message or sequence announcement arrives.
+     */
+    private synchronized void expirePartialMessages() {
+      int numExpired = this.fragmentReassembler.expire();
+      if (numExpired > 0) {
+        logger.logger.warning("Dropped " + numExpired + " partly received messages, "
+                + this.fragmentReassembler.describeMetrics());
+      }
+    }
+
+    /**
+     * Describe how many chat messages were received and how many of them were missed at first, how
+     * many messages of other chatrooms on the same group were dropped, and how many fragments of long
+     * messages were received and lost.
+     * @return a one line summary of the receiver metrics
+     */
+    synchronized String describeMetrics() {
+      return "received=" + this.receivedMessages + ", duplicates=" + this.duplicateMessages + ", nacksSent="
+              + this.nacksSent + ", recovered=" + this.recoveredMessages + ", lost=" + this.lostMessages
+              + ", otherChatroomMessages=" + this.otherChatroomMessages + ", "
+              + this.fragmentReassembler.describeMetrics();
+    }
+
     /**
      * Close the multicast socket when user leaves the chatroom.
      */
     public void turnOff() {
       isAlive = false;
+      logger.logger.info("Multicast receiver metrics: " + describeMetrics());
+      if (chatroomNoticeReceiver != null) {
+        chatroomNoticeReceiver.turnOff();
+      }
+      if (multicastSocket == null) {
+        return;
+      }
       try {
-        multicastSocket.leaveGroup(groupIP);
+        multicastSocket.leaveGroup(group.getAddress());
       } catch (IOException e) {
         logger.logger.warning("Could not leave multicast group");
       }
@@ -329,6 +657,145 @@ public class Client {
     }
   }
 
+  /**
+   * Class to be executed by a thread that reads the messages a chatroom server sends over the socket
+   * of this client, in rooms that deliver messages over member sockets instead of by multicast. Chat
+   * messages are handed to the current multicast message receiver, which puts them in order the same
+   * way. The thread stops when the socket closes or this client connects to another chatroom server.
+   */
+  private class ChatroomSocketReceiver implements Runnable {
+    private final MessageChannel channel;
+
+    /**
+     * Constructor for a receiver of the messages sent over the given chatroom server channel.
+     * @param channel
+     */
+    ChatroomSocketReceiver(MessageChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Read messages from the chatroom server until the socket closes, handing chat messages and
+     * notices of skipped messages to the current multicast message receiver.
+     */
+    public void run() {
+      while (true) {
+        String[] messageArray;
+        try {
+          messageArray = this.channel.readMessage();
+        } catch (IOException e) {
+          messageArray = null;
+        }
+        if (this.channel != chatRoomServerChannel) {
+          return;
+        }
+        if (messageArray == null) {
+          logger.logger.info("Chatroom server socket closed");
+          return;
+        }
+        MulticastMessageReceiver receiver = currentMulticastMessageReceiver;
+        if (receiver == null) {
+          continue;
+        }
+        try {
+          if (messageArray[0].equalsIgnoreCase("chatMessage") && messageArray.length > 3) {
+            // text protocol lines are split on every "@#@", so put back text that contained it
+            String text = String.join("@#@", Arrays.copyOfRange(messageArray, 3, messageArray.length));
+            receiver.receiveChatMessage(messageArray[2], text, Long.parseLong(messageArray[1]));
+            receiver.checkMissingMessages();
+          } else if (messageArray[0].equalsIgnoreCase("chatSkipped") && messageArray.length > 2) {
+            receiver.skipMessages(Long.parseLong(messageArray[1]), Long.parseLong(messageArray[2]));
+          }
+        } catch (NumberFormatException e) {
+          logger.logger.warning("Dropped message with bad sequence number from chatroom server");
+        }
+      }
+    }
+  }
+
+  /**
+   * Class to be executed by a thread that receives the notices of a chatroom that delivers messages
+   * over TCP, such as who its new host is, which are not multicast to its members. It subscribes to
+   * the notices over a socket of its own to the LookUp server, so they do not get mixed up with the
+   * responses to this client's requests, and hands them to the multicast message receiver it was
+   * started for. If the LookUp server fails it subscribes again with another one.
+   */
+  private class ChatroomNoticeReceiver implements Runnable {
+    private final MulticastMessageReceiver receiver;
+    private volatile boolean isAlive = true;
+    private volatile Socket noticeSocket;
+
+    /**
+     * Constructor for a receiver of the notices of the chatroom of the given multicast message
+     * receiver.
+     * @param receiver
+     */
+    ChatroomNoticeReceiver(MulticastMessageReceiver receiver) {
+      this.receiver = receiver;
+    }
+
+    /**
+     * Subscribe to the chatroom's notices and hand every notice to the multicast message receiver
+     * until turned off, going through the LookUp servers in turn whenever the socket fails.
+     */
+    public void run() {
+      int[] ports = { socket.getPort(), unusedLookUpPort };
+      for (int attempt = 0; this.isAlive; attempt++) {
+        try (Socket noticeSocket = new Socket(proposerLookUphostname, ports[attempt % ports.length])) {
+          this.noticeSocket = noticeSocket;
+          MessageChannel noticeChannel = MessageChannels.connect(noticeSocket, useBinaryProtocol);
+          noticeChannel.writeMessage("subscribeChatroomNotices", this.receiver.chatroomName);
+          noticeChannel.readResponse("subscribeChatroomNotices");
+          logger.logger.info("Subscribed to notices of chatroom " + this.receiver.chatroomName);
+          String[] notice;
+          while (this.isAlive && (notice = noticeChannel.readMessage()) != null) {
+            if (notice[0].equalsIgnoreCase("chatroomNotice") && notice.length > 1) {
+              handleNotice(String.join("@#@", Arrays.copyOfRange(notice, 1, notice.length)));
+            }
+          }
+        } catch (IOException e) {
+          if (this.isAlive) {
+            logger.logger.warning("Lost subscription to chatroom notices, subscribing again");
+          }
+        }
+        if (this.isAlive) {
+          try {
+            Thread.sleep(MULTICAST_RECEIVE_TIMEOUT_MILLIS * 10);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * Hand a notice to the multicast message receiver as if it had been multicast.
+     * @param notice
+     */
+    private void handleNotice(String notice) {
+      try {
+        this.receiver.handleChatroomMessage(notice);
+      } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        logger.logger.warning("Dropped malformed chatroom notice: " + notice);
+      }
+    }
+
+    /**
+     * Stop receiving notices and close the socket they come over.
+     */
+    void turnOff() {
+      this.isAlive = false;
+      Socket noticeSocket = this.noticeSocket;
+      if (noticeSocket != null) {
+        try {
+          noticeSocket.close();
+        } catch (IOException e) {
+          logger.logger.warning("Could not close chatroom notice socket");
+        }
+      }
+    }
+  }
+
   /**
    * Attempt to recreate a chatroom server when this client is leaving a chatroom. The LookUp server
    * is contacted to recreate the chat by the given name with the given username as the host. Given
@@ -339,47 +806,53 @@ public class Client {
    */
   public String attemptReCreateChat(String chatName) {
     try {
-      this.writer.write("reCreateChat@#@" + chatName + "@#@" + username);
-      this.writer.newLine();
-      this.writer.flush();
-      String response = this.reader.readLine();
+      this.lookUpChannel.writeMessage("reCreateChat", chatName, username);
+      String[] responseArray = this.lookUpChannel.readResponse("reCreateChat");
       logger.logger.info("Recreating chatroom after last host left");
-      String[] responseArray = response.split("@#@");
       if (responseArray[0].equalsIgnoreCase("success")) {
         int reUsedID = Integer.parseInt(responseArray[1]);
         String groupIP = responseArray[2];
         String heartbeatAddress = responseArray[3];
         int heartbeatPort = Integer.parseInt(responseArray[4]);
-        this.groupIP = InetAddress.getByName(groupIP);
+        long nextMessageSequence = responseArray.length > 5 ? Long.parseLong(responseArray[5]) : 0;
+        this.group = MulticastGroupAllocator.parseGroup(groupIP);
+        this.chatroomID = reUsedID;
         // Create a chatroom server that will use the groupID to publish multicast messages, and use
         // the address and port given by LookUp server to connect to LookUp server for heatbeat messages
         // and other communication.
-        this.hostedChatroomServer = new ChatroomServer(reUsedID, this, groupIP, chatName, heartbeatAddress, heartbeatPort);
+        this.hostedChatroomServer = new ChatroomServer(reUsedID, this, groupIP, chatName, heartbeatAddress, heartbeatPort,
+                nextMessageSequence);
 
         this.chatroomServerPort = this.hostedChatroomServer.portForClients;
         // tell LookUpServer what port this chatroom server is listening for new user connections on
-        this.writer.write("updateChatConnectionPort@#@" + this.chatroomServerPort + "@#@" + chatName);
-        this.writer.newLine();
-        this.writer.flush();
-        String updateResponse = this.reader.readLine();
+        this.lookUpChannel.writeMessage("updateChatConnectionPort", String.valueOf(this.chatroomServerPort), chatName);
+        String updateResponse = this.lookUpChannel.readResponse("updateChatConnectionPort")[0];
         logger.logger.info("Updated chatroom server connection port");
         if (updateResponse.equalsIgnoreCase("success")) {
           // Tell the LookUp server what address and port this recreated chatroom is listening for members
           // on so that the LookUp server can send this information to the old members.
-          this.writer.write("notifyMembersOfRecreation@#@" + this.chatRoomServerAddress + "@#@" + this.chatroomServerPort + "@#@" + chatName + "@#@" + username);
-          this.writer.newLine();
-          this.writer.flush();
-          String notifyResponse = this.reader.readLine();
+          this.lookUpChannel.writeMessage("notifyMembersOfRecreation", String.valueOf(this.chatRoomServerAddress),
+                  String.valueOf(this.chatroomServerPort), chatName, username);
+          this.lookUpChannel.readResponse("notifyMembersOfRecreation");
           logger.logger.info("Notified all other members of chatroom of chatroom recreation");
-          // Get the entire history of messages for this chatroom from the LookUp server.
-          this.writer.write("getAllChatroomMessages@#@" + chatName);
-          this.writer.newLine();
-          this.writer.flush();
-          String chatroomMessages = this.reader.readLine();
-          logger.logger.info("Received history of all chatroom messages");
-          if (chatroomMessages.length() > 0) {
-            String[] splitUpChatroomMessages = chatroomMessages.split("~##~");
-            this.hostedChatroomServer.replenishLogDisplay(splitUpChatroomMessages);
+          // Get the most recent page of this chatroom's history before connecting, so that the host
+          // sees the latest messages right away, and leave the older pages to a background loader.
+          HistoryPageReader historyReader = new HistoryPageReader(this.lookUpChannel, chatName, -1,
+                  this.historyDictionary, this.historyDictionaryChecksum);
+          try {
+            String[] latestMessages = historyReader.readNextPage();
+            if (latestMessages != null) {
+              this.hostedChatroomServer.replenishLogDisplay(latestMessages);
+            }
+          } finally {
+            historyReader.end();
+          }
+          this.historyDictionary = historyReader.dictionary;
+          this.historyDictionaryChecksum = historyReader.dictionaryChecksum;
+          logger.logger.info("Received most recent page of chatroom messages");
+          if (historyReader.hasMorePages) {
+            this.executionPolicy.execute("client-history-loader",
+                    new OlderHistoryLoader(this.hostedChatroomServer, historyReader));
           }
         }
         this.chatRoomServerAddress = InetAddress.getByName("localhost");
@@ -396,6 +869,129 @@ public class Client {
     }
   }
 
+  /**
+   * Class for reading the history of a chatroom from a LookUp server a page at a time, from the most
+   * recent page back to older ones. Pages come compressed with the chatroom's dictionary, which is
+   * only sent when it is new to the reader.
+   */
+  private class HistoryPageReader {
+    private final MessageChannel channel;
+    private final String chatName;
+    private final Inflater inflater = new Inflater();
+    // cursor of the next page to read, where -1 is the most recent page
+    long cursor;
+    boolean hasMorePages = true;
+    byte[] dictionary;
+    long dictionaryChecksum;
+
+    /**
+     * Constructor for a reader of the given chatroom's history over the given channel, starting at
+     * the page of the given cursor, that already has the given dictionary.
+     * @param channel
+     * @param chatName
+     * @param cursor
+     * @param dictionary
+     * @param dictionaryChecksum
+     */
+    HistoryPageReader(MessageChannel channel, String chatName, long cursor, byte[] dictionary,
+                      long dictionaryChecksum) {
+      this.channel = channel;
+      this.chatName = chatName;
+      this.cursor = cursor;
+      this.dictionary = dictionary;
+      this.dictionaryChecksum = dictionaryChecksum;
+    }
+
+    /**
+     * Read the next page of history and move the cursor to the page before it.
+     * @return the sender and then the contents of every message of the page, in order, or null if
+     *          the LookUp server has no more history for the chatroom
+     * @throws IOException
+     */
+    String[] readNextPage() throws IOException {
+      this.channel.writeMessage("getCompressedChatroomMessages", this.chatName, String.valueOf(this.cursor),
+              String.valueOf(HISTORY_PAGE_MESSAGES), String.valueOf(this.dictionaryChecksum));
+      String[] page = this.channel.readResponse("getCompressedChatroomMessages");
+      if (!page[0].equalsIgnoreCase("success")) {
+        this.hasMorePages = false;
+        return null;
+      }
+      if (!page[4].isEmpty()) {
+        this.dictionary = Base64.getDecoder().decode(page[4]);
+        this.dictionaryChecksum = Long.parseLong(page[3]);
+      }
+      byte[] raw = HistoryCompression.decompress(this.inflater, Base64.getDecoder().decode(page[6]),
+              Integer.parseInt(page[5]), this.dictionary);
+      this.cursor = Long.parseLong(page[2]);
+      this.hasMorePages = this.cursor >= 0;
+      return HistoryCompression.decodePairs(raw);
+    }
+
+    /**
+     * Release the inflater of the reader.
+     */
+    void end() {
+      this.inflater.end();
+    }
+  }
+
+  /**
+   * Class that can be executed by a thread, which loads the pages of a recreated chatroom's history
+   * older than the most recent one onto the hosted chatroom server's display. It reads them over a
+   * socket of its own, so that requests on the client's LookUp socket do not wait behind a long
+   * history, going through the LookUp servers in turn whenever the socket fails. It stops once this
+   * client hosts another chatroom server.
+   */
+  private class OlderHistoryLoader implements Runnable {
+    private final ChatroomServer chatroomServer;
+    private final String chatName;
+    private final byte[] dictionary;
+    private final long dictionaryChecksum;
+    private long cursor;
+
+    /**
+     * Constructor for a loader of the pages that the given reader of the most recent page has left.
+     * @param chatroomServer the hosted chatroom server to display the history on
+     * @param latestPageReader
+     */
+    OlderHistoryLoader(ChatroomServer chatroomServer, HistoryPageReader latestPageReader) {
+      this.chatroomServer = chatroomServer;
+      this.chatName = latestPageReader.chatName;
+      this.cursor = latestPageReader.cursor;
+      this.dictionary = latestPageReader.dictionary;
+      this.dictionaryChecksum = latestPageReader.dictionaryChecksum;
+    }
+
+    /**
+     * Load the older pages until there are none left, trying every LookUp server twice.
+     */
+    public void run() {
+      int[] ports = { socket.getPort(), unusedLookUpPort };
+      for (int attempt = 0; attempt < ports.length * 2 && this.cursor >= 0; attempt++) {
+        try (Socket historySocket = new Socket(proposerLookUphostname, ports[attempt % ports.length])) {
+          HistoryPageReader historyReader = new HistoryPageReader(
+                  MessageChannels.connect(historySocket, useBinaryProtocol), this.chatName, this.cursor,
+                  this.dictionary, this.dictionaryChecksum);
+          try {
+            while (historyReader.hasMorePages && hostedChatroomServer == this.chatroomServer) {
+              String[] olderMessages = historyReader.readNextPage();
+              if (olderMessages != null) {
+                this.chatroomServer.replenishOlderLogDisplay(olderMessages);
+              }
+              this.cursor = historyReader.hasMorePages ? historyReader.cursor : -1;
+            }
+          } finally {
+            historyReader.end();
+          }
+          logger.logger.info("Received history of all chatroom messages");
+          return;
+        } catch (IOException e) {
+          logger.logger.warning("Could not load older chatroom messages, trying another LookUp server");
+        }
+      }
+    }
+  }
+
   /**
    * Attempt to create a new chatroom with the given chat name. Tell the LookUp server the name of the
    * chatroom this client would like to create. If chatroom name already exists then return "exists",
@@ -408,12 +1004,9 @@ public class Client {
    */
   public String attemptCreateChat(String chatName) {
     try {
-      this.writer.write("createChat@#@" + chatName + "@#@" + username);
-      this.writer.newLine();
-      this.writer.flush();
-      String response = this.reader.readLine();
+      this.lookUpChannel.writeMessage("createChat", chatName, username);
+      String[] responseArray = this.lookUpChannel.readResponse("createChat");
       logger.logger.info("Create new chat " + chatName);
-      String[] responseArray = response.split("@#@");
       if (responseArray[0].equalsIgnoreCase("success")) {
         this.mostRecentChatroomName = chatName;
         if (this.currentMulticastMessageReceiver != null) {
@@ -423,15 +1016,14 @@ public class Client {
         String groupIP = responseArray[2];
         String heartbeatAddress = responseArray[3];
         int heartbeatPort = Integer.parseInt(responseArray[4]);
-        this.groupIP = InetAddress.getByName(groupIP);
+        this.group = MulticastGroupAllocator.parseGroup(groupIP);
+        this.chatroomID = newID;
         this.hostedChatroomServer = new ChatroomServer(newID, this, groupIP, chatName, heartbeatAddress, heartbeatPort);
         this.chatroomServerPort = this.hostedChatroomServer.portForClients;
 
         // tell LookUpServer what port this chatroom server is listening for new user connections on
-        this.writer.write("updateChatConnectionPort@#@" + this.chatroomServerPort + "@#@" + chatName);
-        this.writer.newLine();
-        this.writer.flush();
-        String updateResponse = this.reader.readLine();
+        this.lookUpChannel.writeMessage("updateChatConnectionPort", String.valueOf(this.chatroomServerPort), chatName);
+        this.lookUpChannel.readResponse("updateChatConnectionPort");
         this.chatRoomServerAddress = InetAddress.getByName("localhost");
         // set up socket to connect to chatroom server to be able to send messages and logout notifications
         connectSocketToChatroomServer();
@@ -439,8 +1031,7 @@ public class Client {
         // set up a thread for this client to receive multicast messages on from the new chatroom server
         MulticastMessageReceiver multicastMessageReceiver = new MulticastMessageReceiver();
         this.currentMulticastMessageReceiver = multicastMessageReceiver;
-        this.multicastMessageReceiverThread = new Thread(multicastMessageReceiver);
-        this.multicastMessageReceiverThread.start();
+        this.executionPolicy.executeService("client-multicast-receiver", multicastMessageReceiver);
         return responseArray[0];
       } else { // case where response is "exists"
         return responseArray[0];
@@ -454,24 +1045,25 @@ public class Client {
 
   /**
    * Attempt to get the number of users in the chatroom that this client is currently in. Contact
-   * LookUp server to get this information.
+   * LookUp server to get this information a page of chatrooms at a time, in order of their names.
    * @return an arraylist of the strings pairings of the chatname and number of users
    */
   public ArrayList<String[]> attemptGetNumUsersInChatrooms() {
     try {
-      this.writer.write("getNumUsers@#@");
-      this.writer.newLine();
-      this.writer.flush();
-      String response = this.reader.readLine();
-      logger.logger.info("Received number of users in each chatroom");
-      if (response.equalsIgnoreCase("")) {
-        return new ArrayList<>();
-      }
-      String[] responseArray = response.split("@&@");
       ArrayList<String[]> namesNumbers = new ArrayList<>();
-      for (int i = 0; i < responseArray.length; i++) {
-        namesNumbers.add(responseArray[i].split("%&%"));
-      }
+      String after = "";
+      do {
+        this.lookUpChannel.writeMessage("getNumUsers", after, String.valueOf(NUM_USERS_PAGE_ROOMS));
+        String[] responseArray = this.lookUpChannel.readResponse("getNumUsers");
+        if (responseArray.length < 2 || !responseArray[0].equalsIgnoreCase("success")) {
+          break;
+        }
+        for (int i = 2; i + 1 < responseArray.length; i += 2) {
+          namesNumbers.add(new String[]{ responseArray[i], responseArray[i + 1] });
+        }
+        after = responseArray[1];
+      } while (!after.isEmpty());
+      logger.logger.info("Received number of users in each chatroom");
       return namesNumbers;
     } catch (IOException e) {
       // use another server
@@ -488,11 +1080,8 @@ public class Client {
    */
   public String attemptJoinChat(String chatName) {
     try {
-      this.writer.write("joinChat@#@" + chatName + "@#@" + username);
-      this.writer.newLine();
-      this.writer.flush();
-      String response = this.reader.readLine();
-      String[] responseArray = response.split("@#@");
+      this.lookUpChannel.writeMessage("joinChat", chatName, username);
+      String[] responseArray = this.lookUpChannel.readResponse("joinChat");
       if (responseArray[0].equalsIgnoreCase("success")) {
         // if this client was listening to another multicast socket then that should be turned off
         logger.logger.info("Successfully joined new chatroom");
@@ -502,7 +1091,8 @@ public class Client {
         String socketAddress = responseArray[1];
         String socketPort = responseArray[2];
         String groupIP = responseArray[3];
-        this.groupIP = InetAddress.getByName(groupIP);
+        this.group = MulticastGroupAllocator.parseGroup(groupIP);
+        this.chatroomID = Integer.parseInt(responseArray[4]);
         this.chatroomServerPort = Integer.parseInt(socketPort);
         this.chatRoomServerAddress = InetAddress.getByName(socketAddress);
         if (!chatName.equals(this.mostRecentChatroomName)) {
@@ -515,7 +1105,7 @@ public class Client {
         // the new chatroom.
         MulticastMessageReceiver multicastMessageReceiver = new MulticastMessageReceiver();
         this.currentMulticastMessageReceiver = multicastMessageReceiver;
-        new Thread(multicastMessageReceiver).start();
+        this.executionPolicy.executeService("client-multicast-receiver", multicastMessageReceiver);
         return responseArray[0];
       } else { // case where response is "nonexistent"
         return responseArray[0];
@@ -534,15 +1124,12 @@ public class Client {
    */
   public ArrayList<String> attemptGetUsersInChatroom(String chatName) {
     try {
-      this.writer.write("getMembers@#@" + chatName);
-      this.writer.newLine();
-      this.writer.flush();
-      String response = this.reader.readLine();
+      this.lookUpChannel.writeMessage("getMembers", chatName);
+      String[] responseArray = this.lookUpChannel.readResponse("getMembers");
       logger.logger.info("Received users in current chatroom");
-      if (response.equalsIgnoreCase("nonexistent")) {
+      if (responseArray[0].equalsIgnoreCase("nonexistent")) {
         return new ArrayList<>();
       }
-      String[] responseArray = response.split("@#@");
       ArrayList<String> members = new ArrayList<>();
       for (int i = 1; i < responseArray.length; i++) {
         members.add(responseArray[i]);
@@ -556,18 +1143,16 @@ public class Client {
   }
 
   /**
-   * Connect to the server socket on the chatroom server.
+   * Connect to the server socket on the chatroom server, and start reading the messages it sends
+   * over the socket.
    */
   public void connectSocketToChatroomServer() {
     try {
       this.socketConnectedToChatroomServer = new Socket(this.chatRoomServerAddress, this.chatroomServerPort);
-
-      BufferedWriter writer = new BufferedWriter(
-              new OutputStreamWriter(socketConnectedToChatroomServer.getOutputStream()));
-      BufferedReader reader = new BufferedReader(
-              new InputStreamReader(socketConnectedToChatroomServer.getInputStream()));
-      this.chatRoomServerReader = reader;
-      this.chatRoomServerWriter = writer;
+      this.chatRoomServerChannel = MessageChannels.connect(this.socketConnectedToChatroomServer,
+              this.useBinaryProtocol);
+      this.executionPolicy.executeService("client-chatroom-receiver",
+              new ChatroomSocketReceiver(this.chatRoomServerChannel));
       logger.logger.info("Connected to chatroom server socket");
     } catch (IOException e) {
       logger.logger.warning("Could not connect to chatroom server socket");
@@ -0,0 +1,165 @@
+package executor;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Execution policy that runs tasks on one bounded thread pool per pool name. Every pool has at most
+ * the given number of threads and a bounded queue of tasks waiting for a thread; tasks beyond that
+ * are counted as rejected and run by the thread that submitted them, which slows the submitter down
+ * instead of losing the task. Connection handlers, which run until their peer disconnects, are not
+ * queued at all: their pools start a thread for every connection, up to a separate limit, and refuse
+ * connections beyond it. Services, which run for as long as their server, are neither queued nor
+ * bounded, so one is never left waiting or dropped. Queue depth and the other pool metrics can be
+ * logged periodically.
+ */
+public class BoundedPoolExecutionPolicy implements ExecutionPolicy {
+
+  private static final Logger LOGGER = Logger.getLogger(BoundedPoolExecutionPolicy.class.getName());
+
+  private final int maxThreadsPerPool;
+  private final int queueCapacity;
+  private final int maxConnectionHandlersPerPool;
+  private final ConcurrentHashMap<String,ThreadPoolExecutor> pools = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String,AtomicLong> rejectedTasks = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for the bounded pool policy that sets the bound of every pool and starts logging
+   * the pool metrics if a positive interval is given.
+   * @param maxThreadsPerPool
+   * @param queueCapacity
+   * @param maxConnectionHandlersPerPool
+   * @param metricsIntervalSeconds
+   */
+  public BoundedPoolExecutionPolicy(int maxThreadsPerPool, int queueCapacity, int maxConnectionHandlersPerPool,
+                                    int metricsIntervalSeconds) {
+    this.maxThreadsPerPool = maxThreadsPerPool;
+    this.queueCapacity = queueCapacity;
+    this.maxConnectionHandlersPerPool = maxConnectionHandlersPerPool;
+    if (metricsIntervalSeconds > 0) {
+      Thread metricsReporter = new Thread(() -> {
+        while (true) {
+          try {
+            Thread.sleep(metricsIntervalSeconds * 1000L);
+          } catch (InterruptedException e) {
+            return;
+          }
+          LOGGER.info("Execution pools: " + describeMetrics());
+        }
+      }, "execution-metrics");
+      metricsReporter.setDaemon(true);
+      metricsReporter.start();
+    }
+  }
+
+  @Override
+  public void execute(String poolName, Runnable task) {
+    this.pools.computeIfAbsent(poolName, this::createPool).execute(task);
+  }
+
+  @Override
+  public boolean executeConnectionHandler(String poolName, Runnable task) {
+    try {
+      this.pools.computeIfAbsent(poolName, this::createConnectionPool).execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public void executeService(String poolName, Runnable task) {
+    this.pools.computeIfAbsent(poolName, this::createServicePool).execute(task);
+  }
+
+  /**
+   * Create a bounded pool whose threads are named after the pool and whose idle threads time out.
+   * A task the pool can not take is run by the thread that submitted it.
+   * @param poolName
+   * @return a new thread pool executor for the pool name
+   */
+  private ThreadPoolExecutor createPool(String poolName) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    ThreadFactory threadFactory = task -> new Thread(task, poolName + "-" + threadNumber.incrementAndGet());
+    AtomicLong rejected = this.rejectedTasks.computeIfAbsent(poolName, name -> new AtomicLong());
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(this.maxThreadsPerPool, this.maxThreadsPerPool,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(this.queueCapacity), threadFactory,
+            (task, executor) -> {
+              rejected.incrementAndGet();
+              LOGGER.warning("Pool " + poolName + " is full, running task in the submitting thread");
+              if (!executor.isShutdown()) {
+                task.run();
+              }
+            });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Create a pool for connection handlers that hands every task straight to a thread, starting a new
+   * one if none is idle, and throws a rejected execution exception once the pool has its maximum of
+   * threads, so that the caller can close the connection instead of leaving it waiting.
+   * @param poolName
+   * @return a new thread pool executor for the pool name
+   */
+  private ThreadPoolExecutor createConnectionPool(String poolName) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    ThreadFactory threadFactory = task -> new Thread(task, poolName + "-" + threadNumber.incrementAndGet());
+    AtomicLong rejected = this.rejectedTasks.computeIfAbsent(poolName, name -> new AtomicLong());
+    return new ThreadPoolExecutor(0, this.maxConnectionHandlersPerPool, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), threadFactory,
+            (task, executor) -> {
+              rejected.incrementAndGet();
+              LOGGER.warning("Pool " + poolName + " has " + executor.getPoolSize()
+                      + " connections, refused a connection");
+              throw new RejectedExecutionException("Pool " + poolName + " is full");
+            });
+  }
+
+  /**
+   * Create a pool for services that hands every task straight to a thread, starting a new one if
+   * none is idle, without a limit on the number of threads.
+   * @param poolName
+   * @return a new thread pool executor for the pool name
+   */
+  private ThreadPoolExecutor createServicePool(String poolName) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    ThreadFactory threadFactory = task -> new Thread(task, poolName + "-" + threadNumber.incrementAndGet());
+    this.rejectedTasks.computeIfAbsent(poolName, name -> new AtomicLong());
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            threadFactory);
+  }
+
+  /**
+   * Get the number of tasks waiting for a thread in the pool with the given name.
+   * @param poolName
+   * @return the queue depth of the pool, or 0 if nothing ran on it yet
+   */
+  public int getQueueDepth(String poolName) {
+    ThreadPoolExecutor pool = this.pools.get(poolName);
+    return pool == null ? 0 : pool.getQueue().size();
+  }
+
+  @Override
+  public String describeMetrics() {
+    StringBuilder metrics = new StringBuilder();
+    for (Map.Entry<String,ThreadPoolExecutor> entry : this.pools.entrySet()) {
+      ThreadPoolExecutor pool = entry.getValue();
+      metrics.append(entry.getKey()).append("[active=").append(pool.getActiveCount())
+              .append(", queued=").append(pool.getQueue().size())
+              .append(", largest=").append(pool.getLargestPoolSize())
+              .append(", completed=").append(pool.getCompletedTaskCount())
+              .append(", rejected=").append(this.rejectedTasks.get(entry.getKey())).append("] ");
+    }
+    return metrics.toString().trim();
+  }
+}
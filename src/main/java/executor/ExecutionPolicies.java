@@ -0,0 +1,62 @@
+package executor;
+
+import java.util.logging.Logger;
+
+/**
+ * Holder of the execution policy shared by the whole process. The policy is chosen at startup with
+ * the "execution.mode" system property: "thread" (default) starts a new named platform thread per
+ * task, "pool" runs tasks on bounded named thread pools and connection handlers on a thread each,
+ * and "virtual" starts a virtual thread per task, which is only available when built with the jdk21
+ * profile and run on JDK 21 or later.
+ */
+public final class ExecutionPolicies {
+
+  public static final String MODE_PROPERTY = "execution.mode";
+  public static final String POOL_SIZE_PROPERTY = "execution.poolSize";
+  public static final String QUEUE_CAPACITY_PROPERTY = "execution.queueCapacity";
+  public static final String MAX_CONNECTION_HANDLERS_PROPERTY = "execution.maxConnectionHandlers";
+  public static final String METRICS_INTERVAL_PROPERTY = "execution.metricsIntervalSeconds";
+
+  private static final Logger LOGGER = Logger.getLogger(ExecutionPolicies.class.getName());
+  private static ExecutionPolicy defaultPolicy;
+
+  private ExecutionPolicies() {
+  }
+
+  /**
+   * Get the execution policy of this process, creating it from the system properties the first time.
+   * @return the shared execution policy
+   */
+  public static synchronized ExecutionPolicy getDefault() {
+    if (defaultPolicy == null) {
+      defaultPolicy = create(System.getProperty(MODE_PROPERTY, "thread"));
+    }
+    return defaultPolicy;
+  }
+
+  /**
+   * Create an execution policy for the given mode.
+   * @param mode
+   * @return the execution policy for the mode, or a thread per task policy if the mode is unknown
+   *          or unavailable in this build
+   */
+  public static ExecutionPolicy create(String mode) {
+    if (mode.equalsIgnoreCase("pool")) {
+      return new BoundedPoolExecutionPolicy(Integer.getInteger(POOL_SIZE_PROPERTY, 256),
+              Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 1024),
+              Integer.getInteger(MAX_CONNECTION_HANDLERS_PROPERTY, Integer.MAX_VALUE),
+              Integer.getInteger(METRICS_INTERVAL_PROPERTY, 0));
+    } else if (mode.equalsIgnoreCase("virtual")) {
+      try {
+        // only compiled into the jar by the jdk21 profile
+        return (ExecutionPolicy) Class.forName("executor.VirtualThreadExecutionPolicy")
+                .getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        LOGGER.warning("Virtual threads need the jdk21 build profile and JDK 21, using a thread per task");
+      }
+    } else if (!mode.equalsIgnoreCase("thread")) {
+      LOGGER.warning("Unknown execution mode " + mode + ", using a thread per task");
+    }
+    return new ThreadPerTaskExecutionPolicy();
+  }
+}
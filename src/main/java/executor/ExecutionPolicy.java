@@ -0,0 +1,53 @@
+package executor;
+
+/**
+ * Execution policy that every long-running task of the chatroom application (accept loops, socket
+ * handlers, heartbeats, multicast receivers, ...) is started through instead of a raw thread. Each
+ * task belongs to a named pool so that threads are named after what they do and so that the number
+ * of running and queued tasks can be reported per pool.
+ */
+public interface ExecutionPolicy {
+
+  /**
+   * Run the given task asynchronously as part of the pool with the given name. Bounded policies may
+   * queue the task behind others or run it in the calling thread, so it must be one that finishes
+   * on its own.
+   * @param poolName
+   * @param task
+   */
+  void execute(String poolName, Runnable task);
+
+  /**
+   * Run the given task, which serves one connection for as long as its peer stays connected, as part
+   * of the pool with the given name. Such a task must never wait for a thread behind other
+   * connections, so it is either started at once or refused. Policies that start a thread per task
+   * always start it.
+   * @param poolName
+   * @param task
+   * @return true if the task was started, false if it was refused and the caller has to close the
+   *          connection
+   */
+  default boolean executeConnectionHandler(String poolName, Runnable task) {
+    execute(poolName, task);
+    return true;
+  }
+
+  /**
+   * Run the given task, which runs for as long as the server or client it belongs to (a sender
+   * pipeline, a writer, a heartbeat or an accept loop), as part of the pool with the given name. Such
+   * a task must neither wait for a thread behind other tasks nor be dropped, since nothing would
+   * notice that it never ran, so it is always started at once. Policies that start a thread per task
+   * always start it.
+   * @param poolName
+   * @param task
+   */
+  default void executeService(String poolName, Runnable task) {
+    execute(poolName, task);
+  }
+
+  /**
+   * Describe the current metrics of every pool, like the number of active tasks and queue depth.
+   * @return a one line summary of the metrics of every pool
+   */
+  String describeMetrics();
+}
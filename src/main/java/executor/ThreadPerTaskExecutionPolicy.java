@@ -0,0 +1,49 @@
+package executor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution policy that starts a new named platform thread for every task, which is how the
+ * application has always run. The number of started and still running tasks is kept per pool.
+ */
+public class ThreadPerTaskExecutionPolicy implements ExecutionPolicy {
+
+  private final ConcurrentHashMap<String,AtomicLong> startedTasks = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String,AtomicInteger> activeTasks = new ConcurrentHashMap<>();
+
+  @Override
+  public void execute(String poolName, Runnable task) {
+    long taskNumber = this.startedTasks.computeIfAbsent(poolName, name -> new AtomicLong()).incrementAndGet();
+    AtomicInteger active = this.activeTasks.computeIfAbsent(poolName, name -> new AtomicInteger());
+    active.incrementAndGet();
+    startThread(poolName + "-" + taskNumber, () -> {
+      try {
+        task.run();
+      } finally {
+        active.decrementAndGet();
+      }
+    });
+  }
+
+  /**
+   * Start a thread with the given name that runs the given task.
+   * @param threadName
+   * @param task
+   */
+  protected void startThread(String threadName, Runnable task) {
+    new Thread(task, threadName).start();
+  }
+
+  @Override
+  public String describeMetrics() {
+    StringBuilder metrics = new StringBuilder();
+    for (Map.Entry<String,AtomicLong> pool : this.startedTasks.entrySet()) {
+      metrics.append(pool.getKey()).append("[active=").append(this.activeTasks.get(pool.getKey()))
+              .append(", started=").append(pool.getValue()).append("] ");
+    }
+    return metrics.toString().trim();
+  }
+}
@@ -84,6 +84,20 @@ public class ChatroomServerGUI {
     chatroomLogger.logger.info("Displayed new message: " + message + " from sender: " + sender);
   }
 
+  /**
+   * Display messages older than every message shown so far at the top of the text area, showing
+   * both the sender's username and their message for each.
+   * @param messages the sender and then the contents of every message, in order
+   */
+  public void displayOlderMessages(String[] messages) {
+    StringBuilder olderText = new StringBuilder();
+    for (int i = 0; i + 1 < messages.length; i += 2) {
+      olderText.append(messages[i]).append(" sent message: \"").append(messages[i + 1]).append("\"\n");
+    }
+    this.chatroomServerTextArea.insert(olderText.toString(), 0);
+    chatroomLogger.logger.info("Displayed " + messages.length / 2 + " older messages");
+  }
+
   /**
    * Remove all components from the panel.
    */
@@ -0,0 +1,179 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message channel for the binary frame protocol described in WireProtocol. Reading a message is a
+ * length read, one read of the whole frame, and a length read per field, so fields may contain any
+ * text (including the separators of the text protocol) and no string splitting is needed.
+ */
+public class BinaryMessageChannel implements MessageChannel {
+
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private byte[] frameBuffer = new byte[4096];
+
+  /**
+   * Constructor for a binary message channel over the given streams. The input stream may be null
+   * for a channel that is only written to.
+   * @param in
+   * @param out
+   */
+  public BinaryMessageChannel(DataInputStream in, DataOutputStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  @Override
+  public String[] readMessage() throws IOException {
+    int length;
+    try {
+      length = this.in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    if (length < 3 || length > WireProtocol.MAX_FRAME_BYTES) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    if (length > this.frameBuffer.length) {
+      this.frameBuffer = new byte[Math.max(length, this.frameBuffer.length * 2)];
+    }
+    this.in.readFully(this.frameBuffer, 0, length);
+    return decodeFrame(this.frameBuffer, 0, length);
+  }
+
+  @Override
+  public void writeMessage(String... fields) throws IOException {
+    writeFrame(WireProtocol.opcodeOf(fields[0]), fields, 1);
+  }
+
+  @Override
+  public String[] readResponse(String requestType) throws IOException {
+    String[] response = readMessage();
+    if (response == null) {
+      throw new EOFException("Connection closed before response to " + requestType);
+    }
+    return response;
+  }
+
+  @Override
+  public void writeResponse(String requestType, String[] fields) throws IOException {
+    writeFrame(WireProtocol.RESPONSE, fields, 0);
+  }
+
+  @Override
+  public synchronized void writePairsResponse(String requestType, EncodedPairs pairs) throws IOException {
+    long length = 3 + pairs.getNumBinaryBytes();
+    if (length > WireProtocol.MAX_FRAME_BYTES || pairs.getNumPairs() * 2 > WireProtocol.MAX_FIELDS) {
+      throw new IOException("Response to " + requestType + " does not fit in one frame");
+    }
+    this.out.writeInt((int) length);
+    this.out.writeByte(WireProtocol.RESPONSE);
+    this.out.writeShort(pairs.getNumPairs() * 2);
+    for (byte[] chunk : pairs.getBinaryChunks()) {
+      this.out.write(chunk);
+    }
+    this.out.flush();
+  }
+
+  /**
+   * Decode the payload of a frame into the fields of a message. A request gets the name of its
+   * opcode as its first field, while a response is returned as its fields alone.
+   * @param frame
+   * @param offset
+   * @param length
+   * @return the fields of the message
+   * @throws IOException if the frame is malformed
+   */
+  public static String[] decodeFrame(byte[] frame, int offset, int length) throws IOException {
+    int end = offset + length;
+    String name = WireProtocol.nameOf(frame[offset]);
+    int fieldCount = ((frame[offset + 1] & 0xFF) << 8) | (frame[offset + 2] & 0xFF);
+    int position = offset + 3;
+    int first = name == null ? 0 : 1;
+    String[] fields = new String[first + fieldCount];
+    if (name != null) {
+      fields[0] = name;
+    }
+    for (int i = first; i < fields.length; i++) {
+      if (position + 4 > end) {
+        throw new IOException("Truncated frame");
+      }
+      int fieldLength = ((frame[position] & 0xFF) << 24) | ((frame[position + 1] & 0xFF) << 16)
+              | ((frame[position + 2] & 0xFF) << 8) | (frame[position + 3] & 0xFF);
+      position += 4;
+      if (fieldLength < 0 || position + fieldLength > end) {
+        throw new IOException("Truncated frame");
+      }
+      fields[i] = new String(frame, position, fieldLength, StandardCharsets.UTF_8);
+      position += fieldLength;
+    }
+    return fields;
+  }
+
+  /**
+   * Encode a request whose first field is its type as a whole frame, length included, so that it can
+   * be written to many connections without encoding it again.
+   * @param fields
+   * @return the bytes of the frame
+   * @throws IllegalArgumentException if the message has more fields than fit in one frame
+   */
+  public static byte[] encodeMessage(String... fields) {
+    if (fields.length - 1 > WireProtocol.MAX_FIELDS) {
+      throw new IllegalArgumentException("Message of " + (fields.length - 1) + " fields does not fit in one frame");
+    }
+    byte[][] encodedFields = new byte[fields.length - 1][];
+    int length = 3;
+    for (int i = 0; i < encodedFields.length; i++) {
+      encodedFields[i] = fields[i + 1].getBytes(StandardCharsets.UTF_8);
+      length += 4 + encodedFields[i].length;
+    }
+    ByteBuffer frame = ByteBuffer.allocate(4 + length);
+    frame.putInt(length);
+    frame.put(WireProtocol.opcodeOf(fields[0]));
+    frame.putShort((short) encodedFields.length);
+    for (byte[] encodedField : encodedFields) {
+      frame.putInt(encodedField.length);
+      frame.put(encodedField);
+    }
+    return frame.array();
+  }
+
+  /**
+   * Write one frame with the given opcode and fields, starting at the given field index.
+   * @param opcode
+   * @param fields
+   * @param firstField
+   * @throws IOException if the message has more fields or bytes than fit in one frame, in which case
+   *     nothing is written
+   */
+  private synchronized void writeFrame(byte opcode, String[] fields, int firstField) throws IOException {
+    int fieldCount = fields.length - firstField;
+    if (fieldCount > WireProtocol.MAX_FIELDS) {
+      throw new IOException("Message of " + fieldCount + " fields does not fit in one frame");
+    }
+    byte[][] encodedFields = new byte[fieldCount][];
+    long length = 3;
+    for (int i = 0; i < fieldCount; i++) {
+      String field = fields[firstField + i];
+      encodedFields[i] = (field == null ? "null" : field).getBytes(StandardCharsets.UTF_8);
+      length += 4 + encodedFields[i].length;
+    }
+    if (length > WireProtocol.MAX_FRAME_BYTES) {
+      throw new IOException("Message of " + length + " bytes does not fit in one frame");
+    }
+    this.out.writeInt((int) length);
+    this.out.writeByte(opcode);
+    this.out.writeShort(fieldCount);
+    for (byte[] encodedField : encodedFields) {
+      this.out.writeInt(encodedField.length);
+      this.out.write(encodedField);
+    }
+    this.out.flush();
+  }
+}
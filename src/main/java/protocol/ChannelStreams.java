@@ -0,0 +1,154 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking streams over a socket channel in non-blocking mode, for a thread that reads a socket
+ * message by message while other threads write to the channel without blocking. Each stream waits
+ * on a selector of its own until the channel is ready, since the socket's own streams can not be
+ * used once its channel is non-blocking.
+ */
+public final class ChannelStreams {
+
+  private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+  private ChannelStreams() {
+  }
+
+  /**
+   * Get a stream that reads from the given non-blocking channel, waiting until it has bytes.
+   * @param channel
+   * @return the input stream
+   */
+  public static InputStream inputStream(SocketChannel channel) {
+    Waiter waiter = new Waiter(channel, SelectionKey.OP_READ);
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (true) {
+          int numRead;
+          try {
+            numRead = channel.read(buffer);
+          } catch (IOException e) {
+            waiter.close();
+            throw e;
+          }
+          if (numRead < 0) {
+            waiter.close();
+          }
+          if (numRead != 0) {
+            return numRead;
+          }
+          waiter.await();
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        waiter.close();
+        channel.close();
+      }
+    };
+  }
+
+  /**
+   * Get a stream that writes to the given non-blocking channel, waiting until it takes all bytes.
+   * @param channel
+   * @return the output stream
+   */
+  public static OutputStream outputStream(SocketChannel channel) {
+    Waiter waiter = new Waiter(channel, SelectionKey.OP_WRITE);
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[]{ (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        try {
+          while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+              waiter.await();
+            }
+          }
+        } finally {
+          // writes that do not fit in the socket buffer are rare, so do not hold a selector between them
+          waiter.close();
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        waiter.close();
+        channel.close();
+      }
+    };
+  }
+
+  /**
+   * Class for the selector a stream waits on, which is opened the first time the stream has to
+   * wait and closed once the channel is done with.
+   */
+  private static class Waiter {
+    private final SocketChannel channel;
+    private final int interestOps;
+    private Selector selector;
+
+    /**
+     * Constructor for a waiter until the channel is ready for the given operations.
+     * @param channel
+     * @param interestOps
+     */
+    Waiter(SocketChannel channel, int interestOps) {
+      this.channel = channel;
+      this.interestOps = interestOps;
+    }
+
+    /**
+     * Wait until the channel is ready. The wait is bounded so that a channel closed by another thread
+     * is noticed.
+     * @throws IOException if the channel was closed
+     */
+    void await() throws IOException {
+      if (!this.channel.isOpen()) {
+        close();
+        throw new IOException("Channel closed");
+      }
+      if (this.selector == null) {
+        this.selector = Selector.open();
+        this.channel.register(this.selector, this.interestOps);
+      }
+      this.selector.select(SELECT_TIMEOUT_MILLIS);
+      this.selector.selectedKeys().clear();
+    }
+
+    /**
+     * Close the selector if one was opened.
+     * @throws IOException
+     */
+    void close() throws IOException {
+      if (this.selector != null) {
+        this.selector.close();
+        this.selector = null;
+      }
+    }
+  }
+}
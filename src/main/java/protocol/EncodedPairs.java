@@ -0,0 +1,107 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only encoding of a list of field pairs (like the sender and contents of every message in a
+ * chatroom) in the form both message channels write them in: the text form joins every pair with
+ * "@#@" and ends it with "~##~", and the binary form is every field as a 4 byte length and its UTF-8
+ * bytes. Both are kept as lists of immutable chunks, so appending a pair only encodes that pair, and
+ * a snapshot of the whole list can be written out without joining or encoding it again.
+ */
+public class EncodedPairs {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final ArrayList<String> textChunks = new ArrayList<>();
+  private final StringBuilder textTail = new StringBuilder();
+  private final ArrayList<byte[]> binaryChunks = new ArrayList<>();
+  private final ByteArrayOutputStream binaryTail = new ByteArrayOutputStream();
+  private int numPairs = 0;
+  private long numBinaryBytes = 0;
+
+  /**
+   * Append a pair of fields to the end of both encodings.
+   * @param first
+   * @param second
+   */
+  public synchronized void append(String first, String second) {
+    this.textTail.append(first).append("@#@").append(second).append("~##~");
+    if (this.textTail.length() >= CHUNK_SIZE) {
+      this.textChunks.add(this.textTail.toString());
+      this.textTail.setLength(0);
+    }
+    appendBinaryField(first);
+    appendBinaryField(second);
+    if (this.binaryTail.size() >= CHUNK_SIZE) {
+      this.binaryChunks.add(this.binaryTail.toByteArray());
+      this.binaryTail.reset();
+    }
+    this.numPairs++;
+  }
+
+  /**
+   * Append a field to the binary encoding as its length and UTF-8 bytes.
+   * @param field
+   */
+  private void appendBinaryField(String field) {
+    byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+    this.binaryTail.write(bytes.length >>> 24);
+    this.binaryTail.write(bytes.length >>> 16);
+    this.binaryTail.write(bytes.length >>> 8);
+    this.binaryTail.write(bytes.length);
+    this.binaryTail.write(bytes, 0, bytes.length);
+    this.numBinaryBytes += 4 + bytes.length;
+  }
+
+  /**
+   * Get an immutable copy of both encodings as they are now. Only the chunk lists and the unfinished
+   * last chunk are copied.
+   * @return the snapshot
+   */
+  public synchronized EncodedPairs snapshot() {
+    EncodedPairs snapshot = new EncodedPairs();
+    snapshot.textChunks.addAll(this.textChunks);
+    snapshot.textChunks.add(this.textTail.toString());
+    snapshot.binaryChunks.addAll(this.binaryChunks);
+    snapshot.binaryChunks.add(this.binaryTail.toByteArray());
+    snapshot.numPairs = this.numPairs;
+    snapshot.numBinaryBytes = this.numBinaryBytes;
+    return snapshot;
+  }
+
+  /**
+   * Get the number of pairs appended.
+   * @return the number of pairs
+   */
+  public synchronized int getNumPairs() {
+    return this.numPairs;
+  }
+
+  /**
+   * Get the number of bytes of the binary encoding.
+   * @return the number of bytes
+   */
+  public synchronized long getNumBinaryBytes() {
+    return this.numBinaryBytes;
+  }
+
+  /**
+   * Get the chunks of the text encoding. Only chunks of a snapshot stay unchanged.
+   * @return the text chunks in order
+   */
+  public synchronized List<String> getTextChunks() {
+    return this.textChunks;
+  }
+
+  /**
+   * Get the chunks of the binary encoding. Only chunks of a snapshot stay unchanged.
+   * @return the binary chunks in order
+   */
+  public synchronized List<byte[]> getBinaryChunks() {
+    return this.binaryChunks;
+  }
+}
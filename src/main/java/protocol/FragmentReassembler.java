@@ -0,0 +1,258 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reassembly of multicast messages that were too long for one datagram. A sender splits such a
+ * message into fragments of FRAGMENT_PAYLOAD_BYTES, each sent as "chatfrag125id@#@index@#@count@#@"
+ * followed by its bytes of the message, where the id is the sender's number for the message. The
+ * receiver copies every fragment into place in a buffer taken from a small pool and decodes the
+ * message once all of its fragments arrived. Messages whose fragments stop arriving for
+ * FRAGMENT_TIMEOUT_MILLIS are dropped, and the fragments they were missing are counted as lost.
+ * Datagrams never exceed MAX_DATAGRAM_BYTES, the UDP payload that fits an Ethernet frame.
+ */
+public class FragmentReassembler {
+
+  public static final int MAX_DATAGRAM_BYTES = 1472;
+  public static final int FRAGMENT_PAYLOAD_BYTES = 1400;
+  public static final int MAX_FRAGMENTS = 1024;
+  public static final int MAX_PARTIAL_MESSAGES = 64;
+  public static final long FRAGMENT_TIMEOUT_MILLIS = 2000;
+  private static final byte[] FRAGMENT_KEY = "chatfrag125".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] SEPARATOR = "@#@".getBytes(StandardCharsets.US_ASCII);
+  private static final int POOLED_BUFFERS = 4;
+
+  private final HashMap<Long,PartialMessage> partialMessages = new HashMap<>();
+  private final ArrayDeque<byte[]> bufferPool = new ArrayDeque<>();
+  private long receivedFragments = 0;
+  private long duplicateFragments = 0;
+  private long malformedFragments = 0;
+  private long reassembledMessages = 0;
+  private long expiredMessages = 0;
+  private long lostFragments = 0;
+
+  /**
+   * Class for the fragments received so far of one message.
+   */
+  private static class PartialMessage {
+    byte[] buffer;
+    int count;
+    int length;
+    final BitSet received = new BitSet();
+    long lastFragmentNanos;
+  }
+
+  /**
+   * Write the header of a fragment into a buffer, before its bytes of the message.
+   * @param buffer
+   * @param messageId
+   * @param index
+   * @param count
+   */
+  public static void putHeader(ByteBuffer buffer, long messageId, int index, int count) {
+    buffer.put(FRAGMENT_KEY);
+    putDecimal(buffer, messageId);
+    buffer.put(SEPARATOR);
+    putDecimal(buffer, index);
+    buffer.put(SEPARATOR);
+    putDecimal(buffer, count);
+    buffer.put(SEPARATOR);
+  }
+
+  /**
+   * Write a non-negative number as decimal digits into a buffer.
+   * @param buffer
+   * @param value
+   */
+  private static void putDecimal(ByteBuffer buffer, long value) {
+    long divisor = 1;
+    while (value / divisor >= 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      buffer.put((byte) ('0' + (value / divisor) % 10));
+    }
+  }
+
+  /**
+   * Check whether a datagram is a fragment of a longer message.
+   * @param data
+   * @param length
+   * @return true if the datagram starts with the fragment key
+   */
+  public static boolean isFragment(byte[] data, int length) {
+    if (length < FRAGMENT_KEY.length) {
+      return false;
+    }
+    for (int i = 0; i < FRAGMENT_KEY.length; i++) {
+      if (data[i] != FRAGMENT_KEY[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Take in a fragment, copying its bytes into the buffer of its message.
+   * @param data
+   * @param length
+   * @return the whole message once this was its last missing fragment, otherwise null
+   */
+  public String accept(byte[] data, int length) {
+    long[] header = new long[3];
+    int offset = FRAGMENT_KEY.length;
+    for (int field = 0; field < header.length; field++) {
+      int start = offset;
+      while (offset < length && data[offset] >= '0' && data[offset] <= '9' && offset - start < 19) {
+        header[field] = header[field] * 10 + (data[offset++] - '0');
+      }
+      if (offset == start || offset + SEPARATOR.length > length || data[offset] != SEPARATOR[0]
+              || data[offset + 1] != SEPARATOR[1] || data[offset + 2] != SEPARATOR[2]) {
+        this.malformedFragments++;
+        return null;
+      }
+      offset += SEPARATOR.length;
+    }
+    long messageId = header[0];
+    int index = (int) header[1];
+    int count = (int) header[2];
+    int payloadLength = length - offset;
+    if (count < 1 || count > MAX_FRAGMENTS || header[1] >= count || payloadLength > FRAGMENT_PAYLOAD_BYTES
+            || (index < count - 1 && payloadLength != FRAGMENT_PAYLOAD_BYTES)) {
+      this.malformedFragments++;
+      return null;
+    }
+    this.receivedFragments++;
+    PartialMessage partial = this.partialMessages.get(messageId);
+    if (partial == null) {
+      if (this.partialMessages.size() >= MAX_PARTIAL_MESSAGES) {
+        expireOldest();
+      }
+      partial = new PartialMessage();
+      partial.count = count;
+      partial.buffer = takeBuffer(count * FRAGMENT_PAYLOAD_BYTES);
+      this.partialMessages.put(messageId, partial);
+    } else if (partial.count != count) {
+      this.malformedFragments++;
+      return null;
+    }
+    partial.lastFragmentNanos = System.nanoTime();
+    if (partial.received.get(index)) {
+      this.duplicateFragments++;
+      return null;
+    }
+    System.arraycopy(data, offset, partial.buffer, index * FRAGMENT_PAYLOAD_BYTES, payloadLength);
+    partial.received.set(index);
+    if (index == count - 1) {
+      partial.length = index * FRAGMENT_PAYLOAD_BYTES + payloadLength;
+    }
+    if (partial.received.cardinality() < count) {
+      return null;
+    }
+    this.partialMessages.remove(messageId);
+    this.reassembledMessages++;
+    String message = new String(partial.buffer, 0, partial.length, StandardCharsets.UTF_8);
+    returnBuffer(partial.buffer);
+    return message;
+  }
+
+  /**
+   * Drop the messages that received no fragment for FRAGMENT_TIMEOUT_MILLIS.
+   * @return the number of messages dropped
+   */
+  public int expire() {
+    if (this.partialMessages.isEmpty()) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    int numExpired = 0;
+    Iterator<Map.Entry<Long,PartialMessage>> iterator = this.partialMessages.entrySet().iterator();
+    while (iterator.hasNext()) {
+      PartialMessage partial = iterator.next().getValue();
+      if (now - partial.lastFragmentNanos >= FRAGMENT_TIMEOUT_MILLIS * 1_000_000) {
+        iterator.remove();
+        drop(partial);
+        numExpired++;
+      }
+    }
+    return numExpired;
+  }
+
+  /**
+   * Drop the message that went longest without a fragment to make room for a new one.
+   */
+  private void expireOldest() {
+    Map.Entry<Long,PartialMessage> oldest = null;
+    for (Map.Entry<Long,PartialMessage> entry : this.partialMessages.entrySet()) {
+      if (oldest == null || entry.getValue().lastFragmentNanos - oldest.getValue().lastFragmentNanos < 0) {
+        oldest = entry;
+      }
+    }
+    this.partialMessages.remove(oldest.getKey());
+    drop(oldest.getValue());
+  }
+
+  /**
+   * Count the fragments a dropped message was missing and hand its buffer back to the pool.
+   * @param partial
+   */
+  private void drop(PartialMessage partial) {
+    this.expiredMessages++;
+    this.lostFragments += partial.count - partial.received.cardinality();
+    returnBuffer(partial.buffer);
+  }
+
+  /**
+   * Take a pooled buffer of at least the given size, or allocate one if none is large enough.
+   * @param size
+   * @return the buffer
+   */
+  private byte[] takeBuffer(int size) {
+    Iterator<byte[]> iterator = this.bufferPool.iterator();
+    while (iterator.hasNext()) {
+      byte[] buffer = iterator.next();
+      if (buffer.length >= size) {
+        iterator.remove();
+        return buffer;
+      }
+    }
+    return new byte[size];
+  }
+
+  /**
+   * Hand a buffer back to the pool, replacing the smallest pooled buffer once the pool is full.
+   * @param buffer
+   */
+  private void returnBuffer(byte[] buffer) {
+    if (this.bufferPool.size() >= POOLED_BUFFERS) {
+      byte[] smallest = null;
+      for (byte[] pooled : this.bufferPool) {
+        if (smallest == null || pooled.length < smallest.length) {
+          smallest = pooled;
+        }
+      }
+      if (smallest.length >= buffer.length) {
+        return;
+      }
+      this.bufferPool.remove(smallest);
+    }
+    this.bufferPool.add(buffer);
+  }
+
+  /**
+   * Describe how many fragments were received and how many messages could not be reassembled.
+   * @return a one line summary of the reassembly metrics
+   */
+  public String describeMetrics() {
+    return "fragmentsReceived=" + this.receivedFragments + ", duplicateFragments=" + this.duplicateFragments
+            + ", malformedFragments=" + this.malformedFragments + ", reassembledMessages=" + this.reassembledMessages
+            + ", expiredMessages=" + this.expiredMessages + ", lostFragments=" + this.lostFragments
+            + ", partialMessages=" + this.partialMessages.size();
+  }
+}
@@ -0,0 +1,183 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of chatroom message history with Deflater and a preset dictionary trained on the
+ * history of the chatroom. Messages are encoded as pairs of fields, each a 4 byte length and its
+ * UTF-8 bytes, and blocks of them are deflated with the dictionary, which holds the words and word
+ * pairs that are worth the most in the sample it was trained on. Chat text repeats the same senders,
+ * words and phrases, so most of a block becomes references into the dictionary.
+ */
+public final class HistoryCompression {
+
+  public static final int MAX_DICTIONARY_BYTES = 16 * 1024;
+
+  private HistoryCompression() {
+  }
+
+  /**
+   * Train a preset dictionary on a sample of messages. Every word and pair of consecutive words is
+   * scored by how many bytes its repetitions would save, and the best ones are put in the dictionary
+   * with the most valuable last, since Deflater finds matches at short distances most cheaply.
+   * @param messages the sender and then the contents of every message in the sample
+   * @return the dictionary, which is empty if the sample is empty
+   */
+  public static byte[] trainDictionary(String[] messages) {
+    HashMap<String,Integer> counts = new HashMap<>();
+    for (int i = 0; i < messages.length; i++) {
+      String[] words = messages[i].split(" ");
+      for (int j = 0; j < words.length; j++) {
+        if (words[j].length() > 1) {
+          counts.merge(words[j] + " ", 1, Integer::sum);
+        }
+        if (j + 1 < words.length) {
+          counts.merge(words[j] + " " + words[j + 1] + " ", 1, Integer::sum);
+        }
+      }
+    }
+    ArrayList<Map.Entry<String,Integer>> entries = new ArrayList<>();
+    for (Map.Entry<String,Integer> entry : counts.entrySet()) {
+      if (entry.getValue() > 1) {
+        entries.add(entry);
+      }
+    }
+    entries.sort((a, b) -> Long.compare((long) b.getValue() * b.getKey().length(),
+            (long) a.getValue() * a.getKey().length()));
+    ArrayList<byte[]> pieces = new ArrayList<>();
+    int size = 0;
+    for (Map.Entry<String,Integer> entry : entries) {
+      byte[] piece = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      if (size + piece.length > MAX_DICTIONARY_BYTES) {
+        continue;
+      }
+      pieces.add(piece);
+      size += piece.length;
+    }
+    byte[] dictionary = new byte[size];
+    int position = size;
+    for (byte[] piece : pieces) {
+      position -= piece.length;
+      System.arraycopy(piece, 0, dictionary, position, piece.length);
+    }
+    return dictionary;
+  }
+
+  /**
+   * Get a checksum that identifies a dictionary.
+   * @param dictionary
+   * @return the checksum
+   */
+  public static long checksum(byte[] dictionary) {
+    CRC32 crc = new CRC32();
+    crc.update(dictionary);
+    return crc.getValue();
+  }
+
+  /**
+   * Encode pairs of fields as the length and UTF-8 bytes of every field.
+   * @param fields
+   * @return the encoded fields
+   */
+  public static byte[] encodePairs(String[] fields) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (String field : fields) {
+      byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+      out.write(bytes.length >>> 24);
+      out.write(bytes.length >>> 16);
+      out.write(bytes.length >>> 8);
+      out.write(bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode fields encoded by encodePairs.
+   * @param encoded
+   * @return the fields
+   * @throws IOException if the encoding is malformed
+   */
+  public static String[] decodePairs(byte[] encoded) throws IOException {
+    ArrayList<String> fields = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(encoded);
+    while (buffer.hasRemaining()) {
+      if (buffer.remaining() < 4) {
+        throw new IOException("Truncated history encoding");
+      }
+      int length = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        throw new IOException("Truncated history encoding");
+      }
+      fields.add(new String(encoded, buffer.position(), length, StandardCharsets.UTF_8));
+      buffer.position(buffer.position() + length);
+    }
+    return fields.toArray(new String[0]);
+  }
+
+  /**
+   * Deflate bytes with a preset dictionary.
+   * @param deflater a deflater that is reset and reused
+   * @param raw
+   * @param dictionary the preset dictionary, or an empty one
+   * @return the compressed bytes
+   */
+  public static byte[] compress(Deflater deflater, byte[] raw, byte[] dictionary) {
+    deflater.reset();
+    if (dictionary.length > 0) {
+      deflater.setDictionary(dictionary);
+    }
+    deflater.setInput(raw);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+    byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      int length = deflater.deflate(buffer);
+      out.write(buffer, 0, length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Inflate bytes that were deflated with a preset dictionary.
+   * @param inflater an inflater that is reset and reused
+   * @param compressed
+   * @param rawLength the number of bytes before compression
+   * @param dictionary the preset dictionary the bytes were deflated with
+   * @return the raw bytes
+   * @throws IOException if the compressed bytes are malformed
+   */
+  public static byte[] decompress(Inflater inflater, byte[] compressed, int rawLength, byte[] dictionary)
+          throws IOException {
+    inflater.reset();
+    inflater.setInput(compressed);
+    byte[] raw = new byte[rawLength];
+    try {
+      int position = 0;
+      while (position < rawLength) {
+        int length = inflater.inflate(raw, position, rawLength - position);
+        if (length == 0) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(dictionary);
+          } else if (inflater.finished() || inflater.needsInput()) {
+            throw new IOException("Compressed history ended early");
+          }
+        }
+        position += length;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Malformed compressed history", e);
+    }
+    return raw;
+  }
+}
@@ -0,0 +1,50 @@
+package protocol;
+
+import java.io.IOException;
+
+/**
+ * Connection that requests and responses are exchanged over, independent of whether the text line
+ * protocol or the binary frame protocol is spoken on it. A message is an array of fields whose first
+ * field is the request type, like the arrays produced by splitting a text request on "@#@".
+ */
+public interface MessageChannel {
+
+  /**
+   * Read the next request from the connection.
+   * @return the fields of the request, starting with its type, or null if the connection closed
+   * @throws IOException
+   */
+  String[] readMessage() throws IOException;
+
+  /**
+   * Write a request whose first field is its type.
+   * @param fields
+   * @throws IOException
+   */
+  void writeMessage(String... fields) throws IOException;
+
+  /**
+   * Read the response to a request of the given type.
+   * @param requestType
+   * @return the fields of the response
+   * @throws IOException if the connection failed or closed
+   */
+  String[] readResponse(String requestType) throws IOException;
+
+  /**
+   * Write the response to a request of the given type.
+   * @param requestType
+   * @param fields
+   * @throws IOException
+   */
+  void writeResponse(String requestType, String[] fields) throws IOException;
+
+  /**
+   * Write the response to a request of the given type that is made up of already encoded pairs of
+   * fields, such as the history of a chatroom. The pairs are written out as they are encoded.
+   * @param requestType
+   * @param pairs a snapshot that does not change while it is written
+   * @throws IOException
+   */
+  void writePairsResponse(String requestType, EncodedPairs pairs) throws IOException;
+}
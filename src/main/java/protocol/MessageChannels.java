@@ -0,0 +1,96 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+
+/**
+ * Negotiation of the protocol spoken on a newly connected socket.
+ */
+public final class MessageChannels {
+
+  private MessageChannels() {
+  }
+
+  /**
+   * Server side of the negotiation. If the first byte the client sends is the binary magic, read
+   * the client's version and answer with the version both sides will use. Otherwise the client is a
+   * text client and the byte is left unread for the text channel.
+   * @param socket
+   * @return the message channel for the accepted socket
+   * @throws IOException
+   */
+  public static MessageChannel accept(Socket socket) throws IOException {
+    return accept(socket.getInputStream(), socket.getOutputStream());
+  }
+
+  /**
+   * Server side of the negotiation over the given streams of an accepted socket, such as the
+   * streams of a non-blocking channel.
+   * @param input
+   * @param out
+   * @return the message channel for the accepted socket
+   * @throws IOException
+   */
+  public static MessageChannel accept(InputStream input, OutputStream out) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(input);
+    in.mark(1);
+    int first = in.read();
+    if (first == (WireProtocol.MAGIC_0 & 0xFF)) {
+      if (in.read() != (WireProtocol.MAGIC_1 & 0xFF)) {
+        throw new IOException("Invalid protocol handshake");
+      }
+      int clientVersion = in.read();
+      out.write(handshake((byte) Math.min(clientVersion, WireProtocol.VERSION)));
+      out.flush();
+      return new BinaryMessageChannel(new DataInputStream(in),
+              new DataOutputStream(new BufferedOutputStream(out)));
+    }
+    in.reset();
+    return new TextMessageChannel(new BufferedReader(new InputStreamReader(in)),
+            new BufferedWriter(new OutputStreamWriter(out)));
+  }
+
+  /**
+   * Client side of the negotiation. A binary client sends the magic and its version and expects
+   * the server to echo the magic with the version to use.
+   * @param socket
+   * @param binary
+   * @return the message channel for the connected socket
+   * @throws IOException if the server does not answer the binary handshake
+   */
+  public static MessageChannel connect(Socket socket, boolean binary) throws IOException {
+    if (!binary) {
+      return new TextMessageChannel(new BufferedReader(new InputStreamReader(socket.getInputStream())),
+              new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+    }
+    OutputStream out = socket.getOutputStream();
+    out.write(handshake(WireProtocol.VERSION));
+    out.flush();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    byte[] answer = new byte[3];
+    in.readFully(answer);
+    if (answer[0] != WireProtocol.MAGIC_0 || answer[1] != WireProtocol.MAGIC_1 || answer[2] < 1) {
+      throw new IOException("Server did not accept binary protocol");
+    }
+    return new BinaryMessageChannel(in, new DataOutputStream(new BufferedOutputStream(out)));
+  }
+
+  /**
+   * Get the bytes of a handshake announcing the given version.
+   * @param version
+   * @return the handshake bytes
+   */
+  public static byte[] handshake(byte version) {
+    return new byte[]{ WireProtocol.MAGIC_0, WireProtocol.MAGIC_1, version };
+  }
+}
@@ -0,0 +1,58 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Framing of several multicast messages packed into one datagram. A batch is "chatbatch125"
+ * followed by every message as a 2 byte length and the bytes the message would have been sent as on
+ * its own, chat key included, so a receiver handles every unpacked message like a datagram of its
+ * own.
+ */
+public final class MulticastBatch {
+
+  public static final byte[] BATCH_KEY = "chatbatch125".getBytes(StandardCharsets.US_ASCII);
+  public static final int LENGTH_BYTES = 2;
+
+  private MulticastBatch() {
+  }
+
+  /**
+   * Check whether a datagram is a batch of messages.
+   * @param data
+   * @param length
+   * @return true if the datagram starts with the batch key
+   */
+  public static boolean isBatch(byte[] data, int length) {
+    if (length < BATCH_KEY.length) {
+      return false;
+    }
+    for (int i = 0; i < BATCH_KEY.length; i++) {
+      if (data[i] != BATCH_KEY[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Unpack the messages of a batch, stopping at a message whose length runs past the datagram.
+   * @param data
+   * @param length
+   * @return the messages in the order they were packed
+   */
+  public static ArrayList<String> unpack(byte[] data, int length) {
+    ArrayList<String> messages = new ArrayList<>();
+    int position = BATCH_KEY.length;
+    while (position + LENGTH_BYTES <= length) {
+      int messageLength = ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+      position += LENGTH_BYTES;
+      if (position + messageLength > length) {
+        break;
+      }
+      messages.add(new String(data, position, messageLength, StandardCharsets.UTF_8));
+      position += messageLength;
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,173 @@
+package protocol;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Message channel for the original line protocol, where every message is one line of fields joined
+ * by "@#@". Responses listing chatrooms and message history use their own "@&@"/"%&%" and "~##~"
+ * separators, which are handled here so that callers only deal with fields.
+ */
+public class TextMessageChannel implements MessageChannel {
+
+  private final BufferedReader reader;
+  private final BufferedWriter writer;
+
+  /**
+   * Constructor for a text message channel over the given reader and writer.
+   * @param reader
+   * @param writer
+   */
+  public TextMessageChannel(BufferedReader reader, BufferedWriter writer) {
+    this.reader = reader;
+    this.writer = writer;
+  }
+
+  /**
+   * Split a request line into its fields.
+   * @param line
+   * @return the fields of the request
+   */
+  public static String[] parseMessage(String line) {
+    return line.split("@#@");
+  }
+
+  @Override
+  public String[] readMessage() throws IOException {
+    String line = this.reader.readLine();
+    return line == null ? null : parseMessage(line);
+  }
+
+  @Override
+  public synchronized void writeMessage(String... fields) throws IOException {
+    writeLine(String.join("@#@", fields));
+  }
+
+  @Override
+  public String[] readResponse(String requestType) throws IOException {
+    String line = this.reader.readLine();
+    if (line == null) {
+      throw new EOFException("Connection closed before response to " + requestType);
+    }
+    return parseResponse(requestType, line);
+  }
+
+  @Override
+  public synchronized void writeResponse(String requestType, String[] fields) throws IOException {
+    writeLine(formatResponse(requestType, fields));
+  }
+
+  @Override
+  public synchronized void writePairsResponse(String requestType, EncodedPairs pairs) throws IOException {
+    for (String chunk : pairs.getTextChunks()) {
+      this.writer.write(chunk);
+    }
+    this.writer.newLine();
+    this.writer.flush();
+  }
+
+  /**
+   * Encode a request whose first field is its type as a whole line, so that it can be written to
+   * many connections without encoding it again. The line is encoded the way the channel's writer
+   * encodes it.
+   * @param fields
+   * @return the bytes of the line
+   */
+  public static byte[] encodeMessage(String... fields) {
+    return (String.join("@#@", fields) + System.lineSeparator()).getBytes();
+  }
+
+  /**
+   * Write a single line and flush it.
+   * @param line
+   * @throws IOException
+   */
+  private void writeLine(String line) throws IOException {
+    this.writer.write(line);
+    this.writer.newLine();
+    this.writer.flush();
+  }
+
+  /**
+   * Join the fields of a response into a line. Responses made up of pairs (chat name and number of
+   * users, or sender and message) use the separators the text clients expect for them.
+   * @param requestType
+   * @param fields
+   * @return the response line
+   */
+  public static String formatResponse(String requestType, String[] fields) {
+    if (requestType.equalsIgnoreCase("getNumUsers")) {
+      return joinPairs(fields, "%&%", "@&@");
+    } else if (requestType.equalsIgnoreCase("getAllChatroomMessages")) {
+      return joinPairs(fields, "@#@", "~##~");
+    }
+    return String.join("@#@", fields);
+  }
+
+  /**
+   * Check if a response is a page of message history or search results, whose trailing message
+   * contents may be empty.
+   * @param requestType
+   * @return true if the response is a page of message history
+   */
+  private static boolean isHistoryPage(String requestType) {
+    return requestType.equalsIgnoreCase("getChatroomMessageRange")
+            || requestType.equalsIgnoreCase("getLatestChatroomMessages")
+            || requestType.equalsIgnoreCase("searchChatroomMessages")
+            || requestType.equalsIgnoreCase("getCompressedChatroomMessages");
+  }
+
+  /**
+   * Split a response line into its fields, undoing formatResponse.
+   * @param requestType
+   * @param line
+   * @return the fields of the response
+   */
+  public static String[] parseResponse(String requestType, String line) {
+    if (requestType.equalsIgnoreCase("getNumUsers")) {
+      return splitPairs(line, "%&%", "@&@");
+    } else if (requestType.equalsIgnoreCase("getAllChatroomMessages")) {
+      return splitPairs(line, "@#@", "~##~");
+    } else if (isHistoryPage(requestType)) {
+      return line.split("@#@", -1);
+    }
+    return line.split("@#@");
+  }
+
+  /**
+   * Join fields two at a time with the pair separator, ending every pair with the entry terminator.
+   * @param fields
+   * @param pairSeparator
+   * @param entryTerminator
+   * @return the joined line
+   */
+  private static String joinPairs(String[] fields, String pairSeparator, String entryTerminator) {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i + 1 < fields.length; i += 2) {
+      line.append(fields[i]).append(pairSeparator).append(fields[i + 1]).append(entryTerminator);
+    }
+    return line.toString();
+  }
+
+  /**
+   * Split a line of terminated entries into the two fields of every entry.
+   * @param line
+   * @param pairSeparator
+   * @param entryTerminator
+   * @return the fields of all entries in order
+   */
+  private static String[] splitPairs(String line, String pairSeparator, String entryTerminator) {
+    ArrayList<String> fields = new ArrayList<>();
+    if (line.length() > 0) {
+      for (String entry : line.split(entryTerminator)) {
+        String[] pair = entry.split(pairSeparator, 2);
+        fields.add(pair[0]);
+        fields.add(pair.length > 1 ? pair[1] : "");
+      }
+    }
+    return fields.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,92 @@
+package protocol;
+
+import java.util.HashMap;
+
+/**
+ * Constants of the length-prefixed binary wire protocol spoken between clients and LookUp servers
+ * and between clients and chatroom servers. A binary client starts the connection with the two magic
+ * bytes and its protocol version, and the server answers with the magic bytes and the version both
+ * will use. Text clients never send the magic bytes, so the server keeps speaking the "@#@" line
+ * protocol to them.
+ *
+ * Every binary message is one frame: a 4 byte payload length, followed by the payload made up of a
+ * 1 byte opcode, a 2 byte field count, and every field as a 4 byte length and its UTF-8 bytes.
+ * A message with more than MAX_FIELDS fields does not fit in one frame, so responses that can grow
+ * that large, like the chatroom history and the number of users in every chatroom, come in pages.
+ */
+public final class WireProtocol {
+
+  public static final byte MAGIC_0 = (byte) 0xC7;
+  public static final byte MAGIC_1 = (byte) 0x4D;
+  public static final byte VERSION = 1;
+  public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+  public static final int MAX_FIELDS = 0xFFFF;
+
+  // opcode of a response, whose first field is the status (e.g. "success")
+  public static final byte RESPONSE = 0;
+
+  // request names indexed by their opcode
+  private static final String[] OPCODE_NAMES = {
+          null,
+          "login",
+          "register",
+          "chatSelectionLogout",
+          "createChat",
+          "reCreateChat",
+          "notifyMembersOfRecreation",
+          "getAllChatroomMessages",
+          "updateChatConnectionPort",
+          "joinChat",
+          "getMembers",
+          "getNumUsers",
+          "message",
+          "chatroomLogout",
+          "backToChatSelection",
+          "getChatroomMessageRange",
+          "getLatestChatroomMessages",
+          "getChatroomHistoryVersion",
+          "searchChatroomMessages",
+          "getCompressedChatroomMessages",
+          "setRetentionPolicy",
+          "nack",
+          "chatMessage",
+          "chatSkipped",
+          "subscribeChatroomNotices",
+          "chatroomNotice"
+  };
+  private static final HashMap<String,Byte> NAME_OPCODES = new HashMap<>();
+
+  static {
+    for (int i = 1; i < OPCODE_NAMES.length; i++) {
+      NAME_OPCODES.put(OPCODE_NAMES[i].toLowerCase(), (byte) i);
+    }
+  }
+
+  private WireProtocol() {
+  }
+
+  /**
+   * Get the opcode of the request with the given name.
+   * @param name
+   * @return the opcode of the request
+   */
+  public static byte opcodeOf(String name) {
+    Byte opcode = NAME_OPCODES.get(name.toLowerCase());
+    if (opcode == null) {
+      throw new IllegalArgumentException("No opcode for request type " + name);
+    }
+    return opcode;
+  }
+
+  /**
+   * Get the name of the request with the given opcode.
+   * @param opcode
+   * @return the name of the request, null for a response, or "unknown" for an unknown opcode
+   */
+  public static String nameOf(byte opcode) {
+    if (opcode < 0 || opcode >= OPCODE_NAMES.length) {
+      return "unknown";
+    }
+    return OPCODE_NAMES[opcode];
+  }
+}
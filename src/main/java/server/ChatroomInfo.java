@@ -2,31 +2,105 @@ package server;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+import protocol.EncodedPairs;
+import protocol.HistoryCompression;
 
 /**
  * Class for holding all the information about a chatroom. This includes the ID, name, server socket
  * port and address, groupIP for multicasting, username of host client, current members in chatroom,
- * ordered list of message sender usernames, and ordered list of the contents of the messages sent.
+ * the history store holding the sender usernames and contents of the messages sent, and the
+ * retention policy that bounds how much of the history is kept.
  */
 public class ChatroomInfo {
+  public static final int TRANSFER_DICTIONARY_MESSAGES = 1024;
+  // messages are only timed to this granularity for retention by age
+  public static final long TIME_CHECKPOINT_MILLIS = 1000;
+  // the index of a searchable chatroom is pruned once this many messages, or a quarter of the
+  // messages kept if that is more, were discarded from the history since it was last pruned
+  public static final int MIN_INDEX_PRUNE_MESSAGES = 4096;
+
   public int ID;
   public String name;
   public int port;
   public String groupIP;
   public InetAddress inetAddress;
   public String hostUsername;
-  public ArrayList<String> members;
-  public ArrayList<String> messageSenders;
-  public ArrayList<String> messageContents;
+  // members in the order they joined, so the oldest member comes first
+  public LinkedHashSet<String> members;
+  public HistoryStore history;
+  // index for searching the messages sent, or null if the chatroom cannot be searched
+  public HistoryIndex historyIndex;
+  // bumped with every message put, so callers can tell whether the history changed
+  public long historyVersion = 0;
+  // highest sequence number the chatroom server gave a message that was put, or -1 if none was put
+  public long lastMessageSequence = -1;
+  // limits on the history kept, and the bytes of senders and contents of the messages kept
+  public RetentionPolicy retentionPolicy = new RetentionPolicy();
+  public long historyBytes = 0;
+  // sequence number and time sent of the first message sent at least TIME_CHECKPOINT_MILLIS after
+  // the previous checkpoint, so every message is known to be sent within that long of its checkpoint
+  private ArrayList<long[]> timeCheckpoints = new ArrayList<>();
+  private long historyIndexFirstSequence = 0;
+  // history encoded for getAllChatroomMessages responses, made on the first such request
+  private EncodedPairs encodedHistory;
+  private long encodedHistoryNextSequence = 0;
+  // preset dictionary for compressing pages of history sent to clients, and how many messages it
+  // was trained on
+  private byte[] transferDictionary;
+  private long transferDictionaryMessages = 0;
 
   /**
-   * Constructor for chatroomInfo object that initializes the arraylists for the current members,
-   * sender usernames, and contents of messages sent.
+   * Constructor for chatroomInfo object that initializes the set of current members and keeps the
+   * messages sent on the heap.
    */
   public ChatroomInfo() {
-    this.members = new ArrayList<>();
-    this.messageSenders = new ArrayList<>();
-    this.messageContents = new ArrayList<>();
+    this(new InMemoryHistoryStore());
+  }
+
+  /**
+   * Constructor for chatroomInfo object that initializes the set of current members and keeps the
+   * messages sent in the given history store.
+   * @param history
+   */
+  public ChatroomInfo(HistoryStore history) {
+    this.members = new LinkedHashSet<>();
+    this.history = history;
+  }
+
+  /**
+   * Create a copy of this chatroomInfo with its own member list and a view of the messages sent so
+   * far, so the copy can be read while this chatroomInfo keeps changing.
+   * @return the copy
+   */
+  public synchronized ChatroomInfo copy() {
+    ChatroomInfo copy = new ChatroomInfo(new HistoryView(this.history, this.history.getNextSequence()));
+    copy.ID = this.ID;
+    copy.name = this.name;
+    copy.port = this.port;
+    copy.groupIP = this.groupIP;
+    copy.inetAddress = this.inetAddress;
+    copy.hostUsername = this.hostUsername;
+    copy.historyVersion = this.historyVersion;
+    copy.members.addAll(this.members);
+    copy.copyRetentionStateFrom(this);
+    return copy;
+  }
+
+  /**
+   * Take the last message sequence number, retention policy and message times of another
+   * chatroomInfo with the same messages.
+   * @param chatroomInfo
+   */
+  public synchronized void copyRetentionStateFrom(ChatroomInfo chatroomInfo) {
+    synchronized (chatroomInfo) {
+      this.lastMessageSequence = chatroomInfo.lastMessageSequence;
+      this.retentionPolicy = new RetentionPolicy(chatroomInfo.retentionPolicy.maxMessages,
+              chatroomInfo.retentionPolicy.maxAgeSeconds, chatroomInfo.retentionPolicy.maxBytes);
+      this.historyBytes = chatroomInfo.historyBytes;
+      this.timeCheckpoints = new ArrayList<>(chatroomInfo.timeCheckpoints);
+    }
   }
 
   /**
@@ -78,57 +152,337 @@ public class ChatroomInfo {
   }
 
   /**
-   * Put a member into the list of users in the chatroom.
+   * Put a member into the set of users in the chatroom. A member who is already in the chatroom
+   * keeps their place in the joining order.
    * @param member
    */
-  public void putMember(String member) {
+  public synchronized void putMember(String member) {
     this.members.add(member);
   }
 
   /**
-   * Remove a member user from the list of users in the chatroom
+   * Remove a member user from the set of users in the chatroom
    * @param member
    */
-  public void removeMember(String member) {
+  public synchronized void removeMember(String member) {
     this.members.remove(member);
   }
 
+  /**
+   * Get the users in the chatroom in the order they joined.
+   * @return a copy of the members, oldest first
+   */
+  public synchronized ArrayList<String> getMembers() {
+    return new ArrayList<>(this.members);
+  }
+
+  /**
+   * Get the number of users in the chatroom.
+   * @return the number of members
+   */
+  public synchronized int getNumMembers() {
+    return this.members.size();
+  }
+
   /**
    * Get a new host for the newly recreated chatroom. The new host is the oldest member.
    * @return a new host for the newly recreated chatroom.
    */
-  public String getNewHost() {
+  public synchronized String getNewHost() {
     if (members.size() == 0) {
       return null;
     } else {
-      return members.get(0);
+      return members.iterator().next();
     }
   }
 
   /**
-   * Put the username of the sender of a message into the sender list, and put the message contents
-   * into the list of message contents, effectively storing the message in memory.
+   * Append the username of the sender of a message and the message contents to the history store
+   * of the chatroom as sent now, and index the contents if the chatroom can be searched.
    * @param senderUsername
    * @param message
    */
   public void putMessage(String senderUsername, String message) {
-    this.messageSenders.add(senderUsername);
-    this.messageContents.add(message);
+    appendMessage(senderUsername, message, System.currentTimeMillis());
+  }
+
+  /**
+   * Append a message sent at the given time to the history store, index it, and count its bytes and
+   * time for retention.
+   * @param senderUsername
+   * @param message
+   * @param sentMillis
+   */
+  private void appendMessage(String senderUsername, String message, long sentMillis) {
+    long sequence = this.history.append(senderUsername, message);
+    if (this.historyIndex != null) {
+      this.historyIndex.add(sequence, message);
+    }
+    synchronized (this) {
+      this.historyVersion++;
+      this.historyBytes += getMessageBytes(senderUsername, message);
+      if (this.timeCheckpoints.isEmpty()
+              || sentMillis >= this.timeCheckpoints.get(this.timeCheckpoints.size() - 1)[1] + TIME_CHECKPOINT_MILLIS) {
+        this.timeCheckpoints.add(new long[]{ sequence, sentMillis });
+      }
+    }
+  }
+
+  /**
+   * Get the number of UTF-8 bytes of the sender username and contents of a message, which is what
+   * a message counts towards the byte limit of a retention policy.
+   * @param senderUsername
+   * @param message
+   * @return the number of bytes
+   */
+  public static long getMessageBytes(String senderUsername, String message) {
+    return getUTF8Length(senderUsername) + getUTF8Length(message);
+  }
+
+  /**
+   * Get the number of bytes a string takes in UTF-8 without encoding it.
+   * @param string
+   * @return the number of bytes
+   */
+  static long getUTF8Length(String string) {
+    long length = 0;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Put a message that the chatroom server gave the given sequence number, unless a message with
+   * that sequence number or a later one was already put, so a notification or transaction that is
+   * retried or delivered twice only adds the message once. Sequence numbers normally match the
+   * sequence numbers of the history; a skipped one only means a notification was lost.
+   * @param senderUsername
+   * @param message
+   * @param messageSequence the sequence number, or -1 to put the message without checking
+   * @return true if the message was put, false if it was a duplicate
+   */
+  public boolean putMessage(String senderUsername, String message, long messageSequence) {
+    return putMessage(senderUsername, message, messageSequence, System.currentTimeMillis());
+  }
+
+  /**
+   * Put a message that the chatroom server gave the given sequence number and that was sent at the
+   * given time, unless it is a duplicate. Replicas put a message with the time its proposer stamped,
+   * so every replica discards the same messages for their age.
+   * @param senderUsername
+   * @param message
+   * @param messageSequence the sequence number, or -1 to put the message without checking
+   * @param sentMillis
+   * @return true if the message was put, false if it was a duplicate
+   */
+  public boolean putMessage(String senderUsername, String message, long messageSequence, long sentMillis) {
+    if (messageSequence >= 0) {
+      synchronized (this) {
+        if (messageSequence <= this.lastMessageSequence) {
+          return false;
+        }
+        this.lastMessageSequence = messageSequence;
+      }
+    }
+    appendMessage(senderUsername, message, sentMillis);
+    return true;
+  }
+
+  /**
+   * Set the retention policy of the chatroom. Messages it does not keep are discarded by the next
+   * call to enforceRetention.
+   * @param retentionPolicy
+   */
+  public synchronized void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+    this.retentionPolicy = retentionPolicy;
+  }
+
+  /**
+   * Get the number of bytes of senders and contents of the messages kept.
+   * @return the number of bytes
+   */
+  public synchronized long getHistoryBytes() {
+    return this.historyBytes;
+  }
+
+  /**
+   * Get the time checkpoints of the messages kept.
+   * @return the sequence number and then the time sent of every checkpoint, oldest first
+   */
+  public synchronized long[] getTimeCheckpoints() {
+    long[] checkpoints = new long[this.timeCheckpoints.size() * 2];
+    for (int i = 0; i < this.timeCheckpoints.size(); i++) {
+      checkpoints[2 * i] = this.timeCheckpoints.get(i)[0];
+      checkpoints[2 * i + 1] = this.timeCheckpoints.get(i)[1];
+    }
+    return checkpoints;
+  }
+
+  /**
+   * Replace the time checkpoints of the messages kept, as when restoring the chatroom.
+   * @param checkpoints the sequence number and then the time sent of every checkpoint, oldest first
+   */
+  public synchronized void setTimeCheckpoints(long[] checkpoints) {
+    this.timeCheckpoints = new ArrayList<>();
+    for (int i = 0; i + 1 < checkpoints.length; i += 2) {
+      this.timeCheckpoints.add(new long[]{ checkpoints[i], checkpoints[i + 1] });
+    }
+  }
+
+  /**
+   * Discard the oldest messages that the retention policy of the chatroom does not keep. A message
+   * is discarded if more messages were sent after it than the policy keeps, if it was sent longer
+   * ago than the policy keeps messages, or if the messages sent after it take as many bytes as the
+   * policy keeps. Messages are timed by their checkpoint, so a message is discarded for its age up
+   * to TIME_CHECKPOINT_MILLIS after it is due.
+   * @param defaults the server's default policy, for the limits the chatroom inherits
+   * @param nowMillis
+   * @return the number of messages discarded
+   */
+  public long enforceRetention(RetentionPolicy defaults, long nowMillis) {
+    RetentionPolicy policy;
+    long firstSequence;
+    long nextSequence;
+    long bytes;
+    long cutSequence;
+    synchronized (this) {
+      policy = this.retentionPolicy.resolve(defaults);
+      if (policy.isUnlimited()) {
+        return 0;
+      }
+      firstSequence = this.history.getFirstSequence();
+      nextSequence = this.history.getNextSequence();
+      bytes = this.historyBytes;
+      cutSequence = firstSequence;
+      if (policy.maxMessages > 0) {
+        cutSequence = Math.max(cutSequence, nextSequence - policy.maxMessages);
+      }
+      if (policy.maxAgeSeconds > 0) {
+        long cutoffMillis = nowMillis - policy.maxAgeSeconds * 1000;
+        for (int i = 0; i < this.timeCheckpoints.size(); i++) {
+          if (this.timeCheckpoints.get(i)[1] + TIME_CHECKPOINT_MILLIS > cutoffMillis) {
+            break;
+          }
+          cutSequence = Math.max(cutSequence,
+                  i + 1 < this.timeCheckpoints.size() ? this.timeCheckpoints.get(i + 1)[0] : nextSequence);
+        }
+      }
+      cutSequence = Math.min(cutSequence, nextSequence);
+    }
+    // read the messages to discard for their bytes, and keep discarding while the rest take too many.
+    long discardedBytes = 0;
+    long sequence = firstSequence;
+    while (sequence < nextSequence && (sequence < cutSequence || (policy.maxBytes > 0 && bytes - discardedBytes > policy.maxBytes))) {
+      String[] messages = this.history.getMessages(sequence, Math.min(nextSequence, sequence + LookUpServer.HISTORY_PAGE_MESSAGES));
+      for (int i = 0; i + 1 < messages.length; i += 2) {
+        if (sequence >= cutSequence && (policy.maxBytes <= 0 || bytes - discardedBytes <= policy.maxBytes)) {
+          break;
+        }
+        discardedBytes += getMessageBytes(messages[i], messages[i + 1]);
+        sequence++;
+      }
+      if (messages.length == 0) {
+        break;
+      }
+    }
+    if (sequence <= firstSequence) {
+      return 0;
+    }
+    this.history.discardBefore(sequence);
+    synchronized (this) {
+      this.historyBytes -= discardedBytes;
+      // keep the checkpoint that times the first message kept.
+      int numDiscarded = 0;
+      while (numDiscarded + 1 < this.timeCheckpoints.size() && this.timeCheckpoints.get(numDiscarded + 1)[0] <= sequence) {
+        numDiscarded++;
+      }
+      this.timeCheckpoints.subList(0, numDiscarded).clear();
+      this.encodedHistory = null;
+      this.historyVersion++;
+    }
+    if (this.historyIndex != null && sequence - this.historyIndexFirstSequence
+            >= Math.max(MIN_INDEX_PRUNE_MESSAGES, (nextSequence - sequence) / 4)) {
+      this.historyIndex.discardBefore(sequence);
+      this.historyIndexFirstSequence = sequence;
+    }
+    return sequence - firstSequence;
+  }
+
+  /**
+   * Get the sequence number the chatroom server should give the next message, which follows both
+   * the last sequence number put and the messages in the history.
+   * @return the next message sequence number
+   */
+  public synchronized long getNextMessageSequence() {
+    return Math.max(this.lastMessageSequence + 1, this.history.getNextSequence());
+  }
+
+  /**
+   * Get the version of the message history, which changes whenever a message is put.
+   * @return the history version
+   */
+  public synchronized long getHistoryVersion() {
+    return this.historyVersion;
   }
 
   /**
    * Get all of the messages that have been sent to this chatroom. This includes getting the sender
    * username and the corresponding message for every message.
-   * @return a string that contains all of the messages sent and their corresponding senders
+   * @return an array holding the sender and then the contents of every message sent, in order
+   */
+  public String[] getAllMessages() {
+    return this.history.getMessages(this.history.getFirstSequence(), this.history.getNextSequence());
+  }
+
+  /**
+   * Get all of the messages that have been sent to this chatroom already encoded for a response. The
+   * encoding is kept between calls and only the messages put since the last call are encoded.
+   * @return a snapshot of the encoded sender and contents of every message sent, in order
+   */
+  public synchronized EncodedPairs getEncodedMessages() {
+    if (this.encodedHistory == null) {
+      this.encodedHistory = new EncodedPairs();
+      this.encodedHistoryNextSequence = this.history.getFirstSequence();
+    }
+    long nextSequence = this.history.getNextSequence();
+    while (this.encodedHistoryNextSequence < nextSequence) {
+      long toSequence = Math.min(nextSequence, this.encodedHistoryNextSequence + LookUpServer.HISTORY_PAGE_MESSAGES);
+      String[] messages = this.history.getMessages(this.encodedHistoryNextSequence, toSequence);
+      for (int i = 0; i + 1 < messages.length; i += 2) {
+        this.encodedHistory.append(messages[i], messages[i + 1]);
+      }
+      this.encodedHistoryNextSequence = toSequence;
+    }
+    return this.encodedHistory.snapshot();
+  }
+
+  /**
+   * Get the preset dictionary for compressing pages of this chatroom's history sent to clients. It
+   * is trained on the oldest messages, up to TRANSFER_DICTIONARY_MESSAGES of them, and trained again
+   * whenever the history has grown to twice the messages it was trained on until it was trained on
+   * that many, so clients only need to get a new dictionary a few times.
+   * @return the dictionary
    */
-  public String getAllMessages() {
-    StringBuilder allSentMessages = new StringBuilder();
-    int numOfMessages = this.messageContents.size();
-    for (int i = 0; i < numOfMessages; i++) {
-      String sender = this.messageSenders.get(i);
-      String contents = this.messageContents.get(i);
-      allSentMessages.append(sender).append("@#@").append(contents).append("~##~");
+  public synchronized byte[] getTransferDictionary() {
+    long numMessages = this.history.getNextSequence() - this.history.getFirstSequence();
+    if (this.transferDictionary == null || (this.transferDictionaryMessages < TRANSFER_DICTIONARY_MESSAGES
+            && numMessages >= 2 * Math.max(1, this.transferDictionaryMessages))) {
+      long firstSequence = this.history.getFirstSequence();
+      String[] sample = this.history.getMessages(firstSequence, firstSequence + TRANSFER_DICTIONARY_MESSAGES);
+      this.transferDictionary = HistoryCompression.trainDictionary(sample);
+      this.transferDictionaryMessages = sample.length / 2;
     }
-    return allSentMessages.toString();
+    return this.transferDictionary;
   }
 }
@@ -5,26 +5,51 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 import client.Client;
+import executor.ExecutionPolicies;
+import executor.ExecutionPolicy;
 import gui.ChatroomServerGUI;
 import logger.ProgLogger;
+import protocol.BinaryMessageChannel;
+import protocol.ChannelStreams;
+import protocol.MessageChannel;
+import protocol.MessageChannels;
 
 /**
  * Chatroom server class that handles all the logic for a chatroom, including receiving messages and
  * notifications from clients in the chatroom and multicasting them out to all members, receiving
  * heartbeats from a LookUp server, and sending any necessary info to the LookUp server to back-up
- * information.
+ * information. The latest chat messages are kept in a retransmit buffer, so members that detect a
+ * gap in the sequence numbers of the messages they received can report it over their socket and
+ * have the missing messages multicast again. While the chatroom is quiet, the sequence number of the
+ * last message is multicast every SEQUENCE_ANNOUNCE_INTERVAL_MILLIS so that losing the last message
+ * of a burst is noticed too. Rooms whose delivery mode is TCP_DELIVERY send messages over the member
+ * sockets through a TcpFanOut instead of multicasting them, for networks without multicast.
  */
 public class ChatroomServer {
 
+  public static final String MULTICAST_RING_CAPACITY_PROPERTY = "chatroom.multicastRingCapacity";
+  public static final String RETRANSMIT_BUFFER_MESSAGES_PROPERTY = "chatroom.retransmitBufferMessages";
+  public static final String COALESCE_WINDOW_MICROS_PROPERTY = "chatroom.coalesceWindowMicros";
+  public static final long SEQUENCE_ANNOUNCE_INTERVAL_MILLIS = 500;
+  // delivery mode of every room, and of the rooms named in a list of "room=mode" entries
+  public static final String DELIVERY_MODE_PROPERTY = "chatroom.deliveryMode";
+  public static final String DELIVERY_MODE_ROOMS_PROPERTY = "chatroom.deliveryModeRooms";
+  public static final String MULTICAST_DELIVERY = "multicast";
+  public static final String TCP_DELIVERY = "tcp";
+  public static final String FANOUT_QUEUE_MESSAGES_PROPERTY = "chatroom.fanoutQueueMessages";
+  public static final String FANOUT_WRITER_THREADS_PROPERTY = "chatroom.fanoutWriterThreads";
+  public static final String SLOW_CONSUMER_POLICY_PROPERTY = "chatroom.slowConsumerPolicy";
+
   public int ID;
   public String chatroomName;
   public Client hostClient;
@@ -32,9 +57,12 @@ public class ChatroomServer {
   public ChatroomServerGUI chatroomServerGUI;
   public ServerSocket serverSocketForClients;
   public int portForClients;
-  public InetAddress group;
-  public DatagramSocket datagramSocketForMulticast;
-  public byte[] buffer;
+  public InetSocketAddress group;
+  public MulticastSender multicastSender;
+  public RetransmitBuffer retransmitBuffer;
+  public String deliveryMode;
+  public TcpFanOut tcpFanOut;
+  public ExecutionPolicy executionPolicy = ExecutionPolicies.getDefault();
 
   // heartbeat vars for keeping in contact with LookUpServer
   public String heartbeatAddress;
@@ -43,6 +71,13 @@ public class ChatroomServer {
   public BufferedReader heartbeatReader;
   public BufferedWriter heartbeatWriter;
 
+  // sequence number for the next message sent in the chatroom, which messages are given, multicast
+  // and passed on to the LookUp server in order while holding the lock
+  private long nextMessageSequence;
+  private final Object messageSequenceLock = new Object();
+  // sequence number of the next message when the last sequence announcement was multicast
+  private long announcedMessageSequence = -1;
+
   /**
    * Constructor for chatroom server that initializes state variables, creates a chatroom server GUI,
    * sets up a server socket for clients to connect to, and connects a socket to the LookUp server to
@@ -56,7 +91,24 @@ public class ChatroomServer {
    */
   public ChatroomServer(int ID, Client hostClient, String groupIP, String chatroomName,
                         String heartbeatAddress, int heartbeatPort) {
+    this(ID, hostClient, groupIP, chatroomName, heartbeatAddress, heartbeatPort, 0);
+  }
+
+  /**
+   * Constructor for chatroom server that carries on the message sequence numbers of a chatroom that
+   * is being recreated, giving the next message the given sequence number.
+   * @param ID
+   * @param hostClient
+   * @param groupIP
+   * @param chatroomName
+   * @param heartbeatAddress
+   * @param heartbeatPort
+   * @param nextMessageSequence
+   */
+  public ChatroomServer(int ID, Client hostClient, String groupIP, String chatroomName,
+                        String heartbeatAddress, int heartbeatPort, long nextMessageSequence) {
     this.ID = ID;
+    this.nextMessageSequence = nextMessageSequence;
     this.chatroomName = chatroomName;
     this.hostClient = hostClient;
     try {
@@ -68,18 +120,47 @@ public class ChatroomServer {
     this.chatroomServerGUI = new ChatroomServerGUI(this);
     this.heartbeatAddress = heartbeatAddress;
     this.heartbeatPort = heartbeatPort;
-    // set the group IP that this chatroom server will publish messages to
+    // set the group IP and port that this chatroom server will publish messages to
     try {
-      this.group = InetAddress.getByName(groupIP);
+      this.group = MulticastGroupAllocator.parseGroup(groupIP);
     } catch (UnknownHostException e) {
       chatroomLogger.logger.warning("Unknown host for group IP");
     }
-    // create a server socket for clients joining chatroom to connect to
+    this.retransmitBuffer = new RetransmitBuffer(Integer.getInteger(RETRANSMIT_BUFFER_MESSAGES_PROPERTY, 4096));
+    this.deliveryMode = deliveryModeOf(chatroomName);
+    // start the single sender thread that multicasts every message published by client handlers
+    if (!this.deliveryMode.equalsIgnoreCase(TCP_DELIVERY)) {
+      try {
+        this.multicastSender = new MulticastSender(this.group, ID,
+                Integer.getInteger(MULTICAST_RING_CAPACITY_PROPERTY, 1024),
+                Long.getLong(COALESCE_WINDOW_MICROS_PROPERTY, MulticastSender.DEFAULT_MAX_COALESCE_WINDOW_MICROS),
+                this.chatroomLogger);
+        executionPolicy.executeService("chatroom-multicast-sender", this.multicastSender);
+        executionPolicy.executeService("chatroom-sequence-announcer", new SequenceAnnouncer());
+      } catch (IOException e) {
+        chatroomLogger.logger.warning("Could not open channel for multicasting");
+      }
+    // or start the writer pool that sends every message over the member sockets, without multicasting
+    } else {
+      try {
+        this.tcpFanOut = new TcpFanOut(Integer.getInteger(FANOUT_QUEUE_MESSAGES_PROPERTY, 1024),
+                System.getProperty(SLOW_CONSUMER_POLICY_PROPERTY, TcpFanOut.DROP_OLDEST), this.chatroomLogger);
+        for (int i = Integer.getInteger(FANOUT_WRITER_THREADS_PROPERTY, 4); i > 0; i--) {
+          executionPolicy.executeService("chatroom-fanout-writer", this.tcpFanOut.new Writer());
+        }
+        executionPolicy.executeService("chatroom-fanout-selector", this.tcpFanOut.new SocketWaiter());
+        chatroomLogger.logger.info("Delivering messages of chatroom " + chatroomName + " over member sockets");
+      } catch (IOException e) {
+        chatroomLogger.logger.warning("Could not open selector for delivering messages over member sockets");
+      }
+    }
+    // create a server socket for clients joining chatroom to connect to. It is opened as a channel
+    // so the sockets it accepts can be written to with gathering writes.
     try {
-      this.serverSocketForClients = new ServerSocket(0);
+      this.serverSocketForClients = ServerSocketChannel.open().bind(null).socket();
       this.portForClients = this.serverSocketForClients.getLocalPort();
       NewUserConnector newUserConnector = new NewUserConnector();
-      new Thread(newUserConnector).start();
+      executionPolicy.executeService("chatroom-user-connector", newUserConnector);
     } catch (IOException e) {
       chatroomLogger.logger.warning("Could not create server socket for clients to connect to");
     }
@@ -87,12 +168,30 @@ public class ChatroomServer {
     try {
       this.heartbeatSocket = new Socket(heartbeatAddress, heartbeatPort);
       HeartbeatHandler heartbeatHandler = new HeartbeatHandler(this.heartbeatSocket);
-      new Thread(heartbeatHandler).start();
+      executionPolicy.executeService("chatroom-heartbeat", heartbeatHandler);
     } catch (IOException e) {
       chatroomLogger.logger.info("Could not connect socket to LookUp server");
     }
   }
 
+  /**
+   * Get the delivery mode of the chatroom with the given name, which is the one given for it in the
+   * rooms list if any, and otherwise the default mode.
+   * @param chatroomName
+   * @return MULTICAST_DELIVERY or TCP_DELIVERY
+   */
+  public static String deliveryModeOf(String chatroomName) {
+    String rooms = System.getProperty(DELIVERY_MODE_ROOMS_PROPERTY, "");
+    for (String entry : rooms.split(",")) {
+      String[] roomMode = entry.split("=");
+      if (roomMode.length == 2 && roomMode[0].trim().equals(chatroomName)) {
+        return roomMode[1].trim().equalsIgnoreCase(TCP_DELIVERY) ? TCP_DELIVERY : MULTICAST_DELIVERY;
+      }
+    }
+    return System.getProperty(DELIVERY_MODE_PROPERTY, MULTICAST_DELIVERY).equalsIgnoreCase(TCP_DELIVERY)
+            ? TCP_DELIVERY : MULTICAST_DELIVERY;
+  }
+
   /**
    * Class to be executed by a thread that will accept socket connections from clients joining the
    * chatroom. Then it will create a new thread for that client socket.
@@ -105,11 +204,14 @@ public class ChatroomServer {
         try {
           clientSocket = serverSocketForClients.accept();
           chatroomLogger.logger.info("Accepted new client socket connection");
+          ClientSocketHandler clientSocketHandler = new ClientSocketHandler(clientSocket);
+          if (!executionPolicy.executeConnectionHandler("chatroom-client-handler", clientSocketHandler)) {
+            chatroomLogger.logger.warning("Refused new client socket connection, no thread left");
+            clientSocket.close();
+          }
         } catch (IOException e) {
           chatroomLogger.logger.warning("Failed to accept new client socket connection");
         }
-        ClientSocketHandler clientSocketHandler = new ClientSocketHandler(clientSocket);
-        new Thread(clientSocketHandler).start();
       }
     }
   }
@@ -152,8 +254,14 @@ public class ChatroomServer {
             // don't do anything since the LookUp server knows if this message didn't go through
             chatroomLogger.logger.info("Heartbeat received");
           } else if (messageArray[0].equalsIgnoreCase("removeGUI")) {
-            // remove the chatroom server GUI window
+            // remove the chatroom server GUI window and stop multicasting
             chatroomServerGUI.removeFrame();
+            if (multicastSender != null) {
+              multicastSender.close();
+            }
+            if (tcpFanOut != null) {
+              tcpFanOut.close();
+            }
           }
         } catch (IOException e) {
           chatroomLogger.logger.warning("Could not read socket message from LookUp server");
@@ -165,39 +273,127 @@ public class ChatroomServer {
   /**
    * Display on the chatroom server GUI all of the given messages, including the sender username and
    * the message content.
-   * @param oldMessages
+   * @param oldMessages the sender and then the contents of every message, in order
    */
   public void replenishLogDisplay(String[] oldMessages) {
-    for (String fullMessage : oldMessages) {
-      String[] messageInfo = fullMessage.split("@#@");
-      String sender = messageInfo[0];
-      String actualMessage = messageInfo[1];
+    for (int i = 0; i + 1 < oldMessages.length; i += 2) {
+      String sender = oldMessages[i];
+      String actualMessage = oldMessages[i + 1];
       chatroomServerGUI.displayNewMessage(sender, actualMessage);
     }
     chatroomLogger.logger.info("Replenished log display of history of messages");
   }
 
+  /**
+   * Display on the chatroom server GUI the given messages above the ones already displayed, for
+   * messages older than every message shown so far.
+   * @param olderMessages the sender and then the contents of every message, in order
+   */
+  public void replenishOlderLogDisplay(String[] olderMessages) {
+    chatroomServerGUI.displayOlderMessages(olderMessages);
+    chatroomLogger.logger.info("Replenished log display with older messages");
+  }
+
   /**
    * Multicast the given message to the known groupIP so that all member clients of the chatroom
-   * receive the message.
+   * receive the message. The message is queued to the multicast sender thread.
    * @param message
    */
   public void multicastMessage(String message) {
-    try {
-      datagramSocketForMulticast = new DatagramSocket();
-      message = "chatkey125" + message;
-      buffer = message.getBytes();
-      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, 4446);
-      datagramSocketForMulticast.send(packet);
-      datagramSocketForMulticast.close();
-    } catch (SocketException se) {
-      chatroomLogger.logger.warning("Socket malfunction attempting to multicast");
-    } catch (IOException e) {
-      chatroomLogger.logger.warning("Socket IO malfunction attempting to multicast");
-    }
+    multicastSender.publish(message);
     chatroomLogger.logger.info("Multicasted message to member clients");
   }
 
+  /**
+   * Multicast a chat message from the given sender to the known groupIP so that all member clients
+   * of the chatroom receive it. The message is encoded straight into the multicast sender's ring.
+   * @param sender
+   * @param actualMessage
+   * @param messageSequence
+   */
+  public void multicastChatMessage(String sender, String actualMessage, long messageSequence) {
+    multicastSender.publishChatMessage(sender, actualMessage, messageSequence);
+    chatroomLogger.logger.info("Multicasted message " + messageSequence + " to member clients");
+  }
+
+  /**
+   * Send a chat message from the given sender to all member clients of the chatroom, by multicast
+   * or over their sockets depending on the delivery mode of the chatroom.
+   * @param sender
+   * @param actualMessage
+   * @param messageSequence
+   */
+  public void deliverChatMessage(String sender, String actualMessage, long messageSequence) {
+    if (tcpFanOut != null) {
+      tcpFanOut.publishChatMessage(sender, actualMessage, messageSequence);
+    } else if (multicastSender != null) {
+      multicastChatMessage(sender, actualMessage, messageSequence);
+    }
+  }
+
+  /**
+   * Send again the messages in the given range of sequence numbers that a member reported missing,
+   * as long as the retransmit buffer still holds them. They are multicast again, or only sent to
+   * the member that reported them when the chatroom delivers messages over member sockets. Ranges
+   * that are empty or start before the first message are ignored.
+   * @param fromSequence
+   * @param toSequence
+   * @param member the member that reported the messages, if messages are delivered over its socket
+   */
+  public void retransmitMessages(long fromSequence, long toSequence, TcpFanOut.Member member) {
+    if (fromSequence < 0 || toSequence <= fromSequence) {
+      chatroomLogger.logger.warning("Ignored invalid missing message range " + fromSequence + " to " + toSequence);
+      return;
+    }
+    int numRetransmitted = 0;
+    long to = Math.min(toSequence, fromSequence + retransmitBuffer.getCapacity());
+    for (long sequence = fromSequence; sequence < to; sequence++) {
+      String[] message = retransmitBuffer.getForRetransmit(sequence, member == null);
+      if (message == null) {
+        continue;
+      }
+      if (member != null) {
+        tcpFanOut.sendChatMessage(member, message[0], message[1], sequence);
+      } else if (multicastSender != null) {
+        multicastSender.publishChatMessage(message[0], message[1], sequence);
+      }
+      numRetransmitted++;
+    }
+    chatroomLogger.logger.info("Retransmitted " + numRetransmitted + " of messages " + fromSequence + " to "
+            + (toSequence - 1) + " reported missing, " + retransmitBuffer.describeMetrics());
+  }
+
+  /**
+   * Class to be executed by a thread that multicasts the sequence number of the last message while
+   * the chatroom is quiet, so members that missed it can tell.
+   */
+  public class SequenceAnnouncer implements Runnable {
+
+    /**
+     * Every interval, announce the last sequence number if messages were sent since the last
+     * announcement but not during the interval, until the multicast sender is closed.
+     */
+    @Override
+    public void run() {
+      long lastSeenSequence = -1;
+      while (!multicastSender.isClosed()) {
+        try {
+          Thread.sleep(SEQUENCE_ANNOUNCE_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        synchronized (messageSequenceLock) {
+          if (nextMessageSequence == lastSeenSequence && nextMessageSequence != announcedMessageSequence
+                  && !multicastSender.isClosed()) {
+            multicastSender.publish("$@lastSequence@$@#@" + (nextMessageSequence - 1));
+            announcedMessageSequence = nextMessageSequence;
+          }
+          lastSeenSequence = nextMessageSequence;
+        }
+      }
+    }
+  }
+
   /**
    * Class to be executed by a thread that handles messages from a client through a socket.
    */
@@ -218,23 +414,29 @@ public class ChatroomServer {
     }
 
     /**
-     * Handle the case of a sender sending a message through the socket by multicasting the message
-     * to all members of the chatroom and sending the message to a LookUp server to back up the info.
-     * Also display the message on the chatroom server GUI.
+     * Handle the case of a sender sending a message through the socket by giving it the chatroom's
+     * next sequence number, multicasting the message to all members of the chatroom and sending the
+     * message to a LookUp server to back up the info. Messages from all clients are numbered,
+     * multicast and sent to the LookUp server in the same order. Also display the message on the
+     * chatroom server GUI.
      * @param sender
      * @param actualMessage
      */
     private void handleMessage(String sender, String actualMessage) {
-      // multicast to all connected clients
-      String message = sender + "@#@" + actualMessage;
-      multicastMessage(message);
-      try {
-        heartbeatWriter.write("messageSent@#@" + sender + "@#@" + actualMessage);
-        heartbeatWriter.newLine();
-        heartbeatWriter.flush();
-        chatroomLogger.logger.info("Notified LookUp server of new message");
-      } catch (IOException e) {
-        chatroomLogger.logger.warning("Could not notify LookUp server of message sent");
+      synchronized (messageSequenceLock) {
+        long messageSequence = nextMessageSequence++;
+        // keep the message for members that miss it, then send it to all connected clients
+        retransmitBuffer.put(messageSequence, sender, actualMessage);
+        deliverChatMessage(sender, actualMessage, messageSequence);
+        try {
+          // the sequence number goes before the free text, which may itself contain "@#@"
+          heartbeatWriter.write("messageSent@#@" + messageSequence + "@#@" + sender + "@#@" + actualMessage);
+          heartbeatWriter.newLine();
+          heartbeatWriter.flush();
+          chatroomLogger.logger.info("Notified LookUp server of new message");
+        } catch (IOException e) {
+          chatroomLogger.logger.warning("Could not notify LookUp server of message sent");
+        }
       }
       chatroomServerGUI.displayNewMessage(sender, actualMessage);
     }
@@ -303,34 +505,68 @@ public class ChatroomServer {
     }
 
     /**
-     * Set up the buffered reader and buffered writer for a client that has joined chatroom and
-     * connected its socket to the chatroom server. Then listen for messages from the client and
-     * handle them as necessary with helper handler functions.
+     * Negotiate the text or binary protocol with a client that has joined chatroom and connected its
+     * socket to the chatroom server, and start delivering messages over the socket if the chatroom
+     * does not multicast them. Then listen for messages from the client and handle them as necessary
+     * with helper handler functions.
      */
     public void run() {
-      BufferedReader reader = null;
-      BufferedWriter writer = null;
+      MessageChannel clientChannel;
+      TcpFanOut.Member member = null;
       try {
-        reader = new BufferedReader(
-                new InputStreamReader(this.clientSocket.getInputStream()));
-        writer = new BufferedWriter(
-                new OutputStreamWriter(this.clientSocket.getOutputStream()));
+        if (tcpFanOut == null) {
+          clientChannel = MessageChannels.accept(this.clientSocket);
+        } else {
+          // the fan-out writes to the socket without blocking, so it is read through its channel
+          SocketChannel channel = this.clientSocket.getChannel();
+          channel.configureBlocking(false);
+          clientChannel = MessageChannels.accept(ChannelStreams.inputStream(channel),
+                  ChannelStreams.outputStream(channel));
+          member = tcpFanOut.addMember(this.clientSocket, clientChannel instanceof BinaryMessageChannel);
+        }
       } catch (IOException e) {
-        chatroomLogger.logger.warning("Could not create buffered reader and writer for client socket");
+        chatroomLogger.logger.warning("Could not negotiate protocol with client socket");
+        return;
+      }
+      try {
+        handleRequests(clientChannel, member);
+      } finally {
+        if (member != null) {
+          tcpFanOut.removeMember(member);
+        }
       }
+    }
+
+    /**
+     * Listen for messages from the client and handle them until its socket closes.
+     * @param clientChannel
+     * @param member the client's place in the TCP fan-out, or null if messages are multicast
+     */
+    private void handleRequests(MessageChannel clientChannel, TcpFanOut.Member member) {
       // continuously listen to client's socket for messages
       while (true) {
         try {
-          String line = reader.readLine();
+          String[] messageArray = clientChannel.readMessage();
           // in case of client exiting, close socket.
-          if (line == null) {
+          if (messageArray == null) {
             this.clientSocket.close();
             chatroomLogger.logger.info("Closed socket from exiting client");
             break;
           }
-          String[] messageArray = line.split("@#@");
-          if (messageArray[0].equalsIgnoreCase("message")) {
-            handleMessage(messageArray[1], messageArray[2]);
+          if (messageArray[0].equalsIgnoreCase("message") && messageArray.length > 2) {
+            // text protocol lines are split on every "@#@", so put back text that contained it
+            handleMessage(messageArray[1],
+                    String.join("@#@", Arrays.copyOfRange(messageArray, 2, messageArray.length)));
+          } else if (messageArray[0].equalsIgnoreCase("nack")) {
+            // every pair of fields is a range of missing messages
+            for (int i = 1; i + 1 < messageArray.length; i += 2) {
+              try {
+                retransmitMessages(Long.parseLong(messageArray[i]), Long.parseLong(messageArray[i + 1]), member);
+              } catch (NumberFormatException e) {
+                chatroomLogger.logger.warning("Ignored malformed missing message range " + messageArray[i] + " to "
+                        + messageArray[i + 1] + " from client");
+              }
+            }
           } else if (messageArray[0].equalsIgnoreCase("chatroomLogout")) {
             handleChatroomLogout(messageArray[1]);
           } else if (messageArray[0].equalsIgnoreCase("backToChatSelection")) {
@@ -340,6 +576,7 @@ public class ChatroomServer {
           }
         } catch (IOException e) {
           chatroomLogger.logger.warning("Could not successfully read message from client socket");
+          break;
         }
       }
     }
@@ -0,0 +1,202 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import protocol.HistoryCompression;
+
+/**
+ * Message history kept on the heap in compressed blocks. The newest messages are kept as they are
+ * until a block of them is full, and then the block is encoded as the sender ID, contents length and
+ * UTF-8 contents of every message and deflated with the chatroom's preset dictionary, which is
+ * trained on the first block. Every block is compressed on its own, so a read only inflates the
+ * blocks it needs, and the last block inflated is kept for the next read. Discarding messages
+ * drops the blocks that only hold discarded messages, and hides the rest until their block goes.
+ */
+public class CompressedHistoryStore implements HistoryStore {
+
+  public static final int BLOCK_MESSAGES = 256;
+
+  private final SenderDictionary senders = new SenderDictionary();
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+  private final Inflater inflater = new Inflater();
+  private byte[] dictionary;
+  // compressed blocks and the number of bytes each has before compression
+  private final ArrayList<byte[]> blocks = new ArrayList<>();
+  private int[] blockRawLengths = new int[16];
+  // messages that are not in a compressed block yet
+  private final int[] openSenderIDs = new int[BLOCK_MESSAGES];
+  private final String[] openContents = new String[BLOCK_MESSAGES];
+  private int numOpenMessages = 0;
+  // sequence number of the first message of the first block, and of the first message not discarded
+  private long baseSequence = 0;
+  private long firstSequence = 0;
+  private int cachedBlock = -1;
+  private ByteBuffer cachedBlockBytes;
+  private long rawBytes = 0;
+  private long compressedBytes = 0;
+
+  @Override
+  public synchronized long append(String sender, String message) {
+    long sequence = getNextSequence();
+    this.openSenderIDs[this.numOpenMessages] = this.senders.getID(sender);
+    this.openContents[this.numOpenMessages] = message;
+    this.numOpenMessages++;
+    if (this.numOpenMessages == BLOCK_MESSAGES) {
+      sealOpenBlock();
+    }
+    return sequence;
+  }
+
+  /**
+   * Compress the full block of open messages, training the dictionary on it if it is the first.
+   */
+  private void sealOpenBlock() {
+    if (this.dictionary == null) {
+      String[] sample = new String[this.numOpenMessages * 2];
+      for (int i = 0; i < this.numOpenMessages; i++) {
+        sample[2 * i] = this.senders.getSender(this.openSenderIDs[i]);
+        sample[2 * i + 1] = this.openContents[i];
+      }
+      this.dictionary = HistoryCompression.trainDictionary(sample);
+    }
+    byte[][] contents = new byte[this.numOpenMessages][];
+    int length = 0;
+    for (int i = 0; i < this.numOpenMessages; i++) {
+      contents[i] = this.openContents[i].getBytes(StandardCharsets.UTF_8);
+      length += 8 + contents[i].length;
+    }
+    ByteBuffer raw = ByteBuffer.allocate(length);
+    for (int i = 0; i < this.numOpenMessages; i++) {
+      raw.putInt(this.openSenderIDs[i]);
+      raw.putInt(contents[i].length);
+      raw.put(contents[i]);
+    }
+    byte[] block = HistoryCompression.compress(this.deflater, raw.array(), this.dictionary);
+    int blockNumber = this.blocks.size();
+    if (blockNumber == this.blockRawLengths.length) {
+      this.blockRawLengths = Arrays.copyOf(this.blockRawLengths, blockNumber * 2);
+    }
+    this.blockRawLengths[blockNumber] = length;
+    this.blocks.add(block);
+    this.rawBytes += length;
+    this.compressedBytes += block.length;
+    Arrays.fill(this.openContents, null);
+    this.numOpenMessages = 0;
+  }
+
+  @Override
+  public synchronized long getFirstSequence() {
+    return this.firstSequence;
+  }
+
+  @Override
+  public synchronized long getNextSequence() {
+    return this.baseSequence + (long) this.blocks.size() * BLOCK_MESSAGES + this.numOpenMessages;
+  }
+
+  @Override
+  public synchronized String[] getMessages(long fromSequence, long toSequence) {
+    long from = Math.max(this.firstSequence, fromSequence);
+    long to = Math.min(getNextSequence(), toSequence);
+    if (to <= from) {
+      return new String[0];
+    }
+    String[] messages = new String[(int) (to - from) * 2];
+    long firstOpenSequence = this.baseSequence + (long) this.blocks.size() * BLOCK_MESSAGES;
+    for (long sequence = from; sequence < to; sequence++) {
+      int index = (int) (sequence - from) * 2;
+      if (sequence >= firstOpenSequence) {
+        int openIndex = (int) (sequence - firstOpenSequence);
+        messages[index] = this.senders.getSender(this.openSenderIDs[openIndex]);
+        messages[index + 1] = this.openContents[openIndex];
+        continue;
+      }
+      long blockOffset = sequence - this.baseSequence;
+      ByteBuffer block = inflateBlock((int) (blockOffset / BLOCK_MESSAGES));
+      // a read of a whole block goes through it in order, so only skip ahead when starting mid-block.
+      if (sequence == from || blockOffset % BLOCK_MESSAGES == 0) {
+        block.position(0);
+        for (long skipped = blockOffset % BLOCK_MESSAGES; skipped > 0; skipped--) {
+          block.getInt();
+          int skippedLength = block.getInt();
+          block.position(block.position() + skippedLength);
+        }
+      }
+      messages[index] = this.senders.getSender(block.getInt());
+      int length = block.getInt();
+      messages[index + 1] = new String(block.array(), block.position(), length, StandardCharsets.UTF_8);
+      block.position(block.position() + length);
+    }
+    return messages;
+  }
+
+  @Override
+  public synchronized void discardBefore(long sequence) {
+    if (sequence <= this.firstSequence) {
+      return;
+    }
+    if (sequence >= getNextSequence()) {
+      this.rawBytes = 0;
+      this.compressedBytes = 0;
+      this.blocks.clear();
+      Arrays.fill(this.openContents, null);
+      this.numOpenMessages = 0;
+      this.baseSequence = sequence;
+    } else {
+      int numBlocks = (int) ((sequence - this.baseSequence) / BLOCK_MESSAGES);
+      for (int i = 0; i < numBlocks; i++) {
+        this.rawBytes -= this.blockRawLengths[i];
+        this.compressedBytes -= this.blocks.get(i).length;
+      }
+      this.blocks.subList(0, numBlocks).clear();
+      System.arraycopy(this.blockRawLengths, numBlocks, this.blockRawLengths, 0, this.blocks.size());
+      this.baseSequence += (long) numBlocks * BLOCK_MESSAGES;
+    }
+    this.firstSequence = sequence;
+    this.cachedBlock = -1;
+    this.cachedBlockBytes = null;
+  }
+
+  /**
+   * Get the inflated bytes of a block, inflating it unless it is the last block inflated.
+   * @param blockNumber
+   * @return the inflated block
+   */
+  private ByteBuffer inflateBlock(int blockNumber) {
+    if (this.cachedBlock != blockNumber) {
+      try {
+        this.cachedBlockBytes = ByteBuffer.wrap(HistoryCompression.decompress(this.inflater,
+                this.blocks.get(blockNumber), this.blockRawLengths[blockNumber], this.dictionary));
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not inflate history block " + blockNumber, e);
+      }
+      this.cachedBlock = blockNumber;
+    }
+    return this.cachedBlockBytes;
+  }
+
+  /**
+   * Describe how well the sealed blocks still stored compressed.
+   * @return the raw and compressed bytes and their ratio
+   */
+  public synchronized String describeMetrics() {
+    return "compressed history blocks=" + this.blocks.size() + " rawBytes=" + this.rawBytes
+            + " compressedBytes=" + this.compressedBytes + " ratio="
+            + String.format("%.2f", this.compressedBytes == 0 ? 0.0 : (double) this.rawBytes / this.compressedBytes);
+  }
+
+  /**
+   * Release the deflater. The inflater is left for the garbage collector, since views of this
+   * history taken for a snapshot may still be read after the chatroom is closed.
+   */
+  @Override
+  public synchronized void close() {
+    this.deflater.end();
+  }
+}
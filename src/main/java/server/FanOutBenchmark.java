@@ -0,0 +1,272 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+
+import logger.ProgLogger;
+import protocol.FragmentReassembler;
+import protocol.MulticastBatch;
+
+/**
+ * Benchmark of delivering chat messages to the members of a chatroom by multicast and by the TCP
+ * fan-out. The same messages are published to a multicast sender with a socket per member joined
+ * to the group on this host, and to a TCP fan-out with a connected socket per member. Every message
+ * carries the time it was published, so each member measures how long it took to arrive. Reported
+ * are the messages delivered per second to all members together, the share of them that arrived, and
+ * the p50 and p99 delivery latency, and for multicast the sender metrics, whose datagram rate grows
+ * slower than the message rate while bursts are packed into batches. Arguments are the number of
+ * members (default 8), the number of messages (default 20000) and the bytes per message (default 100).
+ */
+public class FanOutBenchmark {
+
+  private static final String GROUP = "239.0.0.250";
+  private static final int MESSAGES_PER_PAUSE = 50;
+  private static final long RECEIVE_TIMEOUT_MILLIS = 2000;
+
+  /**
+   * Class to be executed by a thread per member that receives messages and records their latency.
+   */
+  private abstract static class Receiver implements Runnable {
+    final long[] latencies;
+    int numReceived = 0;
+    long lastReceivedNanos = 0;
+    final CountDownLatch done;
+
+    /**
+     * Constructor for a receiver of at most the given number of messages.
+     * @param numMessages
+     * @param done
+     */
+    Receiver(int numMessages, CountDownLatch done) {
+      this.latencies = new long[numMessages];
+      this.done = done;
+    }
+
+    /**
+     * Record the latency of a message whose contents start with the time it was published.
+     * @param contents
+     */
+    void record(String contents) {
+      int end = contents.indexOf(' ');
+      if (this.numReceived < this.latencies.length) {
+        this.lastReceivedNanos = System.nanoTime();
+        this.latencies[this.numReceived++] = this.lastReceivedNanos - Long.parseLong(contents.substring(0, end));
+      }
+    }
+  }
+
+  /**
+   * Make the contents of a message published now, padded to the given number of bytes.
+   * @param numBytes
+   * @return the message contents
+   */
+  private static String makeMessage(int numBytes) {
+    StringBuilder message = new StringBuilder().append(System.nanoTime()).append(' ');
+    while (message.length() < numBytes) {
+      message.append('x');
+    }
+    return message.toString();
+  }
+
+  /**
+   * Publish the messages at the pace of a busy chatroom, pausing briefly every MESSAGES_PER_PAUSE.
+   * @param numMessages
+   * @param numBytes
+   * @param publisher receives the contents and sequence number of every message
+   * @throws InterruptedException
+   */
+  private static void publish(int numMessages, int numBytes, ObjLongConsumer<String> publisher)
+          throws InterruptedException {
+    for (int i = 0; i < numMessages; i++) {
+      publisher.accept(makeMessage(numBytes), i);
+      if (i % MESSAGES_PER_PAUSE == MESSAGES_PER_PAUSE - 1) {
+        Thread.sleep(1);
+      }
+    }
+  }
+
+  /**
+   * Wait for the receivers and print what they received, measuring the rate up to the last message
+   * any of them received.
+   * @param name
+   * @param receivers
+   * @param numMessages
+   * @param start
+   * @throws InterruptedException
+   */
+  private static void report(String name, ArrayList<? extends Receiver> receivers, int numMessages, long start)
+          throws InterruptedException {
+    receivers.get(0).done.await(30, TimeUnit.SECONDS);
+    long elapsed = 1;
+    long numReceived = 0;
+    for (Receiver receiver : receivers) {
+      numReceived += receiver.numReceived;
+      elapsed = Math.max(elapsed, receiver.lastReceivedNanos - start);
+    }
+    long[] latencies = new long[(int) numReceived];
+    int position = 0;
+    for (Receiver receiver : receivers) {
+      System.arraycopy(receiver.latencies, 0, latencies, position, receiver.numReceived);
+      position += receiver.numReceived;
+    }
+    Arrays.sort(latencies);
+    long p50 = latencies.length == 0 ? 0 : latencies[latencies.length / 2];
+    long p99 = latencies.length == 0 ? 0 : latencies[Math.min(latencies.length - 1, (int) (latencies.length * 0.99))];
+    System.out.println(String.format("  %-10s %9.0f deliveries/s  %6.2f%% delivered  p50 %7d us  p99 %7d us", name,
+            numReceived / (elapsed / 1e9), 100.0 * numReceived / ((long) numMessages * receivers.size()),
+            p50 / 1000, p99 / 1000));
+  }
+
+  /**
+   * Deliver the messages by multicast and print the results.
+   * @param numMembers
+   * @param numMessages
+   * @param numBytes
+   * @param logger
+   * @throws Exception
+   */
+  private static void runMulticast(int numMembers, int numMessages, int numBytes, ProgLogger logger) throws Exception {
+    InetAddress group = InetAddress.getByName(GROUP);
+    CountDownLatch done = new CountDownLatch(numMembers);
+    ArrayList<Receiver> receivers = new ArrayList<>();
+    ArrayList<MulticastSocket> sockets = new ArrayList<>();
+    for (int i = 0; i < numMembers; i++) {
+      MulticastSocket socket = new MulticastSocket(MulticastSender.MULTICAST_PORT);
+      socket.joinGroup(new InetSocketAddress(group, MulticastSender.MULTICAST_PORT), null);
+      socket.setSoTimeout((int) RECEIVE_TIMEOUT_MILLIS);
+      socket.setReceiveBufferSize(1 << 20);
+      sockets.add(socket);
+      Receiver receiver = new Receiver(numMessages, done) {
+        @Override
+        public void run() {
+          byte[] buffer = new byte[FragmentReassembler.MAX_DATAGRAM_BYTES];
+          FragmentReassembler reassembler = new FragmentReassembler();
+          try {
+            while (this.numReceived < numMessages) {
+              DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+              socket.receive(packet);
+              if (MulticastBatch.isBatch(buffer, packet.getLength())) {
+                for (String message : MulticastBatch.unpack(buffer, packet.getLength())) {
+                  record(message.split("@#@", 4)[3]);
+                }
+              } else {
+                String message = FragmentReassembler.isFragment(buffer, packet.getLength())
+                        ? reassembler.accept(buffer, packet.getLength())
+                        : new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8);
+                if (message != null) {
+                  record(message.split("@#@", 4)[3]);
+                }
+              }
+            }
+          } catch (SocketTimeoutException e) {
+            // the rest of the messages were lost
+          } catch (IOException e) {
+            System.out.println("  multicast receive failed: " + e.getMessage());
+          }
+          this.done.countDown();
+        }
+      };
+      receivers.add(receiver);
+      new Thread(receiver, "benchmark-multicast-member").start();
+    }
+    long coalesceWindowMicros = Long.getLong(ChatroomServer.COALESCE_WINDOW_MICROS_PROPERTY,
+            MulticastSender.DEFAULT_MAX_COALESCE_WINDOW_MICROS);
+    MulticastSender sender = new MulticastSender(new InetSocketAddress(group, MulticastSender.MULTICAST_PORT), 0, 1024,
+            coalesceWindowMicros, logger);
+    new Thread(sender, "benchmark-multicast-sender").start();
+    long start = System.nanoTime();
+    publish(numMessages, numBytes, (contents, sequence) -> sender.publishChatMessage("user", contents, sequence));
+    report("multicast", receivers, numMessages, start);
+    System.out.println("  multicast sender: " + sender.describeMetrics());
+    sender.close();
+    for (MulticastSocket socket : sockets) {
+      socket.close();
+    }
+  }
+
+  /**
+   * Deliver the messages by TCP fan-out and print the results.
+   * @param numMembers
+   * @param numMessages
+   * @param numBytes
+   * @param numWriters
+   * @param logger
+   * @throws Exception
+   */
+  private static void runTcp(int numMembers, int numMessages, int numBytes, int numWriters, ProgLogger logger)
+          throws Exception {
+    ServerSocketChannel server = ServerSocketChannel.open().bind(null);
+    TcpFanOut fanOut = new TcpFanOut(numMessages, TcpFanOut.DROP_OLDEST, logger);
+    for (int i = 0; i < numWriters; i++) {
+      new Thread(fanOut.new Writer(), "benchmark-fanout-writer").start();
+    }
+    new Thread(fanOut.new SocketWaiter(), "benchmark-fanout-selector").start();
+    CountDownLatch done = new CountDownLatch(numMembers);
+    ArrayList<Receiver> receivers = new ArrayList<>();
+    for (int i = 0; i < numMembers; i++) {
+      Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+      socket.setSoTimeout((int) RECEIVE_TIMEOUT_MILLIS);
+      fanOut.addMember(server.accept().socket(), false);
+      Receiver receiver = new Receiver(numMessages, done) {
+        @Override
+        public void run() {
+          try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            while (this.numReceived < numMessages) {
+              String line = reader.readLine();
+              if (line == null) {
+                break;
+              }
+              record(line.split("@#@", 4)[3]);
+            }
+          } catch (IOException e) {
+            // the rest of the messages were dropped
+          }
+          this.done.countDown();
+        }
+      };
+      receivers.add(receiver);
+      new Thread(receiver, "benchmark-tcp-member").start();
+    }
+    long start = System.nanoTime();
+    publish(numMessages, numBytes, (contents, sequence) -> fanOut.publishChatMessage("user", contents, sequence));
+    report("tcp", receivers, numMessages, start);
+    System.out.println("  tcp fan-out: " + fanOut.describeMetrics());
+    fanOut.close();
+    server.close();
+  }
+
+  /**
+   * Run the benchmark and print the results of both delivery modes.
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int numMembers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    int numBytes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    ProgLogger logger = new ProgLogger("fanOutBenchmark_log.txt");
+    System.out.println("Delivering " + numMessages + " messages of " + numBytes + " bytes to " + numMembers + " members");
+    try {
+      runMulticast(numMembers, numMessages, numBytes, logger);
+    } catch (IOException e) {
+      System.out.println("  multicast unavailable: " + e.getMessage());
+    }
+    runTcp(numMembers, numMessages, numBytes, 4, logger);
+    System.exit(0);
+  }
+}
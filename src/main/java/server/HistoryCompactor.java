@@ -0,0 +1,113 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that enforces the retention policies of the chatrooms of a LookUp server. Every
+ * interval it discards the messages that the policy of each chatroom no longer keeps, so the paxos
+ * threads that put messages never wait for history to be discarded. Every server discards the same
+ * messages, since the policies are replicated and messages carry the time their proposer got them,
+ * but each does so on its own schedule. The compactor logs what it discarded and how much history is
+ * left, which levels off once chatrooms send messages as fast as their old messages expire.
+ */
+public class HistoryCompactor implements Runnable {
+
+  private static final long METRICS_LOG_INTERVAL_SECONDS = 60;
+
+  private final LookUpServer server;
+  private final long intervalSeconds;
+  private long passes = 0;
+  private long discardedMessages = 0;
+  private long discardedBytes = 0;
+  private long storedMessages = 0;
+  private long storedBytes = 0;
+  private long lastPassMicros = 0;
+  private volatile boolean isAlive = true;
+
+  /**
+   * Constructor for a compactor of the chatrooms of the given server.
+   * @param server
+   * @param intervalSeconds
+   */
+  public HistoryCompactor(LookUpServer server, long intervalSeconds) {
+    this.server = server;
+    this.intervalSeconds = Math.max(1, intervalSeconds);
+  }
+
+  /**
+   * Enforce the retention policy of every chatroom once.
+   * @return the number of messages discarded
+   */
+  public long compact() {
+    long start = System.nanoTime();
+    long now = System.currentTimeMillis();
+    long numDiscarded = 0;
+    long numDiscardedBytes = 0;
+    long numStored = 0;
+    long numStoredBytes = 0;
+    for (ChatroomInfo chatroomInfo : this.server.chatNameChatroomInfoStore.values()) {
+      long bytes = chatroomInfo.getHistoryBytes();
+      numDiscarded += chatroomInfo.enforceRetention(this.server.defaultRetentionPolicy, now);
+      numDiscardedBytes += bytes - chatroomInfo.getHistoryBytes();
+      numStored += chatroomInfo.history.getNextSequence() - chatroomInfo.history.getFirstSequence();
+      numStoredBytes += chatroomInfo.getHistoryBytes();
+    }
+    synchronized (this) {
+      this.passes++;
+      this.discardedMessages += numDiscarded;
+      this.discardedBytes += numDiscardedBytes;
+      this.storedMessages = numStored;
+      this.storedBytes = numStoredBytes;
+      this.lastPassMicros = (System.nanoTime() - start) / 1000;
+    }
+    return numDiscarded;
+  }
+
+  /**
+   * Describe how much history was discarded and how much is stored.
+   * @return a one line summary of the compaction metrics
+   */
+  public synchronized String describeMetrics() {
+    return "passes=" + this.passes + ", discardedMessages=" + this.discardedMessages + ", discardedBytes="
+            + this.discardedBytes + ", storedMessages=" + this.storedMessages + ", storedBytes=" + this.storedBytes
+            + ", lastPassMicros=" + this.lastPassMicros;
+  }
+
+  /**
+   * Enforce the retention policies every interval until stopped, logging the metrics every minute
+   * that messages were discarded.
+   */
+  @Override
+  public void run() {
+    long nextLogNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(METRICS_LOG_INTERVAL_SECONDS);
+    long loggedDiscardedMessages = 0;
+    while (this.isAlive) {
+      try {
+        TimeUnit.SECONDS.sleep(this.intervalSeconds);
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        compact();
+      } catch (RuntimeException e) {
+        this.server.logger.logger.warning("Could not discard chatroom history: " + e.getMessage());
+      }
+      if (System.nanoTime() - nextLogNanos >= 0) {
+        synchronized (this) {
+          if (this.discardedMessages != loggedDiscardedMessages) {
+            this.server.logger.logger.info("History retention metrics: " + describeMetrics());
+            loggedDiscardedMessages = this.discardedMessages;
+          }
+        }
+        nextLogNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(METRICS_LOG_INTERVAL_SECONDS);
+      }
+    }
+  }
+
+  /**
+   * Stop the compactor thread.
+   */
+  public void close() {
+    this.isAlive = false;
+  }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import protocol.HistoryCompression;
+
+/**
+ * Benchmark of compressing chatroom history. It makes chat from a skewed vocabulary of common words,
+ * a few stock phrases and a handful of senders, and then deflates it in blocks the size of those
+ * kept by CompressedHistoryStore and in pages the size of those clients ask for, without a
+ * dictionary and with one trained on the first block, to measure the compression ratio and the CPU
+ * milliseconds taken to compress and decompress every MB. Arguments are the number of messages
+ * (default 200000) and the number of rounds to time (default 5).
+ */
+public class HistoryCompressionBenchmark {
+
+  private static final String[] WORDS = { "the", "i", "you", "to", "a", "and", "it", "is", "that", "of",
+      "in", "for", "on", "we", "this", "be", "have", "but", "not", "are", "was", "just", "so", "with", "do",
+      "what", "can", "if", "my", "at", "think", "know", "get", "about", "all", "like", "will", "there",
+      "going", "one", "out", "lol", "yeah", "ok", "now", "when", "good", "time", "meeting", "tomorrow",
+      "build", "server", "deploy", "test", "fixed", "broken", "review", "merge", "branch", "paxos",
+      "leader", "chatroom", "message", "history", "latency", "thanks", "sure", "sounds", "great",
+      "anyone", "lunch", "later", "today", "still", "working", "looks", "wait", "right", "really" };
+  private static final String[] PHRASES = { "sounds good to me", "let me know if you need anything",
+      "can you take a look at", "i will get back to you", "see you tomorrow", "thanks for the update",
+      "running a bit late", "did the build pass" };
+  private static final int NUM_SENDERS = 12;
+
+  /**
+   * Make the contents of a message, mostly from common words and sometimes with a stock phrase.
+   * @param random
+   * @return the message contents
+   */
+  private static String makeMessage(Random random) {
+    StringBuilder message = new StringBuilder();
+    if (random.nextInt(4) == 0) {
+      message.append(PHRASES[random.nextInt(PHRASES.length)]);
+    }
+    int numWords = 2 + random.nextInt(12);
+    for (int i = 0; i < numWords; i++) {
+      int word = (int) Math.pow(WORDS.length, random.nextDouble()) - 1;
+      message.append(message.length() == 0 ? "" : " ").append(WORDS[word]);
+    }
+    if (random.nextInt(10) == 0) {
+      message.append(" #").append(random.nextInt(5000));
+    }
+    return message.toString();
+  }
+
+  /**
+   * Compress every group of messages of the given size on its own, then decompress them all, and
+   * print the ratio and the CPU cost per MB of uncompressed bytes.
+   * @param label
+   * @param pages the sender and contents of every message, one array per group
+   * @param dictionary
+   * @param numRounds
+   * @throws IOException if a page does not decompress
+   */
+  private static void measure(String label, String[][] pages, byte[] dictionary, int numRounds) throws IOException {
+    byte[][] raw = new byte[pages.length][];
+    long rawBytes = 0;
+    for (int i = 0; i < pages.length; i++) {
+      raw[i] = HistoryCompression.encodePairs(pages[i]);
+      rawBytes += raw[i].length;
+    }
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    Inflater inflater = new Inflater();
+    byte[][] compressed = new byte[pages.length][];
+    long compressNanos = Long.MAX_VALUE;
+    long decompressNanos = Long.MAX_VALUE;
+    for (int round = 0; round < numRounds; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < pages.length; i++) {
+        compressed[i] = HistoryCompression.compress(deflater, raw[i], dictionary);
+      }
+      compressNanos = Math.min(compressNanos, System.nanoTime() - start);
+      start = System.nanoTime();
+      for (int i = 0; i < pages.length; i++) {
+        HistoryCompression.decompress(inflater, compressed[i], raw[i].length, dictionary);
+      }
+      decompressNanos = Math.min(decompressNanos, System.nanoTime() - start);
+    }
+    deflater.end();
+    inflater.end();
+    long compressedBytes = 0;
+    for (byte[] page : compressed) {
+      compressedBytes += page.length;
+    }
+    double megabytes = rawBytes / (1024.0 * 1024.0);
+    System.out.println(String.format("  %-34s ratio %5.2f  compress %6.1f ms/MB  decompress %5.1f ms/MB", label,
+            (double) rawBytes / compressedBytes, compressNanos / 1e6 / megabytes, decompressNanos / 1e6 / megabytes));
+  }
+
+  /**
+   * Split the messages into groups of the given number of messages.
+   * @param messages the sender and contents of every message
+   * @param messagesPerGroup
+   * @return the groups
+   */
+  private static String[][] split(String[] messages, int messagesPerGroup) {
+    int numGroups = (messages.length / 2 + messagesPerGroup - 1) / messagesPerGroup;
+    String[][] groups = new String[numGroups][];
+    for (int i = 0; i < numGroups; i++) {
+      groups[i] = Arrays.copyOfRange(messages, i * messagesPerGroup * 2,
+              Math.min(messages.length, (i + 1) * messagesPerGroup * 2));
+    }
+    return groups;
+  }
+
+  /**
+   * Run the benchmark and print the ratio and CPU cost for every block and page size.
+   * @param args
+   * @throws IOException if a page does not decompress
+   */
+  public static void main(String[] args) throws IOException {
+    int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int numRounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    Random random = new Random(42);
+    String[] messages = new String[numMessages * 2];
+    for (int i = 0; i < numMessages; i++) {
+      messages[2 * i] = "user" + random.nextInt(NUM_SENDERS);
+      messages[2 * i + 1] = makeMessage(random);
+    }
+    byte[] dictionary = HistoryCompression.trainDictionary(
+            Arrays.copyOf(messages, Math.min(messages.length, CompressedHistoryStore.BLOCK_MESSAGES * 2)));
+    System.out.println("Compressing " + numMessages + " messages, dictionary of " + dictionary.length + " bytes");
+
+    // warm up before measuring.
+    measure("warm up", split(messages, CompressedHistoryStore.BLOCK_MESSAGES), dictionary, 2);
+
+    int[] groupSizes = { CompressedHistoryStore.BLOCK_MESSAGES, 500, 4096 };
+    for (int groupSize : groupSizes) {
+      String[][] groups = split(messages, groupSize);
+      measure(groupSize + "-message pages, no dictionary:", groups, new byte[0], numRounds);
+      measure(groupSize + "-message pages, dictionary:", groups, dictionary, numRounds);
+    }
+
+    CompressedHistoryStore store = new CompressedHistoryStore();
+    long start = System.nanoTime();
+    for (int i = 0; i < numMessages; i++) {
+      store.append(messages[2 * i], messages[2 * i + 1]);
+    }
+    double appendNanos = (double) (System.nanoTime() - start) / numMessages;
+    start = System.nanoTime();
+    store.getMessages(0, numMessages);
+    double readNanos = (double) (System.nanoTime() - start) / numMessages;
+    System.out.println(String.format("  store append %.0f ns, sequential read %.0f ns per message", appendNanos, readNanos));
+    System.out.println("  " + store.describeMetrics());
+  }
+}
@@ -0,0 +1,120 @@
+package server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import logger.ProgLogger;
+
+/**
+ * Background thread that moves messages of tiered history stores out of their hot tier and into
+ * their cold tier. A tiered history store schedules itself once its hot tier holds a batch more
+ * messages than it keeps, and this thread spills the batch so appends never wait on the disk. The
+ * evictor also counts the reads of every tiered history store of the server, to report how often
+ * reads are served by the hot tier alone and how long reads of the cold tier take.
+ */
+public class HistoryEvictor implements Runnable {
+
+  private static final long METRICS_LOG_INTERVAL_SECONDS = 60;
+
+  private final ProgLogger logger;
+  private final LinkedBlockingQueue<TieredHistoryStore> scheduledStores = new LinkedBlockingQueue<>();
+  private final AtomicLong hotReads = new AtomicLong();
+  private final AtomicLong coldReads = new AtomicLong();
+  private final AtomicLong coldReadNanos = new AtomicLong();
+  private final AtomicLong coldReadMessages = new AtomicLong();
+  private final AtomicLong evictedMessages = new AtomicLong();
+  private volatile boolean isAlive = true;
+
+  /**
+   * Constructor for an evictor that logs its metrics to the given logger.
+   * @param logger
+   */
+  public HistoryEvictor(ProgLogger logger) {
+    this.logger = logger;
+  }
+
+  /**
+   * Schedule a store to have its hot tier spilled.
+   * @param store
+   */
+  public void schedule(TieredHistoryStore store) {
+    this.scheduledStores.offer(store);
+  }
+
+  /**
+   * Record a read of a tiered history store.
+   * @param coldMessages the number of messages read from the cold tier, 0 if the hot tier had all of them
+   * @param coldNanos the time taken to read the cold tier
+   */
+  public void recordRead(long coldMessages, long coldNanos) {
+    if (coldMessages == 0) {
+      this.hotReads.incrementAndGet();
+    } else {
+      this.coldReads.incrementAndGet();
+      this.coldReadMessages.addAndGet(coldMessages);
+      this.coldReadNanos.addAndGet(coldNanos);
+    }
+  }
+
+  /**
+   * Record messages moved from a hot tier to a cold tier.
+   * @param numMessages
+   */
+  public void recordEviction(int numMessages) {
+    this.evictedMessages.addAndGet(numMessages);
+  }
+
+  /**
+   * Describe the share of reads served by hot tiers alone, and the number and average latency of
+   * reads that went to cold tiers.
+   * @return a one line summary of the tiering metrics
+   */
+  public String describeMetrics() {
+    long hot = this.hotReads.get();
+    long cold = this.coldReads.get();
+    if (hot + cold == 0) {
+      return "reads=0, evictedMessages=" + this.evictedMessages.get();
+    }
+    return "reads=" + (hot + cold) + ", hotHitRate=" + String.format("%.3f", (double) hot / (hot + cold))
+            + ", coldReads=" + cold + ", averageColdReadMicros=" + (cold == 0 ? 0 : this.coldReadNanos.get() / cold / 1000)
+            + ", coldReadMessages=" + this.coldReadMessages.get() + ", evictedMessages=" + this.evictedMessages.get();
+  }
+
+  /**
+   * Spill the hot tiers of scheduled stores until stopped, logging the metrics every minute that
+   * there were reads or evictions.
+   */
+  @Override
+  public void run() {
+    long nextLogNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(METRICS_LOG_INTERVAL_SECONDS);
+    long loggedActivity = 0;
+    while (this.isAlive) {
+      try {
+        TieredHistoryStore store = this.scheduledStores.poll(1, TimeUnit.SECONDS);
+        if (store != null) {
+          store.evict();
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        this.logger.logger.warning("Could not spill chatroom history to its cold tier: " + e.getMessage());
+      }
+      if (System.nanoTime() - nextLogNanos >= 0) {
+        long activity = this.hotReads.get() + this.coldReads.get() + this.evictedMessages.get();
+        if (activity != loggedActivity) {
+          this.logger.logger.info("History tier metrics: " + describeMetrics());
+          loggedActivity = activity;
+        }
+        nextLogNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(METRICS_LOG_INTERVAL_SECONDS);
+      }
+    }
+  }
+
+  /**
+   * Stop the evictor thread.
+   */
+  public void close() {
+    this.isAlive = false;
+  }
+}
@@ -0,0 +1,252 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Inverted index over the message contents of a chatroom's history for searching it. Every message
+ * is split into lower case terms of letters and digits, and each term keeps the ascending sequence
+ * numbers of the messages it is in. A query is one or more words that a message must all contain,
+ * where a word ending in "*" matches every term starting with it, and matches are found newest
+ * first by stepping backwards through the sequence numbers of every word at once.
+ */
+public class HistoryIndex {
+
+  // terms longer than this are cut short, and terms after this many in a message are not indexed,
+  // so indexing a message takes bounded time
+  public static final int MAX_TERM_LENGTH = 32;
+  public static final int MAX_TERMS_PER_MESSAGE = 128;
+
+  /**
+   * Class for the ascending sequence numbers of the messages a term is in.
+   */
+  private static class Postings {
+    int[] sequences = new int[4];
+    int size = 0;
+
+    /**
+     * Add a sequence number that is at least as large as every one added before. Adding the last
+     * sequence number again does nothing, so a term appearing twice in a message is listed once.
+     * @param sequence
+     */
+    void add(int sequence) {
+      if (this.size > 0 && this.sequences[this.size - 1] == sequence) {
+        return;
+      }
+      if (this.size == this.sequences.length) {
+        this.sequences = Arrays.copyOf(this.sequences, this.size * 2);
+      }
+      this.sequences[this.size++] = sequence;
+    }
+
+    /**
+     * Get the index of the largest sequence number that is at most the given one.
+     * @param atMost
+     * @return the index, or -1 if every sequence number is larger
+     */
+    int indexAtMost(long atMost) {
+      int low = 0;
+      int high = this.size - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        if (this.sequences[middle] <= atMost) {
+          low = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return high;
+    }
+
+    /**
+     * Remove the sequence numbers before the given one.
+     * @param sequence
+     */
+    void discardBefore(long sequence) {
+      int numDiscarded = indexAtMost(sequence - 1) + 1;
+      this.size -= numDiscarded;
+      System.arraycopy(this.sequences, numDiscarded, this.sequences, 0, this.size);
+      if (this.sequences.length > 16 && this.size < this.sequences.length / 4) {
+        this.sequences = Arrays.copyOf(this.sequences, this.size * 2);
+      }
+    }
+  }
+
+  /**
+   * Class for stepping backwards through the sequence numbers of the messages matching one word of
+   * a query, which are those of a single term or of every term starting with a prefix.
+   */
+  private static class WordCursor {
+    // position of every matching term's postings, ordered by the sequence number at that position
+    private final PriorityQueue<int[]> positions = new PriorityQueue<>((a, b) -> Integer.compare(b[2], a[2]));
+    private final ArrayList<Postings> postingsList;
+
+    /**
+     * Constructor for a cursor over the union of the given postings.
+     * @param postingsList
+     */
+    WordCursor(ArrayList<Postings> postingsList) {
+      this.postingsList = postingsList;
+      for (int i = 0; i < postingsList.size(); i++) {
+        Postings postings = postingsList.get(i);
+        if (postings.size > 0) {
+          this.positions.add(new int[]{ i, postings.size - 1, postings.sequences[postings.size - 1] });
+        }
+      }
+    }
+
+    /**
+     * Get the largest matching sequence number that is at most the given one. The given sequence
+     * number must never grow from one call to the next.
+     * @param atMost
+     * @return the sequence number, or -1 if there is none
+     */
+    long next(long atMost) {
+      while (!this.positions.isEmpty() && this.positions.peek()[2] > atMost) {
+        int[] position = this.positions.poll();
+        Postings postings = this.postingsList.get(position[0]);
+        int index = postings.indexAtMost(atMost);
+        if (index >= 0) {
+          position[1] = index;
+          position[2] = postings.sequences[index];
+          this.positions.add(position);
+        }
+      }
+      return this.positions.isEmpty() ? -1 : this.positions.peek()[2];
+    }
+  }
+
+  private final HashMap<String,Postings> termPostings = new HashMap<>();
+  private final TreeSet<String> terms = new TreeSet<>();
+
+  /**
+   * Split message contents into the terms that are indexed for it. A term that appears more than
+   * once is listed every time.
+   * @param message
+   * @return the terms, in the order they appear
+   */
+  public static ArrayList<String> tokenize(String message) {
+    ArrayList<String> tokens = new ArrayList<>();
+    String lowerCaseMessage = message.toLowerCase(Locale.ROOT);
+    int start = -1;
+    for (int i = 0; i <= lowerCaseMessage.length() && tokens.size() < MAX_TERMS_PER_MESSAGE; i++) {
+      boolean isTermCharacter = i < lowerCaseMessage.length() && Character.isLetterOrDigit(lowerCaseMessage.charAt(i));
+      if (isTermCharacter && start < 0) {
+        start = i;
+      } else if (!isTermCharacter && start >= 0) {
+        tokens.add(lowerCaseMessage.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Index the contents of the message with the given sequence number. Messages must be added in
+   * the order of their sequence numbers.
+   * @param sequence
+   * @param message
+   */
+  public synchronized void add(long sequence, String message) {
+    if (sequence > Integer.MAX_VALUE) {
+      return;
+    }
+    for (String term : tokenize(message)) {
+      Postings postings = this.termPostings.get(term);
+      if (postings == null) {
+        postings = new Postings();
+        this.termPostings.put(term, postings);
+        this.terms.add(term);
+      }
+      postings.add((int) sequence);
+    }
+  }
+
+  /**
+   * Remove the messages before the given sequence number from the index, and the terms that were
+   * only in those messages.
+   * @param sequence
+   */
+  public synchronized void discardBefore(long sequence) {
+    Iterator<Postings> iterator = this.termPostings.values().iterator();
+    while (iterator.hasNext()) {
+      Postings postings = iterator.next();
+      postings.discardBefore(sequence);
+      if (postings.size == 0) {
+        iterator.remove();
+      }
+    }
+    this.terms.retainAll(this.termPostings.keySet());
+  }
+
+  /**
+   * Find the sequence numbers of the newest messages before the given sequence number that match
+   * every word of the query. A word ending in "*" matches every term it is a prefix of.
+   * @param query words separated by anything other than letters, digits and "*"
+   * @param beforeSequence only messages before this sequence number match, or any message if negative
+   * @param oldestSequence only messages from this sequence number on match
+   * @param maxResults
+   * @return the matching sequence numbers, newest first
+   */
+  public synchronized ArrayList<Long> search(String query, long beforeSequence, long oldestSequence, int maxResults) {
+    ArrayList<Long> results = new ArrayList<>();
+    ArrayList<WordCursor> cursors = new ArrayList<>();
+    for (String word : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}*]+")) {
+      boolean isPrefix = word.endsWith("*");
+      String term = isPrefix ? word.substring(0, word.length() - 1).replace("*", "") : word.replace("*", "");
+      if (term.isEmpty()) {
+        continue;
+      }
+      term = term.substring(0, Math.min(term.length(), MAX_TERM_LENGTH));
+      ArrayList<Postings> postingsList = new ArrayList<>();
+      if (isPrefix) {
+        for (String matchingTerm : this.terms.subSet(term, true, term + Character.MAX_VALUE, false)) {
+          postingsList.add(this.termPostings.get(matchingTerm));
+        }
+      } else if (this.termPostings.containsKey(term)) {
+        postingsList.add(this.termPostings.get(term));
+      }
+      if (postingsList.isEmpty()) {
+        return results;
+      }
+      cursors.add(new WordCursor(postingsList));
+    }
+    if (cursors.isEmpty()) {
+      return results;
+    }
+    // leapfrog backwards: lower the candidate to what every word allows until all of them agree.
+    long candidate = beforeSequence < 0 ? Integer.MAX_VALUE : beforeSequence - 1;
+    while (candidate >= oldestSequence && results.size() < maxResults) {
+      boolean isMatch = true;
+      for (WordCursor cursor : cursors) {
+        long sequence = cursor.next(candidate);
+        if (sequence < 0) {
+          return results;
+        }
+        if (sequence < candidate) {
+          candidate = sequence;
+          isMatch = false;
+          break;
+        }
+      }
+      if (isMatch) {
+        results.add(candidate);
+        candidate--;
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Get the number of distinct terms indexed.
+   * @return the number of terms
+   */
+  public synchronized int getNumTerms() {
+    return this.terms.size();
+  }
+}
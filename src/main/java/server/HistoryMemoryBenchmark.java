@@ -0,0 +1,123 @@
+package server;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Benchmark of the heap a chatroom's message history takes per message. It fills a history the way
+ * the LookUp server does, with sender usernames and contents split out of a separate request line
+ * for every message, and compares the heap taken by the original layout of one list of sender
+ * strings next to one list of contents, by only the list of contents, and by the history stores.
+ * Arguments are the number of messages (default 1000000) and the number of distinct senders
+ * (default 20).
+ */
+public class HistoryMemoryBenchmark {
+
+  private static final int TIERED_HOT_MESSAGES = 1000;
+
+  /**
+   * Interface for adding a message to the history layout being measured.
+   */
+  private interface MessageSink {
+
+    /**
+     * Add a message.
+     * @param sender
+     * @param message
+     */
+    void add(String sender, String message);
+  }
+
+  /**
+   * Get the bytes of heap in use once garbage collection has settled.
+   * @return the used heap bytes
+   * @throws InterruptedException
+   */
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(50);
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  /**
+   * Fill a history layout with messages and get the heap bytes it takes per message.
+   * @param sink
+   * @param numMessages
+   * @param numSenders
+   * @param before the used heap bytes before the layout was created
+   * @return the heap bytes per message
+   * @throws InterruptedException
+   */
+  private static double measure(MessageSink sink, int numMessages, int numSenders, long before)
+          throws InterruptedException {
+    for (int i = 0; i < numMessages; i++) {
+      String line = "messageSent@#@user" + (i % numSenders) + "@#@message number " + i + " sent to the chatroom";
+      String[] messageArray = line.split("@#@");
+      sink.add(messageArray[1], messageArray[2]);
+    }
+    return (double) (usedHeap() - before) / numMessages;
+  }
+
+  /**
+   * Run the benchmark and print the heap bytes per message of every layout.
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int numSenders = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    System.out.println("Heap bytes per message for " + numMessages + " messages from " + numSenders + " senders");
+
+    long before = usedHeap();
+    ArrayList<String> contents = new ArrayList<>();
+    double contentsOnly = measure((sender, message) -> contents.add(message), numMessages, numSenders, before);
+    System.out.println(String.format("  contents only:              %7.1f", contentsOnly));
+    contents.clear();
+    contents.trimToSize();
+
+    before = usedHeap();
+    ArrayList<String> messageSenders = new ArrayList<>();
+    ArrayList<String> messageContents = new ArrayList<>();
+    double senderLists = measure((sender, message) -> {
+      messageSenders.add(sender);
+      messageContents.add(message);
+    }, numMessages, numSenders, before);
+    System.out.println(String.format("  sender and content lists:   %7.1f (%.1f for the sender)",
+            senderLists, senderLists - contentsOnly));
+    messageSenders.clear();
+    messageSenders.trimToSize();
+    messageContents.clear();
+    messageContents.trimToSize();
+
+    before = usedHeap();
+    InMemoryHistoryStore inMemoryHistoryStore = new InMemoryHistoryStore();
+    double inMemory = measure(inMemoryHistoryStore::append, numMessages, numSenders, before);
+    System.out.println(String.format("  in-memory history store:    %7.1f (%.1f for the sender)",
+            inMemory, inMemory - contentsOnly));
+    inMemoryHistoryStore = null;
+
+    Path directory = Files.createTempDirectory("historyMemoryBenchmark");
+    before = usedHeap();
+    MappedHistoryStore mappedHistoryStore = new MappedHistoryStore(directory, 4 << 20);
+    double mapped = measure(mappedHistoryStore::append, numMessages, numSenders, before);
+    System.out.println(String.format("  mapped history store heap:  %7.1f", mapped));
+    mappedHistoryStore.close();
+    MappedHistoryStore.deleteDirectory(directory);
+
+    directory = Files.createTempDirectory("historyMemoryBenchmark");
+    before = usedHeap();
+    TieredHistoryStore tieredHistoryStore = new TieredHistoryStore(new MappedHistoryStore(directory, 4 << 20),
+            TIERED_HOT_MESSAGES, null);
+    double tiered = measure(tieredHistoryStore::append, numMessages, numSenders, before);
+    System.out.println(String.format("  tiered history store heap:  %7.1f (latest %d messages hot)",
+            tiered, TIERED_HOT_MESSAGES));
+    tieredHistoryStore.close();
+    MappedHistoryStore.deleteDirectory(directory);
+  }
+}
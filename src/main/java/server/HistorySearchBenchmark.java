@@ -0,0 +1,88 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Benchmark of searching a chatroom's message history. It puts messages made of words drawn from a
+ * skewed vocabulary into a chatroom with and without a history index to measure what indexing adds
+ * to putting a message, and then times term, prefix and multi-word queries for the newest page of
+ * matches. Arguments are the number of messages (default 1000000) and the number of results per page
+ * (default 20).
+ */
+public class HistorySearchBenchmark {
+
+  private static final int VOCABULARY_SIZE = 50000;
+  private static final int WORDS_PER_MESSAGE = 8;
+
+  /**
+   * Make the contents of a message from words of the vocabulary, where lower numbered words are
+   * far more common.
+   * @param random
+   * @return the message contents
+   */
+  private static String makeMessage(Random random) {
+    StringBuilder message = new StringBuilder();
+    for (int i = 0; i < WORDS_PER_MESSAGE; i++) {
+      int word = (int) Math.pow(VOCABULARY_SIZE, random.nextDouble()) - 1;
+      message.append(i == 0 ? "" : " ").append("word").append(word);
+    }
+    return message.toString();
+  }
+
+  /**
+   * Put messages into a chatroom and get the nanoseconds taken per message.
+   * @param chatroomInfo
+   * @param messages
+   * @return the nanoseconds per message
+   */
+  private static double putMessages(ChatroomInfo chatroomInfo, ArrayList<String> messages) {
+    long start = System.nanoTime();
+    for (int i = 0; i < messages.size(); i++) {
+      chatroomInfo.putMessage("user" + (i % 20), messages.get(i));
+    }
+    return (double) (System.nanoTime() - start) / messages.size();
+  }
+
+  /**
+   * Run the benchmark and print the cost of indexing and the latency of every query.
+   * @param args
+   */
+  public static void main(String[] args) {
+    int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int maxResults = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    Random random = new Random(42);
+    ArrayList<String> messages = new ArrayList<>();
+    for (int i = 0; i < numMessages; i++) {
+      messages.add(makeMessage(random));
+    }
+    System.out.println("Searching " + numMessages + " messages for pages of " + maxResults + " results");
+
+    // warm up both paths before measuring them.
+    ChatroomInfo warmUp = new ChatroomInfo();
+    warmUp.historyIndex = new HistoryIndex();
+    putMessages(warmUp, new ArrayList<>(messages.subList(0, Math.min(numMessages, 200000))));
+    warmUp = null;
+
+    double withoutIndex = putMessages(new ChatroomInfo(), messages);
+    ChatroomInfo chatroomInfo = new ChatroomInfo();
+    chatroomInfo.historyIndex = new HistoryIndex();
+    double withIndex = putMessages(chatroomInfo, messages);
+    System.out.println(String.format("  put message without index:  %8.0f ns", withoutIndex));
+    System.out.println(String.format("  put message with index:     %8.0f ns (%d terms)", withIndex,
+            chatroomInfo.historyIndex.getNumTerms()));
+
+    String[] queries = { "word7", "word49000", "word1 word2", "word3 word31337", "word123*", "word4*",
+        "word5* word6*", "nosuchword" };
+    for (String query : queries) {
+      int numRuns = 200;
+      int numResults = 0;
+      long start = System.nanoTime();
+      for (int run = 0; run < numRuns; run++) {
+        numResults = chatroomInfo.historyIndex.search(query, -1, 0, maxResults).size();
+      }
+      double micros = (System.nanoTime() - start) / 1000.0 / numRuns;
+      System.out.println(String.format("  query %-18s %8.1f us (%d results)", "\"" + query + "\":", micros, numResults));
+    }
+  }
+}
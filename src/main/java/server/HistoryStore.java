@@ -0,0 +1,53 @@
+package server;
+
+/**
+ * Interface for the message history of a chatroom. Every appended message gets the next sequence
+ * number of its chatroom, starting at 0, and messages are read back by ranges of sequence numbers.
+ * The oldest messages can be discarded to keep the history bounded, which moves the first sequence
+ * number up without changing the sequence numbers of the messages left. Implementations must allow
+ * appends, reads and discards from different threads.
+ */
+public interface HistoryStore {
+
+  /**
+   * Append a message to the end of the history.
+   * @param sender
+   * @param message
+   * @return the sequence number of the appended message
+   */
+  long append(String sender, String message);
+
+  /**
+   * Get the sequence number of the oldest message that is still stored.
+   * @return the first sequence number
+   */
+  long getFirstSequence();
+
+  /**
+   * Get the sequence number the next appended message will get.
+   * @return the next sequence number
+   */
+  long getNextSequence();
+
+  /**
+   * Get the messages with sequence numbers from fromSequence up to but not including toSequence.
+   * The range is narrowed to the messages that are stored.
+   * @param fromSequence
+   * @param toSequence
+   * @return the sender and then the contents of every message in the range, in order
+   */
+  String[] getMessages(long fromSequence, long toSequence);
+
+  /**
+   * Discard every message before the given sequence number and release the memory or disk it took.
+   * If the sequence number is past the last message, every message is discarded and the next
+   * appended message gets the given sequence number.
+   * @param sequence
+   */
+  void discardBefore(long sequence);
+
+  /**
+   * Release whatever the history holds outside of the heap.
+   */
+  void close();
+}
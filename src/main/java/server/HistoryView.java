@@ -0,0 +1,50 @@
+package server;
+
+/**
+ * Read-only view of the messages of a history store that were appended before the view was made.
+ * Messages appended to the store later do not show up in the view, so it can be read while the
+ * store keeps growing.
+ */
+public class HistoryView implements HistoryStore {
+  private final HistoryStore store;
+  private final long endSequence;
+
+  /**
+   * Constructor for a view of the messages of the given store before the given sequence number.
+   * @param store
+   * @param endSequence
+   */
+  public HistoryView(HistoryStore store, long endSequence) {
+    this.store = store;
+    this.endSequence = endSequence;
+  }
+
+  @Override
+  public long append(String sender, String message) {
+    throw new UnsupportedOperationException("History views are read-only");
+  }
+
+  @Override
+  public long getFirstSequence() {
+    return this.store.getFirstSequence();
+  }
+
+  @Override
+  public long getNextSequence() {
+    return this.endSequence;
+  }
+
+  @Override
+  public String[] getMessages(long fromSequence, long toSequence) {
+    return this.store.getMessages(fromSequence, Math.min(toSequence, this.endSequence));
+  }
+
+  @Override
+  public void discardBefore(long sequence) {
+    throw new UnsupportedOperationException("History views are read-only");
+  }
+
+  @Override
+  public void close() {
+  }
+}
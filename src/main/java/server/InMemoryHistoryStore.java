@@ -0,0 +1,93 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Message history kept on the heap as the contents of the messages sent, next to an array of the
+ * IDs their senders have in the chatroom's sender dictionary, so a message costs one int for its
+ * sender instead of a string. Both arrays hold the stored messages from an offset on, so discarding
+ * the oldest messages only moves the offset, and the arrays are compacted once most of them is
+ * discarded space.
+ */
+public class InMemoryHistoryStore implements HistoryStore {
+  private final SenderDictionary senders = new SenderDictionary();
+  private int[] messageSenderIDs = new int[16];
+  private String[] messageContents = new String[16];
+  // index of the oldest stored message in the arrays, and the number of messages stored
+  private int start = 0;
+  private int size = 0;
+  private long firstSequence = 0;
+
+  @Override
+  public synchronized long append(String sender, String message) {
+    if (this.start + this.size == this.messageContents.length) {
+      if (this.start >= this.size) {
+        // at least half of the arrays was discarded, so move the messages down instead of growing.
+        compact(this.messageContents.length);
+      } else {
+        compact(this.messageContents.length + (this.messageContents.length >> 1));
+      }
+    }
+    this.messageSenderIDs[this.start + this.size] = this.senders.getID(sender);
+    this.messageContents[this.start + this.size] = message;
+    this.size++;
+    return this.firstSequence + this.size - 1;
+  }
+
+  /**
+   * Move the stored messages to the start of arrays of the given capacity.
+   * @param capacity
+   */
+  private void compact(int capacity) {
+    int[] senderIDs = new int[Math.max(16, capacity)];
+    String[] contents = new String[senderIDs.length];
+    System.arraycopy(this.messageSenderIDs, this.start, senderIDs, 0, this.size);
+    System.arraycopy(this.messageContents, this.start, contents, 0, this.size);
+    this.messageSenderIDs = senderIDs;
+    this.messageContents = contents;
+    this.start = 0;
+  }
+
+  @Override
+  public synchronized long getFirstSequence() {
+    return this.firstSequence;
+  }
+
+  @Override
+  public synchronized long getNextSequence() {
+    return this.firstSequence + this.size;
+  }
+
+  @Override
+  public synchronized String[] getMessages(long fromSequence, long toSequence) {
+    long from = Math.max(this.firstSequence, fromSequence);
+    long to = Math.min(this.firstSequence + this.size, toSequence);
+    if (to <= from) {
+      return new String[0];
+    }
+    String[] messages = new String[(int) (to - from) * 2];
+    int offset = this.start + (int) (from - this.firstSequence);
+    for (int i = 0; i < to - from; i++) {
+      messages[2 * i] = this.senders.getSender(this.messageSenderIDs[offset + i]);
+      messages[2 * i + 1] = this.messageContents[offset + i];
+    }
+    return messages;
+  }
+
+  @Override
+  public synchronized void discardBefore(long sequence) {
+    int numDiscarded = (int) Math.min(this.size, Math.max(0, sequence - this.firstSequence));
+    Arrays.fill(this.messageContents, this.start, this.start + numDiscarded, null);
+    this.start += numDiscarded;
+    this.size -= numDiscarded;
+    this.firstSequence = Math.max(this.firstSequence + numDiscarded, sequence);
+    // give back the memory of arrays that are mostly discarded space.
+    if (this.size < this.messageContents.length / 4 && this.messageContents.length > 64) {
+      compact(this.size * 2);
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -3,9 +3,12 @@ package server;
 import java.awt.event.ActionListener;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -13,15 +16,40 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import javax.swing.*;
 
+import executor.ExecutionPolicies;
+import executor.ExecutionPolicy;
 import logger.ProgLogger;
+import protocol.BinaryMessageChannel;
+import protocol.EncodedPairs;
+import protocol.HistoryCompression;
+import protocol.MessageChannel;
+import protocol.MessageChannels;
+import protocol.WireProtocol;
 
 /**
  * LookUp server class that has several purposes: 1) Accepts socket connections from clients joining
@@ -37,16 +65,64 @@ import logger.ProgLogger;
  */
 public class LookUpServer {
 
+  // system properties for choosing how client connections are served at startup
+  public static final String CLIENT_FRONT_END_PROPERTY = "lookup.clientFrontEnd";
+  public static final String NIO_EVENT_LOOPS_PROPERTY = "lookup.nioEventLoops";
+  public static final String NIO_MAX_REQUEST_BYTES_PROPERTY = "lookup.nioMaxRequestBytes";
+  public static final String NIO_MAX_QUEUED_BYTES_PROPERTY = "lookup.nioMaxQueuedBytes";
+  public static final String PAXOS_MODE_PROPERTY = "paxos.mode";
+  public static final String BATCH_MAX_TRANSACTIONS_PROPERTY = "paxos.batchMaxTransactions";
+  public static final String BATCH_MAX_DELAY_MICROS_PROPERTY = "paxos.batchMaxDelayMicros";
+  public static final String ROUND_TIMEOUT_MILLIS_PROPERTY = "paxos.roundTimeoutMillis";
+  public static final String PIPELINE_WINDOW_PROPERTY = "paxos.pipelineWindow";
+  public static final String WAL_DIRECTORY_PROPERTY = "paxos.walDirectory";
+  public static final String WAL_SEGMENT_BYTES_PROPERTY = "paxos.walSegmentBytes";
+  public static final String SNAPSHOT_INTERVAL_SECONDS_PROPERTY = "paxos.snapshotIntervalSeconds";
+  public static final String LATE_LEARNERS_PROPERTY = "lookup.lateLearners";
+  public static final String LATE_JOIN_DELAY_SECONDS_PROPERTY = "lookup.lateJoinDelaySeconds";
+  public static final String HISTORY_STORE_PROPERTY = "lookup.historyStore";
+  public static final String HISTORY_DIRECTORY_PROPERTY = "lookup.historyDirectory";
+  public static final String HISTORY_SEGMENT_BYTES_PROPERTY = "lookup.historySegmentBytes";
+  public static final String HISTORY_SEARCH_PROPERTY = "lookup.historySearch";
+  public static final String HISTORY_HOT_MESSAGES_PROPERTY = "lookup.historyHotMessages";
+  public static final String RETENTION_MAX_MESSAGES_PROPERTY = "lookup.retentionMaxMessages";
+  public static final String RETENTION_MAX_AGE_SECONDS_PROPERTY = "lookup.retentionMaxAgeSeconds";
+  public static final String RETENTION_MAX_BYTES_PROPERTY = "lookup.retentionMaxBytes";
+  public static final String RETENTION_INTERVAL_SECONDS_PROPERTY = "lookup.retentionIntervalSeconds";
+  public static final String MULTICAST_GROUPS_PROPERTY = "lookup.multicastGroups";
+  public static final String MULTICAST_PORTS_PROPERTY = "lookup.multicastPorts";
+  // value chosen for a log slot that a new leader found empty
+  public static final String NO_OP_VALUE = "noop";
+  // starts the last element of a batch proposed in classic mode, which holds the batch's ID
+  public static final String BATCH_ID_PREFIX = "batchID=";
+  public static final int NUM_RECENT_APPLIED_BATCH_IDS = 4096;
+  // how long a new server waits for running servers to connect before asking one for its state
+  public static final long STATE_TRANSFER_SETTLE_MILLIS = 500;
+  public static final int STATE_TRANSFER_CHUNK_BYTES = 48 * 1024;
+  public static final int NUM_RECENT_CHOSEN_PROPOSAL_NUMBERS = 4096;
+  // how many messages of a chatroom history are read at a time when copying or writing it out
+  public static final int HISTORY_PAGE_MESSAGES = 4096;
+  // most messages a client gets in one page of chatroom history
+  public static final int MAX_CLIENT_HISTORY_PAGE_MESSAGES = 1000;
+  // most matching messages a client gets in one page of search results
+  public static final int MAX_SEARCH_RESULTS = 100;
+
   public int myServerID;
   public ProgLogger logger;
   public ServerSocket serverSocket;
   public ConcurrentHashMap<String,String> usernamePasswordStore;
   public ConcurrentHashMap<String,Integer> usernamePortStore;
   public ConcurrentHashMap<String,ChatroomInfo> chatNameChatroomInfoStore;
+  // chatrooms that every user is a member of, kept in step with the members of the chatrooms in
+  // chatNameChatroomInfoStore so that a user leaves all of their chatrooms without a scan
+  public ConcurrentHashMap<String,HashSet<ChatroomInfo>> memberUsernameToChatroomInfos;
   public ConcurrentHashMap<String,String> loggedInUsersAndPasswords;
   public int nextChatroomID = 0;
-  public String groupIPPrefix = "239.0.0."; // we will use multicast IPs in range 239.0.0.0-239.0.0.255
-  public int nextGroupIPLastDigit = 0;
+  // multicast groups and ports shared out to the chatrooms, hashing chatrooms onto shared ones once
+  // every one is taken
+  public MulticastGroupAllocator multicastGroupAllocator = new MulticastGroupAllocator(
+          Integer.getInteger(MULTICAST_GROUPS_PROPERTY, MulticastGroupAllocator.DEFAULT_NUM_GROUPS),
+          Integer.getInteger(MULTICAST_PORTS_PROPERTY, MulticastGroupAllocator.DEFAULT_NUM_PORTS));
   public ConcurrentHashMap<BufferedReader,BufferedWriter> acceptorLookUpServersReadersWriters = new ConcurrentHashMap<>();
   public ConcurrentHashMap<BufferedReader,BufferedWriter> proposerLookUpServersReadersWriters = new ConcurrentHashMap<>();
   public ConcurrentHashMap<BufferedReader,BufferedWriter> learnerLookUpServersReadersWriters = new ConcurrentHashMap<>();
@@ -54,7 +130,31 @@ public class LookUpServer {
   public String addressForOtherPaxosServersToConnectTo;
   public int portForOtherPaxosServersToConnectTo;
   public String myPaxosRole;
-  public ConcurrentHashMap<String,BufferedWriter> usernameToSocketWriters;
+  public ConcurrentHashMap<String,MessageChannel> usernameToClientChannels;
+  // channels of the clients of chatrooms that deliver messages over TCP, which get the notices of
+  // their chatroom over a LookUp server socket instead of by multicast, by chatroom name
+  public ConcurrentHashMap<String,CopyOnWriteArrayList<MessageChannel>> chatroomNoticeSubscribers = new ConcurrentHashMap<>();
+  public String clientFrontEnd;
+  public ExecutionPolicy executionPolicy = ExecutionPolicies.getDefault();
+  public NioClientFrontEnd nioClientFrontEnd;
+  public String paxosMode;
+  public PaxosBatcher paxosBatcher;
+  public WriteAheadLog writeAheadLog;
+  // directory holding the memory-mapped chatroom histories, or null to keep histories on the heap
+  public Path historyDirectory;
+  public int historySegmentBytes;
+  public int numHistoryStores = 0;
+  // whether chatroom histories are kept on the heap in compressed blocks
+  public boolean isHistoryCompressed = false;
+  // evictor spilling the hot tiers of tiered histories to the history directory, or null if
+  // histories are not tiered
+  public HistoryEvictor historyEvictor;
+  public int historyHotMessages;
+  // whether chatroom histories are indexed so they can be searched
+  public boolean isHistorySearchEnabled = false;
+  // retention limits of chatrooms that do not set their own, and the thread enforcing them
+  public RetentionPolicy defaultRetentionPolicy;
+  public HistoryCompactor historyCompactor;
 
   // chatroom and heartbeat vars
   public ConcurrentHashMap<String,ChatroomInfo> hostUsernameToChatroomInfos;
@@ -65,22 +165,82 @@ public class LookUpServer {
   public long maxAcceptedProposalNumber = -1;
   public String maxAcceptedProposalTransaction = null;
   public int numPromisedAcceptors = 0;
+  public long lastChosenProposalNumber = -1;
+  // proposal numbers of the most recently chosen classic rounds, guarded by classicRoundLock, so
+  // that an education that was already carried out is never carried out again
+  public LinkedHashSet<Long> recentChosenProposalNumbers = new LinkedHashSet<>();
 
   // proposer variables
+  public long currentProposalNumber = -1;
+  public String proposedTransaction = null;
+  public String chosenTransaction = null;
+  public final Object classicRoundLock = new Object();
+  // IDs of the batches most recently carried out, guarded by classicRoundLock, so that a batch that
+  // was chosen in more than one classic round is only carried out once
+  public LinkedHashSet<String> recentAppliedBatchIDs = new LinkedHashSet<>();
+  // ID of the batch the batcher waits for until it is chosen in any proposer's round
+  public String proposedBatchID = null;
+  public boolean isProposedBatchChosen = false;
+  private final long batchIDEpoch = System.currentTimeMillis();
+  private long numProposedClassicBatches = 0;
   public long largestPromiseNum = -1;
   public String largestPromiseTransaction = null;
   public int numAcceptedAcceptors = 0;
   public boolean reachedMajorityPromises = false;
   public boolean reachedMajorityAcceptances = false;
 
+  // multi-paxos proposer variables, guarded by multiPaxosLock
+  public final Object multiPaxosLock = new Object();
+  public boolean isLeader = false;
+  public boolean isSeekingLeadership = false;
+  public boolean isLeadershipRetryPending = false;
+  public long leaderBallotRound = 0;
+  public long leaderBallot = -1;
+  public int numLeaderPromises = 0;
+  public long nextSlot = 0;
+  public int pipelineWindow;
+  public int numInFlightSlots = 0;
+  public ArrayList<String> transactionsAwaitingLeadership = new ArrayList<>();
+  public HashMap<Long,Long> recoveredSlotBallots = new HashMap<>();
+  public HashMap<Long,String> recoveredSlotTransactions = new HashMap<>();
+
+  // multi-paxos acceptor variables, guarded by multiPaxosLock
+  public long promisedLeaderBallot = -1;
+  public long highestAcceptedSlot = -1;
+
+  // replicated log of multi-paxos instances by slot, guarded by multiPaxosLock. Instances are
+  // dropped once their slot has been carried out.
+  public TreeMap<Long,PaxosInstance> paxosInstances = new TreeMap<>();
+  public long nextSlotToApply = 0;
+
+  // state transfer variables for catching up with a running cluster, guarded by stateTransferLock.
+  // Educations are buffered from startup until the transferred state is in place.
+  public final Object stateTransferLock = new Object();
+  public boolean isAwaitingStateTransfer = true;
+  public ArrayList<BufferedWriter> stateTransferSources = new ArrayList<>();
+  public ArrayList<Runnable> bufferedEducations = new ArrayList<>();
+  public ByteArrayOutputStream stateTransferBytes = new ByteArrayOutputStream();
+  public int numStateTransferChunks = 0;
+  public long stateTransferStartNanos = 0;
+
   /**
    * Constructor for the LookUp server class which initializes several attributes. It then does the
    * following: 1) Start a thread for accepting client socket connections from new clients joining the
-   * application. 2) create a server socket that accepts connections from other LookUp servers so that
+   * application, or start the NIO event loops instead if the "lookup.clientFrontEnd" system property
+   * is set to "nio". 2) create a server socket that accepts connections from other LookUp servers so that
    * all LookUp servers can contact one another for the paxos algorithm as replicated servers. 3) contact
    * registry server to tell registry server the address/port for its server socket as well as its
    * paxos role so that the registry server can instruct other LookUp servers to connect a socket to
-   * this server socket.
+   * this server socket. The "paxos.mode" system property chooses between a full paxos round per
+   * transaction ("classic", the default) and a stable leader that only runs the accept phase ("multi").
+   * Either way transactions are proposed in batches by the paxos batcher thread. If the
+   * "paxos.walDirectory" system property is set, the state left in that directory's write-ahead log
+   * is recovered before any client or LookUp server can connect. Chatroom histories are kept on the
+   * heap, in memory-mapped segment files if the "lookup.historyStore" system property is set to
+   * "mapped", in compressed blocks on the heap if it is set to "compressed", or with only the latest
+   * messages on the heap and older ones in memory-mapped segments if it is set to "tiered". Finally, once the servers that are
+   * already running had time to connect, the state they agreed on so far is transferred from one
+   * of them.
    * @param port
    * @param serverID
    * @param registryAddress
@@ -91,25 +251,659 @@ public class LookUpServer {
     try {
       this.myServerID = serverID;
       this.logger = new ProgLogger("lookUpServer_" + serverID + "_log.txt");
-      this.serverSocket = new ServerSocket(port);
-      logger.logger.info("Created server socket for clients to connect to");
-      this.loggedInUsersAndPasswords = new ConcurrentHashMap<>();
-      this.usernamePasswordStore = new ConcurrentHashMap<>();
-      this.usernamePasswordStore.put("admin", "password");
-      this.usernamePortStore = new ConcurrentHashMap<>();
-      this.chatNameChatroomInfoStore = new ConcurrentHashMap<>();
-      this.hostUsernameToChatroomInfos = new ConcurrentHashMap<>();
-      this.usernameToSocketWriters = new ConcurrentHashMap<>();
+      this.clientFrontEnd = System.getProperty(CLIENT_FRONT_END_PROPERTY, "thread");
+      this.paxosMode = System.getProperty(PAXOS_MODE_PROPERTY, "classic");
+      this.pipelineWindow = Math.max(1, Integer.getInteger(PIPELINE_WINDOW_PROPERTY, 16));
+      this.paxosBatcher = new PaxosBatcher(Integer.getInteger(BATCH_MAX_TRANSACTIONS_PROPERTY, 64),
+              Long.getLong(BATCH_MAX_DELAY_MICROS_PROPERTY, 200L),
+              Long.getLong(ROUND_TIMEOUT_MILLIS_PROPERTY, 1000L));
+      executionPolicy.executeService("lookup-paxos-batcher", this.paxosBatcher);
+      if (this.clientFrontEnd.equalsIgnoreCase("nio")) {
+        this.nioClientFrontEnd = new NioClientFrontEnd(this, port,
+                Integer.getInteger(NIO_EVENT_LOOPS_PROPERTY, 2),
+                Integer.getInteger(NIO_MAX_REQUEST_BYTES_PROPERTY, NioClientFrontEnd.DEFAULT_MAX_REQUEST_BYTES),
+                Long.getLong(NIO_MAX_QUEUED_BYTES_PROPERTY, NioClientFrontEnd.DEFAULT_MAX_QUEUED_BYTES));
+        this.serverSocket = this.nioClientFrontEnd.getServerSocket();
+      } else {
+        this.serverSocket = new ServerSocket(port);
+      }
+      logger.logger.info("Created server socket for clients to connect to using "
+              + this.clientFrontEnd + " front end");
+      initializeStores();
+      String historyStoreKind = System.getProperty(HISTORY_STORE_PROPERTY, "memory");
+      if (historyStoreKind.equalsIgnoreCase("mapped") || historyStoreKind.equalsIgnoreCase("tiered")) {
+        // histories are rebuilt from the snapshot, the write-ahead log, or a state transfer, so
+        // whatever an earlier run left behind is thrown away.
+        this.historyDirectory = Paths.get(System.getProperty(HISTORY_DIRECTORY_PROPERTY, "history"),
+                "lookUpServer_" + serverID);
+        this.historySegmentBytes = Integer.getInteger(HISTORY_SEGMENT_BYTES_PROPERTY, 4 << 20);
+        MappedHistoryStore.deleteDirectory(this.historyDirectory);
+        if (historyStoreKind.equalsIgnoreCase("tiered")) {
+          this.historyHotMessages = Math.max(1, Integer.getInteger(HISTORY_HOT_MESSAGES_PROPERTY, 1000));
+          this.historyEvictor = new HistoryEvictor(logger);
+          executionPolicy.executeService("lookup-history-evictor", this.historyEvictor);
+          logger.logger.info("Keeping the latest " + this.historyHotMessages + " messages of every chatroom on the heap "
+                  + "and older ones in memory-mapped segments in " + this.historyDirectory);
+        } else {
+          logger.logger.info("Keeping chatroom histories in memory-mapped segments in " + this.historyDirectory);
+        }
+      } else if (historyStoreKind.equalsIgnoreCase("compressed")) {
+        this.isHistoryCompressed = true;
+        logger.logger.info("Keeping chatroom histories on the heap in compressed blocks");
+      }
+      this.isHistorySearchEnabled = Boolean.parseBoolean(System.getProperty(HISTORY_SEARCH_PROPERTY, "true"));
+      this.historyCompactor = new HistoryCompactor(this, Long.getLong(RETENTION_INTERVAL_SECONDS_PROPERTY, 5L));
+      executionPolicy.executeService("lookup-history-compactor", this.historyCompactor);
+      if (!this.defaultRetentionPolicy.isUnlimited()) {
+        logger.logger.info("Keeping chatroom histories within " + this.defaultRetentionPolicy + " by default");
+      }
+      this.usernameToClientChannels = new ConcurrentHashMap<>();
       this.hostUsernameToHearbeatTimer = new ConcurrentHashMap<>();
-      new Thread(new LoginWaiter()).start();
+      String walDirectory = System.getProperty(WAL_DIRECTORY_PROPERTY);
+      if (walDirectory != null) {
+        this.writeAheadLog = new WriteAheadLog(Paths.get(walDirectory), "lookUpServer_" + serverID,
+                Long.getLong(WAL_SEGMENT_BYTES_PROPERTY, 8L << 20), logger);
+        recoverFromWriteAheadLog();
+        executionPolicy.executeService("lookup-wal-flusher", this.writeAheadLog);
+        executionPolicy.executeService("lookup-wal-compactor",
+                new LogCompactor(Long.getLong(SNAPSHOT_INTERVAL_SECONDS_PROPERTY, 30L)));
+      }
+      if (this.nioClientFrontEnd != null) {
+        this.nioClientFrontEnd.start();
+      } else {
+        executionPolicy.executeService("lookup-login-waiter", new LoginWaiter());
+      }
       this.myPaxosRole = myPaxosRole;
       createServerSocketForOtherPaxosServersToConnectTo();
       registerWithRegisterServer(registryAddress, registryPort);
+      executionPolicy.execute("lookup-state-transfer", () -> {
+        try {
+          TimeUnit.MILLISECONDS.sleep(STATE_TRANSFER_SETTLE_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        requestStateFromNextSource();
+      });
     } catch (IOException e) {
       System.out.println("Failed to properly set up LookUp server, including logger");
     }
   }
 
+  /**
+   * Constructor for a LookUp server that only holds replicated state, without any sockets or
+   * threads. The log compactor replays closed write-ahead log segments into one to build snapshots
+   * without touching the state of the running server.
+   * @param logger
+   */
+  private LookUpServer(ProgLogger logger) {
+    this.logger = logger;
+    initializeStores();
+  }
+
+  /**
+   * Create a chatroomInfo whose messages go to the kind of history store this server keeps, and are
+   * indexed if histories can be searched. Tiered histories keep their older messages in a
+   * memory-mapped history store. If a memory-mapped history store cannot be created, the messages
+   * are kept on the heap instead.
+   * @return the new chatroomInfo
+   */
+  public synchronized ChatroomInfo newChatroomInfo() {
+    ChatroomInfo chatroomInfo = new ChatroomInfo();
+    if (this.historyDirectory != null) {
+      Path directory = this.historyDirectory.resolve(String.valueOf(this.numHistoryStores++));
+      try {
+        HistoryStore mappedStore = new MappedHistoryStore(directory, this.historySegmentBytes);
+        chatroomInfo = new ChatroomInfo(this.historyEvictor == null ? mappedStore
+                : new TieredHistoryStore(mappedStore, this.historyHotMessages, this.historyEvictor));
+      } catch (IOException e) {
+        logger.logger.warning("Could not create history store in " + directory + ", keeping history on the heap");
+      }
+    } else if (this.isHistoryCompressed) {
+      chatroomInfo = new ChatroomInfo(new CompressedHistoryStore());
+    }
+    if (this.isHistorySearchEnabled) {
+      chatroomInfo.historyIndex = new HistoryIndex();
+    }
+    return chatroomInfo;
+  }
+
+  /**
+   * Get a chatroomInfo for this server's own stores from one that was read from a snapshot. If this
+   * server keeps histories in memory-mapped segments or compressed blocks, the messages are copied over a page at a
+   * time, and if histories can be searched, the messages are indexed.
+   * @param chatroomInfo
+   * @return the chatroomInfo to store
+   */
+  public ChatroomInfo adoptChatroomInfo(ChatroomInfo chatroomInfo) {
+    if (this.historyDirectory == null && !this.isHistoryCompressed) {
+      if (this.isHistorySearchEnabled && chatroomInfo.historyIndex == null) {
+        HistoryIndex historyIndex = new HistoryIndex();
+        long nextSequence = chatroomInfo.history.getNextSequence();
+        for (long sequence = chatroomInfo.history.getFirstSequence(); sequence < nextSequence;
+             sequence += HISTORY_PAGE_MESSAGES) {
+          String[] messages = chatroomInfo.history.getMessages(sequence, sequence + HISTORY_PAGE_MESSAGES);
+          for (int i = 0; i + 1 < messages.length; i += 2) {
+            historyIndex.add(sequence + i / 2, messages[i + 1]);
+          }
+        }
+        chatroomInfo.historyIndex = historyIndex;
+      }
+      return chatroomInfo;
+    }
+    ChatroomInfo adopted = newChatroomInfo();
+    adopted.ID = chatroomInfo.ID;
+    adopted.name = chatroomInfo.name;
+    adopted.port = chatroomInfo.port;
+    adopted.groupIP = chatroomInfo.groupIP;
+    adopted.inetAddress = chatroomInfo.inetAddress;
+    adopted.hostUsername = chatroomInfo.hostUsername;
+    adopted.members.addAll(chatroomInfo.getMembers());
+    // the messages keep their sequence numbers even if the oldest ones were discarded.
+    adopted.history.discardBefore(chatroomInfo.history.getFirstSequence());
+    long nextSequence = chatroomInfo.history.getNextSequence();
+    for (long sequence = chatroomInfo.history.getFirstSequence(); sequence < nextSequence;
+         sequence += HISTORY_PAGE_MESSAGES) {
+      String[] messages = chatroomInfo.history.getMessages(sequence, sequence + HISTORY_PAGE_MESSAGES);
+      for (int i = 0; i < messages.length; i += 2) {
+        adopted.putMessage(messages[i], messages[i + 1]);
+      }
+    }
+    adopted.copyRetentionStateFrom(chatroomInfo);
+    return adopted;
+  }
+
+  /**
+   * Add a user to the members of a chatroom and to the index of the chatrooms they are in.
+   * @param chatroomInfo
+   * @param username
+   */
+  public void addChatroomMember(ChatroomInfo chatroomInfo, String username) {
+    chatroomInfo.putMember(username);
+    memberUsernameToChatroomInfos.compute(username, (member, chatroomInfos) -> {
+      HashSet<ChatroomInfo> memberChatroomInfos = chatroomInfos == null ? new HashSet<>() : chatroomInfos;
+      memberChatroomInfos.add(chatroomInfo);
+      return memberChatroomInfos;
+    });
+  }
+
+  /**
+   * Remove a user from the members of a chatroom and from the index of the chatrooms they are in.
+   * @param chatroomInfo
+   * @param username
+   */
+  public void removeChatroomMember(ChatroomInfo chatroomInfo, String username) {
+    chatroomInfo.removeMember(username);
+    memberUsernameToChatroomInfos.computeIfPresent(username, (member, chatroomInfos) -> {
+      chatroomInfos.remove(chatroomInfo);
+      return chatroomInfos.isEmpty() ? null : chatroomInfos;
+    });
+  }
+
+  /**
+   * Remove a user from every chatroom they are a member of, looking the chatrooms up in the index
+   * instead of going through every chatroom.
+   * @param username
+   */
+  public void removeFromAllChatrooms(String username) {
+    HashSet<ChatroomInfo> chatroomInfos = memberUsernameToChatroomInfos.remove(username);
+    if (chatroomInfos != null) {
+      for (ChatroomInfo chatroomInfo : chatroomInfos) {
+        chatroomInfo.removeMember(username);
+      }
+    }
+  }
+
+  /**
+   * Remove a chatroom from the chatroom store and from the index entries of its remaining members,
+   * and release its history and multicast group.
+   * @param chatroomInfo
+   */
+  public void removeChatroom(ChatroomInfo chatroomInfo) {
+    if (chatNameChatroomInfoStore.remove(chatroomInfo.name, chatroomInfo)) {
+      multicastGroupAllocator.release(chatroomInfo.groupIP);
+    }
+    for (String member : chatroomInfo.getMembers()) {
+      memberUsernameToChatroomInfos.computeIfPresent(member, (username, chatroomInfos) -> {
+        chatroomInfos.remove(chatroomInfo);
+        return chatroomInfos.isEmpty() ? null : chatroomInfos;
+      });
+    }
+    chatroomInfo.history.close();
+  }
+
+  /**
+   * Send a notice to the members of a chatroom, such as who its new host is, as fields that are
+   * joined with "@#@". Members of chatrooms that deliver messages over TCP subscribe to the notices of
+   * their chatroom over a socket to a LookUp server, which may not be this one, so the notice is
+   * written to the subscribers of this server and replicated to the others, which write it to theirs.
+   * The notice is multicast to the chatroom's group if no member subscribed here.
+   * @param chatroomInfo
+   * @param noticeFields
+   */
+  public void notifyChatroomMembers(ChatroomInfo chatroomInfo, String... noticeFields) {
+    if (!writeChatroomNotice(chatroomInfo.name, noticeFields)) {
+      try (DatagramSocket datagramSocket = new DatagramSocket()) {
+        byte[] buffer = ("chatkey125" + chatroomInfo.ID + "@#@" + String.join("@#@", noticeFields)).getBytes();
+        datagramSocket.send(new DatagramPacket(buffer, buffer.length,
+                MulticastGroupAllocator.parseGroup(chatroomInfo.groupIP)));
+      } catch (IOException e) {
+        logger.logger.warning("Could not multicast notice " + noticeFields[0] + " to chatroom " + chatroomInfo.name);
+      }
+    }
+    String[] transactionInfo = new String[noticeFields.length + 2];
+    transactionInfo[0] = "chatroomNotice";
+    transactionInfo[1] = chatroomInfo.name;
+    System.arraycopy(noticeFields, 0, transactionInfo, 2, noticeFields.length);
+    paxosBatcher.submit(TransactionCodec.encodeTransaction(transactionInfo));
+  }
+
+  /**
+   * Write a notice to the clients subscribed to the notices of a chatroom on this server, dropping
+   * the ones whose sockets failed.
+   * @param chatroomName
+   * @param noticeFields
+   * @return true if the chatroom has subscribers on this server
+   */
+  public boolean writeChatroomNotice(String chatroomName, String[] noticeFields) {
+    CopyOnWriteArrayList<MessageChannel> subscribers = chatroomNoticeSubscribers.get(chatroomName);
+    if (subscribers == null || subscribers.isEmpty()) {
+      return false;
+    }
+    String[] message = new String[noticeFields.length + 1];
+    message[0] = "chatroomNotice";
+    System.arraycopy(noticeFields, 0, message, 1, noticeFields.length);
+    for (MessageChannel subscriber : subscribers) {
+      try {
+        subscriber.writeMessage(message);
+      } catch (IOException e) {
+        subscribers.remove(subscriber);
+        logger.logger.warning("Dropped subscriber to notices of chatroom " + chatroomName);
+      }
+    }
+    logger.logger.info("Wrote notice " + noticeFields[0] + " to " + subscribers.size()
+            + " subscribers of chatroom " + chatroomName);
+    return true;
+  }
+
+  /**
+   * Build the index of the chatrooms every user is a member of again from the chatroom store, after
+   * the whole store was replaced.
+   */
+  public void rebuildMembershipIndex() {
+    memberUsernameToChatroomInfos.clear();
+    for (ChatroomInfo chatroomInfo : chatNameChatroomInfoStore.values()) {
+      for (String member : chatroomInfo.getMembers()) {
+        memberUsernameToChatroomInfos.computeIfAbsent(member, username -> new HashSet<>()).add(chatroomInfo);
+      }
+    }
+  }
+
+  /**
+   * Create the empty stores of replicated state, which only know the admin account, and read the
+   * default retention policy of chatroom histories.
+   */
+  private void initializeStores() {
+    this.defaultRetentionPolicy = new RetentionPolicy(Math.max(0, Long.getLong(RETENTION_MAX_MESSAGES_PROPERTY, 0L)),
+            Math.max(0, Long.getLong(RETENTION_MAX_AGE_SECONDS_PROPERTY, 0L)),
+            Math.max(0, Long.getLong(RETENTION_MAX_BYTES_PROPERTY, 0L)));
+    this.loggedInUsersAndPasswords = new ConcurrentHashMap<>();
+    this.usernamePasswordStore = new ConcurrentHashMap<>();
+    this.usernamePasswordStore.put("admin", "password");
+    this.usernamePortStore = new ConcurrentHashMap<>();
+    this.chatNameChatroomInfoStore = new ConcurrentHashMap<>();
+    this.memberUsernameToChatroomInfos = new ConcurrentHashMap<>();
+    this.hostUsernameToChatroomInfos = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Append a record to the write-ahead log and run the given action once the record is on disk, or
+   * run the action right away if no write-ahead log is kept.
+   * @param type
+   * @param onDurable may be null
+   * @param fields
+   */
+  public void logDurably(byte type, Runnable onDurable, String... fields) {
+    if (this.writeAheadLog != null) {
+      this.writeAheadLog.append(type, onDurable, fields);
+    } else if (onDurable != null) {
+      onDurable.run();
+    }
+  }
+
+  /**
+   * Rebuild the paxos acceptor state and the replicated stores from the latest snapshot and then
+   * replay the write-ahead log segments the snapshot does not cover, in order. No client or
+   * chatroom server connection survives a restart, so nobody is logged in afterwards.
+   * @throws IOException
+   */
+  private void recoverFromWriteAheadLog() throws IOException {
+    StateSnapshot snapshot = StateSnapshot.load(this.writeAheadLog.snapshotPath());
+    long firstSegment = 0;
+    if (snapshot != null) {
+      snapshot.restore(this);
+      firstSegment = snapshot.nextSegment;
+    }
+    ArrayList<Object[]> records = this.writeAheadLog.readAll(firstSegment);
+    for (Object[] record : records) {
+      replayWriteAheadLogRecord(record);
+    }
+    this.loggedInUsersAndPasswords.clear();
+    this.hostUsernameToChatroomInfos.clear();
+    logger.logger.info("Recovered " + (snapshot != null ? "snapshot and " : "") + records.size()
+            + " write-ahead log records, " + usernamePasswordStore.size() + " users and "
+            + chatNameChatroomInfoStore.size() + " chatrooms");
+  }
+
+  /**
+   * Replay a single write-ahead log record. Promises and accepts restore what this server promised
+   * and accepted, and chosen values are carried out again in the order they were carried out before.
+   * @param record
+   */
+  private void replayWriteAheadLogRecord(Object[] record) {
+    byte type = (byte) record[0];
+    if (type == WriteAheadLog.PROMISE) {
+      maxPromisedProposalNumber = Math.max(maxPromisedProposalNumber, Long.parseLong((String) record[1]));
+    } else if (type == WriteAheadLog.ACCEPT) {
+      maxAcceptedProposalNumber = Long.parseLong((String) record[1]);
+      maxAcceptedProposalTransaction = (String) record[2];
+      maxPromisedProposalNumber = Math.max(maxPromisedProposalNumber, maxAcceptedProposalNumber);
+    } else if (type == WriteAheadLog.COMMIT) {
+      // the acceptor state is reset for the next round just like when the education was received.
+      maxPromisedProposalNumber = -1;
+      maxAcceptedProposalNumber = -1;
+      maxAcceptedProposalTransaction = null;
+      lastChosenProposalNumber = Math.max(lastChosenProposalNumber, Long.parseLong((String) record[1]));
+      rememberChosenProposalNumber(Long.parseLong((String) record[1]));
+      if (rememberAppliedBatchID(getBatchID((String) record[2]))) {
+        applyChosenValue((String) record[2]);
+      }
+    } else if (type == WriteAheadLog.PROMISE_LEADER) {
+      promisedLeaderBallot = Math.max(promisedLeaderBallot, Long.parseLong((String) record[1]));
+    } else if (type == WriteAheadLog.ACCEPT_SLOT) {
+      long ballot = Long.parseLong((String) record[1]);
+      long slot = Long.parseLong((String) record[2]);
+      promisedLeaderBallot = Math.max(promisedLeaderBallot, ballot);
+      highestAcceptedSlot = Math.max(highestAcceptedSlot, slot);
+      if (slot >= nextSlotToApply) {
+        PaxosInstance instance = getPaxosInstance(slot);
+        // accepts are logged outside multiPaxosLock, so a later record may hold a lower ballot.
+        if (instance.chosenValue == null && ballot >= instance.acceptedBallot) {
+          instance.acceptedBallot = ballot;
+          instance.acceptedValue = (String) record[3];
+        }
+      }
+    } else if (type == WriteAheadLog.COMMIT_SLOT) {
+      long slot = Long.parseLong((String) record[1]);
+      if (slot >= nextSlotToApply) {
+        PaxosInstance instance = getPaxosInstance(slot);
+        if (instance.chosenValue == null) {
+          slotChosen(instance, (String) record[2]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Class that can be executed by a thread, which periodically compacts the write-ahead log. It
+   * closes the current log segment, replays every closed segment that is not covered by the latest
+   * snapshot on top of that snapshot, and saves the result as the new snapshot before deleting the
+   * segments it covers. The replay runs on a separate copy of the state, so the running server and
+   * its paxos threads never wait for a snapshot to be taken. The copy only holds the messages of the
+   * replayed segments: the messages of the previous snapshot are streamed from its file into the new
+   * snapshot. The retention policies of the chatrooms are enforced on the copy before it is saved, so
+   * the snapshot stays as bounded as the histories.
+   */
+  public class LogCompactor implements Runnable {
+
+    private final long intervalSeconds;
+
+    /**
+     * Constructor for the log compactor that sets how often a snapshot is taken.
+     * @param intervalSeconds
+     */
+    public LogCompactor(long intervalSeconds) {
+      this.intervalSeconds = Math.max(1, intervalSeconds);
+    }
+
+    /**
+     * Take a snapshot every interval for as long as the server runs.
+     */
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          TimeUnit.SECONDS.sleep(this.intervalSeconds);
+        } catch (InterruptedException e) {
+          return;
+        }
+        try {
+          compact();
+        } catch (IOException e) {
+          logger.logger.warning("Could not take snapshot of write-ahead log: " + e.getMessage());
+        }
+      }
+    }
+
+    /**
+     * Fold the closed log segments into a new snapshot and delete them.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+      writeAheadLog.rollOver();
+      long firstUncoveredSegment = writeAheadLog.getCurrentSegment();
+      Path snapshotPath = writeAheadLog.snapshotPath();
+      // the new snapshot replaces the file once it is written, but this channel keeps reading the
+      // previous one, whose message histories are only read while the new snapshot is written.
+      try (FileChannel previousSnapshotChannel = Files.exists(snapshotPath)
+              ? FileChannel.open(snapshotPath, StandardOpenOption.READ) : null) {
+        StateSnapshot previousSnapshot = previousSnapshotChannel == null ? null
+                : StateSnapshot.readDeferringHistories(previousSnapshotChannel);
+        long firstSegment = previousSnapshot == null ? 0 : previousSnapshot.nextSegment;
+        if (firstSegment >= firstUncoveredSegment) {
+          return;
+        }
+        long start = System.nanoTime();
+        LookUpServer state = new LookUpServer(logger);
+        if (previousSnapshot != null) {
+          previousSnapshot.restore(state);
+        }
+        int numRecords = 0;
+        for (long segment : writeAheadLog.listSegments()) {
+          if (segment >= firstSegment && segment < firstUncoveredSegment) {
+            ArrayList<Object[]> records = new ArrayList<>();
+            writeAheadLog.readSegment(segment, records);
+            for (Object[] record : records) {
+              state.replayWriteAheadLogRecord(record);
+            }
+            numRecords += records.size();
+          }
+        }
+        for (ChatroomInfo chatroomInfo : state.chatNameChatroomInfoStore.values()) {
+          chatroomInfo.enforceRetention(state.defaultRetentionPolicy, System.currentTimeMillis());
+        }
+        StateSnapshot.capture(state, firstUncoveredSegment).save(snapshotPath);
+        for (ChatroomInfo chatroomInfo : state.chatNameChatroomInfoStore.values()) {
+          chatroomInfo.history.close();
+        }
+        writeAheadLog.deleteSegmentsBefore(firstUncoveredSegment);
+        logger.logger.info("Took snapshot covering log segments before " + firstUncoveredSegment + " from "
+                + numRecords + " records in " + (System.nanoTime() - start) / 1000000 + " ms, snapshot is "
+                + Files.size(snapshotPath) + " bytes");
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Remember the proposal number of a chosen classic round. Must be called while holding
+   * classicRoundLock.
+   * @param proposalNum
+   * @return false if the round was already chosen before, otherwise true
+   */
+  public boolean rememberChosenProposalNumber(long proposalNum) {
+    if (proposalNum < 0) {
+      return true;
+    }
+    if (!recentChosenProposalNumbers.add(proposalNum)) {
+      return false;
+    }
+    if (recentChosenProposalNumbers.size() > NUM_RECENT_CHOSEN_PROPOSAL_NUMBERS) {
+      Iterator<Long> oldest = recentChosenProposalNumbers.iterator();
+      oldest.next();
+      oldest.remove();
+    }
+    return true;
+  }
+
+  /**
+   * Remember a running acceptor or learner that connected to this server as a server it could get
+   * the state of the cluster from. Proposers are not asked, since they carry out their own
+   * transactions before those are chosen.
+   * @param writer
+   */
+  public void addStateTransferSource(BufferedWriter writer) {
+    synchronized (stateTransferLock) {
+      if (isAwaitingStateTransfer) {
+        stateTransferSources.add(writer);
+      }
+    }
+  }
+
+  /**
+   * Hold back an education while this server waits for its state transfer, so that it is carried
+   * out on top of the transferred state instead.
+   * @param education
+   * @return true if the education was held back, false if it should be carried out now
+   */
+  public boolean bufferIfAwaitingStateTransfer(Runnable education) {
+    synchronized (stateTransferLock) {
+      if (isAwaitingStateTransfer) {
+        bufferedEducations.add(education);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Ask the next known acceptor or learner for its state. A server that has no one (left) to ask
+   * is the first server of its cluster, or cannot catch up, and goes on with the state it has.
+   */
+  public void requestStateFromNextSource() {
+    BufferedWriter source = null;
+    synchronized (stateTransferLock) {
+      if (!isAwaitingStateTransfer) {
+        return;
+      }
+      if (!stateTransferSources.isEmpty()) {
+        source = stateTransferSources.remove(0);
+        stateTransferBytes.reset();
+        numStateTransferChunks = 0;
+        stateTransferStartNanos = System.nanoTime();
+      }
+    }
+    if (source == null) {
+      completeStateTransfer(null);
+      return;
+    }
+    try {
+      logger.logger.info("Requesting state transfer from running LookUp server");
+      writeToPaxosServer(source, "requestState@#@" + myServerID);
+    } catch (IOException e) {
+      logger.logger.warning("Could not request state transfer");
+      requestStateFromNextSource();
+    }
+  }
+
+  /**
+   * Send the state this server has learned to a server that joins the cluster. The state is
+   * captured while no chosen value can be carried out, which only takes as long as copying the
+   * stores, and is then written out and streamed in chunks without holding any paxos lock. The new
+   * server receives every value chosen after the capture as a regular education.
+   * @param writer
+   */
+  public void sendState(BufferedWriter writer) {
+    try {
+      synchronized (stateTransferLock) {
+        if (isAwaitingStateTransfer) {
+          writeToPaxosServer(writer, "stateUnavailable@#@" + myServerID);
+          return;
+        }
+      }
+      long start = System.nanoTime();
+      StateSnapshot snapshot;
+      synchronized (classicRoundLock) {
+        synchronized (multiPaxosLock) {
+          snapshot = StateSnapshot.captureLearnedState(this);
+        }
+      }
+      long captureMicros = (System.nanoTime() - start) / 1000;
+      ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+      snapshot.writeTo(stateBytes);
+      byte[] state = stateBytes.toByteArray();
+      Base64.Encoder encoder = Base64.getEncoder();
+      int numChunks = 0;
+      for (int offset = 0; offset < state.length; offset += STATE_TRANSFER_CHUNK_BYTES) {
+        byte[] chunk = Arrays.copyOfRange(state, offset, Math.min(state.length, offset + STATE_TRANSFER_CHUNK_BYTES));
+        writeToPaxosServer(writer, "stateChunk@#@" + numChunks + "@#@" + encoder.encodeToString(chunk));
+        numChunks++;
+      }
+      writeToPaxosServer(writer, "stateEnd@#@" + numChunks + "@#@" + state.length);
+      logger.logger.info("Sent state of " + state.length + " bytes in " + numChunks + " chunks, capture took "
+              + captureMicros + " micros and transfer " + (System.nanoTime() - start) / 1000000 + " ms");
+    } catch (IOException e) {
+      logger.logger.warning("Could not send state to joining LookUp server");
+    }
+  }
+
+  /**
+   * Switch over to the transferred state: put it in place unless this server already learned more
+   * than it holds, then carry out the educations that were held back, all while no other chosen
+   * value can be carried out. Educations that the transferred state already covers are skipped.
+   * @param snapshot the transferred state, or null if there was none
+   */
+  public void completeStateTransfer(StateSnapshot snapshot) {
+    synchronized (stateTransferLock) {
+      if (!isAwaitingStateTransfer) {
+        return;
+      }
+      synchronized (classicRoundLock) {
+        synchronized (multiPaxosLock) {
+          if (snapshot != null && snapshot.nextSlotToApply >= nextSlotToApply
+                  && snapshot.lastChosenProposalNumber >= lastChosenProposalNumber) {
+            snapshot.restoreLearnedState(this);
+            saveTransferredState();
+          }
+          logger.logger.info("Carrying out " + bufferedEducations.size() + " educations held back during state transfer");
+          for (Runnable education : bufferedEducations) {
+            education.run();
+          }
+          bufferedEducations.clear();
+          isAwaitingStateTransfer = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Save the transferred state as the snapshot of the write-ahead log, if one is kept, since the
+   * log does not hold the records that led to it.
+   */
+  private void saveTransferredState() {
+    if (this.writeAheadLog == null) {
+      return;
+    }
+    try {
+      this.writeAheadLog.rollOver();
+      long firstUncoveredSegment = this.writeAheadLog.getCurrentSegment();
+      StateSnapshot.capture(this, firstUncoveredSegment).save(this.writeAheadLog.snapshotPath());
+      this.writeAheadLog.deleteSegmentsBefore(firstUncoveredSegment);
+    } catch (IOException e) {
+      logger.logger.warning("Could not save transferred state to write-ahead log");
+    }
+  }
+
   /**
    * Create a server socket for other LookUp servers to connect to so they can carry out the paxos
    * algorithm to agree on transactions to keep replicated servers up to date.
@@ -123,7 +917,7 @@ public class LookUpServer {
       logger.logger.info("Created server socket at port "
               + portForOtherPaxosServersToConnectTo + " for other LookUp servers to connect to");
       NewPaxosServerConnector newPaxosServerConnector = new NewPaxosServerConnector();
-      new Thread(newPaxosServerConnector).start();
+      executionPolicy.executeService("lookup-paxos-connector", newPaxosServerConnector);
     } catch (IOException e) {
       logger.logger.warning("Could not connect server socket for other LookUp servers to connect to");
     }
@@ -140,9 +934,14 @@ public class LookUpServer {
       while (true) {
         try {
           Socket newPaxosServerSocket = serverSocketForOtherPaxosServersToConnectTo.accept();
+          // paxos messages are small and answered right away, so do not hold them back for batching.
+          newPaxosServerSocket.setTcpNoDelay(true);
           logger.logger.info("Accepted socket connection from other LookUp server");
           PaxosSocketMessageReceiver paxosSocketMessageReceiver = new PaxosSocketMessageReceiver(newPaxosServerSocket, null, null);
-          new Thread(paxosSocketMessageReceiver).start();
+          if (!executionPolicy.executeConnectionHandler("lookup-paxos-receiver", paxosSocketMessageReceiver)) {
+            logger.logger.warning("Refused socket connection from other LookUp server, no thread left");
+            newPaxosServerSocket.close();
+          }
         } catch (IOException e) {
           logger.logger.warning("Could no accept socket connection from other LookUp server");
         }
@@ -167,6 +966,523 @@ public class LookUpServer {
     this.reachedMajorityAcceptances = false;
   }
 
+  /**
+   * Write a message to another LookUp server. Writers are shared by the threads that propose and
+   * the threads that answer paxos messages, so each write holds the writer's lock.
+   * @param writer
+   * @param message
+   * @throws IOException
+   */
+  public void writeToPaxosServer(BufferedWriter writer, String message) throws IOException {
+    synchronized (writer) {
+      writer.write(message);
+      writer.newLine();
+      writer.flush();
+    }
+  }
+
+  /**
+   * Send a message to every acceptor LookUp server.
+   * @param message
+   */
+  public void sendToAllAcceptors(String message) {
+    for (Map.Entry acceptor : acceptorLookUpServersReadersWriters.entrySet()) {
+      try {
+        writeToPaxosServer((BufferedWriter) acceptor.getValue(), message);
+      } catch (IOException e) {
+        logger.logger.warning("Could not send " + message.split("@#@")[0] + " to acceptor");
+      }
+    }
+  }
+
+  /**
+   * Send a message to every other LookUp server, since acceptors and proposers are also learners.
+   * @param message
+   */
+  public void sendToAllLearners(String message) {
+    ArrayList<BufferedWriter> writers = new ArrayList<>();
+    for (Map.Entry acceptor : acceptorLookUpServersReadersWriters.entrySet()) {
+      writers.add((BufferedWriter) acceptor.getValue());
+    }
+    for (Map.Entry proposer : proposerLookUpServersReadersWriters.entrySet()) {
+      writers.add((BufferedWriter) proposer.getValue());
+    }
+    for (Map.Entry learner : learnerLookUpServersReadersWriters.entrySet()) {
+      writers.add((BufferedWriter) learner.getValue());
+    }
+    for (BufferedWriter writer : writers) {
+      try {
+        writeToPaxosServer(writer, message);
+      } catch (IOException e) {
+        logger.logger.warning("Could not notify learner of transaction");
+      }
+    }
+  }
+
+  /**
+   * Check whether the given number of acceptors is a strict majority of all acceptors.
+   * @param numAcceptors
+   * @return true if more than half of the acceptors are counted
+   */
+  public boolean isMajorityOfAcceptors(int numAcceptors) {
+    return numAcceptors > acceptorLookUpServersReadersWriters.size() / 2;
+  }
+
+  /**
+   * Start a round of the paxos algorithm so that LookUp servers can get consensus on the given
+   * value. The start of the algorithm is to set the proposal number (these are always monotonically
+   * increasing) and the value, and send out prepare requests to all of the acceptor LookUp servers.
+   * The acceptors' responses are received elsewhere (where all socket messages are received and
+   * handled in helper functions).
+   * @param value
+   */
+  public void startClassicPaxosRound(String value) {
+    long proposalNum;
+    synchronized (classicRoundLock) {
+      // get a proposal number based on the current time that is larger than the last one.
+      proposalNum = Math.max(new Date().getTime(), currentProposalNumber + 1);
+      currentProposalNumber = proposalNum;
+      proposedTransaction = value;
+      chosenTransaction = null;
+      largestPromiseNum = -1;
+      largestPromiseTransaction = null;
+      numPromisedAcceptors = 0;
+      numAcceptedAcceptors = 0;
+      reachedMajorityPromises = false;
+      reachedMajorityAcceptances = false;
+    }
+    logger.logger.info("Starting paxos round for proposal number " + proposalNum);
+    // Prepare acceptors by asking to reply with promise.
+    sendToAllAcceptors("prepare@#@" + proposalNum);
+  }
+
+  /**
+   * Propose a batch of transactions as a single value and wait until consensus is reached on it. In
+   * classic mode only one round can be in flight, so the batcher gives the batch an ID and waits
+   * until a value with that ID is chosen, whether in a round of this proposer or in one of another
+   * proposer that found the batch accepted. The transactions of the batch were already carried out
+   * on this server when they were submitted, so a round that times out or chooses another value is
+   * retried for as long as it takes rather than leave this server diverged. In multi-paxos mode the
+   * batch is handed to the leader as soon as fewer than "paxos.pipelineWindow"
+   * slots are in flight, so many slots can be waiting for their accept round at once.
+   * @param batch
+   * @param roundTimeoutMillis
+   */
+  public void proposeBatch(String batch, long roundTimeoutMillis) {
+    if (paxosMode.equalsIgnoreCase("multi")) {
+      awaitPipelineWindow(roundTimeoutMillis);
+      proposeWithStableLeader(batch);
+      return;
+    }
+    String batchID = myServerID + "." + batchIDEpoch + "." + (++numProposedClassicBatches);
+    String value = TransactionCodec.appendToBatch(batch, BATCH_ID_PREFIX + batchID);
+    synchronized (classicRoundLock) {
+      proposedBatchID = batchID;
+      isProposedBatchChosen = false;
+    }
+    for (int attempt = 1; ; attempt++) {
+      startClassicPaxosRound(value);
+      synchronized (classicRoundLock) {
+        long deadline = System.currentTimeMillis() + roundTimeoutMillis;
+        while (!isProposedBatchChosen && chosenTransaction == null && System.currentTimeMillis() < deadline) {
+          try {
+            classicRoundLock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (isProposedBatchChosen) {
+          return;
+        }
+      }
+      logger.logger.warning("Paxos round for batch " + batchID + " was not chosen, attempt " + attempt);
+    }
+  }
+
+  /**
+   * Record the value chosen by the current classic paxos round and wake up the batcher waiting on it.
+   * @param proposalNum
+   * @param value
+   */
+  public void classicRoundChosen(long proposalNum, String value) {
+    synchronized (classicRoundLock) {
+      if (proposalNum == currentProposalNumber) {
+        chosenTransaction = value;
+        classicRoundLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Log and carry out a value chosen in a classic round, unless the batch it holds was carried out
+   * before. The batch this server is proposing was carried out when its transactions were
+   * submitted, so it is only logged, and the batcher waiting for it is woken up. Must be called
+   * while holding classicRoundLock.
+   * @param proposalNum
+   * @param value
+   */
+  public void learnChosenValue(long proposalNum, String value) {
+    String batchID = getBatchID(value);
+    if (!rememberAppliedBatchID(batchID)) {
+      logger.logger.info("Batch " + batchID + " chosen again for proposal number " + proposalNum
+              + " was already carried out");
+      return;
+    }
+    logDurably(WriteAheadLog.COMMIT, null, String.valueOf(proposalNum), value);
+    if (batchID != null && batchID.equals(proposedBatchID)) {
+      proposedBatchID = null;
+      isProposedBatchChosen = true;
+      classicRoundLock.notifyAll();
+    } else {
+      applyChosenValue(value);
+    }
+  }
+
+  /**
+   * Get the ID a classic proposer gave the batch in a paxos value, which is its last element.
+   * @param value
+   * @return the batch ID, or null if the value has none
+   */
+  public static String getBatchID(String value) {
+    List<String> elements;
+    try {
+      elements = TransactionCodec.decodeBatch(value);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    String lastElement = elements.isEmpty() ? "" : elements.get(elements.size() - 1);
+    return lastElement.startsWith(BATCH_ID_PREFIX) ? lastElement.substring(BATCH_ID_PREFIX.length()) : null;
+  }
+
+  /**
+   * Remember the ID of a batch that is carried out. Must be called while holding classicRoundLock.
+   * @param batchID may be null for values without an ID
+   * @return false if the batch was already carried out before, otherwise true
+   */
+  public boolean rememberAppliedBatchID(String batchID) {
+    if (batchID == null) {
+      return true;
+    }
+    if (!recentAppliedBatchIDs.add(batchID)) {
+      return false;
+    }
+    if (recentAppliedBatchIDs.size() > NUM_RECENT_APPLIED_BATCH_IDS) {
+      Iterator<String> oldest = recentAppliedBatchIDs.iterator();
+      oldest.next();
+      oldest.remove();
+    }
+    return true;
+  }
+
+  /**
+   * Carry out a chosen paxos value, which is a batch of one or more transactions, in order. Every
+   * server skips a malformed batch or transaction in the same way, so one that can not be carried
+   * out is logged and skipped rather than stopping the thread that learned it.
+   * @param value
+   */
+  public void applyChosenValue(String value) {
+    List<String> batch;
+    try {
+      batch = TransactionCodec.decodeBatch(value);
+    } catch (IllegalArgumentException e) {
+      logger.logger.warning("Skipped malformed chosen value: " + e.getMessage());
+      return;
+    }
+    for (String transaction : batch) {
+      String[] transactionInfo = TransactionCodec.decodeTransaction(transaction);
+      if (transactionInfo.length > 1) {
+        try {
+          applyTransaction(transactionInfo);
+        } catch (RuntimeException e) {
+          logger.logger.warning("Skipped malformed " + transactionInfo[0] + " transaction: " + e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Class that can be executed by a thread, which collects the transactions submitted by client and
+   * chatroom handlers and proposes them in batches. A batch is closed once it holds the maximum
+   * number of transactions or once the maximum delay has passed since its first transaction, so a
+   * lone transaction is proposed almost right away while a busy server packs many transactions into
+   * one paxos value.
+   */
+  public class PaxosBatcher implements Runnable {
+
+    private final LinkedBlockingQueue<String> pendingTransactions = new LinkedBlockingQueue<>();
+    private final int maxTransactions;
+    private final long maxDelayNanos;
+    private final long roundTimeoutMillis;
+    private long proposedBatches = 0;
+    private long proposedTransactions = 0;
+
+    /**
+     * Constructor for the paxos batcher that sets the limits of a batch.
+     * @param maxTransactions
+     * @param maxDelayMicros
+     * @param roundTimeoutMillis
+     */
+    public PaxosBatcher(int maxTransactions, long maxDelayMicros, long roundTimeoutMillis) {
+      this.maxTransactions = Math.max(1, maxTransactions);
+      this.maxDelayNanos = Math.max(0, maxDelayMicros) * 1000;
+      this.roundTimeoutMillis = roundTimeoutMillis;
+    }
+
+    /**
+     * Queue a transaction to be proposed in the next batch.
+     * @param transaction
+     */
+    public void submit(String transaction) {
+      this.pendingTransactions.add(transaction);
+    }
+
+    /**
+     * Continuously wait for a first transaction, fill the batch up until it is full or its delay
+     * has passed, and propose it.
+     */
+    @Override
+    public void run() {
+      ArrayList<String> batch = new ArrayList<>();
+      while (true) {
+        try {
+          batch.add(this.pendingTransactions.take());
+          long deadline = System.nanoTime() + this.maxDelayNanos;
+          while (batch.size() < this.maxTransactions) {
+            long remaining = deadline - System.nanoTime();
+            String transaction = remaining > 0
+                    ? this.pendingTransactions.poll(remaining, TimeUnit.NANOSECONDS)
+                    : this.pendingTransactions.poll();
+            if (transaction == null) {
+              break;
+            }
+            batch.add(transaction);
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        this.proposedBatches++;
+        this.proposedTransactions += batch.size();
+        logger.logger.info("Proposing batch of " + batch.size() + " transactions, average batch size "
+                + (this.proposedTransactions / this.proposedBatches));
+        proposeBatch(TransactionCodec.encodeBatch(batch), this.roundTimeoutMillis);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Wait until fewer slots than the pipeline window are in flight or waiting for leadership. If the
+   * window does not drain within the timeout, the accept requests of the in-flight slots are sent
+   * again in case they were lost.
+   * @param timeoutMillis
+   */
+  public void awaitPipelineWindow(long timeoutMillis) {
+    synchronized (multiPaxosLock) {
+      while (numInFlightSlots + transactionsAwaitingLeadership.size() >= pipelineWindow) {
+        long before = System.currentTimeMillis();
+        try {
+          multiPaxosLock.wait(timeoutMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        if (System.currentTimeMillis() - before >= timeoutMillis && isLeader
+                && numInFlightSlots + transactionsAwaitingLeadership.size() >= pipelineWindow) {
+          logger.logger.warning("Pipeline window stayed full, sending in-flight accept requests again");
+          for (PaxosInstance instance : new ArrayList<>(paxosInstances.values())) {
+            if (instance.isInFlight()) {
+              proposeInSlot(instance, instance.proposedValue);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Propose a transaction in multi-paxos mode. A leader that already holds a promised ballot skips
+   * the prepare/promise phase and sends the transaction to the acceptors in the next log slot right
+   * away. Otherwise the transaction waits until this server has won leadership.
+   * @param transaction
+   */
+  public void proposeWithStableLeader(String transaction) {
+    synchronized (multiPaxosLock) {
+      if (isLeader) {
+        PaxosInstance instance = getPaxosInstance(nextSlot++);
+        instance.appliedLocally = true;
+        proposeInSlot(instance, transaction);
+      } else {
+        transactionsAwaitingLeadership.add(transaction);
+        if (!isSeekingLeadership && !isLeadershipRetryPending) {
+          seekLeadership();
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the paxos instance of a log slot, creating it if this server has no state for the slot yet.
+   * Must be called while holding multiPaxosLock.
+   * @param slot
+   * @return the paxos instance of the slot
+   */
+  public PaxosInstance getPaxosInstance(long slot) {
+    PaxosInstance instance = paxosInstances.get(slot);
+    if (instance == null) {
+      instance = new PaxosInstance(slot);
+      paxosInstances.put(slot, instance);
+    }
+    return instance;
+  }
+
+  /**
+   * Start the only prepare phase of a leadership by asking all acceptors to promise a new ballot for
+   * every log slot. Ballots are unique per server since the server ID is in the low bits. Must be
+   * called while holding multiPaxosLock.
+   */
+  private void seekLeadership() {
+    leaderBallotRound++;
+    leaderBallot = (leaderBallotRound << 16) | myServerID;
+    isSeekingLeadership = true;
+    numLeaderPromises = 0;
+    recoveredSlotBallots.clear();
+    recoveredSlotTransactions.clear();
+    logger.logger.info("Seeking paxos leadership with ballot " + leaderBallot);
+    sendToAllAcceptors("prepareLeader@#@" + leaderBallot);
+  }
+
+  /**
+   * Seek leadership again after a random backoff. Two proposers that keep preempting each other's
+   * ballots would otherwise never get a value chosen. Must be called while holding multiPaxosLock.
+   */
+  private void retryLeadershipAfterBackoff() {
+    if (isLeadershipRetryPending) {
+      return;
+    }
+    isLeadershipRetryPending = true;
+    long backoffMillis = ThreadLocalRandom.current().nextLong(10, 100);
+    executionPolicy.execute("lookup-paxos-leadership-retry", () -> {
+      try {
+        Thread.sleep(backoffMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (multiPaxosLock) {
+        isLeadershipRetryPending = false;
+        if (!isLeader && !isSeekingLeadership
+                && (numInFlightSlots > 0 || !transactionsAwaitingLeadership.isEmpty())) {
+          seekLeadership();
+        }
+      }
+    });
+  }
+
+  /**
+   * Become the leader once a majority of acceptors promised the ballot. Values that acceptors had
+   * already accepted in earlier ballots are proposed again in their slots so that nothing that may
+   * have been chosen is lost, slots that no acceptor knows a value for are filled with no-ops so
+   * that learners are not stuck waiting for them, and this server's own undecided slots are
+   * proposed again with the new ballot. Then the transactions that waited for leadership get the
+   * next free slots. Must be called while holding multiPaxosLock.
+   */
+  private void becomeLeader() {
+    isLeader = true;
+    isSeekingLeadership = false;
+    logger.logger.info("Won paxos leadership with ballot " + leaderBallot);
+    ArrayList<String> displacedTransactions = new ArrayList<>();
+    HashSet<Long> proposedSlots = new HashSet<>();
+    for (Map.Entry<Long,String> recovered : recoveredSlotTransactions.entrySet()) {
+      if (recovered.getKey() < nextSlotToApply) {
+        // the slot was chosen and carried out while the promises were coming in.
+        continue;
+      }
+      PaxosInstance instance = getPaxosInstance(recovered.getKey());
+      if (instance.chosenValue != null || recovered.getValue().equals(instance.proposedValue)) {
+        continue;
+      }
+      proposedSlots.add(recovered.getKey());
+      if (instance.isInFlight() && instance.appliedLocally) {
+        displacedTransactions.add(instance.proposedValue);
+      }
+      // another leader proposed this value, so this server has not carried it out yet.
+      instance.appliedLocally = false;
+      proposeInSlot(instance, recovered.getValue());
+    }
+    for (long slot = nextSlotToApply; slot < nextSlot; slot++) {
+      PaxosInstance instance = getPaxosInstance(slot);
+      if (proposedSlots.contains(slot)) {
+        continue;
+      }
+      if (instance.isInFlight()) {
+        proposeInSlot(instance, instance.proposedValue);
+      } else if (instance.chosenValue == null) {
+        proposeInSlot(instance, NO_OP_VALUE);
+      }
+    }
+    displacedTransactions.addAll(transactionsAwaitingLeadership);
+    transactionsAwaitingLeadership.clear();
+    for (String transaction : displacedTransactions) {
+      PaxosInstance instance = getPaxosInstance(nextSlot++);
+      instance.appliedLocally = true;
+      proposeInSlot(instance, transaction);
+    }
+    multiPaxosLock.notifyAll();
+  }
+
+  /**
+   * Send the accept request for a value in the given log slot under the current ballot. Must be
+   * called while holding multiPaxosLock.
+   * @param instance
+   * @param value
+   */
+  private void proposeInSlot(PaxosInstance instance, String value) {
+    if (!instance.isInFlight()) {
+      numInFlightSlots++;
+      instance.proposeNanos = System.nanoTime();
+    }
+    instance.proposedValue = value;
+    instance.acceptedBy.clear();
+    sendToAllAcceptors("acceptSlot@#@" + leaderBallot + "@#@" + instance.slot + "@#@" + value);
+  }
+
+  /**
+   * Record the chosen value of a log slot, then carry out every chosen slot that is next in slot
+   * order. Slots chosen out of order wait until all slots before them are chosen, so every server
+   * carries out the same transactions in the same order. If another leader's value was chosen in a
+   * slot this server was proposing its own transactions in, they are proposed again in a later slot.
+   * Must be called while holding multiPaxosLock.
+   * @param instance
+   * @param value
+   */
+  public void slotChosen(PaxosInstance instance, String value) {
+    String displacedValue = null;
+    if (instance.isInFlight()) {
+      numInFlightSlots--;
+      multiPaxosLock.notifyAll();
+      if (!value.equals(instance.proposedValue)) {
+        if (instance.appliedLocally) {
+          displacedValue = instance.proposedValue;
+        }
+        instance.appliedLocally = false;
+      }
+    }
+    instance.chosenValue = value;
+    instance.acceptedValue = null;
+    nextSlot = Math.max(nextSlot, instance.slot + 1);
+    PaxosInstance next;
+    while ((next = paxosInstances.get(nextSlotToApply)) != null && next.chosenValue != null) {
+      if (!next.appliedLocally) {
+        applyChosenValue(next.chosenValue);
+      }
+      paxosInstances.remove(nextSlotToApply);
+      nextSlotToApply++;
+    }
+    if (displacedValue != null && !displacedValue.equals(NO_OP_VALUE)) {
+      proposeWithStableLeader(displacedValue);
+    }
+  }
+
   /**
    * Carry out a login transaction by logging in the given user with their username and password.
    * @param transactionInfo
@@ -184,10 +1500,7 @@ public class LookUpServer {
   public void doLogoutTransaction(String[] transactionInfo) {
     String username = cleanString(transactionInfo[1]);
     loggedInUsersAndPasswords.remove(username);
-    for (Map.Entry chatNameChatroomInfo : chatNameChatroomInfoStore.entrySet()) {
-      ChatroomInfo chatroomInfo = (ChatroomInfo) chatNameChatroomInfo.getValue();
-      chatroomInfo.removeMember(username);
-    }
+    removeFromAllChatrooms(username);
   }
 
   /**
@@ -220,6 +1533,8 @@ public class LookUpServer {
    * Carry out a create chat transaction by creating a new chatroomInfo objet and setting the ID,
    * host username, chat name, groupIP, address for new members to connect to chatroom server, and
    * adding the host user as a member. Then add the chatroomInfo object to collection of chatroomInfos.
+   * The groupIP is the one the proposer allocated, which transactions logged before groups were part
+   * of them do not hold, so it is allocated here instead.
    * @param transactionInfo
    */
   public void doCreateChatTransaction(String[] transactionInfo) {
@@ -232,17 +1547,21 @@ public class LookUpServer {
     } catch (UnknownHostException e) {
       logger.logger.warning("Could not get InetAddress from hostname");
     }
-    ChatroomInfo newChatroomInfo = new ChatroomInfo();
+    ChatroomInfo newChatroomInfo = newChatroomInfo();
     int newID = nextChatroomID;
     newChatroomInfo.setID(newID);
     nextChatroomID++;
     newChatroomInfo.setHostUsername(username);
     newChatroomInfo.setName(chatName);
-    int newGroupIPIndex = nextGroupIPLastDigit;
-    newChatroomInfo.setGroupIP(groupIPPrefix + newGroupIPIndex);
-    nextGroupIPLastDigit++;
+    if (transactionInfo.length > 4) {
+      String groupIP = cleanString(transactionInfo[4]);
+      multicastGroupAllocator.acquire(groupIP);
+      newChatroomInfo.setGroupIP(groupIP);
+    } else {
+      newChatroomInfo.setGroupIP(multicastGroupAllocator.allocate(newID));
+    }
     newChatroomInfo.setInetAddress(address);
-    newChatroomInfo.putMember(username);
+    addChatroomMember(newChatroomInfo, username);
     chatNameChatroomInfoStore.put(chatName, newChatroomInfo);
   }
 
@@ -270,20 +1589,44 @@ public class LookUpServer {
     String chatName = cleanString(transactionInfo[1]);
     String username = cleanString(transactionInfo[2]);
     ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
-    chatroomInfo.putMember(username);
+    addChatroomMember(chatroomInfo, username);
   }
 
   /**
    * Carry out a message sent transaction by putting a sender username and message contents into
    * their respective ordered lists in the chatroomInfo object associated with the given chat name.
+   * A message whose sequence number was already put is a duplicate and is skipped, as is a message
+   * of a chatroom this server does not know. Transactions logged before messages had sequence
+   * numbers are put without checking, and those logged before they carried the time the proposer
+   * got the message are put as sent now.
    * @param transactionInfo
    */
   public void doMessageSentTransaction(String[] transactionInfo) {
     String senderUsername = cleanString(transactionInfo[1]);
     String messageSent = cleanString(transactionInfo[2]);
     String chatName = cleanString(transactionInfo[3]);
+    long messageSequence = transactionInfo.length > 4 ? Long.parseLong(transactionInfo[4]) : -1;
+    long sentMillis = transactionInfo.length > 5 ? Long.parseLong(transactionInfo[5]) : System.currentTimeMillis();
+    ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
+    if (chatroomInfo == null) {
+      logger.logger.warning("Skipped message " + messageSequence + " of unknown chatroom " + chatName);
+    } else if (!chatroomInfo.putMessage(senderUsername, messageSent, messageSequence, sentMillis)) {
+      logger.logger.info("Skipped duplicate message " + messageSequence + " of chatroom " + chatName);
+    }
+  }
+
+  /**
+   * Carry out a set retention transaction by giving the chatroomInfo associated with the given chat
+   * name its new retention policy. The history compactor discards what the policy does not keep.
+   * @param transactionInfo
+   */
+  public void doSetRetentionTransaction(String[] transactionInfo) {
+    String chatName = cleanString(transactionInfo[1]);
     ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
-    chatroomInfo.putMessage(senderUsername, messageSent);
+    if (chatroomInfo != null) {
+      chatroomInfo.setRetentionPolicy(new RetentionPolicy(Long.parseLong(transactionInfo[2]),
+              Long.parseLong(transactionInfo[3]), Long.parseLong(transactionInfo[4])));
+    }
   }
 
   /**
@@ -295,7 +1638,7 @@ public class LookUpServer {
     String leaverUsername = cleanString(transactionInfo[1]);
     String chatName = cleanString(transactionInfo[2]);
     ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
-    chatroomInfo.removeMember(leaverUsername);
+    removeChatroomMember(chatroomInfo, leaverUsername);
     loggedInUsersAndPasswords.remove(leaverUsername);
   }
 
@@ -308,7 +1651,7 @@ public class LookUpServer {
     String leaverUsername = cleanString(transactionInfo[1]);
     String chatName = cleanString(transactionInfo[2]);
     ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
-    chatroomInfo.removeMember(leaverUsername);
+    removeChatroomMember(chatroomInfo, leaverUsername);
   }
 
   /**
@@ -342,7 +1685,7 @@ public class LookUpServer {
     loggedInUsersAndPasswords.remove(oldHostUser);
     ChatroomInfo chatroomInfo = hostUsernameToChatroomInfos.get(oldHostUser);
     if (chatroomInfo != null) {
-      chatroomInfo.removeMember(oldHostUser);
+      removeChatroomMember(chatroomInfo, oldHostUser);
     }
   }
 
@@ -355,7 +1698,57 @@ public class LookUpServer {
     String oldHostUser = cleanString(transactionInfo[1]);
     ChatroomInfo chatroomInfo = hostUsernameToChatroomInfos.get(oldHostUser);
     if (chatroomInfo != null) {
-      chatroomInfo.removeMember(oldHostUser);
+      removeChatroomMember(chatroomInfo, oldHostUser);
+    }
+  }
+
+  /**
+   * Carry out a chatroom notice transaction by writing the notice to the clients subscribed to the
+   * chatroom's notices on this server. The server the notice came from already wrote it to its own.
+   * @param transactionInfo
+   */
+  public void doChatroomNoticeTransaction(String[] transactionInfo) {
+    if (transactionInfo.length > 2) {
+      writeChatroomNotice(transactionInfo[1], Arrays.copyOfRange(transactionInfo, 2, transactionInfo.length));
+    }
+  }
+
+  /**
+   * Carry out a transaction that consensus was reached on. There are multiple types of transactions
+   * that can be carried out to keep the servers in sync.
+   * @param transactionInfo
+   */
+  public void applyTransaction(String[] transactionInfo) {
+    String transactionType = transactionInfo[0];
+    // given the type of transaction, have the appropriate handler take care of it.
+    if (transactionType.equalsIgnoreCase("login")) {
+      doLoginTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("register")) {
+      doRegisterTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("logout")) {
+      doLogoutTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("createChat")) {
+      doCreateChatTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("updateChatConnectionPort")) {
+      doUpdateChatConnectionPortTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("joinChat")) {
+      doJoinChatTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("messageSent")) {
+      doMessageSentTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("setRetention")) {
+      doSetRetentionTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("chatroomLogout")) {
+      doChatroomLogoutTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("backToChatSelection")) {
+      doBackToChatSelectionTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("reCreateChat")) {
+      doRecreateChatTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("chatroomServerHostChatroomLogout")) {
+      doChatroomServerHostChatroomLogoutTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("chatroomServerHostBackToChatSelection")) {
+      doChatroomServerHostBackToChatSelectionTransaction(transactionInfo);
+    } else if (transactionType.equalsIgnoreCase("chatroomNotice")) {
+      doChatroomNoticeTransaction(transactionInfo);
     }
   }
 
@@ -383,190 +1776,503 @@ public class LookUpServer {
       if (existingReader != null) {
         this.readerToAnotherPaxosLookUpServer = existingReader;
       }
-      if (existingWriter != null) {
-        this.writerToAnotherPaxosLookUpServer = existingWriter;
+      if (existingWriter != null) {
+        this.writerToAnotherPaxosLookUpServer = existingWriter;
+      }
+    }
+
+    /**
+     * Handle a prepare message from another LookUp server by checking the proposal number and not
+     * promising if the maximum promised proposal number is greater than the proposal number. Also
+     * do not accept if it is a duplicate proposal number. If ok, send proposal number, max accepted
+     * proposal number, and max accepted proposal transaction along with promise.
+     * @param messageArray
+     */
+    public void handlePrepare(String[] messageArray) {
+      long proposalNum = Long.parseLong(messageArray[1]);
+      if (maxPromisedProposalNumber >= proposalNum || lastChosenProposalNumber >= proposalNum) {
+        // deny the prepare request by not replying
+      } else {
+        logger.logger.info("Promising for proposal number " + proposalNum);
+        maxPromisedProposalNumber = proposalNum;
+        String promise = "promise@#@" + proposalNum + "@#@" + maxAcceptedProposalNumber + "@#@" + maxAcceptedProposalTransaction;
+        // the promise is only sent once it would survive a restart of this acceptor.
+        logDurably(WriteAheadLog.PROMISE, () -> {
+          try {
+            writeToPaxosServer(writerToAnotherPaxosLookUpServer, promise);
+          } catch (IOException e) {
+            logger.logger.warning("Could not notify proposer of promise");
+          }
+        }, String.valueOf(proposalNum));
+      }
+    }
+
+    /**
+     * Handle a promise message from an acceptor by checking if the given maximum accepted proposal
+     * number is larger than the largest promised proposal number, and updating the largest promised
+     * proposal number and largest promised transaction if so. Then, check if a majority of acceptors
+     * have promised and if so, send accept requests to all acceptors.
+     * @param messageArray
+     */
+    public void handlePromise(String[] messageArray) {
+      long proposalNum = Long.parseLong(messageArray[1]);
+      long givenMaxAcceptedProposalNumber = Long.parseLong(messageArray[2]);
+      String givenMaxAcceptedProposalTransaction = messageArray[3];
+      String acceptRequest;
+      synchronized (classicRoundLock) {
+        // promises for an earlier round must not count towards the current one.
+        if (proposalNum != currentProposalNumber) {
+          return;
+        }
+        if (givenMaxAcceptedProposalNumber > largestPromiseNum) {
+          largestPromiseNum = givenMaxAcceptedProposalNumber;
+          largestPromiseTransaction = givenMaxAcceptedProposalTransaction;
+        }
+        numPromisedAcceptors++;
+        if (acceptorLookUpServersReadersWriters.size() / 2 > numPromisedAcceptors || reachedMajorityPromises) {
+          return;
+        }
+        reachedMajorityPromises = true;
+        // propose the value accepted with the highest proposal number if any, otherwise our own.
+        String value = largestPromiseTransaction != null ? largestPromiseTransaction : proposedTransaction;
+        acceptRequest = "accept@#@" + proposalNum + "@#@" + value;
+      }
+      logger.logger.info("Majority of promises reached so requesting acceptors to accept");
+      sendToAllAcceptors(acceptRequest);
+    }
+
+    /**
+     * Handle accept request from proposer. If the proposal number is smaller than the max promised
+     * proposal number then ignore, but otherwise, update the max accepted proposal number, the max
+     * accepted proposal transaction, and the max promised proposal number and respond to the
+     * proposer with an acceptance and proposal number and transaction.
+     * @param messageArray
+     */
+    public void handleAccept(String[] messageArray) {
+      long proposalNum = Long.parseLong(messageArray[1]);
+      String givenTransaction = messageArray[2];
+      // an accept request that arrives after its round was already chosen must not be accepted,
+      // otherwise the next round would propose the chosen value again.
+      if (maxPromisedProposalNumber <= proposalNum && lastChosenProposalNumber < proposalNum) {
+        maxAcceptedProposalNumber = proposalNum;
+        maxAcceptedProposalTransaction = givenTransaction;
+        maxPromisedProposalNumber = proposalNum;
+        logger.logger.info("Accepting proposal number " + proposalNum);
+        logDurably(WriteAheadLog.ACCEPT, () -> {
+          try {
+            writeToPaxosServer(writerToAnotherPaxosLookUpServer, "acceptResponse@#@" + proposalNum + "@#@" + givenTransaction);
+          } catch (IOException e) {
+            logger.logger.warning("Could not notify proposer of acceptance");
+          }
+        }, String.valueOf(proposalNum), givenTransaction);
+      }
+    }
+
+    /**
+     * Handle an acceptance from an acceptor. Keep track of the number of acceptors that have
+     * accepted. If a majority has then notify all the learners (proposers and acceptors are also
+     * learners) pf what transaction to carry out.
+     * @param messageArray
+     */
+    public void handleAcceptResponse(String[] messageArray) {
+      long proposalNum = Long.parseLong(messageArray[1]);
+      String givenTransaction = messageArray[2];
+      synchronized (classicRoundLock) {
+        if (proposalNum != currentProposalNumber) {
+          return;
+        }
+        numAcceptedAcceptors++;
+        if (acceptorLookUpServersReadersWriters.size() / 2 > numAcceptedAcceptors || reachedMajorityAcceptances) {
+          return;
+        }
+        reachedMajorityAcceptances = true;
+        learnChosenValue(proposalNum, givenTransaction);
+      }
+      logger.logger.info("Majority of acceptances reached so notifying learners");
+      // notify all acceptors, proposers and learners of what transaction they should carry out.
+      sendToAllLearners("educate@#@" + givenTransaction + "@#@" + proposalNum);
+      // the proposer variables stay as they are until the next round starts, so that late
+      // acceptances of this round cannot reach a second majority.
+      classicRoundChosen(proposalNum, givenTransaction);
+    }
+
+    /**
+     * Handle an education request from proposers, for which this server will carry out the given
+     * batch of transactions. There are multiple types of transactions that can be carried out to keep
+     * the servers in sync. The proposal number of the chosen round is remembered so that requests of
+     * that round arriving late are refused.
+     * @param messageArray
+     */
+    public void handleEducate(String[] messageArray) {
+      String transaction = messageArray[1];
+      List<String> batch;
+      try {
+        batch = TransactionCodec.decodeBatch(transaction);
+      } catch (IllegalArgumentException e) {
+        logger.logger.warning("Dropped education request with malformed batch: " + e.getMessage());
+        return;
+      }
+      String[] firstTransactionInfo = TransactionCodec.decodeTransaction(batch.get(0));
+      if (firstTransactionInfo.length > 1) {
+        int numTransactions = getBatchID(transaction) == null ? batch.size() : batch.size() - 1;
+        logger.logger.info("Received education request for " + numTransactions + " transactions starting with "
+                + firstTransactionInfo[0]);
+        long proposalNum = messageArray.length > 2 ? Long.parseLong(messageArray[2]) : -1;
+        // chosen values are logged and carried out in one step so the log keeps their order.
+        synchronized (classicRoundLock) {
+          if (!rememberChosenProposalNumber(proposalNum)) {
+            return;
+          }
+          prepareForNextPaxosRound();
+          lastChosenProposalNumber = Math.max(lastChosenProposalNumber, proposalNum);
+          learnChosenValue(proposalNum, transaction);
+        }
       }
     }
 
     /**
-     * Handle a prepare message from another LookUp server by checking the proposal number and not
-     * promising if the maximum promised proposal number is greater than the proposal number. Also
-     * do not accept if it is a duplicate proposal number. If ok, send proposal number, max accepted
-     * proposal number, and max accepted proposal transaction along with promise.
+     * Handle a leadership prepare from a proposer in multi-paxos mode. Promise the ballot for all log
+     * slots if it is higher than any ballot promised before, and send back every accepted value the
+     * new leader must not lose along with the highest slot accepted so far. Otherwise tell the
+     * proposer which ballot it has to beat.
      * @param messageArray
      */
-    public void handlePrepare(String[] messageArray) {
-      long proposalNum = Long.parseLong(messageArray[1]);
-      if (maxPromisedProposalNumber >= proposalNum) {
-        // deny the prepare request by not replying
-      } else {
-        logger.logger.info("Promising for proposal number " + proposalNum);
-        maxPromisedProposalNumber = proposalNum;
-        String promise = "promise@#@" + proposalNum + "@#@" + maxAcceptedProposalNumber + "@#@" + maxAcceptedProposalTransaction;
+    public void handlePrepareLeader(String[] messageArray) {
+      long ballot = Long.parseLong(messageArray[1]);
+      String reply;
+      boolean promised = false;
+      synchronized (multiPaxosLock) {
+        if (ballot > promisedLeaderBallot) {
+          promised = true;
+          promisedLeaderBallot = ballot;
+          StringBuilder promise = new StringBuilder("promiseLeader@#@" + ballot + "@#@"
+                  + Math.max(highestAcceptedSlot, nextSlotToApply - 1));
+          for (PaxosInstance instance : paxosInstances.values()) {
+            if (instance.acceptedValue != null) {
+              promise.append("@#@").append(instance.slot)
+                      .append("@#@").append(instance.acceptedBallot)
+                      .append("@#@").append(instance.acceptedValue);
+            }
+          }
+          reply = promise.toString();
+          logger.logger.info("Promising leadership ballot " + ballot);
+        } else {
+          reply = "nack@#@" + promisedLeaderBallot;
+        }
+      }
+      Runnable sendReply = () -> {
         try {
-          writerToAnotherPaxosLookUpServer.write(promise);
-          writerToAnotherPaxosLookUpServer.newLine();
-          writerToAnotherPaxosLookUpServer.flush();
+          writeToPaxosServer(this.writerToAnotherPaxosLookUpServer, reply);
         } catch (IOException e) {
-          logger.logger.warning("Could not notify proposer of promise");
+          logger.logger.warning("Could not answer leadership prepare");
         }
+      };
+      if (promised) {
+        logDurably(WriteAheadLog.PROMISE_LEADER, sendReply, String.valueOf(ballot));
+      } else {
+        sendReply.run();
       }
     }
 
     /**
-     * Handle a promise message from an acceptor by checking if the given maximum accepted proposal
-     * number is larger than the largest promised proposal number, and updating the largest promised
-     * proposal number and largest promised transaction if so. Then, check if a majority of acceptors
-     * have promised and if so, send accept requests to all acceptors.
+     * Handle a leadership promise from an acceptor. Remember the highest-ballot value accepted in
+     * every slot that is not chosen yet, and become the leader once a majority of acceptors promised.
      * @param messageArray
      */
-    public void handlePromise(String[] messageArray) {
-      long proposalNum = Long.parseLong(messageArray[1]);
-      long givenMaxAcceptedProposalNumber = Long.parseLong(messageArray[2]);
-      String givenMaxAcceptedProposalTransaction = messageArray[3];
-      if (givenMaxAcceptedProposalNumber > largestPromiseNum) {
-        largestPromiseNum = givenMaxAcceptedProposalNumber;
-        largestPromiseTransaction = givenMaxAcceptedProposalTransaction;
-      }
-      numPromisedAcceptors++;
-      if (acceptorLookUpServersReadersWriters.size() / 2 <= numPromisedAcceptors && !reachedMajorityPromises) {
-        reachedMajorityPromises = true;
-        logger.logger.info("Majority of promises reached so requesting acceptors to accept");
-        for (Map.Entry acceptor : acceptorLookUpServersReadersWriters.entrySet()) {
-          BufferedWriter acceptorWriter = (BufferedWriter) acceptor.getValue();
-          try {
-            acceptorWriter.write("accept@#@" + proposalNum + "@#@" + largestPromiseTransaction);
-            acceptorWriter.newLine();
-            acceptorWriter.flush();
-          } catch (IOException e) {
-            logger.logger.warning("Could not request acceptance from acceptor");
+    public void handlePromiseLeader(String[] messageArray) {
+      long ballot = Long.parseLong(messageArray[1]);
+      long acceptorHighestSlot = Long.parseLong(messageArray[2]);
+      synchronized (multiPaxosLock) {
+        if (!isSeekingLeadership || ballot != leaderBallot) {
+          return;
+        }
+        nextSlot = Math.max(nextSlot, acceptorHighestSlot + 1);
+        for (int i = 3; i + 2 < messageArray.length; i += 3) {
+          long slot = Long.parseLong(messageArray[i]);
+          long acceptedBallot = Long.parseLong(messageArray[i + 1]);
+          PaxosInstance instance = paxosInstances.get(slot);
+          if (slot < nextSlotToApply || (instance != null && instance.chosenValue != null)) {
+            continue;
           }
+          Long recoveredBallot = recoveredSlotBallots.get(slot);
+          if (recoveredBallot == null || acceptedBallot > recoveredBallot) {
+            recoveredSlotBallots.put(slot, acceptedBallot);
+            recoveredSlotTransactions.put(slot, messageArray[i + 2]);
+          }
+        }
+        numLeaderPromises++;
+        if (isMajorityOfAcceptors(numLeaderPromises)) {
+          becomeLeader();
         }
       }
     }
 
     /**
-     * Handle accept request from proposer. If the proposal number is smaller than the max promised
-     * proposal number then ignore, but otherwise, update the max accepted proposal number, the max
-     * accepted proposal transaction, and the max promised proposal number and respond to the
-     * proposer with an acceptance and proposal number and transaction.
+     * Handle an accept request for a log slot from a leader. Accept it unless a higher ballot was
+     * promised since, in which case the leader is told that it lost leadership.
      * @param messageArray
      */
-    public void handleAccept(String[] messageArray) {
-      long proposalNum = Long.parseLong(messageArray[1]);
-      String givenTransaction = messageArray[2];
-      if (maxPromisedProposalNumber <= proposalNum) {
-        maxAcceptedProposalNumber = proposalNum;
-        maxAcceptedProposalTransaction = givenTransaction;
-        maxPromisedProposalNumber = proposalNum;
-        logger.logger.info("Accepting proposal number " + proposalNum);
+    public void handleAcceptSlot(String[] messageArray) {
+      long ballot = Long.parseLong(messageArray[1]);
+      long slot = Long.parseLong(messageArray[2]);
+      String reply;
+      boolean accepted = false;
+      synchronized (multiPaxosLock) {
+        if (ballot >= promisedLeaderBallot) {
+          accepted = true;
+          promisedLeaderBallot = ballot;
+          if (slot >= nextSlotToApply) {
+            PaxosInstance instance = getPaxosInstance(slot);
+            if (instance.chosenValue == null) {
+              instance.acceptedBallot = ballot;
+              instance.acceptedValue = messageArray[3];
+            }
+          }
+          highestAcceptedSlot = Math.max(highestAcceptedSlot, slot);
+          reply = "acceptedSlot@#@" + ballot + "@#@" + slot;
+        } else {
+          reply = "nack@#@" + promisedLeaderBallot;
+        }
+      }
+      Runnable sendReply = () -> {
         try {
-          this.writerToAnotherPaxosLookUpServer.write("acceptResponse@#@" + proposalNum + "@#@" + givenTransaction);
-          this.writerToAnotherPaxosLookUpServer.newLine();
-          this.writerToAnotherPaxosLookUpServer.flush();
+          writeToPaxosServer(this.writerToAnotherPaxosLookUpServer, reply);
         } catch (IOException e) {
-          logger.logger.warning("Could not notify proposer of acceptance");
+          logger.logger.warning("Could not answer accept request for slot " + slot);
         }
+      };
+      // accepts of many pipelined slots are made durable by one group commit before being answered.
+      if (accepted) {
+        logDurably(WriteAheadLog.ACCEPT_SLOT, sendReply, String.valueOf(ballot), String.valueOf(slot), messageArray[3]);
+      } else {
+        sendReply.run();
       }
     }
 
     /**
-     * Handle an acceptance from an acceptor. Keep track of the number of acceptors that have
-     * accepted. If a majority has then notify all the learners (proposers and acceptors are also
-     * learners) pf what transaction to carry out.
+     * Handle an acceptance of a log slot. Once a majority of acceptors accepted the slot under the
+     * current ballot, the value is chosen and all learners are educated with it.
      * @param messageArray
      */
-    public void handleAcceptResponse(String[] messageArray) {
-      long proposalNum = Long.parseLong(messageArray[1]);
-      String givenTransaction = messageArray[2];
-      numAcceptedAcceptors++;
-      if (acceptorLookUpServersReadersWriters.size() / 2 <= numAcceptedAcceptors && !reachedMajorityAcceptances) {
-        reachedMajorityAcceptances = true;
-        logger.logger.info("Majority of acceptances reached so notifying learners");
-        // motify all acceptors of what transaction they should carry out,
-        for (Map.Entry acceptor : acceptorLookUpServersReadersWriters.entrySet()) {
-          BufferedWriter acceptorWriter = (BufferedWriter) acceptor.getValue();
-          try {
-            acceptorWriter.write("educate@#@" + largestPromiseTransaction);
-            acceptorWriter.newLine();
-            acceptorWriter.flush();
-          } catch (IOException e) {
-            logger.logger.warning("Could not notify acceptors of transaction");
-          }
+    public void handleAcceptedSlot(String[] messageArray) {
+      long ballot = Long.parseLong(messageArray[1]);
+      long slot = Long.parseLong(messageArray[2]);
+      synchronized (multiPaxosLock) {
+        PaxosInstance instance = paxosInstances.get(slot);
+        if (ballot != leaderBallot || instance == null || !instance.isInFlight()) {
+          return;
         }
-        // notify all proposers of what transaction they should carry out.
-        for (Map.Entry proposer : proposerLookUpServersReadersWriters.entrySet()) {
-          BufferedWriter proposerWriter = (BufferedWriter) proposer.getValue();
-          try {
-            proposerWriter.write("educate@#@" + largestPromiseTransaction);
-            proposerWriter.newLine();
-            proposerWriter.flush();
-          } catch (IOException e) {
-            logger.logger.warning("Could not notify proposers of transaction");
-          }
+        // count every acceptor once even if the accept request was sent to it again.
+        instance.acceptedBy.add(this.writerToAnotherPaxosLookUpServer);
+        if (!isMajorityOfAcceptors(instance.acceptedBy.size())) {
+          return;
         }
-        // notify all learners of what transaction they should carry out.
-        for (Map.Entry learner : learnerLookUpServersReadersWriters.entrySet()) {
-          BufferedWriter learnerWriter = (BufferedWriter) learner.getValue();
-          try {
-            learnerWriter.write("educate@#@" + largestPromiseTransaction);
-            learnerWriter.newLine();
-            learnerWriter.flush();
-          } catch (IOException e) {
-            logger.logger.warning("Could not notify learners of transaction");
+        String value = instance.proposedValue;
+        logger.logger.info("Chose slot " + slot + " in " + (System.nanoTime() - instance.proposeNanos) / 1000
+                + " micros with " + numInFlightSlots + " slots in flight");
+        sendToAllLearners("educateSlot@#@" + slot + "@#@" + value);
+        logDurably(WriteAheadLog.COMMIT_SLOT, null, String.valueOf(slot), value);
+        slotChosen(instance, value);
+      }
+    }
+
+    /**
+     * Handle a rejection from an acceptor that promised a higher ballot. This proposer is no longer
+     * the leader, and it seeks leadership again with a higher ballot after a backoff if it has
+     * transactions that are not chosen yet.
+     * @param messageArray
+     */
+    public void handleNack(String[] messageArray) {
+      long promisedBallot = Long.parseLong(messageArray[1]);
+      synchronized (multiPaxosLock) {
+        // an acceptor that recovered its state may have promised this very ballot to the proposer
+        // this server was before a restart, so an equal ballot is lost as well.
+        if (promisedBallot < leaderBallot) {
+          return;
+        }
+        leaderBallotRound = Math.max(leaderBallotRound, promisedBallot >> 16);
+        if (isLeader || isSeekingLeadership) {
+          logger.logger.info("Lost paxos leadership to ballot " + promisedBallot);
+          isLeader = false;
+          isSeekingLeadership = false;
+          if (numInFlightSlots > 0 || !transactionsAwaitingLeadership.isEmpty()) {
+            retryLeadershipAfterBackoff();
           }
         }
-        prepareForNextPaxosRound();
       }
     }
 
     /**
-     * Handle an education request from proposers, for which this server will carry out the given
-     * transaction. There are multiple types of transactions that can be carried out to keep the
-     * servers in sync.
+     * Handle an education request for a chosen log slot in multi-paxos mode. The slot is carried out
+     * once every slot before it has been carried out, and only once even if a new leader chose it
+     * again.
      * @param messageArray
      */
-    public void handleEducate(String[] messageArray) {
-      String transaction = messageArray[1];
-      String[] transactionInfo = transaction.split("&%%");
-      if (transactionInfo != null && transactionInfo.length > 1) {
-        String transactionType = transactionInfo[0];
-        logger.logger.info("Received education request for " + transactionType);
-        prepareForNextPaxosRound();
-        // given the type of transaction, have the appropriate handler take care of it.
-        if (transactionType.equalsIgnoreCase("login")) {
-          doLoginTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("register")) {
-          doRegisterTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("logout")) {
-          doLogoutTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("createChat")) {
-          doCreateChatTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("updateChatConnectionPort")) {
-          doUpdateChatConnectionPortTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("joinChat")) {
-          doJoinChatTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("messageSent")) {
-          doMessageSentTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("chatroomLogout")) {
-          doChatroomLogoutTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("backToChatSelection")) {
-          doBackToChatSelectionTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("reCreateChat")) {
-          doRecreateChatTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("chatroomServerHostChatroomLogout")) {
-          doChatroomServerHostChatroomLogoutTransaction(transactionInfo);
-        } else if (transactionType.equalsIgnoreCase("chatroomServerHostBackToChatSelection")) {
-          doChatroomServerHostBackToChatSelectionTransaction(transactionInfo);
+    public void handleEducateSlot(String[] messageArray) {
+      long slot = Long.parseLong(messageArray[1]);
+      synchronized (multiPaxosLock) {
+        if (slot < nextSlotToApply) {
+          return;
+        }
+        PaxosInstance instance = getPaxosInstance(slot);
+        if (instance.chosenValue != null) {
+          return;
+        }
+        logger.logger.info("Received education request for slot " + slot);
+        logDurably(WriteAheadLog.COMMIT_SLOT, null, String.valueOf(slot), messageArray[2]);
+        slotChosen(instance, messageArray[2]);
+      }
+    }
+
+    /**
+     * Handle a state request from a server that joins the cluster by streaming the state to it from
+     * another thread, so that this connection keeps being served meanwhile.
+     * @param messageArray
+     */
+    public void handleRequestState(String[] messageArray) {
+      BufferedWriter writer = this.writerToAnotherPaxosLookUpServer;
+      logger.logger.info("LookUp server " + messageArray[1] + " requested state transfer");
+      executionPolicy.execute("lookup-state-transfer", () -> sendState(writer));
+    }
+
+    /**
+     * Handle a chunk of transferred state by adding it to the state received so far.
+     * @param messageArray
+     */
+    public void handleStateChunk(String[] messageArray) {
+      synchronized (stateTransferLock) {
+        if (!isAwaitingStateTransfer) {
+          return;
+        }
+        int chunkIndex = Integer.parseInt(messageArray[1]);
+        if (chunkIndex != numStateTransferChunks) {
+          logger.logger.warning("Received state transfer chunk " + chunkIndex + " out of order");
+          return;
+        }
+        byte[] chunk = Base64.getDecoder().decode(messageArray[2]);
+        stateTransferBytes.write(chunk, 0, chunk.length);
+        numStateTransferChunks++;
+      }
+    }
+
+    /**
+     * Handle the end of a state transfer by decoding the received state and switching over to it.
+     * If the state did not arrive in full, ask the next running server for it instead.
+     * @param messageArray
+     */
+    public void handleStateEnd(String[] messageArray) {
+      int numChunks = Integer.parseInt(messageArray[1]);
+      int numBytes = Integer.parseInt(messageArray[2]);
+      byte[] state;
+      long transferNanos;
+      synchronized (stateTransferLock) {
+        if (!isAwaitingStateTransfer) {
+          return;
+        }
+        state = stateTransferBytes.toByteArray();
+        transferNanos = System.nanoTime() - stateTransferStartNanos;
+        stateTransferBytes = new ByteArrayOutputStream();
+        if (numChunks != numStateTransferChunks || numBytes != state.length) {
+          logger.logger.warning("State transfer was incomplete");
+          state = null;
+        }
+      }
+      StateSnapshot snapshot = null;
+      if (state != null) {
+        try {
+          snapshot = StateSnapshot.readFrom(new ByteArrayInputStream(state));
+        } catch (IOException e) {
+          logger.logger.warning("Could not decode transferred state");
+        }
+      }
+      if (snapshot == null) {
+        requestStateFromNextSource();
+        return;
+      }
+      double megabytesPerSecond = state.length / 1048576.0 / Math.max(1, transferNanos) * 1e9;
+      logger.logger.info("Received state of " + state.length + " bytes in " + numChunks + " chunks in "
+              + transferNanos / 1000000 + " ms (" + String.format("%.1f", megabytesPerSecond) + " MB/s) with "
+              + snapshot.usernamePasswordStore.size() + " users and " + snapshot.chatrooms.size() + " chatrooms");
+      completeStateTransfer(snapshot);
+    }
+
+    /**
+     * Handle a running server that cannot send its state because it is catching up itself by asking
+     * the next one.
+     * @param messageArray
+     */
+    public void handleStateUnavailable(String[] messageArray) {
+      logger.logger.info("LookUp server " + messageArray[1] + " could not transfer its state");
+      requestStateFromNextSource();
+    }
+
+    /**
+     * Handle a message from another LookUp server by its type (usually paxos requests, but can also
+     * be notifying this LookUp server of the other LookUp server's paxos role).
+     * @param line
+     */
+    public void handleMessage(String line) {
+      String[] messageArray = line.split("@#@");
+      if (line.length() == 0 || messageArray[1] == null) {
+        return;
+      }
+      // if the other LookUp server tells this server their role, then keep track of it appropriately.
+      if (messageArray[0].equalsIgnoreCase("tellMyRole")) {
+        String otherServerPaxosRole = messageArray[1];
+        logger.logger.info("Received tellMyRole notification from " + otherServerPaxosRole);
+        if (otherServerPaxosRole.equalsIgnoreCase("acceptor")) {
+          acceptorLookUpServersReadersWriters.put(readerToAnotherPaxosLookUpServer, writerToAnotherPaxosLookUpServer);
+        } else if (otherServerPaxosRole.equalsIgnoreCase("proposer")) {
+          proposerLookUpServersReadersWriters.put(readerToAnotherPaxosLookUpServer, writerToAnotherPaxosLookUpServer);
+        } else { // learner
+          learnerLookUpServersReadersWriters.put(readerToAnotherPaxosLookUpServer, writerToAnotherPaxosLookUpServer);
         }
+        if (!otherServerPaxosRole.equalsIgnoreCase("proposer")) {
+          addStateTransferSource(writerToAnotherPaxosLookUpServer);
+        }
+      } else if (messageArray[0].equalsIgnoreCase("prepare")) {
+        this.handlePrepare(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("promise")) {
+        this.handlePromise(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("accept")) {
+        handleAccept(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("acceptResponse")) {
+        handleAcceptResponse(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("educate")) {
+        if (!bufferIfAwaitingStateTransfer(() -> handleEducate(messageArray))) {
+          handleEducate(messageArray);
+        }
+      } else if (messageArray[0].equalsIgnoreCase("prepareLeader")) {
+        handlePrepareLeader(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("promiseLeader")) {
+        handlePromiseLeader(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("acceptSlot")) {
+        handleAcceptSlot(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("acceptedSlot")) {
+        handleAcceptedSlot(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("nack")) {
+        handleNack(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("educateSlot")) {
+        if (!bufferIfAwaitingStateTransfer(() -> handleEducateSlot(messageArray))) {
+          handleEducateSlot(messageArray);
+        }
+      } else if (messageArray[0].equalsIgnoreCase("requestState")) {
+        handleRequestState(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("stateChunk")) {
+        handleStateChunk(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("stateEnd")) {
+        handleStateEnd(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("stateUnavailable")) {
+        handleStateUnavailable(messageArray);
+      } else {
+        logger.logger.warning("A message of unknown type " + line + " was received.");
       }
     }
 
     /**
      * Set up the buffered reader and buffered writer to another LookUp server for the purposes of
      * communicating to carry out the paxos algorithm. Continuously listen to the reader and handle
-     * each type of message (usually paxos requests, but can also be notifying this LookUp server of
-     * the other LookUp server's paxos role.
+     * each message, logging and dropping any that is malformed.
      */
     @Override
     public void run() {
@@ -584,33 +2290,11 @@ public class LookUpServer {
           if (line == null) {
             break;
           }
-          String[] messageArray = line.split("@#@");
-          if (line.length() == 0 || messageArray[1] == null) {
-            continue;
-          }
-          // if the other LookUp server tells this server their role, then keep track of it appropriately.
-          if (messageArray[0].equalsIgnoreCase("tellMyRole")) {
-            String otherServerPaxosRole = messageArray[1];
-            logger.logger.info("Received tellMyRole notification from " + otherServerPaxosRole);
-            if (otherServerPaxosRole.equalsIgnoreCase("acceptor")) {
-              acceptorLookUpServersReadersWriters.put(readerToAnotherPaxosLookUpServer, writerToAnotherPaxosLookUpServer);
-            } else if (otherServerPaxosRole.equalsIgnoreCase("proposer")) {
-              proposerLookUpServersReadersWriters.put(readerToAnotherPaxosLookUpServer, writerToAnotherPaxosLookUpServer);
-            } else { // learner
-              learnerLookUpServersReadersWriters.put(readerToAnotherPaxosLookUpServer, writerToAnotherPaxosLookUpServer);
-            }
-          } else if (messageArray[0].equalsIgnoreCase("prepare")) {
-            this.handlePrepare(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("promise")) {
-            this.handlePromise(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("accept")) {
-            handleAccept(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("acceptResponse")) {
-            handleAcceptResponse(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("educate")) {
-            handleEducate(messageArray);
-          } else {
-            logger.logger.warning("A message of unknown type " + line + " was received.");
+          try {
+            handleMessage(line);
+          } catch (RuntimeException e) {
+            // a malformed message must not stop this server from serving the connection.
+            logger.logger.warning("Dropped malformed message from other LookUp server: " + e);
           }
         }
       } catch (IOException e) {
@@ -628,7 +2312,7 @@ public class LookUpServer {
     try {
       Socket socket = new Socket(registryAddress, registryPort);
       RegistryServerListener registryServerListener = new RegistryServerListener(socket);
-      new Thread(registryServerListener).start();
+      executionPolicy.executeService("lookup-registry-listener", registryServerListener);
     } catch (IOException e) {
       logger.logger.warning("Could not connect socket to registry server");
     }
@@ -691,11 +2375,12 @@ public class LookUpServer {
             int newServerPort = Integer.parseInt(messageArray[2]);
             String paxosRole = messageArray[3];
             Socket newServerSocket = new Socket(newServerAddress, newServerPort);
+            newServerSocket.setTcpNoDelay(true);
             logger.logger.info("Connected socket to LookUp server on port " + newServerPort);
             // Start a new thread to handle communication with new LookUp server.
             InstigateSocketConnectionToOtherPaxosServer instigateSocketConnectionToOtherPaxosServer
                     = new InstigateSocketConnectionToOtherPaxosServer(newServerSocket, paxosRole);
-            new Thread(instigateSocketConnectionToOtherPaxosServer).start();
+            executionPolicy.execute("lookup-paxos-instigator", instigateSocketConnectionToOtherPaxosServer);
           }
         } catch (IOException e) {
           logger.logger.warning("Could not receive message fro registry server");
@@ -758,7 +2443,10 @@ public class LookUpServer {
         // start listener so that reader can read messages from the other server.
         PaxosSocketMessageReceiver paxosSocketMessageReceiver = new PaxosSocketMessageReceiver(this.otherPaxosServerSocket,
                 this.readerForOtherPaxosServerSocket, this.writerForOtherPaxosServerSocket);
-        new Thread(paxosSocketMessageReceiver).start();
+        if (!executionPolicy.executeConnectionHandler("lookup-paxos-receiver", paxosSocketMessageReceiver)) {
+          logger.logger.warning("Closed socket connection to other LookUp server, no thread left");
+          this.otherPaxosServerSocket.close();
+        }
       } catch (IOException e) {
         logger.logger.warning("Could not notify other LookUp server of my paxos role");
       }
@@ -778,7 +2466,10 @@ public class LookUpServer {
           clientSocket = serverSocket.accept();
           logger.logger.info("Accepted client socket connection");
           ClientSocketHandler clientSocketHandler = new ClientSocketHandler(clientSocket);
-          new Thread(clientSocketHandler).start();
+          if (!executionPolicy.executeConnectionHandler("lookup-client-handler", clientSocketHandler)) {
+            logger.logger.warning("Refused client socket connection, no thread left");
+            clientSocket.close();
+          }
         } catch (IOException e) {
           logger.logger.warning("Could not accept client socket connection");
         }
@@ -786,16 +2477,30 @@ public class LookUpServer {
     }
   }
 
+  /**
+   * Create a handler for a client connection served by the NIO front end. Responses are written to
+   * the given message channel, which queues them onto the client's non-blocking channel.
+   * @param socket
+   * @param clientChannel
+   * @return a client socket handler whose requests are fed to it one at a time
+   */
+  ClientSocketHandler createClientSocketHandler(Socket socket, MessageChannel clientChannel) {
+    ClientSocketHandler clientSocketHandler = new ClientSocketHandler(socket);
+    clientSocketHandler.clientChannel = clientChannel;
+    return clientSocketHandler;
+  }
+
   /**
    * Class that can be executed by a thread, which listens for and handles messages from a client.
    */
-  private class ClientSocketHandler implements Runnable {
+  class ClientSocketHandler implements Runnable {
     private String clientUsername;
     private Socket clientSocket;
     private InetAddress clientAddress;
     private int clientPort;
-    private BufferedWriter clientWriter;
-    private BufferedReader clientReader;
+    private MessageChannel clientChannel;
+    // chatroom whose notices this client subscribed to, or null
+    private String subscribedChatroomName;
 
     private BufferedWriter heartbeatWriter;
     private BufferedReader heartbeatReader;
@@ -812,29 +2517,13 @@ public class LookUpServer {
     }
 
     /**
-     * Start a round of the paxos algorithm so that LookUp servers can get consensus on the
-     * transaction they will all carry out to stay up-to-date as replicas. The start of the algorithm
-     * is to set the proposal number (these are always monotonically increasing) and transaction
-     * and send out prepare requests to all of the acceptor LookUp servers. The acceptors' responses
-     * are received elsewhere (where all socket messages are received and handled in helper functions).
+     * Hand a transaction to the paxos batcher so that LookUp servers can get consensus on the
+     * transaction they will all carry out to stay up-to-date as replicas. The batcher proposes it
+     * together with the other transactions submitted around the same time.
      * @param transactionInfo
      */
     private void startPaxos(String transactionInfo) {
-      // get a proposal number based on the current time.
-      long proposalNum = new Date().getTime();
-      largestPromiseTransaction = transactionInfo;
-      logger.logger.info("Starting paxos round for proposal number " + proposalNum);
-      // Prepare acceptors by asking to reply with promise.
-      for (Map.Entry acceptor : acceptorLookUpServersReadersWriters.entrySet()) {
-        try {
-          BufferedWriter acceptorWriter = (BufferedWriter) acceptor.getValue();
-          acceptorWriter.write("prepare@#@" + proposalNum);
-          acceptorWriter.newLine();
-          acceptorWriter.flush();
-        } catch (IOException ie) {
-          logger.logger.warning("Could not send prepare request for proposal number " + proposalNum);
-        }
-      }
+      paxosBatcher.submit(transactionInfo);
     }
 
     /**
@@ -842,27 +2531,27 @@ public class LookUpServer {
      * account, if the password is correct for that username, and if that user is already logged in.
      * If acceptable, carry out paxos round and log the user in.
      * @param accountInfo
-     * @return a string message corresponding to if login was successful, username/password was
+     * @return response fields corresponding to if login was successful, username/password was
      *          incorrect, or user was already logged in.
      */
-    private String handleLogin(String[] accountInfo) {
+    private String[] handleLogin(String[] accountInfo) {
       String username = accountInfo[1];
       String password = accountInfo[2];
       if (usernamePasswordStore.get(username) != null
               && usernamePasswordStore.get(username).equalsIgnoreCase(password)
               && !loggedInUsersAndPasswords.containsKey(username)) {
-        startPaxos("login&%%" + username + "&%%" + password);
+        startPaxos(TransactionCodec.encodeTransaction("login", username, password));
         loggedInUsersAndPasswords.put(username, password);
         this.clientUsername = username;
-        usernameToSocketWriters.put(username, this.clientWriter);
+        usernameToClientChannels.put(username, this.clientChannel);
         logger.logger.info("Successfully logged in user " + username);
-        return "success";
+        return new String[]{ "success" };
       } else if (usernamePasswordStore.get(username) == null || !usernamePasswordStore.get(username).equalsIgnoreCase(password)){
         logger.logger.info("Login username/password incorrect");
-        return "incorrect";
+        return new String[]{ "incorrect" };
       } else {
         logger.logger.info("Login request for " + username + " who is already logged in");
-        return "alreadyLoggedIn";
+        return new String[]{ "alreadyLoggedIn" };
       }
     }
 
@@ -870,24 +2559,24 @@ public class LookUpServer {
      * Handle register request from client by checking if a user with that username already exists.
      * If not, carry out paxos round and then add user and log them in.
      * @param accountInfo
-     * @return a string corresponding to a successful register or if a user with that username
+     * @return response fields corresponding to a successful register or if a user with that username
      *          already exists.
      */
-    private String handleRegister(String[] accountInfo) {
+    private String[] handleRegister(String[] accountInfo) {
       String username = accountInfo[1];
       String password = accountInfo[2];
       if (usernamePasswordStore.containsKey(username)) {
         logger.logger.info("Register request for existing username " + username);
-        return "exists";
+        return new String[]{ "exists" };
       } else {
         // start paxos so other servers are updated
-        startPaxos("register&%%" + username + "&%%" + password);
+        startPaxos(TransactionCodec.encodeTransaction("register", username, password));
         this.clientUsername = username;
-        usernameToSocketWriters.put(username, this.clientWriter);
+        usernameToClientChannels.put(username, this.clientChannel);
         usernamePasswordStore.put(username, password);
         loggedInUsersAndPasswords.put(username, password);
         logger.logger.info("Registered user " + username);
-        return "success";
+        return new String[]{ "success" };
       }
     }
 
@@ -897,12 +2586,12 @@ public class LookUpServer {
      * @param accountInfo
      * @return success when user is logged out.
      */
-    private String handleChatSelectionLogout(String[] accountInfo) {
+    private String[] handleChatSelectionLogout(String[] accountInfo) {
       String username = accountInfo[1];
-      startPaxos("logout&%%" + username);
+      startPaxos(TransactionCodec.encodeTransaction("logout", username));
       loggedInUsersAndPasswords.remove(username);
       logger.logger.info("Logged out user " + username + " who was on chat selection screen");
-      return "success";
+      return new String[]{ "success" };
     }
 
     /**
@@ -911,19 +2600,20 @@ public class LookUpServer {
      * for the chatroomInfo, and setting up a socket for the chatroom server to connect to to receive
      * heartbeats and send information to the LookUp server.
      * @param chatRequest
-     * @return a string corresponding to if chat name is non-existent or if chat was successfully
+     * @return response fields corresponding to if chat name is non-existent or if chat was successfully
      *          recreated.
      */
-    private String handleReCreateChat(String[] chatRequest) {
+    private String[] handleReCreateChat(String[] chatRequest) {
       String chatName = chatRequest[1];
       String username = chatRequest[2];
       this.clientUsername = username;
       if (!chatNameChatroomInfoStore.containsKey(chatName)) {
         logger.logger.warning("Chatroom name non-existent and cannot be recreated");
-        return "non-existent";
+        return new String[]{ "non-existent" };
       } else {
         // start paxos so other servers are updated
-        startPaxos("reCreateChat&%%" + chatName + "&%%" + username + "&%%" + this.clientAddress.getHostAddress());
+        startPaxos(TransactionCodec.encodeTransaction("reCreateChat", chatName, username,
+                this.clientAddress.getHostAddress()));
         // set appropriate host-related data in chatroomInfo
         ChatroomInfo updatingChatroomInfo = chatNameChatroomInfoStore.get(chatName);
         updatingChatroomInfo.setHostUsername(username);
@@ -937,49 +2627,55 @@ public class LookUpServer {
         // and sending heartbeats.
         try {
           ServerSocket heartbeatServerSocket = new ServerSocket(0);
+          if (!executionPolicy.executeConnectionHandler("lookup-chatroom-heartbeat",
+                  new ChatroomHeartbeat(heartbeatServerSocket))) {
+            heartbeatServerSocket.close();
+            throw new IOException("No thread left for chatroom heartbeat");
+          }
           heartbeatAddress = heartbeatServerSocket.getInetAddress().getHostAddress();
           heartbeatPort = heartbeatServerSocket.getLocalPort();
-          new Thread(new ChatroomHeartbeat(heartbeatServerSocket)).start();
         } catch (IOException e) {
           logger.logger.warning("Could not create server socket for recreated chatroom server to connect to");
         }
         logger.logger.info("Recreated chatroom with name " + chatName + " hosted by " + username);
-        return "success@#@" + reUsedID + "@#@" + reUsedGroupIP + "@#@" + heartbeatAddress + "@#@" + heartbeatPort;
+        return new String[]{ "success", String.valueOf(reUsedID), reUsedGroupIP, heartbeatAddress,
+                String.valueOf(heartbeatPort), String.valueOf(updatingChatroomInfo.getNextMessageSequence()) };
       }
     }
 
     /**
      * Handle a create chat request from a client that is trying to create a chat with a certain
-     * name. If the chatname already exists then notify client that it exists. Else, start a paxos
-     * round, and create a new chatroomInfo with ID, host name, chat name, group IP for multicast,
-     * host socket address and port. Set up a socket for the chatroom server to connect to so that
-     * info about the chatroom can be received and heartbeats can be sent.
+     * name. If the chatname already exists then notify client that it exists. Else, allocate a
+     * group for multicast, start a paxos round, and create a new chatroomInfo with ID, host name,
+     * chat name, group IP and port for multicast, host socket address and port. Set up a socket for
+     * the chatroom server to connect to so that info about the chatroom can be received and
+     * heartbeats can be sent.
      * @param chatRequest
-     * @return a string corresponding to if chatroom already exists or if chat was created successfully.
+     * @return response fields corresponding to if chatroom already exists or if chat was created successfully.
      */
-    private String handleCreateChat(String[] chatRequest) {
+    private String[] handleCreateChat(String[] chatRequest) {
       String chatName = chatRequest[1];
       String username = chatRequest[2];
       this.clientUsername = username;
       // if chatroom by that name already exists, then notify client
       if (chatNameChatroomInfoStore.containsKey(chatName)) {
         logger.logger.info("Request to create chatroom with an existing name " + chatName);
-        return "exists";
+        return new String[]{ "exists" };
       } else {
-        // start paxos so other servers are updated
-        startPaxos("createChat&%%" + chatName + "&%%" + username + "&%%" + this.clientAddress.getHostAddress());
-        // create new chatroomInfo and set up all applicable details
-        ChatroomInfo newChatroomInfo = new ChatroomInfo();
         int newID = nextChatroomID;
+        String groupIP = multicastGroupAllocator.allocate(newID);
+        // start paxos so other servers are updated, and use the same group
+        startPaxos(TransactionCodec.encodeTransaction("createChat", chatName, username,
+                this.clientAddress.getHostAddress(), groupIP));
+        // create new chatroomInfo and set up all applicable details
+        ChatroomInfo newChatroomInfo = newChatroomInfo();
         newChatroomInfo.setID(newID);
         nextChatroomID++;
         newChatroomInfo.setHostUsername(username);
         newChatroomInfo.setName(chatName);
-        int newGroupIPIndex = nextGroupIPLastDigit;
-        newChatroomInfo.setGroupIP(groupIPPrefix + newGroupIPIndex);
-        nextGroupIPLastDigit++;
+        newChatroomInfo.setGroupIP(groupIP);
         newChatroomInfo.setInetAddress(this.clientAddress);
-        newChatroomInfo.putMember(username);
+        addChatroomMember(newChatroomInfo, username);
         chatNameChatroomInfoStore.put(chatName, newChatroomInfo);
         hostUsernameToChatroomInfos.put(username, newChatroomInfo);
         String heartbeatAddress = null;
@@ -988,14 +2684,20 @@ public class LookUpServer {
         // and sending heartbeats.
         try {
           ServerSocket heartbeatServerSocket = new ServerSocket(0);
+          if (!executionPolicy.executeConnectionHandler("lookup-chatroom-heartbeat",
+                  new ChatroomHeartbeat(heartbeatServerSocket))) {
+            heartbeatServerSocket.close();
+            throw new IOException("No thread left for chatroom heartbeat");
+          }
           heartbeatAddress = heartbeatServerSocket.getInetAddress().getHostAddress();
           heartbeatPort = heartbeatServerSocket.getLocalPort();
-          new Thread(new ChatroomHeartbeat(heartbeatServerSocket)).start();
         } catch (IOException e) {
           logger.logger.warning("Could not create server socket for recreated chatroom server to connect to");
         }
-        logger.logger.info("Created chatroom with name " + chatName + " hosted by " + username);
-        return "success@#@" + newID + "@#@" + groupIPPrefix + newGroupIPIndex+ "@#@" + heartbeatAddress + "@#@" + heartbeatPort;
+        logger.logger.info("Created chatroom with name " + chatName + " hosted by " + username + " on group "
+                + groupIP + ", " + multicastGroupAllocator.describeMetrics());
+        return new String[]{ "success", String.valueOf(newID), groupIP, heartbeatAddress,
+                String.valueOf(heartbeatPort) };
       }
     }
 
@@ -1033,7 +2735,12 @@ public class LookUpServer {
           Socket heartbeatSocket = this.heartbeatServerSocket.accept();
           heartbeatWriter = new BufferedWriter(new OutputStreamWriter(heartbeatSocket.getOutputStream()));
           heartbeatReader = new BufferedReader(new InputStreamReader(heartbeatSocket.getInputStream()));
-          new Thread(new ChatroomListener(heartbeatWriter,heartbeatReader)).start();
+          if (!executionPolicy.executeConnectionHandler("lookup-chatroom-listener",
+                  new ChatroomListener(heartbeatWriter,heartbeatReader))) {
+            // the heartbeats fail on the closed socket, so the chatroom gets a new host
+            logger.logger.warning("Closed socket connection from chatroom server, no thread left");
+            heartbeatSocket.close();
+          }
         } catch (IOException e) {
           logger.logger.warning("Could not accept socket connection from chatroom server");
         }
@@ -1054,29 +2761,19 @@ public class LookUpServer {
             // need to force a client to make a new chatroom server. Maybe have hashmap of client
             // usernames to readers/writers.
             ChatroomInfo chatroomInfo = hostUsernameToChatroomInfos.get(clientUsername);
-            chatroomInfo.removeMember(clientUsername);
+            removeChatroomMember(chatroomInfo, clientUsername);
             String newHost = chatroomInfo.getNewHost();
             if (newHost == null) {
               // this is the case that the host was the last member of the chatroom before they
               // exited, so we do not need to reboot the chatroom.
               hostUsernameToChatroomInfos.remove(clientUsername);
-              chatNameChatroomInfoStore.remove(chatroomInfo.name);
+              removeChatroom(chatroomInfo);
               logger.logger.info("Chatroom " + chatroomInfo.name + " deleted since host was last member");
             } else {
-              // LookUpServer multicasts to members with message that includes the name of the new
+              // LookUpServer notifies members with message that includes the name of the new
               // host and the name of the chatroom they should create. The member that is named in the
               // message will recreate chatroom with the given chatname.
-              try {
-                DatagramSocket datagramSocket = new DatagramSocket();
-                String message = "chatkey125" + "$@newHost@$@#@" + newHost;
-                byte[] buffer = message.getBytes();
-                String groupAddress = chatroomInfo.groupIP;
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(groupAddress), 4446);
-                datagramSocket.send(packet);
-                datagramSocket.close();
-              } catch (IOException se) {
-                logger.logger.warning("Could not multicast notification of new host " + newHost);
-              }
+              notifyChatroomMembers(chatroomInfo, "$@newHost@$", newHost);
             }
           }
         };
@@ -1086,8 +2783,6 @@ public class LookUpServer {
         this.heartbeatTimer.start();
         logger.logger.info("Started heartbeat timer for chatroom");
         hostUsernameToHearbeatTimer.put(clientUsername, this.heartbeatTimer);
-        // keep heartbeat timer alive
-        while (true) {}
       }
     }
 
@@ -1112,17 +2807,41 @@ public class LookUpServer {
 
       /**
        * Add the new message sent in chatroom to the history of messages sent in chatroomInfo and
-       * start paxos round prior to update all servers.
+       * start paxos round prior to update all servers. The message carries the sequence number the
+       * chatroom server gave it, and a message whose sequence number was already put is a resent
+       * duplicate that is dropped here instead of being replicated. The time the message got here is
+       * replicated with it, so every server discards it for its age at the same point of the history.
+       * The message is "messageSent@#@sequence@#@sender@#@text" split into at most four fields, so
+       * text containing "@#@" stays whole, and a message with a malformed sequence number is dropped.
        * @param messageArray
        */
       public void handleChatroomServerMessageSent(String[] messageArray) {
-        String senderUsername = messageArray[1];
-        String messageSent = messageArray[2];
+        if (messageArray.length < 4) {
+          logger.logger.warning("Dropped malformed message sent notification from chatroom server");
+          return;
+        }
+        long messageSequence;
+        try {
+          messageSequence = Long.parseLong(messageArray[1]);
+        } catch (NumberFormatException e) {
+          logger.logger.warning("Dropped message sent notification with bad sequence number " + messageArray[1]);
+          return;
+        }
+        String senderUsername = messageArray[2];
+        String messageSent = messageArray[3];
+        long sentMillis = System.currentTimeMillis();
         ChatroomInfo chatroomInfo = hostUsernameToChatroomInfos.get(clientUsername);
+        long expectedSequence = chatroomInfo.getNextMessageSequence();
+        if (!chatroomInfo.putMessage(senderUsername, messageSent, messageSequence, sentMillis)) {
+          logger.logger.info("Dropped duplicate message " + messageSequence + " of chatroom " + chatroomInfo.name);
+          return;
+        } else if (messageSequence > expectedSequence) {
+          logger.logger.warning("Chatroom " + chatroomInfo.name + " skipped from message " + expectedSequence
+                  + " to " + messageSequence);
+        }
         logger.logger.info("In chatroom " + chatroomInfo.name + " user " + senderUsername + " sent message: " + messageSent);
-        String transaction = "messageSent&%%" + messageArray[1] + "&%%" + messageArray[2] + "&%%" + chatroomInfo.name;
-        startPaxos(transaction);
-        chatroomInfo.putMessage(senderUsername, messageSent);
+        startPaxos(TransactionCodec.encodeTransaction("messageSent", senderUsername, messageSent, chatroomInfo.name,
+                String.valueOf(messageSequence), String.valueOf(sentMillis)));
       }
 
       /**
@@ -1133,10 +2852,10 @@ public class LookUpServer {
       public void handleChatroomServerChatroomLogout(String[] messageArray) {
         String leaverUsername = messageArray[1];
         ChatroomInfo chatroomInfo = hostUsernameToChatroomInfos.get(clientUsername);
-        String transaction = "chatroomLogout&%%" + messageArray[1] + "&%%" + chatroomInfo.name;
+        String transaction = TransactionCodec.encodeTransaction("chatroomLogout", messageArray[1], chatroomInfo.name);
         logger.logger.info("User " + leaverUsername + " logged out while in " + chatroomInfo.name);
         startPaxos(transaction);
-        chatroomInfo.removeMember(leaverUsername);
+        removeChatroomMember(chatroomInfo, leaverUsername);
         loggedInUsersAndPasswords.remove(leaverUsername);
       }
 
@@ -1155,11 +2874,11 @@ public class LookUpServer {
         hostUsernameToHearbeatTimer.remove(clientUsername);
         loggedInUsersAndPasswords.remove(clientUsername);
         ChatroomInfo chatroomInfo = hostUsernameToChatroomInfos.get(clientUsername);
-        startPaxos("chatroomServerHostChatroomLogout&%%" + clientUsername);
+        startPaxos(TransactionCodec.encodeTransaction("chatroomServerHostChatroomLogout", clientUsername));
         logger.logger.info("Host " + clientUsername + " has logged out while in chatroom " + chatroomInfo.name);
         // remove the host user from list of members in chatroomInfo and tell chatroom server to
         // remove its GUI
-        chatroomInfo.removeMember(clientUsername);
+        removeChatroomMember(chatroomInfo, clientUsername);
         this.chatroomWriter.write("removeGUI");
         this.chatroomWriter.newLine();
         this.chatroomWriter.flush();
@@ -1167,21 +2886,11 @@ public class LookUpServer {
         if (newHost != null) {
           // this is the case that there is another member in the chatroom, so we need to
           // reboot the chatroom.
-          try {
-            DatagramSocket datagramSocket = new DatagramSocket();
-            String message = "chatkey125" + "$@newHost@$@#@" + newHost;
-            byte[] buffer = message.getBytes();
-            String groupAddress = chatroomInfo.groupIP;
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(groupAddress), 4446);
-            datagramSocket.send(packet);
-            datagramSocket.close();
-          } catch (IOException se) {
-            logger.logger.warning("Could not send multicast to notify members of new host " + newHost);
-          }
+          notifyChatroomMembers(chatroomInfo, "$@newHost@$", newHost);
         } else {
           // this is the case that no one is left in the chatroom.
           hostUsernameToChatroomInfos.remove(clientUsername);
-          chatNameChatroomInfoStore.remove(chatroomInfo.name);
+          removeChatroom(chatroomInfo);
           logger.logger.info("No one left in chatroom " + chatroomInfo.name);
         }
       }
@@ -1194,9 +2903,9 @@ public class LookUpServer {
       public void handleChatroomServerBackToChatSelection(String[] messageArray) {
         String leaverUsername = messageArray[1];
         ChatroomInfo chatroomInfo = hostUsernameToChatroomInfos.get(clientUsername);
-        String transaction = "backToChatSelection&%%" + messageArray[1] + "&%%" + chatroomInfo.name;
+        String transaction = TransactionCodec.encodeTransaction("backToChatSelection", messageArray[1], chatroomInfo.name);
         startPaxos(transaction);
-        chatroomInfo.removeMember(leaverUsername);
+        removeChatroomMember(chatroomInfo, leaverUsername);
         logger.logger.info("User " + leaverUsername + " went back to chat selection screen");
       }
 
@@ -1213,34 +2922,24 @@ public class LookUpServer {
         // stop the heartbeat timer since chatroom server is leaving.
         hostUsernameToHearbeatTimer.get(clientUsername).stop();
         hostUsernameToHearbeatTimer.remove(clientUsername);
-        startPaxos("chatroomServerHostBackToChatSelection&%%" + clientUsername);
+        startPaxos(TransactionCodec.encodeTransaction("chatroomServerHostBackToChatSelection", clientUsername));
         // remove the host user from list of members in chatroomInfo and tell chatroom server to
         // remove its GUI
         ChatroomInfo chatroomInfo = hostUsernameToChatroomInfos.get(clientUsername);
         logger.logger.info("Host " + clientUsername + " has gone back to chat selection screen" +
                 " while in chatroom " + chatroomInfo.name);
-        chatroomInfo.removeMember(clientUsername);
+        removeChatroomMember(chatroomInfo, clientUsername);
         this.chatroomWriter.write("removeGUI");
         this.chatroomWriter.newLine();
         this.chatroomWriter.flush();
         String newHost = chatroomInfo.getNewHost();
         if (newHost != null) {
           // this is the case that there is another member in the chatroom, so reboot the chatroom.
-          try {
-            DatagramSocket datagramSocket = new DatagramSocket();
-            String message = "chatkey125" + "$@newHost@$@#@" + newHost;
-            byte[] buffer = message.getBytes();
-            String groupAddress = chatroomInfo.groupIP;
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(groupAddress), 4446);
-            datagramSocket.send(packet);
-            datagramSocket.close();
-          } catch (IOException se) {
-            logger.logger.warning("Could not send multicast to notify members of new host " + newHost);
-          }
+          notifyChatroomMembers(chatroomInfo, "$@newHost@$", newHost);
         } else {
           // this is the case that no one is left in the chatroom.
           hostUsernameToChatroomInfos.remove(clientUsername);
-          chatNameChatroomInfoStore.remove(chatroomInfo.name);
+          removeChatroom(chatroomInfo);
           logger.logger.info("No one left in chatroom " + chatroomInfo.name);
         }
       }
@@ -1260,7 +2959,7 @@ public class LookUpServer {
             }
             String[] messageArray = line.split("@#@");
             if (messageArray[0].equalsIgnoreCase("messageSent")) {
-              handleChatroomServerMessageSent(messageArray);
+              handleChatroomServerMessageSent(line.split("@#@", 4));
             } else if (messageArray[0].equalsIgnoreCase("chatroomLogout")) {
               handleChatroomServerChatroomLogout(messageArray);
             } else if (messageArray[0].equalsIgnoreCase("hostChatroomLogout")) {
@@ -1281,60 +2980,280 @@ public class LookUpServer {
     /**
      * Update the port that new users will connect to a chatroom server socket through.
      * @param updatePortMessage
-     * @return string indicating success of adding port
+     * @return response fields indicating success of adding port
      */
-    private String handleUpdateChatConnectionPort(String[] updatePortMessage) {
+    private String[] handleUpdateChatConnectionPort(String[] updatePortMessage) {
       int newPort = Integer.parseInt(updatePortMessage[1]);
       String chatroomName = updatePortMessage[2];
       // start paxos so other servers are updated
-      startPaxos("updateChatConnectionPort&%%" + newPort + "&%%" + chatroomName);
+      startPaxos(TransactionCodec.encodeTransaction("updateChatConnectionPort", String.valueOf(newPort), chatroomName));
       ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatroomName);
       chatroomInfo.setPort(newPort);
       logger.logger.info("Updated chatroom server socket port to " + newPort + " for " + chatroomName);
-      return "success";
+      return new String[]{ "success" };
     }
 
     /**
-     * Notify through multicast the members remaining in a chatroom that a new chatroom server was
+     * Notify the members remaining in a chatroom that a new chatroom server was
      * made and who the new host is and what address/port they can connect to the new chatroom server on.
      * @param notifyMessage
-     * @return a string indicating the success of notifying members
+     * @return response fields indicating the success of notifying members
      */
-    private String handleNotifyMembersOfRecreation(String[] notifyMessage) {
+    private String[] handleNotifyMembersOfRecreation(String[] notifyMessage) {
       String newServerAddress = notifyMessage[1];
       int newServerPort = Integer.parseInt(notifyMessage[2]);
       String chatName = notifyMessage[3];
       String newHost = notifyMessage[4];
-      // send multicast message to all remaining members of chatroom of who new host is and what
-      // address/port to connect to new chatroom server on.
+      // tell all remaining members of chatroom who new host is and what address/port to connect to
+      // new chatroom server on.
+      ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
+      notifyChatroomMembers(chatroomInfo, "$@notifyRecreation@$", newHost, newServerAddress,
+              String.valueOf(newServerPort));
+      logger.logger.info("Notified members of recreation of chatroom " + chatroomInfo.name
+              + " with new host " + newHost);
+      return new String[]{ "success" };
+    }
+
+    /**
+     * Write the entire history of chatroom messages from a chatroom to the client. The history is
+     * written from the chatroom's encoded messages, so only messages sent since the last request for
+     * it are encoded. A chatroom that does not exist has no messages.
+     * @param messageInfo
+     * @throws IOException
+     */
+    private void handleGetAllChatroomMessages(String[] messageInfo) throws IOException {
+      String givenChatname = messageInfo[1];
+      ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(givenChatname);
+      if (chatroomInfo == null) {
+        this.clientChannel.writeResponse(messageInfo[0], new String[0]);
+        return;
+      }
+      EncodedPairs encodedMessages = chatroomInfo.getEncodedMessages();
+      this.clientChannel.writePairsResponse(messageInfo[0], encodedMessages);
+      logger.logger.info("Got history of all " + encodedMessages.getNumPairs() + " messages for chatroom "
+              + givenChatname);
+    }
+
+    /**
+     * Get the version of the message history of a chatroom, so a caller that already has the
+     * history of that version does not need to get it again.
+     * @param messageInfo
+     * @return response fields with the status and the history version
+     */
+    private String[] handleGetChatroomHistoryVersion(String[] messageInfo) {
+      ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(messageInfo[1]);
+      if (chatroomInfo == null) {
+        return new String[]{ "nonexistent" };
+      }
+      return new String[]{ "success", String.valueOf(chatroomInfo.getHistoryVersion()) };
+    }
+
+    /**
+     * Get a page of the messages of a chatroom with sequence numbers from the given sequence number up
+     * to but not including the given end, holding at most MAX_CLIENT_HISTORY_PAGE_MESSAGES messages.
+     * The response holds the sequence number of the first message in the page and the sequence number
+     * to ask for the next page from, which is -1 once the end of the range was reached. A request
+     * without a valid range is answered with "invalid".
+     * @param messageInfo
+     * @return response fields with the status, first sequence number, cursor, and then the sender and
+     * contents of every message in the page.
+     */
+    private String[] handleGetChatroomMessageRange(String[] messageInfo) {
+      if (messageInfo.length < 4) {
+        return new String[]{ "invalid" };
+      }
+      String givenChatname = messageInfo[1];
+      ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(givenChatname);
+      if (chatroomInfo == null) {
+        return new String[]{ "nonexistent" };
+      }
+      long requestedFromSequence;
+      long requestedEndSequence;
       try {
-        DatagramSocket datagramSocket = new DatagramSocket();
-        String message = "chatkey125" + "$@notifyRecreation@$@#@" + newHost + "@#@" + newServerAddress + "@#@" + newServerPort;
-        byte[] buffer = message.getBytes();
-        ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
-        String groupAddress = chatroomInfo.groupIP;
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(groupAddress), 4446);
-        datagramSocket.send(packet);
-        datagramSocket.close();
-        logger.logger.info("Notified members of recreation of chatroom " + chatroomInfo.name
-                + " with new host " + newHost);
-      } catch (IOException se) {
-        logger.logger.warning("Could not multicast notification of recreation of chatroom");
+        requestedFromSequence = Long.parseLong(messageInfo[2]);
+        requestedEndSequence = Long.parseLong(messageInfo[3]);
+      } catch (NumberFormatException e) {
+        return new String[]{ "invalid" };
+      }
+      HistoryStore history = chatroomInfo.history;
+      long endSequence = Math.min(requestedEndSequence, history.getNextSequence());
+      long fromSequence = Math.max(requestedFromSequence, history.getFirstSequence());
+      long toSequence = Math.min(endSequence, fromSequence + MAX_CLIENT_HISTORY_PAGE_MESSAGES);
+      long cursor = toSequence < endSequence ? toSequence : -1;
+      logger.logger.info("Got messages " + fromSequence + " to " + toSequence + " of chatroom " + givenChatname);
+      return historyPageResponse(fromSequence, cursor, history.getMessages(fromSequence, toSequence));
+    }
+
+    /**
+     * Get a page of at most the given number of the latest messages of a chatroom that come before
+     * the given sequence number, or the latest messages overall if the sequence number is negative.
+     * The response holds the sequence number of the first message in the page and the sequence number
+     * to ask for older messages before, which is -1 once the oldest message is in the page. A request
+     * without a valid sequence number or with a negative number of messages is answered with
+     * "invalid".
+     * @param messageInfo
+     * @return response fields with the status, first sequence number, cursor, and then the sender and
+     * contents of every message in the page.
+     */
+    private String[] handleGetLatestChatroomMessages(String[] messageInfo) {
+      if (messageInfo.length < 4) {
+        return new String[]{ "invalid" };
+      }
+      String givenChatname = messageInfo[1];
+      ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(givenChatname);
+      if (chatroomInfo == null) {
+        return new String[]{ "nonexistent" };
+      }
+      long beforeSequence;
+      int requestedMessages;
+      try {
+        beforeSequence = Long.parseLong(messageInfo[2]);
+        requestedMessages = Integer.parseInt(messageInfo[3]);
+      } catch (NumberFormatException e) {
+        return new String[]{ "invalid" };
+      }
+      if (requestedMessages < 0) {
+        return new String[]{ "invalid" };
+      }
+      HistoryStore history = chatroomInfo.history;
+      long toSequence = beforeSequence < 0 ? history.getNextSequence()
+              : Math.min(beforeSequence, history.getNextSequence());
+      int numMessages = Math.min(requestedMessages, MAX_CLIENT_HISTORY_PAGE_MESSAGES);
+      long fromSequence = Math.max(toSequence - numMessages, history.getFirstSequence());
+      long cursor = fromSequence > history.getFirstSequence() ? fromSequence : -1;
+      logger.logger.info("Got messages " + fromSequence + " to " + toSequence + " of chatroom " + givenChatname);
+      return historyPageResponse(fromSequence, cursor, history.getMessages(fromSequence, toSequence));
+    }
+
+    /**
+     * Get a page of the latest messages of a chatroom like getLatestChatroomMessages, but with the
+     * senders and contents deflated with the chatroom's preset dictionary. The dictionary is only sent
+     * if its checksum is not the one the client says it already has. The response holds the first
+     * sequence number and cursor as for getLatestChatroomMessages, then the dictionary checksum, the
+     * dictionary in base64 (or nothing), the number of bytes before compression, and the compressed
+     * bytes in base64, which decode to the fields of HistoryCompression.encodePairs.
+     * @param messageInfo
+     * @return response fields with the status, first sequence number, cursor, dictionary and page
+     */
+    private String[] handleGetCompressedChatroomMessages(String[] messageInfo) {
+      String[] page = handleGetLatestChatroomMessages(messageInfo);
+      if (!page[0].equals("success")) {
+        return page;
+      }
+      ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(messageInfo[1]);
+      byte[] dictionary = chatroomInfo.getTransferDictionary();
+      long dictionaryChecksum = HistoryCompression.checksum(dictionary);
+      boolean hasDictionary = messageInfo.length > 4 && messageInfo[4].equals(String.valueOf(dictionaryChecksum));
+      long start = System.nanoTime();
+      byte[] raw = HistoryCompression.encodePairs(Arrays.copyOfRange(page, 3, page.length));
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+      byte[] compressed;
+      try {
+        compressed = HistoryCompression.compress(deflater, raw, dictionary);
+      } finally {
+        deflater.end();
+      }
+      logger.logger.info("Compressed " + (page.length - 3) / 2 + " messages of chatroom " + messageInfo[1]
+              + " from " + raw.length + " to " + compressed.length + " bytes in "
+              + (System.nanoTime() - start) / 1000 + " micros");
+      return new String[]{ "success", page[1], page[2], String.valueOf(dictionaryChecksum),
+          hasDictionary ? "" : Base64.getEncoder().encodeToString(dictionary), String.valueOf(raw.length),
+          Base64.getEncoder().encodeToString(compressed) };
+    }
+
+    /**
+     * Search the history of a chatroom for the newest messages before the given sequence number
+     * (or the newest overall if it is negative) whose contents contain every word of the query. A
+     * word ending in "*" matches every word starting with it. The response holds the cursor to
+     * search before for the next page, which is -1 once there are no more matches, followed by the
+     * sequence number, sender and contents of every matching message, newest first. A request
+     * without a valid sequence number or number of results is answered with "invalid".
+     * @param messageInfo
+     * @return response fields with the status, cursor, and matching messages
+     */
+    private String[] handleSearchChatroomMessages(String[] messageInfo) {
+      if (messageInfo.length < 5) {
+        return new String[]{ "invalid" };
+      }
+      String givenChatname = messageInfo[1];
+      ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(givenChatname);
+      if (chatroomInfo == null) {
+        return new String[]{ "nonexistent" };
+      } else if (chatroomInfo.historyIndex == null) {
+        return new String[]{ "unsupported" };
+      }
+      long beforeSequence;
+      int maxResults;
+      try {
+        beforeSequence = Long.parseLong(messageInfo[3]);
+        maxResults = Math.max(1, Math.min(Integer.parseInt(messageInfo[4]), MAX_SEARCH_RESULTS));
+      } catch (NumberFormatException e) {
+        return new String[]{ "invalid" };
       }
-      return "success";
+      long start = System.nanoTime();
+      ArrayList<Long> sequences = chatroomInfo.historyIndex.search(messageInfo[2], beforeSequence,
+              chatroomInfo.history.getFirstSequence(), maxResults);
+      String[] response = new String[2 + sequences.size() * 3];
+      response[0] = "success";
+      response[1] = sequences.size() < maxResults ? "-1" : String.valueOf(sequences.get(sequences.size() - 1));
+      for (int i = 0; i < sequences.size(); i++) {
+        long sequence = sequences.get(i);
+        String[] message = chatroomInfo.history.getMessages(sequence, sequence + 1);
+        response[2 + 3 * i] = String.valueOf(sequence);
+        response[3 + 3 * i] = message.length == 2 ? message[0] : "";
+        response[4 + 3 * i] = message.length == 2 ? message[1] : "";
+      }
+      logger.logger.info("Found " + sequences.size() + " messages matching \"" + messageInfo[2] + "\" in chatroom "
+              + givenChatname + " in " + (System.nanoTime() - start) / 1000 + " micros");
+      return response;
     }
 
     /**
-     * Get the entire history of chatroom messages from a chatroom.
+     * Set the retention policy of a chatroom to keep at most the given number of messages, messages
+     * sent in at most the given number of seconds, and messages of at most the given number of
+     * bytes. A limit of 0 keeps every message and a limit of -1 takes the server's default. Start
+     * paxos round prior to update all servers.
      * @param messageInfo
-     * @return a string with the entire history of chatroom messages from a chatroom
+     * @return response fields indicating whether the policy was set
      */
-    private String handleGetAllChatroomMessages(String[] messageInfo) {
+    private String[] handleSetRetentionPolicy(String[] messageInfo) {
       String givenChatname = messageInfo[1];
       ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(givenChatname);
-      String allSentMessages = chatroomInfo.getAllMessages();
-      logger.logger.info("Got history of all messages for chatroom " + givenChatname);
-      return allSentMessages;
+      if (chatroomInfo == null) {
+        return new String[]{ "nonexistent" };
+      }
+      RetentionPolicy retentionPolicy;
+      try {
+        retentionPolicy = new RetentionPolicy(Long.parseLong(messageInfo[2]), Long.parseLong(messageInfo[3]),
+                Long.parseLong(messageInfo[4]));
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        return new String[]{ "invalid" };
+      }
+      if (!retentionPolicy.isValid()) {
+        return new String[]{ "invalid" };
+      }
+      startPaxos(TransactionCodec.encodeTransaction("setRetention", givenChatname,
+              String.valueOf(retentionPolicy.maxMessages), String.valueOf(retentionPolicy.maxAgeSeconds),
+              String.valueOf(retentionPolicy.maxBytes)));
+      chatroomInfo.setRetentionPolicy(retentionPolicy);
+      logger.logger.info("Set retention policy of chatroom " + givenChatname + " to " + retentionPolicy);
+      return new String[]{ "success" };
+    }
+
+    /**
+     * Put together the response fields for a page of chatroom history.
+     * @param firstSequence
+     * @param cursor
+     * @param messages
+     * @return the status, first sequence number, and cursor followed by the messages
+     */
+    private String[] historyPageResponse(long firstSequence, long cursor, String[] messages) {
+      String[] response = new String[3 + messages.length];
+      response[0] = "success";
+      response[1] = String.valueOf(firstSequence);
+      response[2] = String.valueOf(cursor);
+      System.arraycopy(messages, 0, response, 3, messages.length);
+      return response;
     }
 
     /**
@@ -1342,81 +3261,143 @@ public class LookUpServer {
      * address/port that they can connect to the chatroom server on as well as the group IP so that
      * they can receive multicast messages from the chatroom server.
      * @param chatRequest
-     * @return a string either indicating that the chatroom does not exist or indicating a successful
+     * @return response fields either indicating that the chatroom does not exist or indicating a successful
      *          addition as well as the address/port of the chatroom server socket and group IP
-     *          for multicasts
+     *          and chatroom ID for multicasts
      */
-    private String handleJoinChat(String[] chatRequest) {
+    private String[] handleJoinChat(String[] chatRequest) {
       String chatName = chatRequest[1];
       String username = chatRequest[2];
       if (chatNameChatroomInfoStore.containsKey(chatName)) {
         // start paxos so other servers are updated
-        startPaxos("joinChat&%%" + chatName + "&%%" + username);
+        startPaxos(TransactionCodec.encodeTransaction("joinChat", chatName, username));
         ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
         String address = chatroomInfo.inetAddress.getHostAddress();
         int port = chatroomInfo.port;
         String groupIP = chatroomInfo.groupIP;
-        chatroomInfo.putMember(username);
+        addChatroomMember(chatroomInfo, username);
         logger.logger.info("User " + username + " joined chatroom " + chatName);
-        return "success@#@" + address + "@#@" + port + "@#@" + groupIP;
+        return new String[]{ "success", address, String.valueOf(port), groupIP, String.valueOf(chatroomInfo.ID) };
       } else {
         logger.logger.info("Chatroom " + chatName + " was attempted to join but does not exist");
-        return "nonexistent";
+        return new String[]{ "nonexistent" };
       }
     }
 
     /**
      * Get the usernames in the given chatroom.
      * @param usersRequest
-     * @return a string either indicating the chatroom does not exist or indicating all of the
+     * @return response fields either indicating the chatroom does not exist or indicating all of the
      *          usernames in a chatroom
      */
-    private String handleGetUsersInChatroom(String[] usersRequest) {
+    private String[] handleGetUsersInChatroom(String[] usersRequest) {
       String chatName = usersRequest[1];
       if (chatNameChatroomInfoStore.containsKey(chatName)) {
         ChatroomInfo chatroomInfo = chatNameChatroomInfoStore.get(chatName);
-        ArrayList<String> members = chatroomInfo.members;
-        StringBuilder membersString = new StringBuilder("START");
-        for (String member : members) {
-          membersString.append("@#@").append(member);
-        }
+        ArrayList<String> members = chatroomInfo.getMembers();
+        members.add(0, "START");
         logger.logger.info("Handled request to get users in chat " + chatName);
-        return membersString.toString();
+        return members.toArray(new String[0]);
       } else {
         logger.logger.info("Request to get users in nonexistent chat " + chatName);
-        return "nonexistent";
+        return new String[]{ "nonexistent" };
+      }
+    }
+
+    /**
+     * Get the number of users in each chatroom. A request with no more fields gets every chatroom,
+     * which is how older clients ask. A request "getNumUsers@#@<after>@#@<maxRooms>" gets a page of
+     * at most maxRooms chatrooms whose names follow after in order, so that any number of chatrooms
+     * fits in binary frames. Its response starts with the pair of "success" and the name to ask for
+     * the next page after, which is empty on the last page. A binary client asking for every chatroom
+     * when there are too many for one frame gets the pair of "tooManyChatrooms" and their number.
+     * @param numUsersRequest
+     * @return response fields indicating the number of users in each chatroom
+     */
+    private String[] handleGetNumUsersInChatrooms(String[] numUsersRequest) {
+      ArrayList<String> response = new ArrayList<>();
+      if (numUsersRequest.length < 3) {
+        int numChatrooms = chatNameChatroomInfoStore.size();
+        if (this.clientChannel instanceof BinaryMessageChannel && numChatrooms * 2 > WireProtocol.MAX_FIELDS) {
+          logger.logger.warning("Refused to get number of users in " + numChatrooms + " chatrooms in one frame");
+          return new String[]{ "tooManyChatrooms", String.valueOf(numChatrooms) };
+        }
+        for (Map.Entry nameInfoPair : chatNameChatroomInfoStore.entrySet()) {
+          String name = (String) nameInfoPair.getKey();
+          ChatroomInfo info = (ChatroomInfo) nameInfoPair.getValue();
+          response.add(name);
+          response.add(String.valueOf(info.getNumMembers()));
+        }
+        logger.logger.info("Handled request to get number of users in all chatrooms");
+        return response.toArray(new String[0]);
+      }
+      String after = numUsersRequest[1];
+      int maxRooms;
+      try {
+        maxRooms = Math.max(1, Math.min(Integer.parseInt(numUsersRequest[2]), (WireProtocol.MAX_FIELDS - 1) / 2));
+      } catch (NumberFormatException e) {
+        return new String[]{ "invalidRequest", "" };
+      }
+      TreeMap<String,ChatroomInfo> page = new TreeMap<>();
+      for (Map.Entry<String,ChatroomInfo> nameInfoPair : chatNameChatroomInfoStore.entrySet()) {
+        if (nameInfoPair.getKey().compareTo(after) > 0) {
+          page.put(nameInfoPair.getKey(), nameInfoPair.getValue());
+          if (page.size() > maxRooms) {
+            page.pollLastEntry();
+          }
+        }
       }
+      response.add("success");
+      response.add(page.size() < maxRooms ? "" : page.lastKey());
+      for (Map.Entry<String,ChatroomInfo> nameInfoPair : page.entrySet()) {
+        response.add(nameInfoPair.getKey());
+        response.add(String.valueOf(nameInfoPair.getValue().getNumMembers()));
+      }
+      logger.logger.info("Handled request to get number of users in " + page.size() + " chatrooms after " + after);
+      return response.toArray(new String[0]);
+    }
+
+    /**
+     * Subscribe the client to the notices of a chatroom that delivers messages over TCP, such as who
+     * its new host is. The notices are written to this client's socket, which is kept for them alone,
+     * until it closes.
+     * @param subscribeRequest
+     * @return response fields indicating the success of subscribing
+     */
+    private String[] handleSubscribeChatroomNotices(String[] subscribeRequest) {
+      String chatName = subscribeRequest[1];
+      unsubscribeChatroomNotices();
+      this.subscribedChatroomName = chatName;
+      chatroomNoticeSubscribers.computeIfAbsent(chatName, name -> new CopyOnWriteArrayList<>()).add(this.clientChannel);
+      logger.logger.info("Subscribed client to notices of chatroom " + chatName);
+      return new String[]{ "success" };
     }
 
     /**
-     * Get the number of users in each chatroom.
-     * @return a string indicating the number of users in each chatroom
+     * Stop writing the notices of the chatroom this client subscribed to to its socket.
      */
-    private String handleGetNumUsersInChatrooms() {
-      StringBuilder response = new StringBuilder();
-      for (Map.Entry nameInfoPair : chatNameChatroomInfoStore.entrySet()) {
-        String name = (String) nameInfoPair.getKey();
-        ChatroomInfo info = (ChatroomInfo) nameInfoPair.getValue();
-        response.append(name).append("%&%").append(info.members.size()).append("@&@");
+    private void unsubscribeChatroomNotices() {
+      if (this.subscribedChatroomName != null) {
+        chatroomNoticeSubscribers.computeIfPresent(this.subscribedChatroomName, (name, subscribers) -> {
+          subscribers.remove(this.clientChannel);
+          return subscribers.isEmpty() ? null : subscribers;
+        });
+        this.subscribedChatroomName = null;
       }
-      logger.logger.info("Handled request to get number of users in all chatrooms");
-      return response.toString();
     }
 
     /**
      * Log out user associated with this thread's socket, and remove them from any chatroom they are
-     * in. Finally, close their socket.
+     * in or whose notices they subscribed to. Finally, close their socket.
      */
     private void logOutUser() {
+      unsubscribeChatroomNotices();
       if (clientUsername != null && !hostUsernameToChatroomInfos.containsKey(clientUsername)) {
         // If logged in, log them out.
-        startPaxos("logout&%%" + clientUsername);
+        startPaxos(TransactionCodec.encodeTransaction("logout", clientUsername));
         loggedInUsersAndPasswords.remove(clientUsername);
         // If part of a room, remove them from the room.
-        for (Map.Entry chatNameChatroomInfo : chatNameChatroomInfoStore.entrySet()) {
-          ChatroomInfo chatroomInfo = (ChatroomInfo) chatNameChatroomInfo.getValue();
-          chatroomInfo.removeMember(clientUsername);
-        }
+        removeFromAllChatrooms(clientUsername);
         logger.logger.info("Logged out user " + clientUsername);
       }
       try {
@@ -1427,65 +3408,96 @@ public class LookUpServer {
     }
 
     /**
-     * Set the buffered reader and writer for the connected client socket, then listen for all
-     * messages coming in from the client and handle them as necessary with helper functions. Log out
-     * user if client disconnects.
+     * Handle the client disconnecting by logging out the user associated with this handler.
+     */
+    void handleDisconnect() {
+      logOutUser();
+    }
+
+    /**
+     * Handle a single request from the client with the matching helper function and write the
+     * response back to the client. This is shared by the thread-per-client and NIO front ends and
+     * by the text and binary protocols.
+     * @param messageArray
+     * @throws IOException
+     */
+    void handleRequest(String[] messageArray) throws IOException {
+      String[] response = null;
+      if (messageArray[0].equalsIgnoreCase("login")) {
+        response = handleLogin(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("register")) {
+        response = handleRegister(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("chatSelectionLogout")) {
+        response = handleChatSelectionLogout(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("createChat")) {
+        response = handleCreateChat(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("reCreateChat")) {
+        response = handleReCreateChat(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("notifyMembersOfRecreation")) {
+        response = handleNotifyMembersOfRecreation(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("getAllChatroomMessages")) {
+        // the history is written straight from its encoded form
+        handleGetAllChatroomMessages(messageArray);
+        return;
+      } else if (messageArray[0].equalsIgnoreCase("searchChatroomMessages")) {
+        response = handleSearchChatroomMessages(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("getChatroomHistoryVersion")) {
+        response = handleGetChatroomHistoryVersion(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("getChatroomMessageRange")) {
+        response = handleGetChatroomMessageRange(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("getLatestChatroomMessages")) {
+        response = handleGetLatestChatroomMessages(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("getCompressedChatroomMessages")) {
+        response = handleGetCompressedChatroomMessages(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("setRetentionPolicy")) {
+        response = handleSetRetentionPolicy(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("updateChatConnectionPort")) {
+        response = handleUpdateChatConnectionPort(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("joinChat")) {
+        response = handleJoinChat(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("getMembers")) {
+        response = handleGetUsersInChatroom(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("getNumUsers")) {
+        response = handleGetNumUsersInChatrooms(messageArray);
+      } else if (messageArray[0].equalsIgnoreCase("subscribeChatroomNotices")) {
+        response = handleSubscribeChatroomNotices(messageArray);
+      } else {
+        response = new String[]{ "invalidRequestType" };
+      }
+      this.clientChannel.writeResponse(messageArray[0], response);
+    }
+
+    /**
+     * Negotiate the protocol with the connected client socket, then listen for all messages coming
+     * in from the client and handle them as necessary with helper functions. Log out user if client
+     * disconnects or sends a request that can not be handled.
      */
     public void run() {
-      BufferedReader reader = null;
-      BufferedWriter writer = null;
       try {
-        reader = new BufferedReader(
-                new InputStreamReader(this.clientSocket.getInputStream()));
-        writer = new BufferedWriter(
-                new OutputStreamWriter(this.clientSocket.getOutputStream()));
-        this.clientReader = reader;
-        this.clientWriter = writer;
+        this.clientChannel = MessageChannels.accept(this.clientSocket);
       } catch (IOException e) {
-        logger.logger.warning("Could not create buffered writer and reader for client socket");
+        logger.logger.warning("Could not negotiate protocol with client socket");
+        logOutUser();
+        return;
       }
       while (true) {
         try {
-          String line = reader.readLine();
-          if (line == null) {
+          String[] messageArray = this.clientChannel.readMessage();
+          if (messageArray == null) {
             // This is the case that the client disconnected completely.
             // The case of a Host client failing is handled elsewhere in the ChatroomHeartbeat.
             logOutUser();
             break;
           }
-          String[] messageArray = line.split("@#@");
-          String response = null;
-          if (messageArray[0].equalsIgnoreCase("login")) {
-            response = handleLogin(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("register")) {
-            response = handleRegister(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("chatSelectionLogout")) {
-            response = handleChatSelectionLogout(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("createChat")) {
-            response = handleCreateChat(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("reCreateChat")) {
-            response = handleReCreateChat(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("notifyMembersOfRecreation")) {
-            response = handleNotifyMembersOfRecreation(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("getAllChatroomMessages")) {
-            response = handleGetAllChatroomMessages(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("updateChatConnectionPort")) {
-            response = handleUpdateChatConnectionPort(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("joinChat")) {
-            response = handleJoinChat(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("getMembers")) {
-            response = handleGetUsersInChatroom(messageArray);
-          } else if (messageArray[0].equalsIgnoreCase("getNumUsers")) {
-            response = handleGetNumUsersInChatrooms();
-          } else {
-            response = "invalidRequestType";
-          }
-          writer.write(response);
-          writer.newLine();
-          writer.flush();
+          handleRequest(messageArray);
         } catch (IOException e) {
           logOutUser();
           break;
+        } catch (RuntimeException e) {
+          // as in the NIO front end, a request that can not be handled ends the connection.
+          logger.logger.warning("Could not handle request from client socket: " + e);
+          logOutUser();
+          break;
         }
       }
     }
@@ -1515,5 +3527,17 @@ public class LookUpServer {
     LookUpServer paxosLookUpServer8 = new LookUpServer(0, 8, registryAddress, registryPort, "learner");
     LookUpServer paxosLookUpServer9 = new LookUpServer(0, 9, registryAddress, registryPort, "learner");
     LookUpServer paxosLookUpServer10 = new LookUpServer(0, 10, registryAddress, registryPort, "learner");
+    // learners that join the running cluster later on catch up by state transfer.
+    int numLateLearners = Integer.getInteger(LATE_LEARNERS_PROPERTY, 0);
+    if (numLateLearners > 0) {
+      try {
+        TimeUnit.SECONDS.sleep(Long.getLong(LATE_JOIN_DELAY_SECONDS_PROPERTY, 10L));
+      } catch (InterruptedException e) {
+        return;
+      }
+      for (int i = 0; i < numLateLearners; i++) {
+        new LookUpServer(0, 11 + i, registryAddress, registryPort, "learner");
+      }
+    }
   }
 }
@@ -0,0 +1,256 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * Message history kept in append-only segment files that are memory mapped, so the history of a
+ * chatroom lives in the page cache instead of on the heap. Every message is written as the ID of
+ * its sender, the length of the contents, and their UTF-8 bytes. A message that does not fit in
+ * the current segment starts a new one. The heap only holds the distinct sender usernames, the
+ * first sequence number of every segment, and the position of every 64th message and of the first
+ * message of every segment, from which a read scans forward to the messages it wants. Discarding
+ * messages deletes the segment files that only hold discarded messages.
+ */
+public class MappedHistoryStore implements HistoryStore {
+
+  private static final int INDEX_INTERVAL = 64;
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final SenderDictionary senders = new SenderDictionary();
+  private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+  private final ArrayList<Long> segmentFirstSequences = new ArrayList<>();
+  // number of the segment file of segments.get(0), since the files of discarded segments are deleted
+  private int firstSegmentNumber = 0;
+  // sequence number, and segment number in the upper and offset in the lower 32 bits, of every
+  // indexed message, stored from indexStart on
+  private long[] indexSequences = new long[16];
+  private long[] indexLocations = new long[16];
+  private int indexStart = 0;
+  private int indexSize = 0;
+  private long firstSequence = 0;
+  private long nextSequence = 0;
+
+  /**
+   * Constructor for a mapped history store that keeps its segment files in the given directory.
+   * @param directory
+   * @param segmentBytes
+   * @throws IOException
+   */
+  public MappedHistoryStore(Path directory, int segmentBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(directory);
+  }
+
+  /**
+   * Map a new segment file that can hold at least the given number of bytes.
+   * @param minimumBytes
+   * @return the mapped segment
+   * @throws IOException
+   */
+  private MappedByteBuffer addSegment(int minimumBytes) throws IOException {
+    Path segmentPath = this.directory.resolve((this.firstSegmentNumber + this.segments.size()) + ".hist");
+    MappedByteBuffer segment;
+    try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentBytes, minimumBytes));
+    }
+    this.segments.add(segment);
+    this.segmentFirstSequences.add(this.nextSequence);
+    return segment;
+  }
+
+  @Override
+  public synchronized long append(String sender, String message) {
+    byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+    int recordBytes = 8 + messageBytes.length;
+    try {
+      MappedByteBuffer segment = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+      boolean isSegmentStart = segment == null || segment.remaining() < recordBytes;
+      if (isSegmentStart) {
+        segment = addSegment(recordBytes);
+      }
+      long sequence = this.nextSequence;
+      if (isSegmentStart || sequence % INDEX_INTERVAL == 0) {
+        addIndexEntry(sequence, ((long) (this.firstSegmentNumber + this.segments.size() - 1) << 32) | segment.position());
+      }
+      segment.putInt(this.senders.getID(sender));
+      segment.putInt(messageBytes.length);
+      segment.put(messageBytes);
+      this.nextSequence++;
+      return sequence;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not add history segment in " + this.directory, e);
+    }
+  }
+
+  /**
+   * Add the location of a message to the index.
+   * @param sequence
+   * @param location the segment number in the upper and the offset in the lower 32 bits
+   */
+  private void addIndexEntry(long sequence, long location) {
+    if (this.indexStart + this.indexSize == this.indexSequences.length) {
+      // move the entries down if discarding left at least half of the index unused, or else grow it.
+      int capacity = this.indexStart >= this.indexSize ? this.indexSequences.length : this.indexSequences.length * 2;
+      long[] sequences = new long[capacity];
+      long[] locations = new long[capacity];
+      System.arraycopy(this.indexSequences, this.indexStart, sequences, 0, this.indexSize);
+      System.arraycopy(this.indexLocations, this.indexStart, locations, 0, this.indexSize);
+      this.indexSequences = sequences;
+      this.indexLocations = locations;
+      this.indexStart = 0;
+    }
+    this.indexSequences[this.indexStart + this.indexSize] = sequence;
+    this.indexLocations[this.indexStart + this.indexSize] = location;
+    this.indexSize++;
+  }
+
+  @Override
+  public synchronized long getFirstSequence() {
+    return this.firstSequence;
+  }
+
+  @Override
+  public synchronized long getNextSequence() {
+    return this.nextSequence;
+  }
+
+  @Override
+  public synchronized String[] getMessages(long fromSequence, long toSequence) {
+    long from = Math.max(this.firstSequence, fromSequence);
+    long to = Math.min(this.nextSequence, toSequence);
+    if (to <= from) {
+      return new String[0];
+    }
+    String[] messages = new String[(int) (to - from) * 2];
+    // find the last indexed message at or before the first message wanted.
+    int entry = Arrays.binarySearch(this.indexSequences, this.indexStart, this.indexStart + this.indexSize, from);
+    if (entry < 0) {
+      entry = -entry - 2;
+    }
+    int segmentNumber = (int) (this.indexLocations[entry] >>> 32) - this.firstSegmentNumber;
+    ByteBuffer segment = this.segments.get(segmentNumber).duplicate();
+    segment.position((int) this.indexLocations[entry]);
+    long sequence = this.indexSequences[entry];
+    while (sequence < to) {
+      // move on to the next segment once every message of this one was read.
+      while (segmentNumber + 1 < this.segments.size() && sequence >= this.segmentFirstSequences.get(segmentNumber + 1)) {
+        segmentNumber++;
+        segment = this.segments.get(segmentNumber).duplicate();
+        segment.position(0);
+      }
+      int senderID = segment.getInt();
+      if (sequence < from) {
+        skipString(segment);
+      } else {
+        int index = (int) (sequence - from) * 2;
+        messages[index] = this.senders.getSender(senderID);
+        messages[index + 1] = readString(segment);
+      }
+      sequence++;
+    }
+    return messages;
+  }
+
+  /**
+   * Discard messages by deleting the segment files that only hold messages before the given sequence
+   * number. The messages before it in the first segment kept are skipped by reads.
+   * @param sequence
+   */
+  @Override
+  public synchronized void discardBefore(long sequence) {
+    if (sequence <= this.firstSequence) {
+      return;
+    }
+    int numSegments = 0;
+    if (sequence >= this.nextSequence) {
+      numSegments = this.segments.size();
+      this.indexSize = 0;
+      this.nextSequence = sequence;
+    } else {
+      while (numSegments + 1 < this.segments.size() && this.segmentFirstSequences.get(numSegments + 1) <= sequence) {
+        numSegments++;
+      }
+      // every segment starts with an index entry, so drop the entries of the deleted segments.
+      long keptSegment = this.firstSegmentNumber + numSegments;
+      while (this.indexSize > 0 && (this.indexLocations[this.indexStart] >>> 32) < keptSegment) {
+        this.indexStart++;
+        this.indexSize--;
+      }
+    }
+    for (int i = 0; i < numSegments; i++) {
+      try {
+        Files.deleteIfExists(this.directory.resolve((this.firstSegmentNumber + i) + ".hist"));
+      } catch (IOException e) {
+        // the file is removed with the rest of the history directory when the chatroom closes.
+      }
+    }
+    this.segments.subList(0, numSegments).clear();
+    this.segmentFirstSequences.subList(0, numSegments).clear();
+    this.firstSegmentNumber += numSegments;
+    this.firstSequence = sequence;
+  }
+
+  /**
+   * Read a length-prefixed UTF-8 string at the position of the buffer.
+   * @param buffer
+   * @return the string
+   */
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Move the position of the buffer past a length-prefixed string.
+   * @param buffer
+   */
+  private static void skipString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    buffer.position(buffer.position() + length);
+  }
+
+  /**
+   * Delete the segment files. The mappings stay readable until they are garbage collected, so views
+   * of this history that are still being read are not cut short.
+   */
+  @Override
+  public synchronized void close() {
+    try {
+      deleteDirectory(this.directory);
+    } catch (IOException e) {
+      // the files are removed with the rest of the history directory on the next start.
+    }
+  }
+
+  /**
+   * Delete a directory and everything in it.
+   * @param directory
+   * @throws IOException
+   */
+  public static void deleteDirectory(Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(directory)) {
+      Path[] sortedPaths = paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toArray(Path[]::new);
+      for (Path path : sortedPaths) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Allocation of multicast groups to chatrooms by a LookUp server. Chatrooms are given channels,
+ * which are pairs of a group IP out of the first numGroups addresses from 239.0.0.0 and a UDP port
+ * out of the numPorts ports from MulticastSender.MULTICAST_PORT, written as "ip:port". A new chatroom
+ * takes the lowest channel no chatroom uses, so channels of removed chatrooms are used again, and
+ * only once every channel is taken is it hashed by its ID onto a channel it shares with others.
+ * Chatroom servers put the chatroom ID in front of every datagram, so the members of chatrooms that
+ * share a channel drop the datagrams of the others. The number of groups bounds how many groups a
+ * host joins however many chatrooms there are, and spreading chatrooms over several ports lets the
+ * kernel drop datagrams of other chatrooms on the same group.
+ */
+public class MulticastGroupAllocator {
+
+  public static final String GROUP_PREFIX = "239.0.";
+  public static final int DEFAULT_NUM_GROUPS = 256;
+  public static final int MAX_GROUPS = 65536;
+  public static final int DEFAULT_NUM_PORTS = 1;
+  public static final int MAX_PORTS = 64;
+
+  private final int numGroups;
+  private final int numPorts;
+  // number of chatrooms using every channel, where channel i is group i % numGroups on port
+  // i / numGroups, so chatrooms are spread over all groups before they take a second port
+  private final int[] numChatrooms;
+  private final TreeSet<Integer> freeChannels = new TreeSet<>();
+  private long sharedAllocations = 0;
+
+  /**
+   * Constructor for an allocator of the given number of groups and ports, each of which is kept
+   * between 1 and its maximum.
+   * @param numGroups
+   * @param numPorts
+   */
+  public MulticastGroupAllocator(int numGroups, int numPorts) {
+    this.numGroups = Math.max(1, Math.min(MAX_GROUPS, numGroups));
+    this.numPorts = Math.max(1, Math.min(MAX_PORTS, numPorts));
+    this.numChatrooms = new int[this.numGroups * this.numPorts];
+    for (int channel = 0; channel < this.numChatrooms.length; channel++) {
+      this.freeChannels.add(channel);
+    }
+  }
+
+  /**
+   * Allocate a channel to a new chatroom, taking the lowest free one, or hashing the chatroom onto
+   * one that is in use if no channel is free.
+   * @param chatroomID
+   * @return the channel as "ip:port"
+   */
+  public synchronized String allocate(int chatroomID) {
+    int channel;
+    if (!this.freeChannels.isEmpty()) {
+      channel = this.freeChannels.first();
+    } else {
+      channel = Math.floorMod(chatroomID * 0x9E3779B9, this.numChatrooms.length);
+      this.sharedAllocations++;
+    }
+    take(channel);
+    return describeChannel(channel);
+  }
+
+  /**
+   * Count a chatroom as using the given channel, which another LookUp server allocated to it.
+   * Channels outside of this allocator's pool are not counted.
+   * @param group
+   */
+  public synchronized void acquire(String group) {
+    int channel = channelOf(group);
+    if (channel >= 0) {
+      take(channel);
+    }
+  }
+
+  /**
+   * Stop counting a removed chatroom as using the given channel, which is free again once no
+   * chatroom uses it.
+   * @param group
+   */
+  public synchronized void release(String group) {
+    int channel = channelOf(group);
+    if (channel >= 0 && this.numChatrooms[channel] > 0) {
+      this.numChatrooms[channel]--;
+      if (this.numChatrooms[channel] == 0) {
+        this.freeChannels.add(channel);
+      }
+    }
+  }
+
+  /**
+   * Count the channels of the given chatrooms again from nothing, after the whole chatroom store was
+   * replaced.
+   * @param chatroomInfos
+   */
+  public synchronized void rebuild(Collection<ChatroomInfo> chatroomInfos) {
+    for (int channel = 0; channel < this.numChatrooms.length; channel++) {
+      this.numChatrooms[channel] = 0;
+      this.freeChannels.add(channel);
+    }
+    for (ChatroomInfo chatroomInfo : chatroomInfos) {
+      acquire(chatroomInfo.groupIP);
+    }
+  }
+
+  /**
+   * Count one more chatroom on a channel.
+   * @param channel
+   */
+  private void take(int channel) {
+    this.numChatrooms[channel]++;
+    this.freeChannels.remove(channel);
+  }
+
+  /**
+   * Write a channel as "ip:port".
+   * @param channel
+   * @return the channel's group IP and port
+   */
+  private String describeChannel(int channel) {
+    int group = channel % this.numGroups;
+    int port = MulticastSender.MULTICAST_PORT + channel / this.numGroups;
+    return GROUP_PREFIX + (group >> 8) + "." + (group & 0xFF) + ":" + port;
+  }
+
+  /**
+   * Find the channel of a group written as "ip:port" or, like groups allocated before there were
+   * ports, as a bare IP.
+   * @param group
+   * @return the channel, or -1 if the group is not one of this allocator's channels
+   */
+  private int channelOf(String group) {
+    if (group == null || !group.startsWith(GROUP_PREFIX)) {
+      return -1;
+    }
+    try {
+      InetSocketAddress address = parseGroup(group);
+      byte[] ip = address.getAddress().getAddress();
+      int index = ((ip[2] & 0xFF) << 8) | (ip[3] & 0xFF);
+      int portIndex = address.getPort() - MulticastSender.MULTICAST_PORT;
+      if (index >= this.numGroups || portIndex < 0 || portIndex >= this.numPorts) {
+        return -1;
+      }
+      return portIndex * this.numGroups + index;
+    } catch (UnknownHostException | NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Parse a group written as "ip:port", or as a bare IP on MulticastSender.MULTICAST_PORT.
+   * @param group
+   * @return the group's address and port
+   * @throws UnknownHostException
+   */
+  public static InetSocketAddress parseGroup(String group) throws UnknownHostException {
+    int colon = group.lastIndexOf(':');
+    if (colon < 0) {
+      return new InetSocketAddress(InetAddress.getByName(group), MulticastSender.MULTICAST_PORT);
+    }
+    return new InetSocketAddress(InetAddress.getByName(group.substring(0, colon)),
+            Integer.parseInt(group.substring(colon + 1)));
+  }
+
+  /**
+   * Describe the size of the pool, how many channels chatrooms use, the most chatrooms sharing one
+   * channel, and how many chatrooms were hashed onto a channel in use.
+   * @return the metrics as comma separated "name=value" pairs
+   */
+  public synchronized String describeMetrics() {
+    int maxChatrooms = 0;
+    for (int count : this.numChatrooms) {
+      maxChatrooms = Math.max(maxChatrooms, count);
+    }
+    return "groups=" + this.numGroups + ", ports=" + this.numPorts + ", channelsInUse="
+            + (this.numChatrooms.length - this.freeChannels.size()) + ", maxChatroomsPerChannel=" + maxChatrooms
+            + ", sharedAllocations=" + this.sharedAllocations;
+  }
+}
@@ -0,0 +1,474 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import logger.ProgLogger;
+import protocol.FragmentReassembler;
+import protocol.MulticastBatch;
+
+/**
+ * Send pipeline for the multicast messages of a chatroom server. All client socket handler threads
+ * publish into a bounded multi-producer single-consumer ring buffer, and one sender thread drains it
+ * into a single long-lived datagram channel. Every ring slot owns a reusable byte buffer that the
+ * message is encoded into directly, so once the slots have warmed up sending a message allocates
+ * nothing. Messages longer than FragmentReassembler.MAX_DATAGRAM_BYTES are sent as fragments
+ * that members reassemble, so no datagram is larger than an Ethernet frame holds. When several
+ * messages are waiting to be sent, the sender packs as many as fit into one MulticastBatch datagram,
+ * and while batches keep filling up it waits a short window for more messages before sending one.
+ * The window doubles after every batch of several messages, up to the maximum the sender was given,
+ * and halves after every message sent on its own, so under light load it collapses to zero and a
+ * message is sent as soon as it is published. The sender keeps a window of recent send latencies to
+ * report the p99 latency.
+ */
+public class MulticastSender implements Runnable {
+
+  public static final int MULTICAST_PORT = 4446;
+  private static final String CHAT_KEY = "chatkey125";
+  private static final byte[] SEPARATOR = "@#@".getBytes();
+  private static final int INITIAL_SLOT_BYTES = 1472;
+  private static final int LATENCY_WINDOW = 1024;
+  private static final int METRICS_LOG_INTERVAL = 1000;
+  public static final long DEFAULT_MAX_COALESCE_WINDOW_MICROS = 500;
+  // smallest window worth waiting, which parking can not get much below
+  private static final long MIN_COALESCE_WINDOW_NANOS = 50_000;
+
+  private final ProgLogger chatroomLogger;
+  private final InetSocketAddress target;
+  // chat key and chatroom ID in front of every message, so members of other chatrooms on the same
+  // group and port drop it
+  private final byte[] chatroomKey;
+  private final DatagramChannel channel;
+  private final int mask;
+  private final ByteBuffer[] slots;
+  private final long[] publishTimes;
+  private final AtomicLongArray sequences;
+  private final ByteBuffer fragment = ByteBuffer.allocate(FragmentReassembler.MAX_DATAGRAM_BYTES);
+  private final ByteBuffer batch = ByteBuffer.allocate(FragmentReassembler.MAX_DATAGRAM_BYTES);
+  private final long maxCoalesceWindowNanos;
+  private long coalesceWindowNanos = 0;
+  private final AtomicLong tail = new AtomicLong();
+  private long head = 0;
+  private volatile Thread senderThread;
+  private volatile boolean senderParked = false;
+  private volatile boolean isAlive = true;
+
+  // metrics, only written by the sender thread
+  private final long[] latencyWindowNanos = new long[LATENCY_WINDOW];
+  private long sentMessages = 0;
+  private long firstSendNanos = 0;
+  private long fragmentedMessages = 0;
+  private long sentFragments = 0;
+  private long sentDatagrams = 0;
+  private long batchedMessages = 0;
+  // messages are numbered for their fragments from a random start, so fragments of a chatroom
+  // server that replaced another one on the same group are not mistaken for the old one's
+  private long nextFragmentedMessageId = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+
+  /**
+   * Constructor for the multicast sender of a chatroom that opens the datagram channel to the
+   * chatroom's group and port and allocates the ring buffer, whose capacity is rounded up to a power
+   * of two.
+   * @param target
+   * @param chatroomID
+   * @param capacity
+   * @param chatroomLogger
+   * @throws IOException
+   */
+  public MulticastSender(InetSocketAddress target, int chatroomID, int capacity, ProgLogger chatroomLogger)
+          throws IOException {
+    this(target, chatroomID, capacity, DEFAULT_MAX_COALESCE_WINDOW_MICROS, chatroomLogger);
+  }
+
+  /**
+   * Constructor for the multicast sender that waits at most the given window for more messages to
+   * pack into a batch, where 0 only packs the messages that are already waiting.
+   * @param target
+   * @param chatroomID
+   * @param capacity
+   * @param maxCoalesceWindowMicros
+   * @param chatroomLogger
+   * @throws IOException
+   */
+  public MulticastSender(InetSocketAddress target, int chatroomID, int capacity, long maxCoalesceWindowMicros,
+          ProgLogger chatroomLogger) throws IOException {
+    this.chatroomLogger = chatroomLogger;
+    this.maxCoalesceWindowNanos = Math.max(0, maxCoalesceWindowMicros) * 1000;
+    this.target = target;
+    this.chatroomKey = (CHAT_KEY + chatroomID + "@#@").getBytes();
+    this.channel = DatagramChannel.open();
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.mask = size - 1;
+    this.slots = new ByteBuffer[size];
+    this.publishTimes = new long[size];
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      this.slots[i] = ByteBuffer.allocate(INITIAL_SLOT_BYTES);
+      this.sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Publish a chat message from the given sender to be multicast as "sequence@#@sender@#@message"
+   * after the chat key and chatroom ID, where the sequence number is the one the chatroom server gave
+   * the message. The free text comes last, so a message that contains "@#@" itself is still read
+   * back whole by splitting into at most three fields.
+   * @param sender
+   * @param message
+   * @param messageSequence
+   */
+  public void publishChatMessage(String sender, String message, long messageSequence) {
+    long position = claimSlot();
+    ByteBuffer slot = this.slots[(int) position & this.mask];
+    slot.clear();
+    slot = put(position, slot, this.chatroomKey);
+    slot = putDecimal(position, slot, messageSequence);
+    slot = put(position, slot, SEPARATOR);
+    slot = putUtf8(position, slot, sender);
+    slot = put(position, slot, SEPARATOR);
+    slot = putUtf8(position, slot, message);
+    publishSlot(position, slot);
+  }
+
+  /**
+   * Publish a message to be multicast as is after the chat key and chatroom ID.
+   * @param message
+   */
+  public void publish(String message) {
+    long position = claimSlot();
+    ByteBuffer slot = this.slots[(int) position & this.mask];
+    slot.clear();
+    slot = put(position, slot, this.chatroomKey);
+    slot = putUtf8(position, slot, message);
+    publishSlot(position, slot);
+  }
+
+  /**
+   * Claim the next free slot of the ring buffer, waiting for the sender thread while it is full.
+   * @return the position of the claimed slot
+   */
+  private long claimSlot() {
+    while (true) {
+      long position = this.tail.get();
+      long sequence = this.sequences.get((int) position & this.mask);
+      if (sequence == position) {
+        if (this.tail.compareAndSet(position, position + 1)) {
+          return position;
+        }
+      } else if (sequence < position) {
+        // ring buffer is full, so wait for the sender thread to free a slot
+        LockSupport.parkNanos(10_000);
+      }
+    }
+  }
+
+  /**
+   * Make a filled slot visible to the sender thread and wake it up if it is waiting for messages.
+   * @param position
+   * @param slot
+   */
+  private void publishSlot(long position, ByteBuffer slot) {
+    slot.flip();
+    this.publishTimes[(int) position & this.mask] = System.nanoTime();
+    this.sequences.set((int) position & this.mask, position + 1);
+    if (this.senderParked) {
+      LockSupport.unpark(this.senderThread);
+    }
+  }
+
+  /**
+   * Make sure the claimed slot can hold the given number of additional bytes, growing its buffer
+   * once if the message is larger than any message the slot held before.
+   * @param position
+   * @param slot
+   * @param needed
+   * @return the slot buffer with enough room
+   */
+  private ByteBuffer ensureCapacity(long position, ByteBuffer slot, int needed) {
+    if (slot.remaining() >= needed) {
+      return slot;
+    }
+    ByteBuffer grown = ByteBuffer.allocate(Math.max(slot.capacity() * 2, slot.position() + needed));
+    slot.flip();
+    grown.put(slot);
+    this.slots[(int) position & this.mask] = grown;
+    return grown;
+  }
+
+  /**
+   * Copy pre-encoded bytes into the slot.
+   * @param position
+   * @param slot
+   * @param bytes
+   * @return the slot buffer that was written to
+   */
+  private ByteBuffer put(long position, ByteBuffer slot, byte[] bytes) {
+    slot = ensureCapacity(position, slot, bytes.length);
+    slot.put(bytes);
+    return slot;
+  }
+
+  /**
+   * Encode the string as UTF-8 straight into the slot without creating an intermediate byte array.
+   * @param position
+   * @param slot
+   * @param text
+   * @return the slot buffer that was written to
+   */
+  private ByteBuffer putUtf8(long position, ByteBuffer slot, String text) {
+    int length = text.length();
+    slot = ensureCapacity(position, slot, length * 3);
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        slot.put((byte) c);
+      } else if (c < 0x800) {
+        slot.put((byte) (0xC0 | (c >> 6)));
+        slot.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        slot.put((byte) (0xF0 | (codePoint >> 18)));
+        slot.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        slot.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        slot.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else {
+        slot.put((byte) (0xE0 | (c >> 12)));
+        slot.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        slot.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    return slot;
+  }
+
+  /**
+   * Write a non-negative number as decimal digits straight into the slot.
+   * @param position
+   * @param slot
+   * @param value
+   * @return the slot buffer that was written to
+   */
+  private ByteBuffer putDecimal(long position, ByteBuffer slot, long value) {
+    slot = ensureCapacity(position, slot, 20);
+    long divisor = 1;
+    while (value / divisor >= 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      slot.put((byte) ('0' + (value / divisor) % 10));
+    }
+    return slot;
+  }
+
+  /**
+   * Send a message that does not fit in one datagram as fragments of
+   * FragmentReassembler.FRAGMENT_PAYLOAD_BYTES, each after a header naming the message and the
+   * position of the fragment. Messages of more than FragmentReassembler.MAX_FRAGMENTS fragments
+   * are not sent, since members would not reassemble them.
+   * @param message
+   * @throws IOException
+   */
+  private void sendFragments(ByteBuffer message) throws IOException {
+    long messageId = this.nextFragmentedMessageId++;
+    int end = message.limit();
+    int count = (message.remaining() + FragmentReassembler.FRAGMENT_PAYLOAD_BYTES - 1)
+            / FragmentReassembler.FRAGMENT_PAYLOAD_BYTES;
+    if (count > FragmentReassembler.MAX_FRAGMENTS) {
+      chatroomLogger.logger.warning("Message of " + message.remaining() + " bytes is too long to multicast");
+      return;
+    }
+    for (int index = 0; index < count; index++) {
+      this.fragment.clear();
+      FragmentReassembler.putHeader(this.fragment, messageId, index, count);
+      message.limit(Math.min(end, message.position() + FragmentReassembler.FRAGMENT_PAYLOAD_BYTES));
+      this.fragment.put(message);
+      message.limit(end);
+      this.fragment.flip();
+      this.channel.send(this.fragment, this.target);
+    }
+    this.fragmentedMessages++;
+    this.sentFragments += count;
+  }
+
+  /**
+   * Check whether the slot at the given position was published and not sent yet.
+   * @param position
+   * @return true if the slot is ready to send
+   */
+  private boolean isReady(long position) {
+    return this.sequences.get((int) position & this.mask) == position + 1;
+  }
+
+  /**
+   * Hand the slot at the head of the ring back to the producers once its message was sent.
+   */
+  private void releaseHead() {
+    int index = (int) this.head & this.mask;
+    recordLatency(System.nanoTime() - this.publishTimes[index]);
+    this.sequences.set(index, this.head + this.slots.length);
+    this.head++;
+  }
+
+  /**
+   * Check whether a message can be packed into a batch with at least one other message.
+   * @param message
+   * @return true if the message is small enough
+   */
+  private static boolean isBatchable(ByteBuffer message) {
+    return MulticastBatch.BATCH_KEY.length + 2 * MulticastBatch.LENGTH_BYTES + message.remaining() + 1
+            <= FragmentReassembler.MAX_DATAGRAM_BYTES;
+  }
+
+  /**
+   * Pack the messages at the head of the ring into one batch datagram, as many as fit, waiting for
+   * more while the coalesce window is open, and send it. A batch that ends up holding one message is
+   * sent as that message alone. Then widen the window if the batch held several messages, or
+   * narrow it if it did not.
+   * @throws IOException
+   */
+  private void sendBatch() throws IOException {
+    this.batch.clear();
+    this.batch.put(MulticastBatch.BATCH_KEY);
+    int numMessages = 0;
+    long deadline = System.nanoTime() + this.coalesceWindowNanos;
+    while (true) {
+      if (isReady(this.head)) {
+        ByteBuffer message = this.slots[(int) this.head & this.mask];
+        if (message.remaining() + MulticastBatch.LENGTH_BYTES > this.batch.remaining()) {
+          break;
+        }
+        this.batch.putShort((short) message.remaining());
+        this.batch.put(message);
+        releaseHead();
+        numMessages++;
+      } else if (this.coalesceWindowNanos > 0 && System.nanoTime() - deadline < 0) {
+        LockSupport.parkNanos(10_000);
+      } else {
+        break;
+      }
+    }
+    this.batch.flip();
+    if (numMessages == 1) {
+      this.batch.position(MulticastBatch.BATCH_KEY.length + MulticastBatch.LENGTH_BYTES);
+      this.coalesceWindowNanos /= 2;
+      if (this.coalesceWindowNanos < MIN_COALESCE_WINDOW_NANOS) {
+        this.coalesceWindowNanos = 0;
+      }
+    } else {
+      this.batchedMessages += numMessages;
+      this.coalesceWindowNanos = Math.min(this.maxCoalesceWindowNanos,
+              Math.max(MIN_COALESCE_WINDOW_NANOS, this.coalesceWindowNanos * 2));
+    }
+    this.channel.send(this.batch, this.target);
+    this.sentDatagrams++;
+  }
+
+  /**
+   * Drain the ring buffer in order, sending every published slot on the datagram channel and then
+   * handing the slot back to the producers. Messages are sent on their own while no other message is
+   * waiting and the coalesce window is closed, and packed into batches otherwise. Park while there
+   * is nothing to send.
+   */
+  @Override
+  public void run() {
+    this.senderThread = Thread.currentThread();
+    while (this.isAlive) {
+      int index = (int) this.head & this.mask;
+      if (!isReady(this.head)) {
+        this.senderParked = true;
+        // check again after announcing that the sender is parked so that no wake up is missed
+        if (!isReady(this.head)) {
+          LockSupport.parkNanos(1_000_000);
+        }
+        this.senderParked = false;
+        continue;
+      }
+      ByteBuffer message = this.slots[index];
+      boolean isBatch = message.remaining() <= FragmentReassembler.MAX_DATAGRAM_BYTES && isBatchable(message)
+              && (this.coalesceWindowNanos > 0 || isReady(this.head + 1));
+      try {
+        if (isBatch) {
+          sendBatch();
+        } else if (message.remaining() > FragmentReassembler.MAX_DATAGRAM_BYTES) {
+          sendFragments(message);
+        } else {
+          this.channel.send(message, this.target);
+          this.sentDatagrams++;
+        }
+      } catch (IOException e) {
+        chatroomLogger.logger.warning("Socket IO malfunction attempting to multicast");
+      }
+      // a batch hands back the slots of its messages as it packs them
+      if (!isBatch) {
+        releaseHead();
+      }
+    }
+  }
+
+  /**
+   * Record the latency of a sent message and periodically log the send rate and p99 latency.
+   * @param latencyNanos
+   */
+  private void recordLatency(long latencyNanos) {
+    if (this.sentMessages == 0) {
+      this.firstSendNanos = System.nanoTime();
+    }
+    this.latencyWindowNanos[(int) (this.sentMessages % LATENCY_WINDOW)] = latencyNanos;
+    this.sentMessages++;
+    if (this.sentMessages % METRICS_LOG_INTERVAL == 0) {
+      chatroomLogger.logger.info("Multicast sender metrics: " + describeMetrics());
+    }
+  }
+
+  /**
+   * Describe the number of messages sent, the average rates of messages and datagrams, the p99 send
+   * latency over the most recent messages, how many messages were packed into batches, and how many
+   * messages were sent as how many fragments.
+   * @return a one line summary of the sender metrics
+   */
+  public String describeMetrics() {
+    int windowSize = (int) Math.min(this.sentMessages, LATENCY_WINDOW);
+    if (windowSize == 0) {
+      return "sent=0";
+    }
+    long[] window = Arrays.copyOf(this.latencyWindowNanos, windowSize);
+    Arrays.sort(window);
+    long p99Nanos = window[Math.min(windowSize - 1, (int) Math.ceil(windowSize * 0.99) - 1)];
+    double seconds = Math.max(1, System.nanoTime() - this.firstSendNanos) / 1e9;
+    return "sent=" + this.sentMessages + ", messagesPerSecond=" + Math.round(this.sentMessages / seconds)
+            + ", datagramsPerSecond=" + Math.round((this.sentDatagrams + this.sentFragments) / seconds)
+            + ", p99SendLatencyMicros=" + (p99Nanos / 1000) + ", batchedMessages=" + this.batchedMessages
+            + ", coalesceWindowMicros=" + (this.coalesceWindowNanos / 1000)
+            + ", fragmentedMessages=" + this.fragmentedMessages
+            + ", sentFragments=" + this.sentFragments;
+  }
+
+  /**
+   * Check whether the sender was closed.
+   * @return true if the sender was closed
+   */
+  public boolean isClosed() {
+    return !this.isAlive;
+  }
+
+  /**
+   * Stop the sender thread and close the datagram channel.
+   */
+  public void close() {
+    this.isAlive = false;
+    if (this.senderThread != null) {
+      LockSupport.unpark(this.senderThread);
+    }
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      chatroomLogger.logger.warning("Could not close multicast channel");
+    }
+  }
+}
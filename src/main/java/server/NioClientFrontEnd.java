@@ -0,0 +1,604 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import protocol.BinaryMessageChannel;
+import protocol.MessageChannels;
+import protocol.TextMessageChannel;
+import protocol.WireProtocol;
+
+/**
+ * Alternative front end for the client connections of a LookUp server. Instead of giving every
+ * client its own thread blocked on a read, all client sockets are non-blocking channels that are
+ * multiplexed over a small number of selector event loops. Each complete request, whether a text
+ * line or a binary frame, is handed to the same ClientSocketHandler logic used by the
+ * thread-per-client mode, and the responses it writes are queued back onto the client's channel.
+ * Requests are parsed in place in each connection's read buffer, which only grows for requests
+ * that do not fit, and a connection that sends a request longer than the maximum is closed.
+ * Requests are handled on the execution policy rather than on the event loops, one at a time and
+ * in order per connection, so a slow request only holds up its own client. A connection stops
+ * being read while many of its requests wait, and stops being handled while more than the maximum
+ * of response bytes wait to be written, so a client that does not read its responses holds up
+ * only itself. A connection with far more queued than any response takes can only be one that does
+ * not read the notices written to it, and is closed.
+ */
+public class NioClientFrontEnd {
+
+  public static final int READ_BUFFER_BYTES = 8192;
+  public static final int DEFAULT_MAX_REQUEST_BYTES = 1024 * 1024;
+  public static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+  // requests of a connection that may wait to be handled before its channel stops being read
+  public static final int MAX_PENDING_REQUESTS = 64;
+  // response bytes that may be queued beyond the maximum before a client is taken to read none
+  public static final long MAX_UNREAD_BYTES = 64 * 1024 * 1024;
+
+  private final LookUpServer lookUpServer;
+  private final int maxRequestBytes;
+  private final long maxQueuedBytes;
+  private final ServerSocketChannel serverSocketChannel;
+  private final EventLoop[] eventLoops;
+  private int nextEventLoop = 0;
+
+  /**
+   * Constructor for the NIO front end that binds the server socket channel clients connect to and
+   * opens a selector for each event loop.
+   * @param lookUpServer
+   * @param port
+   * @param numEventLoops
+   * @param maxRequestBytes the longest request line or frame payload a client may send
+   * @param maxQueuedBytes the response bytes of a client that may wait to be written before no more
+   *                       of its requests are handled
+   * @throws IOException
+   */
+  public NioClientFrontEnd(LookUpServer lookUpServer, int port, int numEventLoops, int maxRequestBytes,
+                           long maxQueuedBytes) throws IOException {
+    this.lookUpServer = lookUpServer;
+    this.maxRequestBytes = Math.max(READ_BUFFER_BYTES, maxRequestBytes);
+    this.maxQueuedBytes = Math.max(READ_BUFFER_BYTES, maxQueuedBytes);
+    this.serverSocketChannel = ServerSocketChannel.open();
+    this.serverSocketChannel.bind(new InetSocketAddress(port));
+    this.eventLoops = new EventLoop[Math.max(1, numEventLoops)];
+    for (int i = 0; i < this.eventLoops.length; i++) {
+      this.eventLoops[i] = new EventLoop(Selector.open());
+    }
+  }
+
+  /**
+   * Get the server socket that clients connect to.
+   * @return the server socket of the underlying server socket channel
+   */
+  public ServerSocket getServerSocket() {
+    return this.serverSocketChannel.socket();
+  }
+
+  /**
+   * Start a thread for each event loop and a thread for accepting new client connections.
+   */
+  public void start() {
+    for (EventLoop eventLoop : this.eventLoops) {
+      lookUpServer.executionPolicy.executeService("lookup-nio-event-loop", eventLoop);
+    }
+    lookUpServer.executionPolicy.executeService("lookup-nio-acceptor", new ConnectionAcceptor());
+    lookUpServer.logger.logger.info("Started NIO front end with " + this.eventLoops.length + " event loops");
+  }
+
+  /**
+   * Class to be executed by a thread that accepts client connections and hands each of them to the
+   * event loops in round robin order.
+   */
+  private class ConnectionAcceptor implements Runnable {
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          SocketChannel clientChannel = serverSocketChannel.accept();
+          clientChannel.configureBlocking(false);
+          lookUpServer.logger.logger.info("Accepted client socket connection");
+          eventLoops[nextEventLoop].register(clientChannel);
+          nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        } catch (IOException e) {
+          lookUpServer.logger.logger.warning("Could not accept client socket connection");
+        }
+      }
+    }
+  }
+
+  /**
+   * Class to be executed by a thread that owns a selector and serves reads and writes for all the
+   * client channels registered with it.
+   */
+  private class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ClientConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Thread eventLoopThread;
+
+    /**
+     * Constructor for an event loop that sets the selector it polls.
+     * @param selector
+     */
+    public EventLoop(Selector selector) {
+      this.selector = selector;
+    }
+
+    /**
+     * Queue a newly accepted channel to be registered by this event loop's thread.
+     * @param clientChannel
+     */
+    public void register(SocketChannel clientChannel) {
+      this.newChannels.add(clientChannel);
+      this.selector.wakeup();
+    }
+
+    /**
+     * Ask this event loop to write out the queued responses of the given connection and to update
+     * which readiness it waits for.
+     * @param clientConnection
+     */
+    public void requestWrite(ClientConnection clientConnection) {
+      this.pendingWrites.add(clientConnection);
+      this.selector.wakeup();
+    }
+
+    /**
+     * Check whether the calling thread is this event loop's thread.
+     * @return true if called from inside the event loop
+     */
+    public boolean inEventLoop() {
+      return Thread.currentThread() == this.eventLoopThread;
+    }
+
+    /**
+     * Continuously select ready channels, registering new channels and flushing writes requested by
+     * other threads in between, and read requests from or write responses to the ready channels.
+     */
+    @Override
+    public void run() {
+      this.eventLoopThread = Thread.currentThread();
+      while (true) {
+        try {
+          this.selector.select();
+          SocketChannel newChannel;
+          while ((newChannel = this.newChannels.poll()) != null) {
+            ClientConnection clientConnection = new ClientConnection(newChannel, this);
+            clientConnection.key = newChannel.register(this.selector, SelectionKey.OP_READ, clientConnection);
+          }
+          ClientConnection writingConnection;
+          while ((writingConnection = this.pendingWrites.poll()) != null) {
+            writingConnection.flushWrites();
+          }
+          Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            ClientConnection clientConnection = (ClientConnection) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                clientConnection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                clientConnection.flushWrites();
+              }
+            } catch (CancelledKeyException e) {
+              // the connection was closed by a thread handling its requests.
+            }
+          }
+        } catch (IOException e) {
+          lookUpServer.logger.logger.warning("NIO event loop could not select client channels");
+        }
+      }
+    }
+  }
+
+  /**
+   * State for a single client channel: the protocol negotiated from the first bytes the client
+   * sent, the buffer of bytes read but not dispatched yet, the requests waiting to be handled, the
+   * responses waiting to be written, and the client socket handler that requests are dispatched to.
+   */
+  private class ClientConnection {
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private LookUpServer.ClientSocketHandler clientSocketHandler;
+    private boolean binary = false;
+    // bytes read but not dispatched yet, from the start of the buffer to its position
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    // number of bytes at the start of the read buffer that a text client's line end was looked for in
+    private int scannedBytes = 0;
+    // requests waiting to be handled, and whether a task of the execution policy is handling them
+    // and whether the channel stopped being read until fewer of them wait, all guarded by the queue
+    private final ArrayDeque<String[]> pendingRequests = new ArrayDeque<>();
+    private boolean isHandlingRequests = false;
+    private boolean isReadPaused = false;
+    // responses waiting to be written and the number of bytes left in them, guarded by the queue
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private SelectionKey key;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor for a client connection. The client socket handler is only created once the
+     * first bytes show which protocol the client speaks.
+     * @param channel
+     * @param eventLoop
+     */
+    public ClientConnection(SocketChannel channel, EventLoop eventLoop) {
+      this.channel = channel;
+      this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Read what is available on the channel and dispatch every complete request to the client
+     * socket handler straight from the read buffer, then move the bytes of the incomplete request
+     * left to the start of the buffer. Close the connection if the client disconnected or sent a
+     * request longer than the maximum.
+     */
+    public void read() {
+      if (!this.readBuffer.hasRemaining()) {
+        // the request being read does not fit, and the parsers refuse requests longer than the
+        // maximum before the buffer grows past it.
+        resizeReadBuffer(Math.min(this.readBuffer.capacity() * 2, maxRequestBytes + 4));
+      }
+      int numRead;
+      try {
+        numRead = this.channel.read(this.readBuffer);
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      if (numRead < 0) {
+        // This is the case that the client disconnected completely.
+        close();
+        return;
+      }
+      byte[] bytes = this.readBuffer.array();
+      int limit = this.readBuffer.position();
+      int consumed = 0;
+      try {
+        if (this.clientSocketHandler == null) {
+          consumed = negotiate(bytes, limit);
+        }
+        if (this.clientSocketHandler != null) {
+          consumed = this.binary ? readFrames(bytes, consumed, limit) : readLines(bytes, consumed, limit);
+        }
+      } catch (IOException e) {
+        lookUpServer.logger.logger.warning("Received malformed request on client channel: " + e.getMessage());
+        close();
+        return;
+      }
+      if (this.closed) {
+        return;
+      }
+      this.readBuffer.flip();
+      this.readBuffer.position(consumed);
+      this.readBuffer.compact();
+      this.scannedBytes = Math.max(0, this.scannedBytes - consumed);
+      if (this.readBuffer.capacity() > READ_BUFFER_BYTES && this.readBuffer.position() <= READ_BUFFER_BYTES) {
+        // give back the memory of a long request once it was dispatched.
+        resizeReadBuffer(READ_BUFFER_BYTES);
+      }
+    }
+
+    /**
+     * Move the bytes read but not dispatched yet to a read buffer of the given capacity.
+     * @param capacity
+     */
+    private void resizeReadBuffer(int capacity) {
+      ByteBuffer resized = ByteBuffer.allocate(capacity);
+      this.readBuffer.flip();
+      resized.put(this.readBuffer);
+      this.readBuffer = resized;
+    }
+
+    /**
+     * Decide from the first bytes whether the client speaks the binary or the text protocol and
+     * create the client socket handler with a matching message channel. A binary client's
+     * handshake is answered with the version both sides will use.
+     * @param bytes
+     * @param limit the number of bytes read
+     * @return the number of handshake bytes consumed, or 0 if more bytes are needed
+     * @throws IOException if the handshake is invalid
+     */
+    private int negotiate(byte[] bytes, int limit) throws IOException {
+      if (limit == 0) {
+        return 0;
+      }
+      if (bytes[0] != WireProtocol.MAGIC_0) {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new ChannelOutputStream(this)));
+        this.clientSocketHandler = lookUpServer.createClientSocketHandler(this.channel.socket(),
+                new TextMessageChannel(null, writer));
+        return 0;
+      }
+      if (limit < 3) {
+        return 0;
+      }
+      if (bytes[1] != WireProtocol.MAGIC_1) {
+        throw new IOException("Invalid protocol handshake");
+      }
+      byte[] answer = MessageChannels.handshake((byte) Math.min(bytes[2], WireProtocol.VERSION));
+      enqueue(answer, 0, answer.length);
+      this.binary = true;
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new ChannelOutputStream(this)));
+      this.clientSocketHandler = lookUpServer.createClientSocketHandler(this.channel.socket(),
+              new BinaryMessageChannel(null, out));
+      return 3;
+    }
+
+    /**
+     * Dispatch every complete request line of a text client. Bytes that were already looked through
+     * for a line end are not looked through again when more bytes of a long line arrive.
+     * @param bytes
+     * @param offset
+     * @param limit the number of bytes read
+     * @return the number of bytes consumed
+     * @throws IOException if a line is longer than the maximum request
+     */
+    private int readLines(byte[] bytes, int offset, int limit) throws IOException {
+      int lineStart = offset;
+      for (int i = Math.max(offset, this.scannedBytes); i < limit && !this.closed; i++) {
+        if (bytes[i] == '\n') {
+          int length = i - lineStart;
+          if (length > 0 && bytes[i - 1] == '\r') {
+            length--;
+          }
+          if (length > maxRequestBytes) {
+            throw new IOException("Request line longer than " + maxRequestBytes + " bytes");
+          }
+          dispatch(TextMessageChannel.parseMessage(new String(bytes, lineStart, length, Charset.defaultCharset())));
+          lineStart = i + 1;
+        }
+      }
+      this.scannedBytes = limit;
+      if (limit - lineStart > maxRequestBytes + 1) {
+        throw new IOException("Request line longer than " + maxRequestBytes + " bytes");
+      }
+      return lineStart;
+    }
+
+    /**
+     * Dispatch every complete length-prefixed frame of a binary client.
+     * @param bytes
+     * @param offset
+     * @param limit the number of bytes read
+     * @return the number of bytes consumed
+     * @throws IOException if a frame is malformed or longer than the maximum request
+     */
+    private int readFrames(byte[] bytes, int offset, int limit) throws IOException {
+      while (limit - offset >= 4 && !this.closed) {
+        int length = ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+        if (length < 3 || length > WireProtocol.MAX_FRAME_BYTES || length > maxRequestBytes) {
+          throw new IOException("Invalid frame length " + length);
+        }
+        if (limit - offset - 4 < length) {
+          break;
+        }
+        dispatch(BinaryMessageChannel.decodeFrame(bytes, offset + 4, length));
+        offset += 4 + length;
+      }
+      return offset;
+    }
+
+    /**
+     * Queue a request to be handled after the ones before it, and stop reading the channel once
+     * many requests wait. Called from the event loop.
+     * @param messageArray
+     */
+    private void dispatch(String[] messageArray) {
+      synchronized (this.pendingRequests) {
+        this.pendingRequests.add(messageArray);
+        if (this.pendingRequests.size() >= MAX_PENDING_REQUESTS && !this.isReadPaused) {
+          this.isReadPaused = true;
+          updateInterestOps();
+        }
+      }
+      startHandlingRequests();
+    }
+
+    /**
+     * Start a task that handles the waiting requests unless one is running already or the queued
+     * responses have to be written first.
+     */
+    private void startHandlingRequests() {
+      synchronized (this.pendingRequests) {
+        if (this.isHandlingRequests || this.closed || this.pendingRequests.isEmpty() || hasTooManyQueuedBytes()) {
+          return;
+        }
+        this.isHandlingRequests = true;
+      }
+      lookUpServer.executionPolicy.execute("lookup-nio-request-handler", this::handlePendingRequests);
+    }
+
+    /**
+     * Hand the waiting requests to the client socket handler in order, until none are left, the
+     * queued responses have to be written first, or the connection was closed. A request that can
+     * not be handled closes the connection. The user is logged out here rather than in close() if
+     * the connection was closed while a request was being handled, so that the logout comes after
+     * the request.
+     */
+    private void handlePendingRequests() {
+      while (true) {
+        String[] messageArray;
+        boolean resumeReading = false;
+        synchronized (this.pendingRequests) {
+          if (this.closed || this.pendingRequests.isEmpty() || hasTooManyQueuedBytes()) {
+            this.isHandlingRequests = false;
+            if (!this.closed) {
+              return;
+            }
+            break;
+          }
+          messageArray = this.pendingRequests.poll();
+          if (this.isReadPaused && this.pendingRequests.size() < MAX_PENDING_REQUESTS / 2) {
+            this.isReadPaused = false;
+            resumeReading = true;
+          }
+        }
+        if (resumeReading) {
+          this.eventLoop.requestWrite(this);
+        }
+        try {
+          this.clientSocketHandler.handleRequest(messageArray);
+        } catch (IOException | RuntimeException e) {
+          lookUpServer.logger.logger.warning("Could not handle request from client channel: " + e);
+          close();
+        }
+      }
+      this.clientSocketHandler.handleDisconnect();
+    }
+
+    /**
+     * Check whether more response bytes wait to be written than requests may be handled with.
+     * @return true if no more requests should be handled until some responses are written
+     */
+    private boolean hasTooManyQueuedBytes() {
+      synchronized (this.outbound) {
+        return this.queuedBytes > maxQueuedBytes;
+      }
+    }
+
+    /**
+     * Queue bytes of a response to be written to the channel. Write them right away if called from
+     * the event loop, otherwise hand the write to the event loop. A connection with far more
+     * queued than any response takes is closed.
+     * @param bytes
+     * @param offset
+     * @param length
+     */
+    public void enqueue(byte[] bytes, int offset, int length) {
+      byte[] copy = new byte[length];
+      System.arraycopy(bytes, offset, copy, 0, length);
+      boolean overflowed;
+      synchronized (this.outbound) {
+        this.outbound.add(ByteBuffer.wrap(copy));
+        this.queuedBytes += length;
+        overflowed = this.queuedBytes > maxQueuedBytes + MAX_UNREAD_BYTES;
+      }
+      if (overflowed) {
+        lookUpServer.logger.logger.warning("Client channel is not reading its responses, closing it");
+        close();
+      } else if (this.eventLoop.inEventLoop()) {
+        flushWrites();
+      } else {
+        this.eventLoop.requestWrite(this);
+      }
+    }
+
+    /**
+     * Write as much of the queued responses as the channel accepts, and only keep interest in write
+     * readiness while some of them are still left. Once few enough bytes are left, handling the
+     * waiting requests goes on.
+     */
+    public void flushWrites() {
+      if (this.closed) {
+        return;
+      }
+      try {
+        synchronized (this.outbound) {
+          while (!this.outbound.isEmpty()) {
+            ByteBuffer head = this.outbound.peek();
+            this.queuedBytes -= this.channel.write(head);
+            if (head.hasRemaining()) {
+              break;
+            }
+            this.outbound.poll();
+          }
+        }
+        updateInterestOps();
+      } catch (IOException | CancelledKeyException e) {
+        close();
+        return;
+      }
+      startHandlingRequests();
+    }
+
+    /**
+     * Wait for read readiness unless reading is paused, and for write readiness while responses
+     * are left to write. Called from the event loop.
+     */
+    private void updateInterestOps() {
+      int interestOps;
+      synchronized (this.pendingRequests) {
+        interestOps = this.isReadPaused ? 0 : SelectionKey.OP_READ;
+      }
+      synchronized (this.outbound) {
+        if (!this.outbound.isEmpty()) {
+          interestOps |= SelectionKey.OP_WRITE;
+        }
+      }
+      this.key.interestOps(interestOps);
+    }
+
+    /**
+     * Close the channel and log out the user of this connection, unless a request is being
+     * handled, in which case the task handling it logs the user out once it is done. May be called
+     * from any thread.
+     */
+    public void close() {
+      boolean disconnect;
+      synchronized (this.pendingRequests) {
+        if (this.closed) {
+          return;
+        }
+        this.closed = true;
+        this.pendingRequests.clear();
+        disconnect = !this.isHandlingRequests;
+      }
+      if (this.key != null) {
+        this.key.cancel();
+      }
+      if (disconnect && this.clientSocketHandler != null) {
+        this.clientSocketHandler.handleDisconnect();
+      }
+      try {
+        this.channel.close();
+      } catch (IOException e) {
+        lookUpServer.logger.logger.info("Client channel closed previously successfully.");
+      }
+    }
+  }
+
+  /**
+   * Output stream that hands everything written to it to a client connection's outbound queue.
+   */
+  private static class ChannelOutputStream extends OutputStream {
+
+    private final ClientConnection clientConnection;
+
+    /**
+     * Constructor for the output stream that sets the connection the bytes are queued onto.
+     * @param clientConnection
+     */
+    public ChannelOutputStream(ClientConnection clientConnection) {
+      this.clientConnection = clientConnection;
+    }
+
+    @Override
+    public void write(int b) {
+      this.clientConnection.enqueue(new byte[]{ (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      this.clientConnection.enqueue(bytes, offset, length);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import java.util.HashSet;
+
+/**
+ * Class that holds the state of a single slot of the replicated log in multi-paxos mode. A LookUp
+ * server only uses the part of the state that belongs to its paxos role: the leader tracks the value
+ * it proposed and which acceptors accepted it, acceptors track the value they accepted, and every
+ * server tracks the chosen value until it has been carried out in slot order.
+ */
+public class PaxosInstance {
+  public long slot;
+
+  // proposer state
+  public String proposedValue = null;
+  public HashSet<Object> acceptedBy = new HashSet<>();
+  public long proposeNanos = 0;
+
+  // acceptor state
+  public long acceptedBallot = -1;
+  public String acceptedValue = null;
+
+  // learner state
+  public String chosenValue = null;
+  public boolean appliedLocally = false;
+
+  /**
+   * Constructor for a paxos instance that sets the log slot it belongs to.
+   * @param slot
+   */
+  public PaxosInstance(long slot) {
+    this.slot = slot;
+  }
+
+  /**
+   * Check whether this server proposed a value in this slot that has not been chosen yet.
+   * @return true if the slot is in flight
+   */
+  public boolean isInFlight() {
+    return this.proposedValue != null && this.chosenValue == null;
+  }
+}
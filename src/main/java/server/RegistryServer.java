@@ -12,6 +12,8 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import executor.ExecutionPolicies;
+import executor.ExecutionPolicy;
 import logger.ProgLogger;
 
 /**
@@ -29,6 +31,7 @@ public class RegistryServer {
   public List paxosServerInfos;
   public int myPort;
   public String myAddress;
+  public ExecutionPolicy executionPolicy = ExecutionPolicies.getDefault();
 
   /**
    * Constructor for registry server that creates an arraylist of LookUp server infos (paxos servers),
@@ -43,7 +46,7 @@ public class RegistryServer {
       this.serverSocket = new ServerSocket(0);
       this.myPort = this.serverSocket.getLocalPort();
       this.myAddress = this.serverSocket.getInetAddress().getHostAddress();
-      new Thread(new NewServerWaiter()).start();
+      executionPolicy.executeService("registry-server-waiter", new NewServerWaiter());
       registryLogger.logger.info("Set up server socket for LookUp servers to connect to");
     } catch (IOException e) {
       registryLogger.logger.warning("Could not set up server socket for LookUp servers to connect to");
@@ -64,7 +67,10 @@ public class RegistryServer {
           newServerSocket = serverSocket.accept();
           registryLogger.logger.info("New LookUp server socket connection accepted");
           NewServerSocketHandler newServerSocketHandler = new NewServerSocketHandler(newServerSocket);
-          new Thread(newServerSocketHandler).start();
+          if (!executionPolicy.executeConnectionHandler("registry-server-handler", newServerSocketHandler)) {
+            registryLogger.logger.warning("Refused LookUp server socket connection, no thread left");
+            newServerSocket.close();
+          }
         } catch (IOException e) {
           registryLogger.logger.warning("Could not accept LookUp server socket connection");
         }
@@ -0,0 +1,68 @@
+package server;
+
+/**
+ * Class for how much of its history a chatroom keeps: at most a number of messages, messages sent
+ * in at most a number of seconds, and messages with at most a number of bytes of senders and
+ * contents. Every limit is either a positive number, UNLIMITED, or INHERIT to take the limit of the
+ * server's default policy.
+ */
+public class RetentionPolicy {
+  public static final long INHERIT = -1;
+  public static final long UNLIMITED = 0;
+
+  public long maxMessages;
+  public long maxAgeSeconds;
+  public long maxBytes;
+
+  /**
+   * Constructor for a policy that takes every limit from the server's default policy.
+   */
+  public RetentionPolicy() {
+    this(INHERIT, INHERIT, INHERIT);
+  }
+
+  /**
+   * Constructor for a policy with the given limits.
+   * @param maxMessages
+   * @param maxAgeSeconds
+   * @param maxBytes
+   */
+  public RetentionPolicy(long maxMessages, long maxAgeSeconds, long maxBytes) {
+    this.maxMessages = maxMessages;
+    this.maxAgeSeconds = maxAgeSeconds;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get the policy that applies when every limit of this policy that is INHERIT takes the limit of
+   * the given default policy.
+   * @param defaults the server's default policy, which has no INHERIT limits
+   * @return the resolved policy
+   */
+  public RetentionPolicy resolve(RetentionPolicy defaults) {
+    return new RetentionPolicy(this.maxMessages == INHERIT ? defaults.maxMessages : this.maxMessages,
+            this.maxAgeSeconds == INHERIT ? defaults.maxAgeSeconds : this.maxAgeSeconds,
+            this.maxBytes == INHERIT ? defaults.maxBytes : this.maxBytes);
+  }
+
+  /**
+   * Check whether the policy keeps every message.
+   * @return true if no limit is set
+   */
+  public boolean isUnlimited() {
+    return this.maxMessages <= UNLIMITED && this.maxAgeSeconds <= UNLIMITED && this.maxBytes <= UNLIMITED;
+  }
+
+  /**
+   * Check whether every limit is a positive number, UNLIMITED or INHERIT.
+   * @return true if the policy is valid
+   */
+  public boolean isValid() {
+    return this.maxMessages >= INHERIT && this.maxAgeSeconds >= INHERIT && this.maxBytes >= INHERIT;
+  }
+
+  @Override
+  public String toString() {
+    return "maxMessages=" + this.maxMessages + ", maxAgeSeconds=" + this.maxAgeSeconds + ", maxBytes=" + this.maxBytes;
+  }
+}
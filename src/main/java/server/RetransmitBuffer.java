@@ -0,0 +1,93 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Bounded ring of the latest chat messages sent by a chatroom server, kept by sequence number so
+ * messages that members report missing can be sent again. Every message sits in the slot of its
+ * sequence number modulo the capacity until a message that many sequence numbers later takes its
+ * place. A message is not multicast again within RETRANSMIT_SUPPRESS_MILLIS of its last
+ * retransmission, so when many members miss the same datagram and all report it, one retransmission
+ * serves all of them.
+ */
+public class RetransmitBuffer {
+
+  public static final long RETRANSMIT_SUPPRESS_MILLIS = 10;
+
+  private final long[] sequences;
+  private final String[] senders;
+  private final String[] contents;
+  private final long[] retransmitNanos;
+  private long requestedMessages = 0;
+  private long retransmittedMessages = 0;
+  private long suppressedMessages = 0;
+  private long unavailableMessages = 0;
+
+  /**
+   * Constructor for a retransmit buffer holding the given number of the latest messages.
+   * @param capacity
+   */
+  public RetransmitBuffer(int capacity) {
+    this.sequences = new long[Math.max(1, capacity)];
+    this.senders = new String[this.sequences.length];
+    this.contents = new String[this.sequences.length];
+    this.retransmitNanos = new long[this.sequences.length];
+    Arrays.fill(this.sequences, -1);
+  }
+
+  /**
+   * Keep a message that was just multicast.
+   * @param sequence
+   * @param sender
+   * @param content
+   */
+  public synchronized void put(long sequence, String sender, String content) {
+    int slot = (int) (sequence % this.sequences.length);
+    this.sequences[slot] = sequence;
+    this.senders[slot] = sender;
+    this.contents[slot] = content;
+    this.retransmitNanos[slot] = System.nanoTime() - RETRANSMIT_SUPPRESS_MILLIS * 1_000_000;
+  }
+
+  /**
+   * Get a message that a member reported missing so it can be sent again.
+   * @param sequence
+   * @param suppressRepeats whether the message is multicast, so it is not sent again within
+   *                        RETRANSMIT_SUPPRESS_MILLIS of its last retransmission
+   * @return the sender and contents of the message, or null if it is no longer kept or was just
+   *         retransmitted
+   */
+  public synchronized String[] getForRetransmit(long sequence, boolean suppressRepeats) {
+    this.requestedMessages++;
+    int slot = (int) (sequence % this.sequences.length);
+    if (sequence < 0 || this.sequences[slot] != sequence) {
+      this.unavailableMessages++;
+      return null;
+    }
+    long now = System.nanoTime();
+    if (suppressRepeats && now - this.retransmitNanos[slot] < RETRANSMIT_SUPPRESS_MILLIS * 1_000_000) {
+      this.suppressedMessages++;
+      return null;
+    }
+    this.retransmitNanos[slot] = now;
+    this.retransmittedMessages++;
+    return new String[]{ this.senders[slot], this.contents[slot] };
+  }
+
+  /**
+   * Get the number of the latest messages kept.
+   * @return the capacity
+   */
+  public int getCapacity() {
+    return this.sequences.length;
+  }
+
+  /**
+   * Describe how many missing messages were reported and what became of them.
+   * @return a one line summary of the retransmit metrics
+   */
+  public synchronized String describeMetrics() {
+    return "requested=" + this.requestedMessages + ", retransmitted=" + this.retransmittedMessages
+            + ", suppressed=" + this.suppressedMessages + ", unavailable=" + this.unavailableMessages;
+  }
+}
@@ -0,0 +1,46 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Dictionary of the distinct sender usernames of a chatroom's message history. Every sender is
+ * stored once and given the next small ID, so the history only needs to hold an int per message
+ * for its sender. Callers synchronize access.
+ */
+public class SenderDictionary {
+  private final ArrayList<String> senders = new ArrayList<>();
+  private final HashMap<String,Integer> senderIDs = new HashMap<>();
+
+  /**
+   * Get the ID of a sender username, adding the sender if it is new.
+   * @param sender
+   * @return the sender ID
+   */
+  public int getID(String sender) {
+    Integer senderID = this.senderIDs.get(sender);
+    if (senderID == null) {
+      senderID = this.senders.size();
+      this.senders.add(sender);
+      this.senderIDs.put(sender, senderID);
+    }
+    return senderID;
+  }
+
+  /**
+   * Get the sender username with the given ID.
+   * @param senderID
+   * @return the sender username
+   */
+  public String getSender(int senderID) {
+    return this.senders.get(senderID);
+  }
+
+  /**
+   * Get the number of distinct senders.
+   * @return the number of senders
+   */
+  public int size() {
+    return this.senders.size();
+  }
+}
@@ -0,0 +1,172 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Message history of a chatroom whose messages up to the snapshot stay in the snapshot file instead
+ * of on the heap, for the log compactor, which only passes them on to the next snapshot. Messages
+ * of the snapshot are read through a cursor that only moves forward, so reading the history in
+ * order, as writing a snapshot and enforcing retention do, reads the chatroom's part of the file
+ * once. Messages appended after the snapshot are kept on the heap. Read errors are thrown as
+ * unchecked IO exceptions, since history stores do not throw checked ones.
+ */
+public class SnapshotHistoryStore implements HistoryStore {
+  private final FileChannel snapshotChannel;
+  private final long pagesPosition;
+  private final String[] senders;
+  private final long snapshotNextSequence;
+  private final InMemoryHistoryStore appended = new InMemoryHistoryStore();
+  private long firstSequence;
+  // reader at the next message of the snapshot, the sequence number of that message, and the number
+  // of messages left in its page, or null until the snapshot's messages are read
+  private DataInputStream cursor;
+  private long cursorSequence;
+  private long cursorPageMessages;
+
+  /**
+   * Constructor for a history whose messages from firstSequence up to but not including
+   * snapshotNextSequence are stored in the pages of a snapshot file starting at the given position.
+   * @param snapshotChannel
+   * @param pagesPosition
+   * @param senders the senders of the chatroom, which the messages of the snapshot refer to by index
+   * @param firstSequence
+   * @param snapshotNextSequence
+   */
+  public SnapshotHistoryStore(FileChannel snapshotChannel, long pagesPosition, String[] senders,
+                              long firstSequence, long snapshotNextSequence) {
+    this.snapshotChannel = snapshotChannel;
+    this.pagesPosition = pagesPosition;
+    this.senders = senders;
+    this.firstSequence = firstSequence;
+    this.snapshotNextSequence = snapshotNextSequence;
+    this.appended.discardBefore(snapshotNextSequence);
+  }
+
+  @Override
+  public synchronized long append(String sender, String message) {
+    return this.appended.append(sender, message);
+  }
+
+  @Override
+  public synchronized long getFirstSequence() {
+    return this.firstSequence;
+  }
+
+  @Override
+  public synchronized long getNextSequence() {
+    return this.appended.getNextSequence();
+  }
+
+  @Override
+  public synchronized String[] getMessages(long fromSequence, long toSequence) {
+    long from = Math.max(this.firstSequence, fromSequence);
+    long to = Math.min(this.snapshotNextSequence, toSequence);
+    ArrayList<String> messages = new ArrayList<>();
+    if (from < to) {
+      try {
+        readSnapshotMessages(from, to, messages);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not read history from snapshot", e);
+      }
+    }
+    String[] appendedMessages = this.appended.getMessages(Math.max(from, this.snapshotNextSequence), toSequence);
+    if (messages.isEmpty()) {
+      return appendedMessages;
+    }
+    for (String appendedMessage : appendedMessages) {
+      messages.add(appendedMessage);
+    }
+    return messages.toArray(new String[0]);
+  }
+
+  /**
+   * Read the messages of the snapshot in the given range, moving the cursor forward, or starting
+   * over from the first page if the range is behind the cursor. The cursor is let go once it has
+   * read the last message of the snapshot.
+   * @param from
+   * @param to
+   * @param messages the list to add the sender and then the contents of every message to
+   * @throws IOException
+   */
+  private void readSnapshotMessages(long from, long to, ArrayList<String> messages) throws IOException {
+    if (this.cursor == null || from < this.cursorSequence) {
+      this.cursor = new DataInputStream(new BufferedInputStream(openAt(this.snapshotChannel, this.pagesPosition)));
+      this.cursorSequence = -1;
+      this.cursorPageMessages = 0;
+    }
+    while (true) {
+      if (this.cursorPageMessages == 0) {
+        long pageFirstSequence = StateSnapshot.readVarLong(this.cursor) - 1;
+        if (pageFirstSequence < 0) {
+          this.cursor = null;
+          return;
+        }
+        this.cursorSequence = pageFirstSequence;
+        this.cursorPageMessages = StateSnapshot.readVarLong(this.cursor);
+        continue;
+      }
+      if (this.cursorSequence >= to) {
+        return;
+      }
+      int senderIndex = (int) StateSnapshot.readVarLong(this.cursor);
+      if (this.cursorSequence < from) {
+        StateSnapshot.skipString(this.cursor);
+      } else {
+        messages.add(this.senders[senderIndex]);
+        messages.add(StateSnapshot.readString(this.cursor));
+      }
+      this.cursorSequence++;
+      this.cursorPageMessages--;
+      if (this.cursorSequence >= this.snapshotNextSequence) {
+        this.cursor = null;
+        return;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void discardBefore(long sequence) {
+    this.firstSequence = Math.max(this.firstSequence, sequence);
+    this.appended.discardBefore(sequence);
+  }
+
+  @Override
+  public synchronized void close() {
+    this.cursor = null;
+  }
+
+  /**
+   * Get a stream that reads a file channel from the given position on without moving the channel's
+   * own position, so several streams can read the same channel.
+   * @param channel
+   * @param position
+   * @return the input stream
+   */
+  static InputStream openAt(FileChannel channel, long position) {
+    return new InputStream() {
+      private long nextPosition = position;
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int numRead = channel.read(ByteBuffer.wrap(b, off, len), this.nextPosition);
+        if (numRead > 0) {
+          this.nextPosition += numRead;
+        }
+        return numRead;
+      }
+    };
+  }
+}
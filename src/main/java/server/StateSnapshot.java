@@ -0,0 +1,628 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class for a snapshot of the replicated state of a LookUp server, which covers every write-ahead
+ * log segment before nextSegment. It holds the registered users, every chatroom with its members,
+ * multicast group and message history, the chatroom ID counter, the IDs of the batches recently
+ * carried out, and the paxos acceptor state, so a server that loads it only needs to replay the log
+ * segments from nextSegment on. The groups in use are counted again from the chatrooms. Snapshots
+ * are stored in a compact binary format: numbers and string lengths are variable-length integers,
+ * and the message senders of a chatroom are written once and then referred to by index. The same
+ * format is streamed to a LookUp server that joins a running cluster. The log compactor reads
+ * snapshots without their message histories, which it reads from the file again while it writes the
+ * next snapshot.
+ */
+public class StateSnapshot {
+
+  private static final int MAGIC = 0x4C555353;
+  private static final int VERSION = 5;
+
+  public long nextSegment;
+
+  // replicated stores
+  public HashMap<String,String> usernamePasswordStore = new HashMap<>();
+  public ArrayList<ChatroomInfo> chatrooms = new ArrayList<>();
+  public int nextChatroomID;
+
+  // classic paxos acceptor state
+  public long maxPromisedProposalNumber;
+  public long maxAcceptedProposalNumber;
+  public String maxAcceptedProposalTransaction;
+  public long lastChosenProposalNumber;
+  public ArrayList<Long> recentChosenProposalNumbers = new ArrayList<>();
+  public ArrayList<String> recentAppliedBatchIDs = new ArrayList<>();
+
+  // multi-paxos acceptor and learner state
+  public long promisedLeaderBallot;
+  public long highestAcceptedSlot;
+  public long nextSlotToApply;
+  public ArrayList<PaxosInstance> paxosInstances = new ArrayList<>();
+
+  /**
+   * Capture the replicated state of a LookUp server that nothing else is changing at the same time.
+   * @param server
+   * @param nextSegment the first log segment whose records are not part of the state yet
+   * @return the snapshot
+   */
+  public static StateSnapshot capture(LookUpServer server, long nextSegment) {
+    StateSnapshot snapshot = new StateSnapshot();
+    snapshot.nextSegment = nextSegment;
+    snapshot.usernamePasswordStore.putAll(server.usernamePasswordStore);
+    snapshot.chatrooms.addAll(server.chatNameChatroomInfoStore.values());
+    snapshot.nextChatroomID = server.nextChatroomID;
+    snapshot.maxPromisedProposalNumber = server.maxPromisedProposalNumber;
+    snapshot.maxAcceptedProposalNumber = server.maxAcceptedProposalNumber;
+    snapshot.maxAcceptedProposalTransaction = server.maxAcceptedProposalTransaction;
+    snapshot.lastChosenProposalNumber = server.lastChosenProposalNumber;
+    snapshot.recentChosenProposalNumbers.addAll(server.recentChosenProposalNumbers);
+    snapshot.recentAppliedBatchIDs.addAll(server.recentAppliedBatchIDs);
+    snapshot.promisedLeaderBallot = server.promisedLeaderBallot;
+    snapshot.highestAcceptedSlot = server.highestAcceptedSlot;
+    snapshot.nextSlotToApply = server.nextSlotToApply;
+    for (PaxosInstance instance : server.paxosInstances.values()) {
+      if (instance.acceptedValue != null || instance.chosenValue != null) {
+        snapshot.paxosInstances.add(instance);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Capture the state a running LookUp server has learned, without its acceptor state, for a
+   * server that joins the cluster. The chatrooms are copied so the snapshot can be written out
+   * after the caller let go of the locks that keep chosen values from being carried out meanwhile.
+   * @param server
+   * @return the snapshot
+   */
+  public static StateSnapshot captureLearnedState(LookUpServer server) {
+    StateSnapshot snapshot = new StateSnapshot();
+    snapshot.usernamePasswordStore.putAll(server.usernamePasswordStore);
+    for (ChatroomInfo chatroomInfo : server.chatNameChatroomInfoStore.values()) {
+      snapshot.chatrooms.add(chatroomInfo.copy());
+    }
+    snapshot.nextChatroomID = server.nextChatroomID;
+    snapshot.maxPromisedProposalNumber = -1;
+    snapshot.maxAcceptedProposalNumber = -1;
+    snapshot.lastChosenProposalNumber = server.lastChosenProposalNumber;
+    snapshot.recentChosenProposalNumbers.addAll(server.recentChosenProposalNumbers);
+    snapshot.recentAppliedBatchIDs.addAll(server.recentAppliedBatchIDs);
+    snapshot.promisedLeaderBallot = -1;
+    snapshot.highestAcceptedSlot = -1;
+    snapshot.nextSlotToApply = server.nextSlotToApply;
+    for (PaxosInstance instance : server.paxosInstances.values()) {
+      if (instance.chosenValue != null) {
+        PaxosInstance chosenInstance = new PaxosInstance(instance.slot);
+        chosenInstance.chosenValue = instance.chosenValue;
+        snapshot.paxosInstances.add(chosenInstance);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Replace the replicated state of a LookUp server with the state of this snapshot.
+   * @param server
+   */
+  public void restore(LookUpServer server) {
+    restoreLearnedState(server);
+    server.maxPromisedProposalNumber = this.maxPromisedProposalNumber;
+    server.maxAcceptedProposalNumber = this.maxAcceptedProposalNumber;
+    server.maxAcceptedProposalTransaction = this.maxAcceptedProposalTransaction;
+    server.promisedLeaderBallot = this.promisedLeaderBallot;
+    server.highestAcceptedSlot = this.highestAcceptedSlot;
+    server.paxosInstances.clear();
+    for (PaxosInstance instance : this.paxosInstances) {
+      server.paxosInstances.put(instance.slot, instance);
+    }
+  }
+
+  /**
+   * Replace what a LookUp server has learned with the state of this snapshot, but keep what the
+   * server promised and accepted as an acceptor. Slots the snapshot has already carried out are
+   * dropped, and slots it knows to be chosen are marked as chosen.
+   * @param server
+   */
+  public void restoreLearnedState(LookUpServer server) {
+    server.usernamePasswordStore.clear();
+    server.usernamePasswordStore.putAll(this.usernamePasswordStore);
+    for (ChatroomInfo chatroomInfo : server.chatNameChatroomInfoStore.values()) {
+      chatroomInfo.history.close();
+    }
+    server.chatNameChatroomInfoStore.clear();
+    for (ChatroomInfo chatroomInfo : this.chatrooms) {
+      server.chatNameChatroomInfoStore.put(chatroomInfo.name, server.adoptChatroomInfo(chatroomInfo));
+    }
+    server.rebuildMembershipIndex();
+    server.nextChatroomID = this.nextChatroomID;
+    server.multicastGroupAllocator.rebuild(server.chatNameChatroomInfoStore.values());
+    server.lastChosenProposalNumber = this.lastChosenProposalNumber;
+    server.recentChosenProposalNumbers.clear();
+    server.recentChosenProposalNumbers.addAll(this.recentChosenProposalNumbers);
+    server.recentAppliedBatchIDs.clear();
+    server.recentAppliedBatchIDs.addAll(this.recentAppliedBatchIDs);
+    server.nextSlotToApply = this.nextSlotToApply;
+    server.paxosInstances.headMap(this.nextSlotToApply).clear();
+    for (PaxosInstance instance : this.paxosInstances) {
+      if (instance.chosenValue != null) {
+        server.getPaxosInstance(instance.slot).chosenValue = instance.chosenValue;
+      }
+    }
+  }
+
+  /**
+   * Write the snapshot to a file. The snapshot is written to a temporary file that is synced and
+   * then renamed over the old snapshot, so a crash never leaves a partly written snapshot behind.
+   * @param path
+   * @throws IOException
+   */
+  public void save(Path path) throws IOException {
+    Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporaryPath))) {
+      writeTo(out);
+    }
+    try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read a snapshot from a file.
+   * @param path
+   * @return the snapshot, or null if there is no snapshot file
+   * @throws IOException
+   */
+  public static StateSnapshot load(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+      return readFrom(in);
+    }
+  }
+
+  /**
+   * Write the snapshot in its binary format.
+   * @param outputStream
+   * @throws IOException
+   */
+  public void writeTo(OutputStream outputStream) throws IOException {
+    DataOutputStream out = new DataOutputStream(outputStream);
+    out.writeInt(MAGIC);
+    writeVarLong(out, VERSION);
+    writeVarLong(out, this.nextSegment);
+    writeVarLong(out, this.usernamePasswordStore.size());
+    for (Map.Entry<String,String> user : this.usernamePasswordStore.entrySet()) {
+      writeString(out, user.getKey());
+      writeString(out, user.getValue());
+    }
+    writeVarLong(out, this.nextChatroomID);
+    writeVarLong(out, this.chatrooms.size());
+    for (ChatroomInfo chatroomInfo : this.chatrooms) {
+      writeChatroom(out, chatroomInfo);
+    }
+    writeVarLong(out, this.maxPromisedProposalNumber + 1);
+    writeVarLong(out, this.maxAcceptedProposalNumber + 1);
+    writeString(out, this.maxAcceptedProposalTransaction);
+    writeVarLong(out, this.lastChosenProposalNumber + 1);
+    writeVarLong(out, this.recentChosenProposalNumbers.size());
+    for (long proposalNumber : this.recentChosenProposalNumbers) {
+      writeVarLong(out, proposalNumber);
+    }
+    writeVarLong(out, this.recentAppliedBatchIDs.size());
+    for (String batchID : this.recentAppliedBatchIDs) {
+      writeString(out, batchID);
+    }
+    writeVarLong(out, this.promisedLeaderBallot + 1);
+    writeVarLong(out, this.highestAcceptedSlot + 1);
+    writeVarLong(out, this.nextSlotToApply);
+    writeVarLong(out, this.paxosInstances.size());
+    for (PaxosInstance instance : this.paxosInstances) {
+      writeVarLong(out, instance.slot);
+      writeVarLong(out, instance.acceptedBallot + 1);
+      writeString(out, instance.acceptedValue);
+      writeString(out, instance.chosenValue);
+    }
+    out.flush();
+  }
+
+  /**
+   * Read a snapshot in its binary format.
+   * @param inputStream
+   * @return the snapshot
+   * @throws IOException
+   */
+  public static StateSnapshot readFrom(InputStream inputStream) throws IOException {
+    return read(new CountingInputStream(inputStream), null);
+  }
+
+  /**
+   * Read a snapshot from a file without loading the message histories of its chatrooms, which stay
+   * in the file and are read from the given channel whenever they are needed, so the channel has to
+   * stay open for as long as the snapshot is used. Snapshots from before version 4 are read whole.
+   * @param channel
+   * @return the snapshot
+   * @throws IOException
+   */
+  public static StateSnapshot readDeferringHistories(FileChannel channel) throws IOException {
+    return read(new CountingInputStream(new BufferedInputStream(SnapshotHistoryStore.openAt(channel, 0))), channel);
+  }
+
+  /**
+   * Read a snapshot in its binary format, leaving the message histories in the file the given
+   * channel reads if there is one.
+   * @param counter the input, which counts the bytes read to know where the histories are
+   * @param historyChannel may be null
+   * @return the snapshot
+   * @throws IOException
+   */
+  private static StateSnapshot read(CountingInputStream counter, FileChannel historyChannel) throws IOException {
+    DataInputStream in = new DataInputStream(counter);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a LookUp server snapshot");
+    }
+    long version = readVarLong(in);
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unknown LookUp server snapshot version " + version);
+    }
+    StateSnapshot snapshot = new StateSnapshot();
+    snapshot.nextSegment = readVarLong(in);
+    long numUsers = readVarLong(in);
+    for (long i = 0; i < numUsers; i++) {
+      snapshot.usernamePasswordStore.put(readString(in), readString(in));
+    }
+    snapshot.nextChatroomID = (int) readVarLong(in);
+    if (version < 5) {
+      // snapshots from before version 5 hold the counter that group IPs were allocated from
+      readVarLong(in);
+    }
+    long numChatrooms = readVarLong(in);
+    for (long i = 0; i < numChatrooms; i++) {
+      snapshot.chatrooms.add(readChatroom(in, version, counter, historyChannel));
+    }
+    snapshot.maxPromisedProposalNumber = readVarLong(in) - 1;
+    snapshot.maxAcceptedProposalNumber = readVarLong(in) - 1;
+    snapshot.maxAcceptedProposalTransaction = readString(in);
+    snapshot.lastChosenProposalNumber = readVarLong(in) - 1;
+    if (version >= 2) {
+      long numRecentProposalNumbers = readVarLong(in);
+      for (long i = 0; i < numRecentProposalNumbers; i++) {
+        snapshot.recentChosenProposalNumbers.add(readVarLong(in));
+      }
+    }
+    long numRecentBatchIDs = readVarLong(in);
+    for (long i = 0; i < numRecentBatchIDs; i++) {
+      snapshot.recentAppliedBatchIDs.add(readString(in));
+    }
+    snapshot.promisedLeaderBallot = readVarLong(in) - 1;
+    snapshot.highestAcceptedSlot = readVarLong(in) - 1;
+    snapshot.nextSlotToApply = readVarLong(in);
+    long numInstances = readVarLong(in);
+    for (long i = 0; i < numInstances; i++) {
+      PaxosInstance instance = new PaxosInstance(readVarLong(in));
+      instance.acceptedBallot = readVarLong(in) - 1;
+      instance.acceptedValue = readString(in);
+      instance.chosenValue = readString(in);
+      snapshot.paxosInstances.add(instance);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Write a chatroom with its members, retention policy and message history. Every distinct sender
+   * is written once, and each message refers to its sender by index. The messages are written in
+   * pages that start with the sequence number of their first message, since the oldest messages
+   * may be discarded while the history is read, and the pages end with a 0.
+   * @param out
+   * @param chatroomInfo
+   * @throws IOException
+   */
+  private static void writeChatroom(DataOutputStream out, ChatroomInfo chatroomInfo) throws IOException {
+    writeVarLong(out, chatroomInfo.ID);
+    writeString(out, chatroomInfo.name);
+    writeVarLong(out, chatroomInfo.port);
+    writeString(out, chatroomInfo.groupIP);
+    writeString(out, chatroomInfo.inetAddress == null ? null : chatroomInfo.inetAddress.getHostAddress());
+    writeString(out, chatroomInfo.hostUsername);
+    ArrayList<String> members = chatroomInfo.getMembers();
+    writeVarLong(out, members.size());
+    for (String member : members) {
+      writeString(out, member);
+    }
+    RetentionPolicy retentionPolicy = chatroomInfo.retentionPolicy;
+    writeVarLong(out, retentionPolicy.maxMessages + 1);
+    writeVarLong(out, retentionPolicy.maxAgeSeconds + 1);
+    writeVarLong(out, retentionPolicy.maxBytes + 1);
+    // read the history a page at a time, once to find the senders and once to write the messages.
+    HistoryStore history = chatroomInfo.history;
+    long firstSequence = history.getFirstSequence();
+    long nextSequence = history.getNextSequence();
+    HashMap<String,Integer> senderIndexes = new HashMap<>();
+    ArrayList<String> senders = new ArrayList<>();
+    for (long sequence = firstSequence; sequence < nextSequence; sequence += LookUpServer.HISTORY_PAGE_MESSAGES) {
+      String[] messages = history.getMessages(sequence, Math.min(nextSequence, sequence + LookUpServer.HISTORY_PAGE_MESSAGES));
+      for (int i = 0; i < messages.length; i += 2) {
+        if (!senderIndexes.containsKey(messages[i])) {
+          senderIndexes.put(messages[i], senders.size());
+          senders.add(messages[i]);
+        }
+      }
+    }
+    writeVarLong(out, senders.size());
+    for (String sender : senders) {
+      writeString(out, sender);
+    }
+    writeVarLong(out, firstSequence);
+    for (long sequence = firstSequence; sequence < nextSequence; sequence += LookUpServer.HISTORY_PAGE_MESSAGES) {
+      long toSequence = Math.min(nextSequence, sequence + LookUpServer.HISTORY_PAGE_MESSAGES);
+      String[] messages = history.getMessages(sequence, toSequence);
+      if (messages.length == 0) {
+        continue;
+      }
+      writeVarLong(out, toSequence - messages.length / 2 + 1);
+      writeVarLong(out, messages.length / 2);
+      for (int i = 0; i < messages.length; i += 2) {
+        writeVarLong(out, senderIndexes.get(messages[i]));
+        writeString(out, messages[i + 1]);
+      }
+    }
+    writeVarLong(out, 0);
+    writeVarLong(out, chatroomInfo.lastMessageSequence + 1);
+    long[] timeCheckpoints = chatroomInfo.getTimeCheckpoints();
+    writeVarLong(out, timeCheckpoints.length / 2);
+    for (long checkpoint : timeCheckpoints) {
+      writeVarLong(out, checkpoint);
+    }
+  }
+
+  /**
+   * Read a chatroom with its members, retention policy and message history. Snapshots from before
+   * version 4 hold every message from sequence number 0 and no retention state, and those from
+   * before version 3 do not hold the last message sequence number, so it is taken from the number
+   * of messages. If a history channel is given, the messages are only skipped over and left in the
+   * file for a snapshot history store.
+   * @param in
+   * @param version the version of the snapshot format
+   * @param counter the input under in, which counts the bytes read
+   * @param historyChannel may be null
+   * @return the chatroomInfo
+   * @throws IOException
+   */
+  private static ChatroomInfo readChatroom(DataInputStream in, long version, CountingInputStream counter,
+                                           FileChannel historyChannel) throws IOException {
+    ChatroomInfo chatroomInfo = new ChatroomInfo();
+    chatroomInfo.setID((int) readVarLong(in));
+    chatroomInfo.setName(readString(in));
+    chatroomInfo.setPort((int) readVarLong(in));
+    chatroomInfo.setGroupIP(readString(in));
+    String hostAddress = readString(in);
+    if (hostAddress != null) {
+      chatroomInfo.setInetAddress(InetAddress.getByName(hostAddress));
+    }
+    chatroomInfo.setHostUsername(readString(in));
+    long numMembers = readVarLong(in);
+    for (long i = 0; i < numMembers; i++) {
+      chatroomInfo.putMember(readString(in));
+    }
+    if (version >= 4) {
+      chatroomInfo.setRetentionPolicy(new RetentionPolicy(readVarLong(in) - 1, readVarLong(in) - 1, readVarLong(in) - 1));
+    }
+    String[] senders = new String[(int) readVarLong(in)];
+    for (int i = 0; i < senders.length; i++) {
+      senders[i] = readString(in);
+    }
+    if (version >= 4 && historyChannel != null) {
+      skipHistory(in, chatroomInfo, senders, counter, historyChannel);
+    } else if (version >= 4) {
+      chatroomInfo.history.discardBefore(readVarLong(in));
+      for (long pageFirstSequence = readVarLong(in) - 1; pageFirstSequence >= 0; pageFirstSequence = readVarLong(in) - 1) {
+        // a page only starts past the messages read so far if those before it were discarded.
+        if (pageFirstSequence > chatroomInfo.history.getNextSequence()) {
+          chatroomInfo.history.discardBefore(pageFirstSequence);
+          chatroomInfo.historyBytes = 0;
+        }
+        long numMessages = readVarLong(in);
+        for (long i = 0; i < numMessages; i++) {
+          String sender = senders[(int) readVarLong(in)];
+          chatroomInfo.putMessage(sender, readString(in));
+        }
+      }
+    }
+    if (version >= 4) {
+      chatroomInfo.lastMessageSequence = readVarLong(in) - 1;
+      long[] timeCheckpoints = new long[(int) readVarLong(in) * 2];
+      for (int i = 0; i < timeCheckpoints.length; i++) {
+        timeCheckpoints[i] = readVarLong(in);
+      }
+      chatroomInfo.setTimeCheckpoints(timeCheckpoints);
+      return chatroomInfo;
+    }
+    long numMessages = readVarLong(in);
+    for (long i = 0; i < numMessages; i++) {
+      String sender = senders[(int) readVarLong(in)];
+      chatroomInfo.putMessage(sender, readString(in));
+    }
+    chatroomInfo.lastMessageSequence = version >= 3 ? readVarLong(in) - 1 : numMessages - 1;
+    return chatroomInfo;
+  }
+
+  /**
+   * Skip over the message history of a chatroom and give the chatroom a snapshot history store that
+   * reads the skipped pages from the file when needed. The bytes of the messages kept are counted
+   * from the string lengths, without decoding any message.
+   * @param in
+   * @param chatroomInfo
+   * @param senders
+   * @param counter the input under in, which counts the bytes read
+   * @param historyChannel
+   * @throws IOException
+   */
+  private static void skipHistory(DataInputStream in, ChatroomInfo chatroomInfo, String[] senders,
+                                  CountingInputStream counter, FileChannel historyChannel) throws IOException {
+    long[] senderBytes = new long[senders.length];
+    for (int i = 0; i < senders.length; i++) {
+      senderBytes[i] = ChatroomInfo.getUTF8Length(senders[i]);
+    }
+    long firstSequence = readVarLong(in);
+    long nextSequence = firstSequence;
+    long historyBytes = 0;
+    long pagesPosition = counter.count;
+    for (long pageFirstSequence = readVarLong(in) - 1; pageFirstSequence >= 0; pageFirstSequence = readVarLong(in) - 1) {
+      if (pageFirstSequence > nextSequence) {
+        firstSequence = pageFirstSequence;
+        historyBytes = 0;
+      }
+      long numMessages = readVarLong(in);
+      for (long i = 0; i < numMessages; i++) {
+        historyBytes += senderBytes[(int) readVarLong(in)] + skipString(in);
+      }
+      nextSequence = pageFirstSequence + numMessages;
+    }
+    chatroomInfo.history = new SnapshotHistoryStore(historyChannel, pagesPosition, senders,
+            Math.min(firstSequence, nextSequence), nextSequence);
+    chatroomInfo.historyBytes = historyBytes;
+  }
+
+  /**
+   * Write a non-negative number in as few bytes as needed, seven bits per byte.
+   * @param out
+   * @param value
+   * @throws IOException
+   */
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /**
+   * Read a number written by writeVarLong.
+   * @param in
+   * @return the number
+   * @throws IOException
+   */
+  static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed number in snapshot");
+  }
+
+  /**
+   * Write a string that may be null as its UTF-8 length plus one followed by its UTF-8 bytes.
+   * @param out
+   * @param value
+   * @throws IOException
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      writeVarLong(out, 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(out, bytes.length + 1L);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a string written by writeString.
+   * @param in
+   * @return the string, or null
+   * @throws IOException
+   */
+  static String readString(DataInputStream in) throws IOException {
+    long length = readVarLong(in);
+    if (length == 0) {
+      return null;
+    }
+    byte[] bytes = new byte[(int) (length - 1)];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Skip over a string written by writeString.
+   * @param in
+   * @return the number of UTF-8 bytes of the string
+   * @throws IOException
+   */
+  static long skipString(DataInputStream in) throws IOException {
+    long numBytes = Math.max(0, readVarLong(in) - 1);
+    for (long left = numBytes; left > 0; ) {
+      int numSkipped = in.skipBytes((int) Math.min(left, Integer.MAX_VALUE));
+      if (numSkipped <= 0) {
+        throw new EOFException("Snapshot ends inside a string");
+      }
+      left -= numSkipped;
+    }
+    return numBytes;
+  }
+
+  /**
+   * Input stream that counts the bytes read through it, to know where in a snapshot file a part of
+   * the snapshot starts.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private long count = 0;
+
+    /**
+     * Constructor for a counting stream over the given stream.
+     * @param in
+     */
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        this.count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int numRead = super.read(b, off, len);
+      if (numRead > 0) {
+        this.count += numRead;
+      }
+      return numRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long numSkipped = super.skip(n);
+      this.count += numSkipped;
+      return numSkipped;
+    }
+  }
+}
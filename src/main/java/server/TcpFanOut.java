@@ -0,0 +1,538 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import logger.ProgLogger;
+import protocol.BinaryMessageChannel;
+import protocol.TextMessageChannel;
+
+/**
+ * Delivery of a chatroom's messages over the sockets its members are connected with, for networks
+ * where multicast is not available. Every message is encoded once per protocol and put on a bounded
+ * outbound queue per member, so the thread that publishes it never waits for a socket. A pool of
+ * writer threads takes the members that have queued messages in turn and writes up to
+ * MAX_GATHERED_FRAMES of them with one gathering write. A member whose queue is full is a slow
+ * consumer, and the fan-out's policy decides what happens: DROP_OLDEST drops its oldest queued
+ * message, COALESCE replaces all of its queued chat messages so it jumps to the newest ones, and
+ * DISCONNECT closes its socket. Dropped messages are replaced by a notice of the range of sequence
+ * numbers the member skipped, which grows as more are dropped, so the member does not ask for them
+ * again and fall further behind. Member sockets are non-blocking, so a writer only writes what a
+ * socket takes and moves on. A member whose socket is full keeps the rest of its frames and waits on
+ * the fan-out's selector, and is handed back to the writers once its socket takes bytes again, while
+ * its queue fills up and the policy applies to it alone.
+ */
+public class TcpFanOut {
+
+  public static final String DROP_OLDEST = "dropOldest";
+  public static final String COALESCE = "coalesce";
+  public static final String DISCONNECT = "disconnect";
+  private static final int MAX_GATHERED_FRAMES = 64;
+  private static final int METRICS_LOG_INTERVAL = 1000;
+
+  private final ProgLogger chatroomLogger;
+  private final int queueCapacity;
+  private final String slowConsumerPolicy;
+  private final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<>();
+  private final LinkedBlockingQueue<Member> readyMembers = new LinkedBlockingQueue<>();
+  // members whose sockets are full, to be registered with the selector by its thread
+  private final ConcurrentLinkedQueue<Member> blockedMembers = new ConcurrentLinkedQueue<>();
+  private final Selector selector;
+  private volatile boolean isAlive = true;
+
+  // metrics
+  private long publishedMessages = 0;
+  private long queuedFrames = 0;
+  private long writtenFrames = 0;
+  private long writtenBytes = 0;
+  private long gatheringWrites = 0;
+  private long fullSocketWaits = 0;
+  private long droppedFrames = 0;
+  private long coalescedFrames = 0;
+  private long disconnectedMembers = 0;
+  private int maxQueueDepth = 0;
+
+  /**
+   * Class for a frame on a member's outbound queue, which is either an encoded chat message or a
+   * notice of the range of chat messages the member skipped, encoded when it is written.
+   */
+  private static class Frame {
+    final ByteBuffer bytes;
+    final long messageSequence;
+    long skipToSequence;
+
+    /**
+     * Constructor for a frame of an encoded chat message.
+     * @param bytes
+     * @param messageSequence
+     */
+    Frame(ByteBuffer bytes, long messageSequence) {
+      this.bytes = bytes;
+      this.messageSequence = messageSequence;
+      this.skipToSequence = -1;
+    }
+
+    /**
+     * Constructor for a notice that the chat messages from one sequence number up to another were
+     * skipped.
+     * @param fromSequence
+     * @param toSequence
+     */
+    Frame(long fromSequence, long toSequence) {
+      this.bytes = null;
+      this.messageSequence = fromSequence;
+      this.skipToSequence = toSequence;
+    }
+
+    /**
+     * Check whether the frame is a notice of skipped messages.
+     * @return true if the frame is a notice
+     */
+    boolean isSkipNotice() {
+      return this.bytes == null;
+    }
+  }
+
+  /**
+   * Class for a member connected to the chatroom server and its outbound queue.
+   */
+  public class Member {
+    private final Socket socket;
+    private final SocketChannel channel;
+    private final boolean binary;
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    // frames taken off the queue that the socket has not taken all of yet, only used by the writer
+    // thread holding the member
+    private final ByteBuffer[] unwritten = new ByteBuffer[MAX_GATHERED_FRAMES];
+    private int firstUnwritten = 0;
+    private int numUnwritten = 0;
+    // whether the member is waiting for or held by a writer thread, or waiting for its socket
+    private boolean scheduled = false;
+    private boolean isClosed = false;
+
+    /**
+     * Constructor for a member connected with the given socket, whose channel is non-blocking, that
+     * speaks the binary protocol or the text protocol.
+     * @param socket
+     * @param binary
+     */
+    Member(Socket socket, boolean binary) {
+      this.socket = socket;
+      this.channel = socket.getChannel();
+      this.binary = binary;
+    }
+
+    /**
+     * Queue a frame for the member, applying the slow consumer policy if its queue is full, and hand
+     * the member to the writers if it is not with them already.
+     * @param frame
+     */
+    private void enqueue(Frame frame) {
+      boolean disconnect = false;
+      synchronized (this) {
+        if (this.isClosed) {
+          return;
+        }
+        if (this.queue.size() >= queueCapacity) {
+          if (slowConsumerPolicy.equalsIgnoreCase(DISCONNECT)) {
+            disconnect = true;
+          } else if (slowConsumerPolicy.equalsIgnoreCase(COALESCE)) {
+            coalesce();
+          } else {
+            dropOldest();
+          }
+          // messages that do not follow each other can not be added to one notice
+          if (this.queue.size() >= queueCapacity) {
+            coalesce();
+          }
+        }
+        if (!disconnect) {
+          this.queue.add(frame);
+          countQueued(this.queue.size());
+          if (!this.scheduled) {
+            this.scheduled = true;
+            readyMembers.add(this);
+          }
+        }
+      }
+      if (disconnect) {
+        close();
+        countDisconnected();
+        chatroomLogger.logger.warning("Disconnected member that fell " + queueCapacity + " messages behind, "
+                + describeMetrics());
+      }
+    }
+
+    /**
+     * Drop the oldest queued chat message, adding it to the notice of skipped messages at the head of
+     * the queue. When there is no notice yet, the next chat message is dropped along with it to make
+     * room for the new notice.
+     */
+    private void dropOldest() {
+      Frame notice = this.queue.peekFirst().isSkipNotice() ? this.queue.pollFirst() : null;
+      int numNeeded = notice == null ? 2 : 1;
+      int numDropped = 0;
+      while (numDropped < numNeeded && !this.queue.isEmpty()) {
+        Frame oldest = this.queue.peekFirst();
+        if (oldest.isSkipNotice() || (notice != null && oldest.messageSequence != notice.skipToSequence)) {
+          break;
+        }
+        this.queue.pollFirst();
+        numDropped++;
+        if (notice == null) {
+          notice = new Frame(oldest.messageSequence, oldest.messageSequence + 1);
+        } else {
+          notice.skipToSequence = oldest.messageSequence + 1;
+        }
+      }
+      if (notice != null) {
+        this.queue.addFirst(notice);
+      }
+      countDropped(numDropped);
+    }
+
+    /**
+     * Replace the queued messages with one notice of the range of sequence numbers they held.
+     */
+    private void coalesce() {
+      long fromSequence = Long.MAX_VALUE;
+      long toSequence = -1;
+      int numCoalesced = 0;
+      for (Frame frame : this.queue) {
+        fromSequence = Math.min(fromSequence, frame.messageSequence);
+        toSequence = Math.max(toSequence, frame.isSkipNotice() ? frame.skipToSequence : frame.messageSequence + 1);
+        numCoalesced += frame.isSkipNotice() ? 0 : 1;
+      }
+      this.queue.clear();
+      this.queue.add(new Frame(fromSequence, toSequence));
+      countCoalesced(numCoalesced);
+    }
+
+    /**
+     * Write the frames the socket did not take last time and then the frames queued for the member
+     * with one gathering write, taking only as many bytes as the socket takes without blocking. The
+     * member is put back in line for the writers if more frames are queued, or left to the selector if
+     * its socket is full.
+     */
+    private void writeQueued() {
+      synchronized (this) {
+        if (this.isClosed) {
+          this.scheduled = false;
+          return;
+        }
+        if (this.firstUnwritten == this.numUnwritten) {
+          this.firstUnwritten = 0;
+          this.numUnwritten = 0;
+          while (this.numUnwritten < this.unwritten.length && !this.queue.isEmpty()) {
+            Frame frame = this.queue.poll();
+            this.unwritten[this.numUnwritten++] = frame.isSkipNotice() ? ByteBuffer.wrap(encode(this.binary,
+                    "chatSkipped", String.valueOf(frame.messageSequence), String.valueOf(frame.skipToSequence)))
+                    : frame.bytes;
+          }
+          if (this.numUnwritten == 0) {
+            this.scheduled = false;
+            return;
+          }
+        }
+      }
+      long numBytes;
+      try {
+        numBytes = this.channel.write(this.unwritten, this.firstUnwritten, this.numUnwritten - this.firstUnwritten);
+      } catch (IOException e) {
+        chatroomLogger.logger.warning("Could not write messages to member, closing its socket");
+        close();
+        return;
+      }
+      int numFrames = 0;
+      while (this.firstUnwritten < this.numUnwritten && !this.unwritten[this.firstUnwritten].hasRemaining()) {
+        this.unwritten[this.firstUnwritten++] = null;
+        numFrames++;
+      }
+      countWritten(numFrames, numBytes);
+      if (this.firstUnwritten < this.numUnwritten) {
+        // the socket is full, so wait for it to take bytes again instead of holding this writer
+        countFullSocketWait();
+        blockedMembers.add(this);
+        selector.wakeup();
+        return;
+      }
+      synchronized (this) {
+        if (this.queue.isEmpty() || this.isClosed) {
+          this.scheduled = false;
+          return;
+        }
+      }
+      readyMembers.add(this);
+    }
+
+    /**
+     * Drop the member's queued frames and close its socket.
+     */
+    public void close() {
+      synchronized (this) {
+        this.isClosed = true;
+        this.queue.clear();
+      }
+      members.remove(this);
+      try {
+        this.socket.close();
+      } catch (IOException e) {
+        chatroomLogger.logger.warning("Could not close member socket");
+      }
+    }
+  }
+
+  /**
+   * Class to be executed by each thread of the writer pool, which writes the queued frames of the
+   * members handed to it until the fan-out is closed.
+   */
+  public class Writer implements Runnable {
+
+    @Override
+    public void run() {
+      while (isAlive) {
+        Member member;
+        try {
+          member = readyMembers.poll(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (member != null) {
+          member.writeQueued();
+        }
+      }
+    }
+  }
+
+  /**
+   * Class to be executed by one thread, which waits on the selector for the sockets of members
+   * that were full to take bytes again and hands those members back to the writers.
+   */
+  public class SocketWaiter implements Runnable {
+
+    @Override
+    public void run() {
+      while (isAlive) {
+        Member member;
+        while ((member = blockedMembers.poll()) != null) {
+          try {
+            SelectionKey key = member.channel.keyFor(selector);
+            if (key == null) {
+              member.channel.register(selector, SelectionKey.OP_WRITE, member);
+            } else {
+              key.interestOps(SelectionKey.OP_WRITE);
+            }
+          } catch (ClosedChannelException | CancelledKeyException e) {
+            // the member was closed and is not written to again
+            member.close();
+          }
+        }
+        try {
+          selector.select(1000);
+        } catch (IOException e) {
+          chatroomLogger.logger.warning("Could not wait for member sockets to take bytes");
+          return;
+        }
+        for (SelectionKey key : selector.selectedKeys()) {
+          try {
+            key.interestOps(0);
+          } catch (CancelledKeyException e) {
+            continue;
+          }
+          readyMembers.add((Member) key.attachment());
+        }
+        selector.selectedKeys().clear();
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        chatroomLogger.logger.warning("Could not close fan-out selector");
+      }
+    }
+  }
+
+  /**
+   * Constructor for a fan-out with outbound queues of the given number of messages and the given
+   * slow consumer policy.
+   * @param queueCapacity
+   * @param slowConsumerPolicy one of DROP_OLDEST, COALESCE and DISCONNECT
+   * @param chatroomLogger
+   * @throws IOException if the selector can not be opened
+   */
+  public TcpFanOut(int queueCapacity, String slowConsumerPolicy, ProgLogger chatroomLogger) throws IOException {
+    this.queueCapacity = Math.max(1, queueCapacity);
+    this.slowConsumerPolicy = slowConsumerPolicy;
+    this.chatroomLogger = chatroomLogger;
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Encode a message in the protocol a member speaks.
+   * @param binary
+   * @param fields
+   * @return the bytes of the message
+   */
+  private static byte[] encode(boolean binary, String... fields) {
+    return binary ? BinaryMessageChannel.encodeMessage(fields) : TextMessageChannel.encodeMessage(fields);
+  }
+
+  /**
+   * Start delivering messages to a member connected with the given socket, which must have been
+   * accepted through a channel. The channel is made non-blocking, so the socket must be read through
+   * ChannelStreams from then on.
+   * @param socket
+   * @param binary whether the member speaks the binary protocol
+   * @return the member
+   * @throws IOException if the socket's channel can not be made non-blocking
+   */
+  public Member addMember(Socket socket, boolean binary) throws IOException {
+    if (socket.getChannel() == null) {
+      throw new IOException("Member socket has no channel");
+    }
+    socket.getChannel().configureBlocking(false);
+    Member member = new Member(socket, binary);
+    this.members.add(member);
+    return member;
+  }
+
+  /**
+   * Stop delivering messages to a member that left.
+   * @param member
+   */
+  public void removeMember(Member member) {
+    synchronized (member) {
+      member.isClosed = true;
+      member.queue.clear();
+    }
+    this.members.remove(member);
+  }
+
+  /**
+   * Queue a chat message for every member. The message is encoded at most once per protocol.
+   * @param sender
+   * @param message
+   * @param messageSequence
+   */
+  public void publishChatMessage(String sender, String message, long messageSequence) {
+    byte[] text = null;
+    byte[] binary = null;
+    for (Member member : this.members) {
+      if (member.binary) {
+        if (binary == null) {
+          binary = encode(true, "chatMessage", String.valueOf(messageSequence), sender, message);
+        }
+        member.enqueue(new Frame(ByteBuffer.wrap(binary), messageSequence));
+      } else {
+        if (text == null) {
+          text = encode(false, "chatMessage", String.valueOf(messageSequence), sender, message);
+        }
+        member.enqueue(new Frame(ByteBuffer.wrap(text), messageSequence));
+      }
+    }
+    boolean logMetrics;
+    synchronized (this) {
+      this.publishedMessages++;
+      logMetrics = this.publishedMessages % METRICS_LOG_INTERVAL == 0;
+    }
+    if (logMetrics) {
+      chatroomLogger.logger.info("TCP fan-out metrics: " + describeMetrics());
+    }
+  }
+
+  /**
+   * Queue a chat message for one member, such as one it reported missing.
+   * @param member
+   * @param sender
+   * @param message
+   * @param messageSequence
+   */
+  public void sendChatMessage(Member member, String sender, String message, long messageSequence) {
+    member.enqueue(new Frame(ByteBuffer.wrap(encode(member.binary, "chatMessage", String.valueOf(messageSequence),
+            sender, message)), messageSequence));
+  }
+
+  /**
+   * Count a frame queued for a member whose queue is now the given depth.
+   * @param queueDepth
+   */
+  private synchronized void countQueued(int queueDepth) {
+    this.queuedFrames++;
+    this.maxQueueDepth = Math.max(this.maxQueueDepth, queueDepth);
+  }
+
+  /**
+   * Count frames written to a member with one gathering write.
+   * @param numFrames
+   * @param numBytes
+   */
+  private synchronized void countWritten(int numFrames, long numBytes) {
+    this.writtenFrames += numFrames;
+    this.writtenBytes += numBytes;
+    this.gatheringWrites++;
+  }
+
+  /**
+   * Count a write that left frames because the member's socket was full.
+   */
+  private synchronized void countFullSocketWait() {
+    this.fullSocketWaits++;
+  }
+
+  /**
+   * Count frames dropped from the queue of a slow member.
+   * @param numFrames
+   */
+  private synchronized void countDropped(int numFrames) {
+    this.droppedFrames += numFrames;
+  }
+
+  /**
+   * Count chat messages coalesced away from the queue of a slow member.
+   * @param numFrames
+   */
+  private synchronized void countCoalesced(int numFrames) {
+    this.coalescedFrames += numFrames;
+  }
+
+  /**
+   * Count a slow member that was disconnected.
+   */
+  private synchronized void countDisconnected() {
+    this.disconnectedMembers++;
+  }
+
+  /**
+   * Describe how many messages were queued for and written to members, and what became of the
+   * messages of slow members.
+   * @return a one line summary of the fan-out metrics
+   */
+  public synchronized String describeMetrics() {
+    return "members=" + this.members.size() + ", published=" + this.publishedMessages + ", queuedFrames="
+            + this.queuedFrames + ", writtenFrames=" + this.writtenFrames + ", writtenBytes=" + this.writtenBytes
+            + ", framesPerWrite=" + (this.gatheringWrites == 0 ? 0 : this.writtenFrames / this.gatheringWrites)
+            + ", fullSocketWaits=" + this.fullSocketWaits + ", maxQueueDepth=" + this.maxQueueDepth + ", dropped=" + this.droppedFrames + ", coalesced="
+            + this.coalescedFrames + ", disconnected=" + this.disconnectedMembers;
+  }
+
+  /**
+   * Stop the writer and selector threads and close the socket of every member.
+   */
+  public void close() {
+    this.isAlive = false;
+    this.selector.wakeup();
+    for (Member member : this.members) {
+      member.close();
+    }
+  }
+}
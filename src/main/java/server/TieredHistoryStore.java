@@ -0,0 +1,207 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Message history whose newest messages are kept in a ring on the heap and whose older messages are
+ * kept in a cold store, which is usually a memory-mapped one on disk. Appends only go to the ring.
+ * Once the ring holds a batch more than the number of messages kept hot, the history evictor spills
+ * the oldest of them to the cold store in the background, and if the ring fills up before that
+ * happens, the append spills them itself. Reads of recent messages are served by the ring alone,
+ * and only reads reaching further back load messages from the cold store. Discarding messages
+ * discards them from the cold store first and then from the ring.
+ */
+public class TieredHistoryStore implements HistoryStore {
+
+  private final HistoryStore coldStore;
+  private final HistoryEvictor evictor;
+  private final int hotMessages;
+  private final int evictionBatch;
+  private final SenderDictionary senders = new SenderDictionary();
+  private final int[] hotSenderIDs;
+  private final String[] hotContents;
+  // messages before this sequence number are in the cold store, and those before the first are discarded
+  private long hotFirstSequence = 0;
+  private long firstSequence = 0;
+  private long nextSequence = 0;
+  private boolean isEvictionScheduled = false;
+  private boolean isClosed = false;
+  // held while spilling, so only one thread appends to the cold store at a time
+  private final Object evictionLock = new Object();
+
+  /**
+   * Constructor for a tiered history store that keeps the given number of the newest messages hot.
+   * @param coldStore the empty store to spill older messages to
+   * @param hotMessages
+   * @param evictor the evictor to spill in the background, or null to always spill while appending
+   */
+  public TieredHistoryStore(HistoryStore coldStore, int hotMessages, HistoryEvictor evictor) {
+    this.coldStore = coldStore;
+    this.evictor = evictor;
+    this.hotMessages = Math.max(1, hotMessages);
+    this.evictionBatch = Math.max(1, this.hotMessages / 4);
+    int capacity = this.hotMessages + 2 * this.evictionBatch;
+    this.hotSenderIDs = new int[capacity];
+    this.hotContents = new String[capacity];
+  }
+
+  @Override
+  public long append(String sender, String message) {
+    while (true) {
+      synchronized (this) {
+        long numHot = this.nextSequence - this.hotFirstSequence;
+        if (numHot < this.hotContents.length) {
+          int slot = (int) (this.nextSequence % this.hotContents.length);
+          this.hotSenderIDs[slot] = this.senders.getID(sender);
+          this.hotContents[slot] = message;
+          if (this.evictor != null && !this.isEvictionScheduled && numHot + 1 >= this.hotMessages + this.evictionBatch) {
+            this.isEvictionScheduled = true;
+            this.evictor.schedule(this);
+          }
+          return this.nextSequence++;
+        } else if (this.isClosed) {
+          throw new IllegalStateException("Cannot spill history of a closed store");
+        }
+      }
+      evict();
+    }
+  }
+
+  /**
+   * Spill every message but the newest hotMessages from the ring to the cold store. Messages are
+   * copied out of the ring, appended to the cold store without holding the lock of this store, and
+   * only then dropped from the ring, so a read always finds every message in one tier or the other.
+   */
+  public void evict() {
+    synchronized (this.evictionLock) {
+      long fromSequence;
+      String[] evictedSenders;
+      String[] evictedContents;
+      synchronized (this) {
+        this.isEvictionScheduled = false;
+        fromSequence = this.hotFirstSequence;
+        int numMessages = (int) Math.max(0, this.nextSequence - this.hotMessages - fromSequence);
+        if (this.isClosed || numMessages == 0) {
+          return;
+        }
+        evictedSenders = new String[numMessages];
+        evictedContents = new String[numMessages];
+        for (int i = 0; i < numMessages; i++) {
+          int slot = (int) ((fromSequence + i) % this.hotContents.length);
+          evictedSenders[i] = this.senders.getSender(this.hotSenderIDs[slot]);
+          evictedContents[i] = this.hotContents[slot];
+        }
+      }
+      for (int i = 0; i < evictedContents.length; i++) {
+        this.coldStore.append(evictedSenders[i], evictedContents[i]);
+      }
+      synchronized (this) {
+        for (int i = 0; i < evictedContents.length; i++) {
+          this.hotContents[(int) ((fromSequence + i) % this.hotContents.length)] = null;
+        }
+        this.hotFirstSequence = fromSequence + evictedContents.length;
+      }
+      if (this.evictor != null) {
+        this.evictor.recordEviction(evictedContents.length);
+      }
+    }
+  }
+
+  @Override
+  public synchronized long getFirstSequence() {
+    return this.firstSequence;
+  }
+
+  @Override
+  public synchronized long getNextSequence() {
+    return this.nextSequence;
+  }
+
+  /**
+   * Get the sequence number of the oldest message in the hot tier.
+   * @return the sequence number
+   */
+  public synchronized long getHotFirstSequence() {
+    return this.hotFirstSequence;
+  }
+
+  @Override
+  public String[] getMessages(long fromSequence, long toSequence) {
+    long from;
+    long hotFrom;
+    String[] messages;
+    synchronized (this) {
+      from = Math.max(this.firstSequence, fromSequence);
+      long to = Math.min(this.nextSequence, toSequence);
+      if (to <= from) {
+        return new String[0];
+      }
+      messages = new String[(int) (to - from) * 2];
+      hotFrom = Math.min(to, Math.max(from, this.hotFirstSequence));
+      for (long sequence = hotFrom; sequence < to; sequence++) {
+        int slot = (int) (sequence % this.hotContents.length);
+        int index = (int) (sequence - from) * 2;
+        messages[index] = this.senders.getSender(this.hotSenderIDs[slot]);
+        messages[index + 1] = this.hotContents[slot];
+      }
+    }
+    // the cold store keeps every message that has left the ring, so the rest is read without the lock.
+    long coldNanos = 0;
+    if (from < hotFrom) {
+      long start = System.nanoTime();
+      String[] coldMessages = this.coldStore.getMessages(from, hotFrom);
+      int numDiscarded = (int) (hotFrom - from) * 2 - coldMessages.length;
+      System.arraycopy(coldMessages, 0, messages, numDiscarded, coldMessages.length);
+      if (numDiscarded > 0) {
+        // the oldest of them were discarded since the ring was read.
+        messages = Arrays.copyOfRange(messages, numDiscarded, messages.length);
+      }
+      coldNanos = System.nanoTime() - start;
+    }
+    if (this.evictor != null) {
+      this.evictor.recordRead(hotFrom - from, coldNanos);
+    }
+    return messages;
+  }
+
+  /**
+   * Discard messages from the cold store and then from the ring. If every message of the cold store
+   * is discarded, the cold store skips ahead to the first message left in the ring, so the next
+   * message spilled gets the sequence number it had in the ring.
+   * @param sequence
+   */
+  @Override
+  public void discardBefore(long sequence) {
+    synchronized (this.evictionLock) {
+      synchronized (this) {
+        if (sequence <= this.firstSequence) {
+          return;
+        }
+        this.firstSequence = sequence;
+        for (long dropped = this.hotFirstSequence; dropped < Math.min(sequence, this.nextSequence); dropped++) {
+          this.hotContents[(int) (dropped % this.hotContents.length)] = null;
+        }
+        this.hotFirstSequence = Math.max(this.hotFirstSequence, sequence);
+        this.nextSequence = Math.max(this.nextSequence, sequence);
+      }
+      // the cold store holds messages up to the old first message of the ring, so the sequence number
+      // is either inside it or the new first message of the ring.
+      if (!this.isClosed) {
+        this.coldStore.discardBefore(sequence);
+      }
+    }
+  }
+
+  /**
+   * Close the cold store. The ring stays readable for views of this history still being read.
+   */
+  @Override
+  public void close() {
+    synchronized (this.evictionLock) {
+      synchronized (this) {
+        this.isClosed = true;
+      }
+      this.coldStore.close();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encoding of the transactions that LookUp servers replicate through paxos and of the batches of
+ * transactions proposed as a single value. Fields such as usernames and chat messages can hold any
+ * text, so each field of a transaction is escaped before the fields are joined with "&%%": "%", "&",
+ * "@", "#", carriage returns and newlines are written as "%" and their two hex digits. An encoded
+ * transaction therefore never holds the field separator inside a field, the "@#@" that separates
+ * the parts of a paxos message, or a line end. A batch is the concatenation of its transactions,
+ * each written as its length in characters, ":" and the transaction, so no text of a transaction
+ * can split it. Values logged before batches were length-prefixed were joined with "%#%", which
+ * escaped fields can not hold either, and start with a letter, so they are still read that way.
+ */
+public final class TransactionCodec {
+
+  // separates the fields of a transaction
+  public static final String FIELD_SEPARATOR = "&%%";
+  // separated the transactions of a batch before batches were length-prefixed
+  public static final String LEGACY_BATCH_SEPARATOR = "%#%";
+
+  private static final String HEX_DIGITS = "0123456789ABCDEF";
+
+  private TransactionCodec() {
+  }
+
+  /**
+   * Encode a transaction from its type and fields.
+   * @param fields the transaction type followed by its fields
+   * @return the encoded transaction
+   */
+  public static String encodeTransaction(String... fields) {
+    StringBuilder transaction = new StringBuilder();
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        transaction.append(FIELD_SEPARATOR);
+      }
+      appendEscaped(transaction, fields[i]);
+    }
+    return transaction.toString();
+  }
+
+  /**
+   * Decode the type and fields of a transaction. Fields that were not escaped, as in transactions
+   * logged before fields were, are read as they are.
+   * @param transaction
+   * @return the transaction type followed by its fields
+   */
+  public static String[] decodeTransaction(String transaction) {
+    String[] fields = transaction.split(FIELD_SEPARATOR, -1);
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = unescape(fields[i]);
+    }
+    return fields;
+  }
+
+  /**
+   * Encode a batch of transactions as a single paxos value.
+   * @param transactions
+   * @return the encoded batch
+   */
+  public static String encodeBatch(List<String> transactions) {
+    StringBuilder batch = new StringBuilder();
+    for (String transaction : transactions) {
+      batch.append(transaction.length()).append(':').append(transaction);
+    }
+    return batch.toString();
+  }
+
+  /**
+   * Add an element to the end of an encoded batch.
+   * @param batch
+   * @param element
+   * @return the encoded batch with the element
+   */
+  public static String appendToBatch(String batch, String element) {
+    return batch + element.length() + ":" + element;
+  }
+
+  /**
+   * Decode the transactions of a batch, or of a batch joined with "%#%" before batches were
+   * length-prefixed.
+   * @param batch
+   * @return the transactions in order
+   * @throws IllegalArgumentException if a length prefix is malformed or runs past the batch
+   */
+  public static List<String> decodeBatch(String batch) {
+    if (batch.isEmpty() || !Character.isDigit(batch.charAt(0))) {
+      return Arrays.asList(batch.split(LEGACY_BATCH_SEPARATOR));
+    }
+    ArrayList<String> transactions = new ArrayList<>();
+    int position = 0;
+    while (position < batch.length()) {
+      int colon = batch.indexOf(':', position);
+      if (colon < 0) {
+        throw new IllegalArgumentException("Batch element at " + position + " has no length");
+      }
+      int end;
+      try {
+        end = colon + 1 + Integer.parseInt(batch.substring(position, colon));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Batch element at " + position + " has a malformed length");
+      }
+      if (end <= colon || end > batch.length()) {
+        throw new IllegalArgumentException("Batch element at " + position + " runs past the batch");
+      }
+      transactions.add(batch.substring(colon + 1, end));
+      position = end;
+    }
+    return transactions;
+  }
+
+  /**
+   * Append a field with its separator characters and line ends escaped.
+   * @param builder
+   * @param field
+   */
+  private static void appendEscaped(StringBuilder builder, String field) {
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '%' || c == '&' || c == '@' || c == '#' || c == '\r' || c == '\n') {
+        builder.append('%').append(HEX_DIGITS.charAt(c >> 4)).append(HEX_DIGITS.charAt(c & 0xF));
+      } else {
+        builder.append(c);
+      }
+    }
+  }
+
+  /**
+   * Undo the escaping of a field. A "%" that is not followed by two hex digits is kept as it is.
+   * @param field
+   * @return the field as it was before it was escaped
+   */
+  private static String unescape(String field) {
+    if (field.indexOf('%') < 0) {
+      return field;
+    }
+    StringBuilder builder = new StringBuilder(field.length());
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      int high = c == '%' && i + 2 < field.length() ? HEX_DIGITS.indexOf(field.charAt(i + 1)) : -1;
+      int low = high >= 0 ? HEX_DIGITS.indexOf(field.charAt(i + 2)) : -1;
+      if (low >= 0) {
+        builder.append((char) ((high << 4) | low));
+        i += 2;
+      } else {
+        builder.append(c);
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Check that a transaction whose fields hold every delimiter used between LookUp servers comes
+   * back whole after being put in a batch, sent in a paxos accept message and read back.
+   * @param args
+   */
+  public static void main(String[] args) {
+    String text = "a@#@b&%%c%#%d\ne\r\nf%41%g&@%";
+    String[] fields = { "messageSent", "user@#@", text, "#%room%#%", "7", "1700000000000" };
+    String batch = appendToBatch(encodeBatch(Arrays.asList(encodeTransaction(fields),
+            encodeTransaction("login", "&%%", "%"))), "batchID=1.0.1");
+    String line = "accept@#@" + 12 + "@#@" + batch;
+    String[] messageArray = line.split("@#@");
+    List<String> transactions = decodeBatch(messageArray[2]);
+    boolean ok = line.indexOf('\n') < 0 && line.indexOf('\r') < 0 && messageArray.length == 3
+            && transactions.size() == 3 && Arrays.equals(decodeTransaction(transactions.get(0)), fields)
+            && Arrays.equals(decodeTransaction(transactions.get(1)), new String[]{ "login", "&%%", "%" })
+            && transactions.get(2).equals("batchID=1.0.1");
+    System.out.println("Round trip of a transaction holding every delimiter " + (ok ? "succeeded" : "failed"));
+    if (!ok) {
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,441 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import logger.ProgLogger;
+
+/**
+ * Append-only log on disk for the paxos state of a LookUp server. Every record is written as
+ * [int payload length][int CRC32 of payload][payload], where the payload is a record type byte
+ * followed by length-prefixed UTF-8 fields. Appending threads only queue their record, and a
+ * single flusher thread writes everything queued since its last sync with one write and one fsync
+ * (group commit), then runs the callbacks of those records. An acceptor sends its promise or
+ * acceptance from such a callback, so it never answers before its state is durable, while many
+ * concurrent accepts share a single fsync. The log is split into numbered segment files, and the
+ * flusher moves on to a new segment once the current one is full or a roll over was requested, so
+ * that segments covered by a snapshot can be deleted as a whole.
+ */
+public class WriteAheadLog implements Runnable {
+
+  // record types
+  public static final byte PROMISE = 'P';
+  public static final byte ACCEPT = 'A';
+  public static final byte COMMIT = 'C';
+  public static final byte PROMISE_LEADER = 'L';
+  public static final byte ACCEPT_SLOT = 'S';
+  public static final byte COMMIT_SLOT = 'K';
+
+  private static final int METRICS_LOG_INTERVAL = 1000;
+
+  private final Path directory;
+  private final String name;
+  private final long segmentBytes;
+  private final ProgLogger logger;
+  private FileChannel channel;
+  private volatile long currentSegment;
+  private ArrayList<byte[]> pendingRecords = new ArrayList<>();
+  private ArrayList<Runnable> pendingCallbacks = new ArrayList<>();
+  private boolean isRollOverRequested = false;
+  private volatile boolean isAlive = true;
+
+  // metrics, only written by the flusher thread
+  private long syncs = 0;
+  private long syncedRecords = 0;
+  private long syncNanos = 0;
+
+  /**
+   * Constructor for the write-ahead log that opens (or creates) the newest segment file of the
+   * log with the given name in the given directory for appending.
+   * @param directory
+   * @param name
+   * @param segmentBytes
+   * @param logger
+   * @throws IOException
+   */
+  public WriteAheadLog(Path directory, String name, long segmentBytes, ProgLogger logger) throws IOException {
+    this.directory = directory;
+    this.name = name;
+    this.segmentBytes = segmentBytes;
+    this.logger = logger;
+    Files.createDirectories(directory);
+    ArrayList<Long> segments = listSegments();
+    this.currentSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+    this.channel = openSegment(this.currentSegment);
+  }
+
+  /**
+   * Get the path of a segment file.
+   * @param segment
+   * @return the path of the segment file
+   */
+  public Path segmentPath(long segment) {
+    return this.directory.resolve(this.name + "." + segment + ".wal");
+  }
+
+  /**
+   * Get the path of the snapshot file that belongs to this log.
+   * @return the path of the snapshot file
+   */
+  public Path snapshotPath() {
+    return this.directory.resolve(this.name + ".snapshot");
+  }
+
+  /**
+   * Get the number of the segment that records are currently appended to. Every segment before it
+   * is closed and never written again.
+   * @return the current segment number
+   */
+  public long getCurrentSegment() {
+    return this.currentSegment;
+  }
+
+  /**
+   * List the numbers of the segment files of this log in ascending order.
+   * @return the segment numbers
+   * @throws IOException
+   */
+  public ArrayList<Long> listSegments() throws IOException {
+    ArrayList<Long> segments = new ArrayList<>();
+    String prefix = this.name + ".";
+    try (Stream<Path> files = Files.list(this.directory)) {
+      files.forEach(file -> {
+        String fileName = file.getFileName().toString();
+        if (fileName.startsWith(prefix) && fileName.endsWith(".wal")) {
+          try {
+            segments.add(Long.parseLong(fileName.substring(prefix.length(), fileName.length() - 4)));
+          } catch (NumberFormatException e) {
+            // not a segment of this log
+          }
+        }
+      });
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  /**
+   * Open a segment file for appending.
+   * @param segment
+   * @return the channel of the segment file
+   * @throws IOException
+   */
+  private FileChannel openSegment(long segment) throws IOException {
+    FileChannel segmentChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.READ);
+    segmentChannel.position(segmentChannel.size());
+    return segmentChannel;
+  }
+
+  /**
+   * Read every intact record of the log in order, starting at the given segment. A torn or corrupt
+   * record at the end of the current segment, left by a crash in the middle of a write, ends the log
+   * and is cut off so that new records follow the last intact one.
+   * @param firstSegment
+   * @return the records, each as its type followed by its fields
+   * @throws IOException
+   */
+  public ArrayList<Object[]> readAll(long firstSegment) throws IOException {
+    ArrayList<Object[]> records = new ArrayList<>();
+    for (long segment : listSegments()) {
+      if (segment >= firstSegment && segment < this.currentSegment) {
+        readSegment(segment, records);
+      }
+    }
+    long validLength = readSegment(this.currentSegment, records);
+    if (this.channel.size() > validLength) {
+      this.logger.logger.warning("Cutting off " + (this.channel.size() - validLength)
+              + " bytes of incomplete write-ahead log records");
+      this.channel.truncate(validLength);
+    }
+    this.channel.position(validLength);
+    return records;
+  }
+
+  /**
+   * Read the intact records of a single segment, stopping at the first torn or corrupt record.
+   * @param segment
+   * @param records the list the records are added to
+   * @return the length of the intact part of the segment
+   * @throws IOException
+   */
+  public long readSegment(long segment, ArrayList<Object[]> records) throws IOException {
+    long validLength = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(segment))))) {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        if (length < 1) {
+          break;
+        }
+        int checksum = in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        records.add(decode(payload));
+        validLength += 8 + length;
+      }
+    } catch (EOFException e) {
+      // a torn record at the end of the segment
+    }
+    return validLength;
+  }
+
+  /**
+   * Delete every segment before the given one, once a snapshot covers them.
+   * @param segment
+   * @throws IOException
+   */
+  public void deleteSegmentsBefore(long segment) throws IOException {
+    for (long oldSegment : listSegments()) {
+      if (oldSegment < segment && oldSegment < this.currentSegment) {
+        Files.deleteIfExists(segmentPath(oldSegment));
+      }
+    }
+  }
+
+  /**
+   * Make the flusher close the current segment after its next group commit and continue in a new
+   * segment, and wait until it did. Nothing happens if the current segment is still empty.
+   * @throws IOException
+   */
+  public void rollOver() throws IOException {
+    synchronized (this) {
+      if (this.channel.size() == 0 && this.pendingRecords.isEmpty()) {
+        return;
+      }
+      long segment = this.currentSegment;
+      this.isRollOverRequested = true;
+      notifyAll();
+      while (this.currentSegment == segment && this.isAlive) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Queue a record to be written by the next group commit, and run the callback once it is durable.
+   * @param type
+   * @param onDurable may be null
+   * @param fields
+   */
+  public void append(byte type, Runnable onDurable, String... fields) {
+    byte[] record = encode(type, fields);
+    synchronized (this) {
+      this.pendingRecords.add(record);
+      if (onDurable != null) {
+        this.pendingCallbacks.add(onDurable);
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Encode a record with its length and checksum.
+   * @param type
+   * @param fields
+   * @return the bytes of the record
+   */
+  private static byte[] encode(byte type, String[] fields) {
+    try {
+      ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+      DataOutputStream payload = new DataOutputStream(payloadBytes);
+      payload.writeByte(type);
+      payload.writeShort(fields.length);
+      for (String field : fields) {
+        byte[] encodedField = field.getBytes(StandardCharsets.UTF_8);
+        payload.writeInt(encodedField.length);
+        payload.write(encodedField);
+      }
+      byte[] payloadArray = payloadBytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(payloadArray);
+      ByteBuffer record = ByteBuffer.allocate(8 + payloadArray.length);
+      record.putInt(payloadArray.length);
+      record.putInt((int) crc.getValue());
+      record.put(payloadArray);
+      return record.array();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not encode write-ahead log record", e);
+    }
+  }
+
+  /**
+   * Decode the payload of a record.
+   * @param payload
+   * @return the record type followed by its fields
+   * @throws IOException
+   */
+  private static Object[] decode(byte[] payload) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    byte type = buffer.get();
+    int fieldCount = buffer.getShort();
+    Object[] record = new Object[1 + fieldCount];
+    record[0] = type;
+    for (int i = 1; i <= fieldCount; i++) {
+      int fieldLength = buffer.getInt();
+      if (fieldLength < 0 || fieldLength > buffer.remaining()) {
+        throw new IOException("Corrupt write-ahead log record");
+      }
+      record[i] = new String(payload, buffer.position(), fieldLength, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + fieldLength);
+    }
+    return record;
+  }
+
+  /**
+   * Continuously take every record queued since the last sync, write them with one gathering write
+   * and one fsync, and then run their callbacks. Move on to a new segment when the current one is
+   * full or a roll over was requested.
+   */
+  @Override
+  public void run() {
+    ArrayList<byte[]> records = new ArrayList<>();
+    ArrayList<Runnable> callbacks = new ArrayList<>();
+    while (this.isAlive) {
+      boolean rollOver;
+      synchronized (this) {
+        while (this.pendingRecords.isEmpty() && !this.isRollOverRequested && this.isAlive) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        ArrayList<byte[]> swappedRecords = this.pendingRecords;
+        this.pendingRecords = records;
+        records = swappedRecords;
+        ArrayList<Runnable> swappedCallbacks = this.pendingCallbacks;
+        this.pendingCallbacks = callbacks;
+        callbacks = swappedCallbacks;
+        rollOver = this.isRollOverRequested;
+        this.isRollOverRequested = false;
+      }
+      if (records.isEmpty()) {
+        if (rollOver) {
+          rollOverSegment();
+        }
+        continue;
+      }
+      long start = System.nanoTime();
+      try {
+        ByteBuffer[] buffers = new ByteBuffer[records.size()];
+        for (int i = 0; i < buffers.length; i++) {
+          buffers[i] = ByteBuffer.wrap(records.get(i));
+        }
+        while (buffers[buffers.length - 1].hasRemaining()) {
+          this.channel.write(buffers);
+        }
+        this.channel.force(false);
+      } catch (IOException e) {
+        // the callbacks are not run, so nothing depending on these records is ever answered.
+        this.logger.logger.severe("Could not write to write-ahead log, dropping " + records.size() + " records");
+        records.clear();
+        callbacks.clear();
+        continue;
+      }
+      recordSync(records.size(), System.nanoTime() - start);
+      records.clear();
+      for (Runnable callback : callbacks) {
+        callback.run();
+      }
+      callbacks.clear();
+      try {
+        if (rollOver || this.channel.size() >= this.segmentBytes) {
+          rollOverSegment();
+        }
+      } catch (IOException e) {
+        this.logger.logger.warning("Could not check size of write-ahead log segment");
+      }
+    }
+  }
+
+  /**
+   * Close the current segment and continue appending to the next one.
+   */
+  private void rollOverSegment() {
+    try {
+      FileChannel nextChannel = openSegment(this.currentSegment + 1);
+      FileChannel closedChannel = this.channel;
+      synchronized (this) {
+        this.channel = nextChannel;
+        this.currentSegment++;
+        notifyAll();
+      }
+      closedChannel.close();
+      this.logger.logger.info("Write-ahead log moved on to segment " + this.currentSegment);
+    } catch (IOException e) {
+      this.logger.logger.warning("Could not move on to a new write-ahead log segment");
+    }
+  }
+
+  /**
+   * Record the number of records and the time of a group commit and periodically log the averages.
+   * @param numRecords
+   * @param nanos
+   */
+  private void recordSync(int numRecords, long nanos) {
+    long intervalsBefore = this.syncedRecords / METRICS_LOG_INTERVAL;
+    this.syncs++;
+    this.syncedRecords += numRecords;
+    this.syncNanos += nanos;
+    if (this.syncedRecords / METRICS_LOG_INTERVAL > intervalsBefore) {
+      this.logger.logger.info("Write-ahead log metrics: " + describeMetrics());
+    }
+  }
+
+  /**
+   * Describe how many records were synced and how many of them shared each fsync on average.
+   * @return a one line summary of the group commit metrics
+   */
+  public String describeMetrics() {
+    if (this.syncs == 0) {
+      return "records=0";
+    }
+    return "records=" + this.syncedRecords + ", syncs=" + this.syncs
+            + ", recordsPerSync=" + String.format("%.1f", (double) this.syncedRecords / this.syncs)
+            + ", averageSyncMicros=" + (this.syncNanos / this.syncs / 1000);
+  }
+
+  /**
+   * Stop the flusher thread and close the log file.
+   */
+  public void close() {
+    synchronized (this) {
+      this.isAlive = false;
+      notifyAll();
+    }
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      this.logger.logger.warning("Could not close write-ahead log");
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package executor;
+
+/**
+ * Execution policy that starts a new named virtual thread for every task, so that tens of thousands
+ * of blocked socket handlers do not each hold a platform thread stack. Only compiled by the jdk21
+ * build profile.
+ */
+public class VirtualThreadExecutionPolicy extends ThreadPerTaskExecutionPolicy {
+
+  /**
+   * Constructor for the virtual thread policy. Virtual threads are always daemon threads, so a single
+   * idle platform thread is started to keep the process alive after main returns, like the platform
+   * threads of the other policies do.
+   */
+  public VirtualThreadExecutionPolicy() {
+    new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }, "virtual-keep-alive").start();
+  }
+
+  @Override
+  protected void startThread(String threadName, Runnable task) {
+    Thread.ofVirtual().name(threadName).start(task);
+  }
+}